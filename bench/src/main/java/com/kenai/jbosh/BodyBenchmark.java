@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of building, serializing and parsing body messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BodyBenchmark {
+
+    /**
+     * Corpus entry to use as the message.
+     */
+    @Param({"empty", "message", "presence", "roster", "muc-history"})
+    public String corpus;
+
+    /**
+     * Raw XML of the corpus entry.
+     */
+    private String xml;
+
+    /**
+     * Corpus entry parsed as a static body.
+     */
+    private StaticBody staticBody;
+
+    /**
+     * Corpus entry converted into a composable body.
+     */
+    private ComposableBody composable;
+
+    /**
+     * Payload of the corpus entry.
+     */
+    private String payload;
+
+    @Setup
+    public void setup() throws BOSHException {
+        xml = Corpus.load(corpus);
+        staticBody = StaticBody.fromString(xml);
+        composable = ComposableBody.fromStaticBody(staticBody);
+        payload = composable.getPayloadXML();
+    }
+
+    /**
+     * Build a new body, as done for every message sent.
+     */
+    @Benchmark
+    public ComposableBody build() {
+        return ComposableBody.builder()
+                .setNamespaceDefinition("xmpp", "urn:xmpp:xbosh")
+                .setAttribute(Attributes.RID, "1249243562")
+                .setAttribute(Attributes.SID, "SomeSID")
+                .setPayloadXML(payload)
+                .build();
+    }
+
+    /**
+     * Add an attribute to an existing body, as done when the client adds
+     * the RID, SID and ack attributes to an application message.
+     */
+    @Benchmark
+    public ComposableBody rebuild() {
+        return composable.rebuild()
+                .setAttribute(Attributes.ACK, "1249243561")
+                .build();
+    }
+
+    /**
+     * Build and serialize a new body.  {@code toXML()} caches its result,
+     * so a fresh instance is needed for every invocation.
+     */
+    @Benchmark
+    public String toXML() {
+        return composable.rebuild()
+                .setAttribute(Attributes.ACK, "1249243561")
+                .build()
+                .toXML();
+    }
+
+    /**
+     * Parse a received body with the default parser.
+     */
+    @Benchmark
+    public StaticBody staticFromString() throws BOSHException {
+        return StaticBody.fromString(xml);
+    }
+
+    /**
+     * Convert a received body into a composable body.
+     */
+    @Benchmark
+    public ComposableBody fromStaticBody() throws BOSHException {
+        return ComposableBody.fromStaticBody(staticBody);
+    }
+
+}
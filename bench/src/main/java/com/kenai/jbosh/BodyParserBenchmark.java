@@ -0,0 +1,83 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@code BodyParser} implementations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BodyParserBenchmark {
+
+    /**
+     * Parser implementation to use.
+     */
+    @Param({"XmlPull", "SAX"})
+    public String parser;
+
+    /**
+     * Corpus entry to parse.
+     */
+    @Param({"empty", "message", "presence", "roster", "muc-history"})
+    public String corpus;
+
+    /**
+     * Parser instance.
+     */
+    private BodyParser bodyParser;
+
+    /**
+     * Raw XML of the corpus entry.
+     */
+    private String xml;
+
+    @Setup
+    public void setup() {
+        if ("XmlPull".equals(parser)) {
+            bodyParser = new BodyParserXmlPull();
+        } else if ("SAX".equals(parser)) {
+            bodyParser = new BodyParserSAX();
+        } else {
+            throw(new IllegalArgumentException("Unknown parser: " + parser));
+        }
+        xml = Corpus.load(corpus);
+    }
+
+    @Benchmark
+    public BodyParserResults parse() throws BOSHException {
+        return bodyParser.parse(xml);
+    }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import com.kenai.jbosh.load.LoadGenerator;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a {@link WireCapture} file against an in-process
+ * {@link NIOStubCM}.  Each session found in the capture is recreated with
+ * its own client.  The payloads of captured requests are sent by the
+ * client, and the payloads of captured responses are delivered by the
+ * connection manager, either with the original timing or as fast as
+ * possible.  Empty requests are not replayed; the clients generate their
+ * own.
+ * <p/>
+ * Options are given as {@code name=value} arguments:
+ * <dl>
+ * <dt>capture</dt><dd>capture file to replay (required)</dd>
+ * <dt>timing</dt><dd>{@code original} to keep the captured timing, or
+ *  {@code fast} to replay as fast as possible (original)</dd>
+ * <dt>speed</dt><dd>speed up factor applied to the original timing
+ *  (1.0)</dd>
+ * <dt>compression</dt><dd>enable gzip compression (false)</dd>
+ * <dt>hold</dt><dd>hold value granted by the stub CM (1)</dd>
+ * <dt>requests</dt><dd>requests value granted by the stub CM (2)</dd>
+ * </dl>
+ * A capture can be recorded with
+ * {@link BOSHClientConfig.Builder#setWireCapture(WireCapture)}, or by the
+ * {@code capture} option of {@link LoadGenerator}:
+ * <pre>
+ * java -cp target/benchmarks.jar com.kenai.jbosh.load.LoadGenerator \
+ *     sessions=50 duration=30 capture=load.capture
+ * java -cp target/benchmarks.jar com.kenai.jbosh.CaptureReplay \
+ *     capture=load.capture timing=fast
+ * </pre>
+ */
+public final class CaptureReplay {
+
+    /**
+     * Option names and default values.
+     */
+    private static final String[][] DEFAULTS = {
+        {"capture", ""},
+        {"timing", "original"},
+        {"speed", "1.0"},
+        {"compression", "false"},
+        {"hold", "1"},
+        {"requests", "2"},
+    };
+
+    /**
+     * Time allowed for all delivered payloads to arrive after the replay.
+     */
+    private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Options in effect.
+     */
+    private final Map<String, String> options;
+
+    /**
+     * Payload characters delivered by the connection manager.
+     */
+    private final AtomicLong delivered = new AtomicLong();
+
+    /**
+     * Payload characters received by the clients.
+     */
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * A payload to send or deliver at a given time.
+     */
+    private static final class Event {
+        private final long nanos;
+        private final String session;
+        private final String payload;
+        private final boolean send;
+
+        Event(
+                final long time,
+                final String sid,
+                final String xml,
+                final boolean isSend) {
+            nanos = time;
+            session = sid;
+            payload = xml;
+            send = isSend;
+        }
+    }
+
+    /**
+     * A recreated session.
+     */
+    private final class Replayed implements BOSHClientResponseListener {
+        private final BOSHClient client;
+        private volatile String sid;
+
+        Replayed(final BOSHClient session) {
+            client = session;
+            client.addBOSHClientResponseListener(this);
+        }
+
+        public void responseReceived(final BOSHMessageEvent event) {
+            AbstractBody body = event.getBody();
+            if (sid == null) {
+                synchronized (this) {
+                    sid = body.getAttribute(Attributes.SID);
+                    notifyAll();
+                }
+            }
+            if (body instanceof StaticBody) {
+                received.addAndGet(getPayload((StaticBody) body).length());
+            }
+        }
+
+        synchronized String awaitSID() throws InterruptedException {
+            while (sid == null) {
+                wait();
+            }
+            return sid;
+        }
+    }
+
+    /**
+     * Create a replay.
+     *
+     * @param opts options, with defaults filled in
+     */
+    private CaptureReplay(final Map<String, String> opts) {
+        options = opts;
+    }
+
+    /**
+     * Run the replay.
+     *
+     * @param args options, as {@code name=value} pairs
+     * @throws Exception on failure
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> opts = new LinkedHashMap<String, String>();
+        for (String[] option : DEFAULTS) {
+            opts.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !opts.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown option: " + arg);
+                System.err.println("Options: " + opts);
+                System.exit(1);
+            }
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        if (opts.get("capture").length() == 0) {
+            System.err.println("No capture file given");
+            System.exit(1);
+        }
+        new CaptureReplay(opts).run();
+        System.exit(0);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Run the replay and print the results.
+     *
+     * @throws Exception on failure
+     */
+    private void run() throws Exception {
+        System.out.println("Options: " + options);
+        List<Event> events = readEvents(new File(options.get("capture")));
+        Map<String, Replayed> sessions = new LinkedHashMap<String, Replayed>();
+        for (Event event : events) {
+            if (!sessions.containsKey(event.session)) {
+                sessions.put(event.session, null);
+            }
+        }
+        System.out.println(String.format(
+                "Replaying %d events from %d sessions",
+                events.size(), sessions.size()));
+
+        NIOStubCM cm = new NIOStubCM();
+        cm.setEchoEnabled(false);
+        cm.setHold(Integer.parseInt(options.get("hold")));
+        cm.setRequests(Integer.parseInt(options.get("requests")));
+        boolean compression = Boolean.parseBoolean(options.get("compression"));
+        cm.setCompressionEnabled(compression);
+        for (String captured : sessions.keySet()) {
+            Replayed replayed = new Replayed(BOSHClient.create(
+                    BOSHClientConfig.Builder.create(cm.getURI(), "localhost")
+                    .setCompressionEnabled(compression)
+                    .build()));
+            replayed.client.send(ComposableBody.builder().build());
+            sessions.put(captured, replayed);
+        }
+        for (Replayed replayed : sessions.values()) {
+            replayed.awaitSID();
+        }
+
+        boolean fast = "fast".equals(options.get("timing"));
+        double speed = Double.parseDouble(options.get("speed"));
+        long origin = events.isEmpty() ? 0L : events.get(0).nanos;
+        long start = System.nanoTime();
+        int sent = 0;
+        int deliveries = 0;
+        for (Event event : events) {
+            if (!fast) {
+                long due = start + (long) ((event.nanos - origin) / speed);
+                long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            }
+            Replayed replayed = sessions.get(event.session);
+            if (event.send) {
+                try {
+                    replayed.client.send(ComposableBody.builder()
+                            .setPayloadXML(event.payload)
+                            .build());
+                    sent++;
+                } catch (BOSHException boshx) {
+                    System.err.println("Send failed: " + boshx);
+                }
+            } else {
+                delivered.addAndGet(event.payload.length());
+                cm.deliver(replayed.sid, event.payload);
+                deliveries++;
+            }
+        }
+        long replayed = System.nanoTime() - start;
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT;
+        while (received.get() < delivered.get()
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(
+                "  replayed in %.3fs, complete in %.3fs",
+                replayed / 1e9, elapsed / 1e9));
+        System.out.println(String.format(
+                "  %d payloads sent, %d delivered (%.1f msg/s)",
+                sent, deliveries, (sent + deliveries) * 1e9 / elapsed));
+        System.out.println(String.format(
+                "  %d of %d delivered payload characters received",
+                received.get(), delivered.get()));
+        System.out.println(String.format(
+                "  %d requests, %d responses at the stub CM",
+                cm.getRequestCount(), cm.getResponseCount()));
+
+        for (Replayed session : sessions.values()) {
+            session.client.close();
+        }
+        cm.dispose();
+    }
+
+    /**
+     * Read the payloads to replay from a capture file.
+     *
+     * @param file capture file
+     * @return events in capture order
+     * @throws Exception on failure
+     */
+    private static List<Event> readEvents(final File file) throws Exception {
+        List<WireCapture.Record> records = WireCapture.load(file);
+        // Requests carry the session ID, except for session creation
+        // requests, whose responses do.  Responses are matched to their
+        // sessions by RID.
+        Map<Long, String> sessionByRID = new HashMap<Long, String>();
+        List<Event> events = new ArrayList<Event>();
+        for (WireCapture.Record record : records) {
+            StaticBody body = StaticBody.fromString(
+                    new String(record.getData(), "UTF-8"));
+            Long rid = Long.valueOf(record.getRID());
+            String sid = body.getAttribute(Attributes.SID);
+            if (record.isRequest()) {
+                if (sid == null) {
+                    continue;
+                }
+                sessionByRID.put(rid, sid);
+            } else if (sid == null) {
+                sid = sessionByRID.get(rid);
+                if (sid == null) {
+                    // The request was overwritten in the ring.
+                    continue;
+                }
+            }
+            String payload = getPayload(body);
+            if (payload.length() > 0) {
+                events.add(new Event(
+                        record.getNanos(), sid, payload, record.isRequest()));
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Extract the payload of a body.
+     *
+     * @param body body
+     * @return payload XML, which is empty if the body has no payload
+     */
+    private static String getPayload(final StaticBody body) {
+        try {
+            return ComposableBody.fromStaticBody(body).getPayloadXML();
+        } catch (BOSHException boshx) {
+            return "";
+        }
+    }
+
+}
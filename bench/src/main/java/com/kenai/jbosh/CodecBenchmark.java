@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the gzip and deflate content codecs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /**
+     * Corpus entry to encode and decode.
+     */
+    @Param({"message", "presence", "roster", "muc-history"})
+    public String corpus;
+
+    /**
+     * Uncompressed corpus entry.
+     */
+    private byte[] data;
+
+    /**
+     * Corpus entry encoded with {@code GZIPCodec}.
+     */
+    private byte[] gzipped;
+
+    /**
+     * Corpus entry encoded with {@code ZLIBCodec}.
+     */
+    private byte[] deflated;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Corpus.loadBytes(corpus);
+        gzipped = GZIPCodec.encode(data);
+        deflated = ZLIBCodec.encode(data);
+    }
+
+    @Benchmark
+    public byte[] gzipEncode() throws IOException {
+        return GZIPCodec.encode(data);
+    }
+
+    @Benchmark
+    public byte[] gzipDecode() throws IOException {
+        return GZIPCodec.decode(gzipped);
+    }
+
+    @Benchmark
+    public byte[] zlibEncode() throws IOException {
+        return ZLIBCodec.encode(data);
+    }
+
+    @Benchmark
+    public byte[] zlibDecode() throws IOException {
+        return ZLIBCodec.decode(deflated);
+    }
+
+}
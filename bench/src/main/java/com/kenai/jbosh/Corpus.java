@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Representative XMPP payloads used by the benchmarks.  Each corpus entry
+ * is a complete BOSH {@code body} element stored as a resource under
+ * {@code /corpus}:
+ * <ul>
+ * <li>{@code empty}: an empty body, as used for polling and acks</li>
+ * <li>{@code message}: a single one-to-one chat message</li>
+ * <li>{@code presence}: a handful of presence updates</li>
+ * <li>{@code roster}: a roster result with 120 contacts</li>
+ * <li>{@code muc-history}: 40 delayed group chat messages</li>
+ * </ul>
+ */
+final class Corpus {
+
+    /**
+     * Prevent construction.
+     */
+    private Corpus() {
+        // Empty
+    }
+
+    /**
+     * Load the raw bytes of a corpus entry.
+     *
+     * @param name corpus entry name
+     * @return UTF-8 encoded body XML
+     */
+    static byte[] loadBytes(final String name) {
+        InputStream in = Corpus.class.getResourceAsStream(
+                "/corpus/" + name + ".xml");
+        if (in == null) {
+            throw(new IllegalArgumentException(
+                    "Unknown corpus entry: " + name));
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException iox) {
+            throw(new IllegalStateException(
+                    "Could not read corpus entry: " + name, iox));
+        } finally {
+            try {
+                in.close();
+            } catch (IOException iox) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Load a corpus entry.
+     *
+     * @param name corpus entry name
+     * @return body XML, without surrounding whitespace
+     */
+    static String load(final String name) {
+        try {
+            return new String(loadBytes(name), "UTF-8").trim();
+        } catch (IOException iox) {
+            throw(new IllegalStateException(iox));
+        }
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import javax.net.SocketFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of HTTP response header and body parsing in
+ * {@code InternalHTTPConnection}.  The connection reads from an in-memory
+ * socket which replays the same response forever, so no network I/O is
+ * measured.  Each invocation queues a request to the connection's writer
+ * thread, whose cost is included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPParseBenchmark {
+
+    /**
+     * Size of the chunks used for chunked responses.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Request data written for every exchange.  The replaying socket
+     * discards it.
+     */
+    private static final byte[] REQUEST = toASCII(
+            "POST / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+    /**
+     * Request body written after the request data, which is empty.
+     */
+    private static final byte[] NO_BODY = new byte[0];
+
+    /**
+     * How the response body is delimited.
+     */
+    @Param({"content-length", "chunked"})
+    public String framing;
+
+    /**
+     * Corpus entry used as the response body.
+     */
+    @Param({"empty", "message", "roster"})
+    public String corpus;
+
+    /**
+     * Connection under test.
+     */
+    private InternalHTTPConnection<Request> connection;
+
+    /**
+     * Request passed with every exchange.
+     */
+    private final Request request = new Request();
+
+    /**
+     * Request which ignores all notifications.
+     */
+    private static final class Request implements InternalHTTPRequestBase {
+        public void requestAborted() {
+            // Empty
+        }
+
+        public void requestWritten(final int length) {
+            // Empty
+        }
+
+        public void responseStarted() {
+            // Empty
+        }
+    }
+
+    /**
+     * Socket which is never connected to anything, and which returns the
+     * same response data over and over.
+     */
+    private static final class ReplaySocket extends Socket {
+        private final byte[] response;
+        private int position;
+
+        ReplaySocket(final byte[] responseData) {
+            response = responseData;
+        }
+
+        @Override
+        public void connect(final SocketAddress endpoint) {
+            // Empty
+        }
+
+        @Override
+        public void connect(final SocketAddress endpoint, final int timeout) {
+            // Empty
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() {
+                    int result = response[position] & 0xff;
+                    position = (position + 1) % response.length;
+                    return result;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) {
+                    int count = Math.min(len, response.length - position);
+                    System.arraycopy(response, position, b, off, count);
+                    position = (position + count) % response.length;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(final int b) {
+                    // Empty
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) {
+                    // Empty
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() {
+            // Empty
+        }
+    }
+
+    /**
+     * Factory for a single replaying socket.
+     */
+    private static final class ReplaySocketFactory extends SocketFactory {
+        private final byte[] response;
+
+        ReplaySocketFactory(final byte[] responseData) {
+            response = responseData;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new ReplaySocket(response);
+        }
+
+        @Override
+        public Socket createSocket(final String host, final int port) {
+            throw(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Socket createSocket(
+                final String host, final int port,
+                final InetAddress localHost, final int localPort) {
+            throw(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Socket createSocket(final InetAddress host, final int port) {
+            throw(new UnsupportedOperationException());
+        }
+
+        @Override
+        public Socket createSocket(
+                final InetAddress address, final int port,
+                final InetAddress localAddress, final int localPort) {
+            throw(new UnsupportedOperationException());
+        }
+    }
+
+    /**
+     * Connector which does nothing, as the replaying socket needs no
+     * connection.
+     */
+    private static final BOSHClientSocketConnectorFactory NO_CONNECT =
+            new BOSHClientSocketConnectorFactory() {
+        @Override
+        public SocketConnector createConnector(final Socket socket) {
+            return new SocketConnector() {
+                @Override
+                public void connectSocket(final String host, final int port) {
+                    // Empty
+                }
+
+                @Override
+                public void cancel() {
+                    // Empty
+                }
+            };
+        }
+    };
+
+    @Setup
+    public void setup() {
+        byte[] body = Corpus.loadBytes(corpus);
+        byte[] response;
+        if ("content-length".equals(framing)) {
+            response = concat(toASCII("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: text/xml; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n\r\n"), body);
+        } else if ("chunked".equals(framing)) {
+            response = toASCII("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: text/xml; charset=utf-8\r\n"
+                    + "Transfer-Encoding: chunked\r\n\r\n");
+            for (int pos = 0; pos < body.length; pos += CHUNK_SIZE) {
+                int len = Math.min(CHUNK_SIZE, body.length - pos);
+                byte[] chunk = new byte[len];
+                System.arraycopy(body, pos, chunk, 0, len);
+                response = concat(response, toASCII(
+                        Integer.toHexString(len) + "\r\n"));
+                response = concat(response, chunk);
+                response = concat(response, toASCII("\r\n"));
+            }
+            response = concat(response, toASCII("0\r\n\r\n"));
+        } else {
+            throw(new IllegalArgumentException("Unknown framing: " + framing));
+        }
+        connection = new InternalHTTPConnection<Request>(
+                URI.create("http://localhost:5280/"),
+                new ReplaySocketFactory(response), NO_CONNECT, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.abort();
+    }
+
+    @Benchmark
+    public InternalHTTPConnection<Request>.ResponseData exchange()
+    throws IOException {
+        connection.sendRequest(REQUEST, NO_BODY, request);
+        return connection.waitForNextResponse();
+    }
+
+    private static byte[] toASCII(final String str) {
+        byte[] result = new byte[str.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) str.charAt(i);
+        }
+        return result;
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+}
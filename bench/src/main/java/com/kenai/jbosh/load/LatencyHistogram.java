@@ -0,0 +1,160 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds.  Values are recorded
+ * into log-linear buckets: below 16 each value has its own bucket, and
+ * above that each power of two is split into 16 buckets, giving a
+ * resolution better than 7% across the full range of {@code long}.
+ * <p/>
+ * Instances of this class are thread-safe.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of bits used for the sub-bucket within a power of two.
+     */
+    private static final int SUB_BITS = 4;
+
+    /**
+     * Number of sub-buckets within a power of two.
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Total number of buckets needed to cover all positive longs.
+     */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    /**
+     * Count of values in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Total number of values recorded.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Largest value recorded.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.  Negative values are recorded as zero.
+     *
+     * @param micros latency in microseconds
+     */
+    void record(final long micros) {
+        long value = Math.max(0L, micros);
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        long prev;
+        do {
+            prev = max.get();
+        } while (value > prev && !max.compareAndSet(prev, value));
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return value count
+     */
+    long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return maximum latency in microseconds
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the value at the given percentile.  The result is the lower bound
+     * of the bucket containing the value.
+     *
+     * @param percentile percentile, from 0 to 100
+     * @return latency in microseconds, or 0 if nothing was recorded
+     */
+    long getPercentile(final double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(valueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clear all recorded values.  Values recorded concurrently may be lost.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        total.set(0L);
+        max.set(0L);
+    }
+
+    /**
+     * Get the bucket index of a value.
+     *
+     * @param value non-negative value
+     * @return bucket index
+     */
+    private static int indexOf(final long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Get the smallest value stored in a bucket.
+     *
+     * @param index bucket index
+     * @return lower bound of the bucket
+     */
+    private static long valueOf(final int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int magnitude = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub)) << (magnitude - SUB_BITS);
+    }
+
+}
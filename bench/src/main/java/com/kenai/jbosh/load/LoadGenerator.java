@@ -0,0 +1,533 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.load;
+
+import com.kenai.jbosh.BOSHClient;
+import com.kenai.jbosh.BOSHClientConfig;
+import com.kenai.jbosh.BOSHClientConnEvent;
+import com.kenai.jbosh.BOSHClientConnListener;
+import com.kenai.jbosh.BOSHClientResponseListener;
+import com.kenai.jbosh.BOSHException;
+import com.kenai.jbosh.BOSHTimerPool;
+import com.kenai.jbosh.BOSHMessageEvent;
+import com.kenai.jbosh.ComposableBody;
+import com.kenai.jbosh.NIOStubCM;
+import com.kenai.jbosh.WireCapture;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives many concurrent {@code BOSHClient} sessions against a connection
+ * manager and reports throughput, round trip latency, thread count, heap
+ * usage and allocation per message.
+ * <p/>
+ * By default an in-process {@link NIOStubCM} is started, which echoes
+ * every message back to its sender; the latency reported is the time from
+ * when a message was scheduled to be sent until the echo was received.  It
+ * is measured from the scheduled time rather than the actual send, so
+ * sends delayed by back pressure are counted as latency.
+ * <p/>
+ * Options are given as {@code name=value} arguments:
+ * <dl>
+ * <dt>sessions</dt><dd>number of concurrent sessions (1000)</dd>
+ * <dt>rate</dt><dd>messages per second sent by each session (1.0)</dd>
+ * <dt>payload</dt><dd>approximate message size in bytes (256)</dd>
+ * <dt>duration</dt><dd>measured run time, in seconds (60)</dd>
+ * <dt>warmup</dt><dd>time to run before measuring, in seconds (10)</dd>
+ * <dt>rampup</dt><dd>time over which sessions are created, in seconds
+ *  (10)</dd>
+ * <dt>hold</dt><dd>hold value granted by the loopback CM (1)</dd>
+ * <dt>requests</dt><dd>requests value granted by the loopback CM (2)</dd>
+ * <dt>latency</dt><dd>delay added to each response by the loopback CM,
+ *  in milliseconds (0)</dd>
+ * <dt>wait</dt><dd>wait time requested by the clients, in seconds
+ *  (60)</dd>
+ * <dt>compression</dt><dd>enable gzip compression (false)</dd>
+ * <dt>senders</dt><dd>number of threads sending messages (16)</dd>
+ * <dt>report</dt><dd>interval between progress reports, in seconds
+ *  (5)</dd>
+ * <dt>uri</dt><dd>URI of an external connection manager to use instead
+ *  of the loopback CM.  It must echo messages for latency to be
+ *  reported.</dd>
+ * <dt>capture</dt><dd>file to write a {@link WireCapture} of all sessions
+ *  to, for use with {@link com.kenai.jbosh.CaptureReplay} (none)</dd>
+ * <dt>loops</dt><dd>number of timer loops of a {@link BOSHTimerPool}
+ *  shared by all sessions, or 0 to give each session its own timer thread
+ *  (0)</dd>
+ * </dl>
+ * For example:
+ * <pre>
+ * java -cp target/benchmarks.jar com.kenai.jbosh.load.LoadGenerator \
+ *     sessions=5000 rate=0.2 compression=true
+ * </pre>
+ * Each session uses several threads, so large session counts may require
+ * raising the process and thread limits.
+ */
+public final class LoadGenerator {
+
+    /**
+     * Prefix of the message ID carrying the scheduled send time.
+     */
+    private static final String ID_PREFIX = "id='load-";
+
+    /**
+     * Size of the capture ring.
+     */
+    private static final int CAPTURE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Option names and default values.
+     */
+    private static final String[][] DEFAULTS = {
+        {"sessions", "1000"},
+        {"rate", "1.0"},
+        {"payload", "256"},
+        {"duration", "60"},
+        {"warmup", "10"},
+        {"rampup", "10"},
+        {"hold", "1"},
+        {"requests", "2"},
+        {"latency", "0"},
+        {"wait", "60"},
+        {"compression", "false"},
+        {"senders", "16"},
+        {"report", "5"},
+        {"uri", ""},
+        {"capture", ""},
+        {"loops", "0"},
+    };
+
+    /**
+     * Options in effect.
+     */
+    private final Map<String, String> options;
+
+    /**
+     * Timer pool shared by all sessions, or {@code null} if none is used.
+     */
+    private BOSHTimerPool timerPool;
+
+    /**
+     * Capture shared by all sessions, or {@code null} if not capturing.
+     */
+    private WireCapture capture;
+
+    /**
+     * Round trip latencies of the current measurement period.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Messages sent during the current measurement period.
+     */
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * Messages received during the current measurement period.
+     */
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * Number of sessions currently connected.
+     */
+    private final AtomicInteger connected = new AtomicInteger();
+
+    /**
+     * Number of sessions which closed with an error.
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Create a load generator.
+     *
+     * @param opts options, with defaults filled in
+     */
+    private LoadGenerator(final Map<String, String> opts) {
+        options = opts;
+    }
+
+    /**
+     * Run the load generator.
+     *
+     * @param args options, as {@code name=value} pairs
+     * @throws Exception on failure
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> opts = new LinkedHashMap<String, String>();
+        for (String[] option : DEFAULTS) {
+            opts.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !opts.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown option: " + arg);
+                System.err.println("Options: " + opts);
+                System.exit(1);
+            }
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(opts).run();
+        System.exit(0);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    private int intOption(final String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private double doubleOption(final String name) {
+        return Double.parseDouble(options.get(name));
+    }
+
+    private boolean booleanOption(final String name) {
+        return Boolean.parseBoolean(options.get(name));
+    }
+
+    /**
+     * Run the load test and print the results.
+     *
+     * @throws Exception on failure
+     */
+    private void run() throws Exception {
+        System.out.println("Options: " + options);
+        NIOStubCM cm = null;
+        URI uri;
+        if (options.get("uri").length() > 0) {
+            uri = URI.create(options.get("uri"));
+        } else {
+            cm = new NIOStubCM();
+            cm.setHold(intOption("hold"));
+            cm.setRequests(intOption("requests"));
+            cm.setCompressionEnabled(booleanOption("compression"));
+            cm.setLatency(intOption("latency"), intOption("latency"));
+            uri = cm.getURI();
+        }
+        if (options.get("capture").length() > 0) {
+            capture = WireCapture.toFile(
+                    new File(options.get("capture")), CAPTURE_SIZE);
+        }
+        if (intOption("loops") > 0) {
+            timerPool = BOSHTimerPool.create(intOption("loops"));
+        }
+
+        int sessionCount = intOption("sessions");
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1)
+                / doubleOption("rate"));
+        String padding = createPadding(intOption("payload"));
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                intOption("senders"), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(
+                        r, "LoadGenerator sender " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Create the sessions, spread over the ramp up time.
+        List<BOSHClient> clients = new ArrayList<BOSHClient>(sessionCount);
+        long rampNanos = TimeUnit.SECONDS.toNanos(intOption("rampup"));
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < sessionCount; i++) {
+            long due = startNanos + rampNanos * i / sessionCount;
+            long delay = due - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+            BOSHClient client = createClient(uri, i);
+            clients.add(client);
+            client.send(ComposableBody.builder().build());
+            long first = System.nanoTime()
+                    + (long) (Math.random() * periodNanos);
+            senders.scheduleAtFixedRate(
+                    new Sender(client, first, periodNanos, padding),
+                    first - System.nanoTime(), periodNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        // Warm up, then measure.
+        report("ramped up", startNanos);
+        TimeUnit.SECONDS.sleep(intOption("warmup"));
+        resetCounters();
+        long measureStart = System.nanoTime();
+        long measureAllocated = getAllocatedBytes();
+        long measureEnd = measureStart
+                + TimeUnit.SECONDS.toNanos(intOption("duration"));
+        long reportNanos = TimeUnit.SECONDS.toNanos(intOption("report"));
+        long now;
+        while ((now = System.nanoTime()) < measureEnd) {
+            TimeUnit.NANOSECONDS.sleep(
+                    Math.min(reportNanos, measureEnd - now));
+            report("measuring", measureStart);
+        }
+        long allocated = getAllocatedBytes() - measureAllocated;
+        long elapsed = System.nanoTime() - measureStart;
+
+        System.out.println();
+        System.out.println("Summary:");
+        System.out.println(String.format(
+                "  sessions %d connected, %d failed",
+                connected.get(), failed.get()));
+        System.out.println(String.format(
+                "  throughput %.1f msg/s sent, %.1f msg/s received",
+                sent.get() * 1e9 / elapsed, received.get() * 1e9 / elapsed));
+        System.out.println(String.format(
+                "  latency ms p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f,"
+                + " max %.2f",
+                latency.getPercentile(50) / 1000.0,
+                latency.getPercentile(90) / 1000.0,
+                latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0,
+                latency.getMax() / 1000.0));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.println(String.format(
+                "  threads %d live, %d peak",
+                threads.getThreadCount(), threads.getPeakThreadCount()));
+        System.out.println(String.format(
+                "  heap %.1f MB used", getHeapUsed() / 1048576.0));
+        if (allocated >= 0 && received.get() > 0) {
+            System.out.println(String.format(
+                    "  allocation %.0f bytes per message received"
+                    + " (all threads, including the loopback CM)",
+                    (double) allocated / received.get()));
+        }
+
+        senders.shutdownNow();
+        for (BOSHClient client : clients) {
+            try {
+                client.disconnect();
+            } catch (BOSHException boshx) {
+                // Ignore; the session may already have failed
+            }
+        }
+        for (BOSHClient client : clients) {
+            client.close();
+        }
+        if (cm != null) {
+            cm.dispose();
+        }
+        if (capture != null) {
+            capture.close();
+        }
+        if (timerPool != null) {
+            timerPool.shutdown();
+        }
+    }
+
+    /**
+     * Create a client with listeners recording connection state and
+     * round trip latency.
+     *
+     * @param uri connection manager URI
+     * @param index session number
+     * @return client
+     */
+    private BOSHClient createClient(final URI uri, final int index) {
+        BOSHClientConfig.Builder builder = BOSHClientConfig.Builder
+                .create(uri, "localhost")
+                .setFrom("load" + index + "@localhost")
+                .setWaitTime(intOption("wait"))
+                .setCompressionEnabled(booleanOption("compression"));
+        if (capture != null) {
+            builder.setWireCapture(capture);
+        }
+        if (timerPool != null) {
+            builder.setTimerPool(timerPool);
+        }
+        BOSHClient client = BOSHClient.create(builder.build());
+        client.addBOSHClientConnListener(new BOSHClientConnListener() {
+            public void connectionEvent(final BOSHClientConnEvent event) {
+                if (event.isConnected()) {
+                    connected.incrementAndGet();
+                } else {
+                    connected.decrementAndGet();
+                    if (event.isError()) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }
+        });
+        client.addBOSHClientResponseListener(
+                new BOSHClientResponseListener() {
+            public void responseReceived(final BOSHMessageEvent event) {
+                recordEchoes(event.getBody().toXML());
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Record the latency of every echoed message in a response.
+     *
+     * @param xml response XML
+     */
+    private void recordEchoes(final String xml) {
+        long now = System.nanoTime();
+        int pos = 0;
+        while ((pos = xml.indexOf(ID_PREFIX, pos)) >= 0) {
+            pos += ID_PREFIX.length();
+            int end = xml.indexOf('\'', pos);
+            if (end < 0) {
+                break;
+            }
+            try {
+                long scheduled = Long.parseLong(xml.substring(pos, end));
+                latency.record(TimeUnit.NANOSECONDS.toMicros(now - scheduled));
+                received.incrementAndGet();
+            } catch (NumberFormatException nfx) {
+                // Not one of ours
+            }
+        }
+    }
+
+    /**
+     * Sends messages for one session at a fixed rate.
+     */
+    private final class Sender implements Runnable {
+        private final BOSHClient client;
+        private final long periodNanos;
+        private final String padding;
+        private long scheduled;
+
+        Sender(
+                final BOSHClient session,
+                final long first,
+                final long period,
+                final String pad) {
+            client = session;
+            scheduled = first;
+            periodNanos = period;
+            padding = pad;
+        }
+
+        public void run() {
+            long due = scheduled;
+            scheduled += periodNanos;
+            try {
+                client.send(ComposableBody.builder()
+                        .setPayloadXML("<message xmlns='jabber:client'"
+                                + " to='echo@localhost' " + ID_PREFIX + due
+                                + "'><body>" + padding + "</body></message>")
+                        .build());
+                sent.incrementAndGet();
+            } catch (BOSHException boshx) {
+                // The session has failed; stop sending
+                throw(new IllegalStateException(boshx));
+            }
+        }
+    }
+
+    /**
+     * Create message body text which makes a message roughly the given
+     * size.
+     *
+     * @param size approximate total message size
+     * @return padding text
+     */
+    private static String createPadding(final int size) {
+        StringBuilder builder = new StringBuilder();
+        String words = "lorem ipsum dolor sit amet consectetur adipiscing ";
+        int length = Math.max(0, size - 100);
+        while (builder.length() < length) {
+            builder.append(words);
+        }
+        builder.setLength(length);
+        return builder.toString();
+    }
+
+    /**
+     * Reset the measurement counters.
+     */
+    private void resetCounters() {
+        latency.reset();
+        sent.set(0L);
+        received.set(0L);
+    }
+
+    /**
+     * Print a progress line.
+     *
+     * @param phase name of the current phase
+     * @param since start of the phase
+     */
+    private void report(final String phase, final long since) {
+        double seconds = (System.nanoTime() - since) / 1e9;
+        System.out.println(String.format(
+                "%-10s %6.1fs  connected %d  sent %d  received %d"
+                + "  p50 %.2fms  p99 %.2fms  threads %d  heap %.1fMB",
+                phase, seconds, connected.get(), sent.get(), received.get(),
+                latency.getPercentile(50) / 1000.0,
+                latency.getPercentile(99) / 1000.0,
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                getHeapUsed() / 1048576.0));
+    }
+
+    /**
+     * Get the heap currently in use.
+     *
+     * @return heap use in bytes
+     */
+    private static long getHeapUsed() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Get the number of bytes allocated by all live threads.  Threads which
+     * exit during the measurement are not counted.
+     *
+     * @return bytes allocated, or -1 if not supported by the JVM
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1L;
+        }
+        com.sun.management.ThreadMXBean sunThreads =
+                (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported()
+                || !sunThreads.isThreadAllocatedMemoryEnabled()) {
+            return -1L;
+        }
+        long total = 0L;
+        for (long bytes : sunThreads.getThreadAllocatedBytes(
+                threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.load;
+
+import com.kenai.jbosh.BOSHClient;
+import com.kenai.jbosh.BOSHClientConfig;
+import com.kenai.jbosh.BOSHClientConnEvent;
+import com.kenai.jbosh.BOSHClientConnListener;
+import com.kenai.jbosh.BOSHClientResponseListener;
+import com.kenai.jbosh.BOSHException;
+import com.kenai.jbosh.BOSHMessageEvent;
+import com.kenai.jbosh.ComposableBody;
+import com.kenai.jbosh.FaultProxy;
+import com.kenai.jbosh.NIOStubCM;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how quickly a session recovers from network faults, and whether
+ * messages are lost or duplicated on the way.  A single session sends
+ * messages at a steady rate through a {@link FaultProxy} to an echoing
+ * {@link NIOStubCM}.  Faults are injected periodically; on each connection
+ * loss the session is recovered with {@code attemptReconnection()}, which
+ * resends the unacknowledged requests.
+ * <p/>
+ * The time to recover is measured from when a fault is injected until the
+ * first echo is received of a message sent after the fault.  At the end
+ * of each run, messages never echoed are counted as lost, and messages
+ * echoed more than once as duplicated.
+ * <p/>
+ * Options are given as {@code name=value} arguments:
+ * <dl>
+ * <dt>faults</dt><dd>comma-separated faults to run, from reset, truncate,
+ *  halfopen and stall (reset,truncate,halfopen,stall)</dd>
+ * <dt>trials</dt><dd>faults injected per run (10)</dd>
+ * <dt>rate</dt><dd>messages sent per second (50)</dd>
+ * <dt>interval</dt><dd>time between faults, in seconds (2)</dd>
+ * <dt>wait</dt><dd>wait time requested by the client, in seconds; this
+ *  bounds how long a half-open connection goes unnoticed (2)</dd>
+ * <dt>stall</dt><dd>duration of a stall, in milliseconds (500)</dd>
+ * <dt>latency</dt><dd>latency added by the proxy, in milliseconds
+ *  (0)</dd>
+ * <dt>bandwidth</dt><dd>proxy bandwidth limit, in bytes per second, or 0
+ *  for none (0)</dd>
+ * </dl>
+ * For example:
+ * <pre>
+ * java -cp target/benchmarks.jar com.kenai.jbosh.load.RecoveryBenchmark \
+ *     faults=reset,halfopen trials=20 latency=20
+ * </pre>
+ */
+public final class RecoveryBenchmark {
+
+    /**
+     * Prefix of the message ID carrying the message sequence number.
+     */
+    private static final String ID_PREFIX = "id='rec-";
+
+    /**
+     * Time allowed for a single recovery before the trial is abandoned.
+     */
+    private static final long RECOVERY_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Option names and default values.
+     */
+    private static final String[][] DEFAULTS = {
+        {"faults", "reset,truncate,halfopen,stall"},
+        {"trials", "10"},
+        {"rate", "50"},
+        {"interval", "2"},
+        {"wait", "2"},
+        {"stall", "500"},
+        {"latency", "0"},
+        {"bandwidth", "0"},
+    };
+
+    /**
+     * Options in effect.
+     */
+    private final Map<String, String> options;
+
+    /**
+     * Send time of each message, by sequence number.
+     */
+    private final Map<Long, Long> sentAt =
+            new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * Number of times each message was echoed, by sequence number.
+     */
+    private final Map<Long, AtomicInteger> echoes =
+            new ConcurrentHashMap<Long, AtomicInteger>();
+
+    /**
+     * Number of reconnection attempts made.
+     */
+    private final AtomicInteger reconnects = new AtomicInteger();
+
+    /**
+     * Number of reconnection attempts which failed.
+     */
+    private final AtomicInteger reconnectFailures = new AtomicInteger();
+
+    /**
+     * Number of sends rejected by the client.
+     */
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    /**
+     * Lock guarding {@code faultAt} and {@code recoveredAt}.
+     */
+    private final Object recoveryLock = new Object();
+
+    /**
+     * Time the current fault was injected, or 0 if none is in progress.
+     */
+    private long faultAt;
+
+    /**
+     * Time the session recovered from the current fault, or 0 if it has
+     * not yet.
+     */
+    private long recoveredAt;
+
+    /**
+     * Create a recovery benchmark.
+     *
+     * @param opts options, with defaults filled in
+     */
+    private RecoveryBenchmark(final Map<String, String> opts) {
+        options = opts;
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args options, as {@code name=value} pairs
+     * @throws Exception on failure
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> opts = new LinkedHashMap<String, String>();
+        for (String[] option : DEFAULTS) {
+            opts.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !opts.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown option: " + arg);
+                System.err.println("Options: " + opts);
+                System.exit(1);
+            }
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.out.println("Options: " + opts);
+        for (String fault : opts.get("faults").split(",")) {
+            new RecoveryBenchmark(opts).run(fault.trim());
+        }
+        System.exit(0);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    private int intOption(final String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    /**
+     * Run the trials for one kind of fault and print the results.
+     *
+     * @param fault fault name
+     * @throws Exception on failure
+     */
+    private void run(final String fault) throws Exception {
+        NIOStubCM cm = new NIOStubCM();
+        FaultProxy proxy = new FaultProxy(cm.getURI());
+        proxy.setLatency(intOption("latency"));
+        proxy.setBandwidth(intOption("bandwidth"));
+        final BOSHClient client = createClient(proxy);
+        final ExecutorService reconnector = Executors.newSingleThreadExecutor();
+        client.addBOSHClientConnListener(new BOSHClientConnListener() {
+            public void connectionEvent(final BOSHClientConnEvent event) {
+                if (!event.isConnected() && event.isError()) {
+                    reconnector.execute(new Runnable() {
+                        public void run() {
+                            reconnect(client);
+                        }
+                    });
+                }
+            }
+        });
+        client.send(ComposableBody.builder().build());
+
+        ScheduledExecutorService sender =
+                Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger sequence = new AtomicInteger();
+        sender.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                send(client, sequence.incrementAndGet());
+            }
+        }, 0L, TimeUnit.SECONDS.toNanos(1) / intOption("rate"),
+                TimeUnit.NANOSECONDS);
+
+        List<Long> recoveries = new ArrayList<Long>();
+        int abandoned = 0;
+        for (int i = 0; i < intOption("trials"); i++) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(intOption("interval")));
+            long recovery = inject(proxy, fault);
+            if (recovery < 0) {
+                abandoned++;
+            } else {
+                recoveries.add(Long.valueOf(recovery));
+            }
+        }
+
+        sender.shutdown();
+        sender.awaitTermination(10, TimeUnit.SECONDS);
+        long drainUntil = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(intOption("wait") * 2 + 1);
+        while (countMissing() > 0 && System.nanoTime() < drainUntil) {
+            Thread.sleep(100);
+        }
+        report(fault, recoveries, abandoned, proxy.getConnectionCount());
+
+        client.close();
+        reconnector.shutdown();
+        proxy.dispose();
+        cm.dispose();
+    }
+
+    /**
+     * Create the client, recording every echo received.
+     *
+     * @param proxy proxy to connect through
+     * @return client
+     */
+    private BOSHClient createClient(final FaultProxy proxy) {
+        BOSHClient client = BOSHClient.create(BOSHClientConfig.Builder
+                .create(proxy.getURI(), "localhost")
+                .setWaitTime(intOption("wait"))
+                .build());
+        client.addBOSHClientResponseListener(
+                new BOSHClientResponseListener() {
+            public void responseReceived(final BOSHMessageEvent event) {
+                recordEchoes(event.getBody().toXML());
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Recover the session after a connection loss.
+     *
+     * @param client client to recover
+     */
+    private void reconnect(final BOSHClient client) {
+        if (!client.isRecoverableConnectionLoss()) {
+            return;
+        }
+        try {
+            reconnects.incrementAndGet();
+            client.attemptReconnection();
+        } catch (BOSHException boshx) {
+            reconnectFailures.incrementAndGet();
+            System.err.println("Session could not be recovered: " + boshx);
+        }
+    }
+
+    /**
+     * Send one message.
+     *
+     * @param client client to send with
+     * @param seq message sequence number
+     */
+    private void send(final BOSHClient client, final long seq) {
+        sentAt.put(Long.valueOf(seq), Long.valueOf(System.nanoTime()));
+        try {
+            client.send(ComposableBody.builder()
+                    .setPayloadXML("<message xmlns='jabber:client'"
+                        + " to='echo@localhost' " + ID_PREFIX + seq
+                        + "'><body>recovery</body></message>")
+                    .build());
+        } catch (BOSHException boshx) {
+            sentAt.remove(Long.valueOf(seq));
+            rejected.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record every echoed message in a response, and detect recovery.
+     *
+     * @param xml response XML
+     */
+    private void recordEchoes(final String xml) {
+        long now = System.nanoTime();
+        int pos = 0;
+        while ((pos = xml.indexOf(ID_PREFIX, pos)) >= 0) {
+            pos += ID_PREFIX.length();
+            int end = xml.indexOf('\'', pos);
+            if (end < 0) {
+                break;
+            }
+            Long seq;
+            try {
+                seq = Long.valueOf(xml.substring(pos, end));
+            } catch (NumberFormatException nfx) {
+                continue;
+            }
+            AtomicInteger count = echoes.get(seq);
+            if (count == null) {
+                count = new AtomicInteger();
+                echoes.put(seq, count);
+            }
+            count.incrementAndGet();
+            Long sent = sentAt.get(seq);
+            synchronized (recoveryLock) {
+                if (faultAt != 0 && recoveredAt == 0 && sent != null
+                        && sent.longValue() >= faultAt) {
+                    recoveredAt = now;
+                    recoveryLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Inject a fault and wait for the session to recover.
+     *
+     * @param proxy proxy to inject the fault with
+     * @param fault fault name
+     * @return time to recover in nanoseconds, or -1 if the session did
+     *  not recover in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long inject(final FaultProxy proxy, final String fault)
+    throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (recoveryLock) {
+            faultAt = start;
+            recoveredAt = 0;
+        }
+        if ("reset".equals(fault)) {
+            proxy.resetConnections();
+        } else if ("truncate".equals(fault)) {
+            proxy.truncateNextResponse(32);
+        } else if ("halfopen".equals(fault)) {
+            proxy.halfOpenConnections();
+        } else if ("stall".equals(fault)) {
+            proxy.setStalled(true);
+            Thread.sleep(intOption("stall"));
+            proxy.setStalled(false);
+        } else {
+            throw(new IllegalArgumentException("Unknown fault: " + fault));
+        }
+        synchronized (recoveryLock) {
+            long deadline = start + RECOVERY_TIMEOUT;
+            long now;
+            while (recoveredAt == 0 && (now = System.nanoTime()) < deadline) {
+                TimeUnit.NANOSECONDS.timedWait(recoveryLock, deadline - now);
+            }
+            faultAt = 0;
+            return recoveredAt == 0 ? -1L : recoveredAt - start;
+        }
+    }
+
+    /**
+     * Count the messages sent which have not been echoed.
+     *
+     * @return number of messages missing
+     */
+    private int countMissing() {
+        int missing = 0;
+        for (Long seq : sentAt.keySet()) {
+            if (!echoes.containsKey(seq)) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Print the results of a run.
+     *
+     * @param fault fault name
+     * @param recoveries recovery times in nanoseconds
+     * @param abandoned number of trials which did not recover
+     * @param connections number of connections made through the proxy
+     */
+    private void report(
+            final String fault,
+            final List<Long> recoveries,
+            final int abandoned,
+            final int connections) {
+        int duplicated = 0;
+        for (AtomicInteger count : echoes.values()) {
+            if (count.get() > 1) {
+                duplicated++;
+            }
+        }
+        Collections.sort(recoveries);
+        System.out.println(String.format(
+                "%-9s recovered %d, abandoned %d  time to recover ms"
+                + " p50 %.1f, p90 %.1f, max %.1f%n"
+                + "          sent %d, lost %d, duplicated %d, rejected %d,"
+                + " reconnects %d (%d failed), connections %d",
+                fault, recoveries.size(), abandoned,
+                percentile(recoveries, 50), percentile(recoveries, 90),
+                percentile(recoveries, 100),
+                sentAt.size(), countMissing(), duplicated, rejected.get(),
+                reconnects.get(), reconnectFailures.get(), connections));
+    }
+
+    /**
+     * Get a percentile of sorted times, in milliseconds.
+     *
+     * @param sorted sorted times in nanoseconds
+     * @param percent percentile
+     * @return percentile value in milliseconds, or 0 if there are no times
+     */
+    private static double percentile(
+            final List<Long> sorted, final int percent) {
+        if (sorted.isEmpty()) {
+            return 0.0;
+        }
+        int index = Math.max(0,
+                (int) Math.ceil(sorted.size() * percent / 100.0) - 1);
+        return sorted.get(index).longValue() / 1e6;
+    }
+
+}
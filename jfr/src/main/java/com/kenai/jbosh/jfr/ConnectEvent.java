@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A TCP connection to the connection manager has been established.
+ */
+@Name("com.kenai.jbosh.Connect")
+@Label("BOSH Connect")
+@Category("BOSH")
+@Description("TCP connection to a BOSH connection manager established")
+final class ConnectEvent extends jdk.jfr.Event {
+
+    /**
+     * Host name connected to.
+     */
+    @Label("Host")
+    String host;
+
+    /**
+     * Port number connected to.
+     */
+    @Label("Port")
+    int port;
+
+    /**
+     * Time taken to establish the connection.
+     */
+    @Label("Connect Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long connectTime;
+
+}
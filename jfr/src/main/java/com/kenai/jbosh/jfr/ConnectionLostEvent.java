@@ -0,0 +1,40 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The connection to the connection manager has been lost.
+ */
+@Name("com.kenai.jbosh.ConnectionLost")
+@Label("BOSH Connection Lost")
+@Category("BOSH")
+@Description("Connection to a BOSH connection manager lost")
+final class ConnectionLostEvent extends jdk.jfr.Event {
+
+    /**
+     * Description of the reason the connection was lost, if known.
+     */
+    @Label("Cause")
+    String cause;
+
+}
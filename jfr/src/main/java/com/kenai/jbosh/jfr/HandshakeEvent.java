@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A TLS handshake with the connection manager has completed.
+ */
+@Name("com.kenai.jbosh.Handshake")
+@Label("BOSH TLS Handshake")
+@Category("BOSH")
+@Description("TLS handshake with a BOSH connection manager completed")
+final class HandshakeEvent extends jdk.jfr.Event {
+
+    /**
+     * Host name connected to.
+     */
+    @Label("Host")
+    String host;
+
+    /**
+     * Port number connected to.
+     */
+    @Label("Port")
+    int port;
+
+    /**
+     * Time taken by the handshake.
+     */
+    @Label("Handshake Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long handshakeTime;
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.jfr;
+
+import com.kenai.jbosh.BOSHClientTracer;
+import jdk.jfr.EventType;
+
+/**
+ * Tracer which emits Java Flight Recorder events for connections, TLS
+ * handshakes, requests written, responses received and changes in session
+ * state.  This allows BOSH latency to be correlated with garbage
+ * collection and thread activity in a flight recording.
+ * <p/>
+ * Install the tracer by using
+ * {@link com.kenai.jbosh.BOSHClientConfig.Builder#setTracer}.  Each
+ * callback checks whether its event type is enabled before creating an
+ * event, so when no recording is running the tracer allocates nothing.
+ * <p/>
+ * Events are committed when the callback is made.  Connect and handshake
+ * durations are reported as fields of the event rather than as the event
+ * duration, since they are only known once the operation has completed.
+ */
+public final class JFRTracer extends BOSHClientTracer {
+
+    /**
+     * Event type of {@code ConnectEvent}.
+     */
+    private static final EventType CONNECT =
+            EventType.getEventType(ConnectEvent.class);
+
+    /**
+     * Event type of {@code HandshakeEvent}.
+     */
+    private static final EventType HANDSHAKE =
+            EventType.getEventType(HandshakeEvent.class);
+
+    /**
+     * Event type of {@code RequestWrittenEvent}.
+     */
+    private static final EventType REQUEST_WRITTEN =
+            EventType.getEventType(RequestWrittenEvent.class);
+
+    /**
+     * Event type of {@code ResponseReceivedEvent}.
+     */
+    private static final EventType RESPONSE_RECEIVED =
+            EventType.getEventType(ResponseReceivedEvent.class);
+
+    /**
+     * Event type of {@code SessionPausedEvent}.
+     */
+    private static final EventType SESSION_PAUSED =
+            EventType.getEventType(SessionPausedEvent.class);
+
+    /**
+     * Event type of {@code SessionResumedEvent}.
+     */
+    private static final EventType SESSION_RESUMED =
+            EventType.getEventType(SessionResumedEvent.class);
+
+    /**
+     * Event type of {@code ConnectionLostEvent}.
+     */
+    private static final EventType CONNECTION_LOST =
+            EventType.getEventType(ConnectionLostEvent.class);
+
+    ///////////////////////////////////////////////////////////////////////////
+    // BOSHClientTracer methods:
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectionOpened(
+            final String host,
+            final int port,
+            final long startNanos,
+            final long nanos) {
+        if (!CONNECT.isEnabled()) {
+            return;
+        }
+        ConnectEvent event = new ConnectEvent();
+        event.host = host;
+        event.port = port;
+        event.connectTime = nanos - startNanos;
+        event.commit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handshakeCompleted(
+            final String host,
+            final int port,
+            final long startNanos,
+            final long nanos) {
+        if (!HANDSHAKE.isEnabled()) {
+            return;
+        }
+        HandshakeEvent event = new HandshakeEvent();
+        event.host = host;
+        event.port = port;
+        event.handshakeTime = nanos - startNanos;
+        event.commit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void requestWritten(
+            final long rid, final int bytes, final long nanos) {
+        if (!REQUEST_WRITTEN.isEnabled()) {
+            return;
+        }
+        RequestWrittenEvent event = new RequestWrittenEvent();
+        event.rid = rid;
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void responseReceived(
+            final long rid,
+            final int status,
+            final int wireBytes,
+            final int bodyBytes,
+            final long nanos) {
+        if (!RESPONSE_RECEIVED.isEnabled()) {
+            return;
+        }
+        ResponseReceivedEvent event = new ResponseReceivedEvent();
+        event.rid = rid;
+        event.status = status;
+        event.wireBytes = wireBytes;
+        event.bodyBytes = bodyBytes;
+        event.compressionRatio =
+                wireBytes == 0 ? 1.0f : (float) bodyBytes / wireBytes;
+        event.commit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sessionPaused(final long nanos) {
+        if (!SESSION_PAUSED.isEnabled()) {
+            return;
+        }
+        new SessionPausedEvent().commit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sessionResumed(final long nanos) {
+        if (!SESSION_RESUMED.isEnabled()) {
+            return;
+        }
+        new SessionResumedEvent().commit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void connectionLost(final Throwable cause, final long nanos) {
+        if (!CONNECTION_LOST.isEnabled()) {
+            return;
+        }
+        ConnectionLostEvent event = new ConnectionLostEvent();
+        event.cause = cause == null ? null : cause.toString();
+        event.commit();
+    }
+
+}
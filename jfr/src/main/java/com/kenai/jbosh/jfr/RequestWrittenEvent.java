@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A request has been written to the socket.
+ */
+@Name("com.kenai.jbosh.RequestWritten")
+@Label("BOSH Request Written")
+@Category("BOSH")
+@Description("BOSH request written to the socket")
+final class RequestWrittenEvent extends jdk.jfr.Event {
+
+    /**
+     * Request ID.
+     */
+    @Label("RID")
+    long rid;
+
+    /**
+     * Number of bytes written, including the HTTP header.
+     */
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+}
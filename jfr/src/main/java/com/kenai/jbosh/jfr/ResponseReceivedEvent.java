@@ -0,0 +1,68 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A complete response has been read and decoded.
+ */
+@Name("com.kenai.jbosh.ResponseReceived")
+@Label("BOSH Response Received")
+@Category("BOSH")
+@Description("BOSH response read and decoded")
+final class ResponseReceivedEvent extends jdk.jfr.Event {
+
+    /**
+     * Request ID.
+     */
+    @Label("RID")
+    long rid;
+
+    /**
+     * HTTP status code.
+     */
+    @Label("Status")
+    int status;
+
+    /**
+     * Size of the response body as received.
+     */
+    @Label("Wire Bytes")
+    @DataAmount
+    int wireBytes;
+
+    /**
+     * Size of the decoded response body.
+     */
+    @Label("Body Bytes")
+    @DataAmount
+    int bodyBytes;
+
+    /**
+     * Decoded size divided by the size received.  This is 1 when no
+     * content encoding was applied.
+     */
+    @Label("Compression Ratio")
+    float compressionRatio;
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh.jfr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the events emitted by {@code JFRTracer}.
+ */
+public class JFRTracerTest {
+
+    private static final List<Class<? extends Event>> EVENT_TYPES =
+            Arrays.<Class<? extends Event>>asList(
+                ConnectEvent.class,
+                HandshakeEvent.class,
+                RequestWrittenEvent.class,
+                ResponseReceivedEvent.class,
+                SessionPausedEvent.class,
+                SessionResumedEvent.class,
+                ConnectionLostEvent.class);
+
+    private static List<RecordedEvent> readEvents(final Recording recording)
+    throws IOException {
+        File file = File.createTempFile("jbosh", ".jfr");
+        try {
+            recording.dump(file.toPath());
+            List<RecordedEvent> result = new ArrayList<RecordedEvent>();
+            for (RecordedEvent event
+                    : RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName()
+                        .startsWith("com.kenai.jbosh.")) {
+                    result.add(event);
+                }
+            }
+            return result;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static RecordedEvent findEvent(
+            final List<RecordedEvent> events, final String name) {
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                return event;
+            }
+        }
+        fail("No " + name + " event in " + events);
+        return null;
+    }
+
+    /*
+     * Every callback produces its event while recording.
+     */
+    @Test
+    public void eventsRecorded() throws Exception {
+        JFRTracer tracer = new JFRTracer();
+        Recording recording = new Recording();
+        for (Class<? extends Event> type : EVENT_TYPES) {
+            recording.enable(type);
+        }
+        recording.start();
+        try {
+            tracer.connectionOpened("localhost", 5280, 100L, 350L);
+            tracer.handshakeCompleted("localhost", 5280, 400L, 1400L);
+            tracer.requestWritten(42L, 512, 0L);
+            tracer.responseReceived(42L, 200, 100, 400, 0L);
+            tracer.sessionPaused(0L);
+            tracer.sessionResumed(0L);
+            tracer.connectionLost(new IOException("reset"), 0L);
+        } finally {
+            recording.stop();
+        }
+        List<RecordedEvent> events = readEvents(recording);
+        recording.close();
+
+        RecordedEvent connect = findEvent(events, "com.kenai.jbosh.Connect");
+        assertEquals("localhost", connect.getString("host"));
+        assertEquals(5280, connect.getInt("port"));
+        assertEquals(250L, connect.getDuration("connectTime").toNanos());
+
+        RecordedEvent handshake =
+                findEvent(events, "com.kenai.jbosh.Handshake");
+        assertEquals(1000L,
+                handshake.getDuration("handshakeTime").toNanos());
+
+        RecordedEvent written =
+                findEvent(events, "com.kenai.jbosh.RequestWritten");
+        assertEquals(42L, written.getLong("rid"));
+        assertEquals(512, written.getInt("bytes"));
+
+        RecordedEvent received =
+                findEvent(events, "com.kenai.jbosh.ResponseReceived");
+        assertEquals(42L, received.getLong("rid"));
+        assertEquals(200, received.getInt("status"));
+        assertEquals(100, received.getInt("wireBytes"));
+        assertEquals(400, received.getInt("bodyBytes"));
+        assertEquals(4.0f, received.getFloat("compressionRatio"), 0.001f);
+
+        findEvent(events, "com.kenai.jbosh.SessionPaused");
+        findEvent(events, "com.kenai.jbosh.SessionResumed");
+        RecordedEvent lost =
+                findEvent(events, "com.kenai.jbosh.ConnectionLost");
+        assertTrue(lost.getString("cause").contains("reset"));
+    }
+
+    /*
+     * Nothing is recorded when the events are not enabled.
+     */
+    @Test
+    public void eventsDisabled() throws Exception {
+        JFRTracer tracer = new JFRTracer();
+        Recording recording = new Recording();
+        for (Class<? extends Event> type : EVENT_TYPES) {
+            recording.disable(type);
+        }
+        recording.start();
+        try {
+            tracer.connectionOpened("localhost", 5280, 100L, 350L);
+            tracer.responseReceived(42L, 200, 100, 400, 0L);
+        } finally {
+            recording.stop();
+        }
+        List<RecordedEvent> events = readEvents(recording);
+        recording.close();
+        assertTrue(events.toString(), events.isEmpty());
+    }
+
+}
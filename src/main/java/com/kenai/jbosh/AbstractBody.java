@@ -16,7 +16,9 @@
 
 package com.kenai.jbosh;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -38,6 +40,11 @@ import java.util.Set;
  */
 public abstract class AbstractBody {
 
+    /**
+     * Payload elements of the message, split on first use.
+     */
+    private volatile List<PayloadElement> payloadElements;
+
     ///////////////////////////////////////////////////////////////////////////
     // Constructor:
 
@@ -85,6 +92,28 @@ public abstract class AbstractBody {
         return result != null? result:defaultValue;
     }
 
+    /**
+     * Get the top-level child elements of the wrapper element, such as the
+     * XMPP stanzas carried by the message.  The message is split the first
+     * time this method is called and the result is retained, so repeated
+     * calls and calls from multiple listeners are inexpensive.  Responses
+     * are split before being delivered to listeners when
+     * {@link BOSHClientConfig.Builder#setPayloadSplittingEnabled(boolean)}
+     * is enabled.
+     *
+     * @return unmodifiable list of payload elements, in document order
+     * @throws BOSHException if the message XML could not be split
+     */
+    public final List<PayloadElement> getPayloadElements()
+    throws BOSHException {
+        List<PayloadElement> result = payloadElements;
+        if (result == null) {
+            result = PayloadSplitter.split(toXML());
+            payloadElements = result;
+        }
+        return result;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Abstract methods:
 
@@ -105,6 +134,68 @@ public abstract class AbstractBody {
     ///////////////////////////////////////////////////////////////////////////
     // Package-private methods:
 
+    /**
+     * Determine whether the message carries any payload.
+     *
+     * @return {@code true} if the message has payload, or if this could not
+     *  be determined
+     */
+    boolean hasPayload() {
+        try {
+            return !getPayloadElements().isEmpty();
+        } catch (BOSHException boshx) {
+            return true;
+        }
+    }
+
+    /**
+     * Get the value of the {@code rid} attribute.
+     *
+     * @return request ID, or {@code -1} if the attribute is not defined
+     */
+    long getRequestID() {
+        String rid = getAttribute(Attributes.RID);
+        if (rid == null) {
+            return -1L;
+        }
+        return Long.parseLong(rid);
+    }
+
+    /**
+     * Write the UTF-8 encoded XML representation of this message into a
+     * buffer, as it is sent to the connection manager.
+     *
+     * @param out buffer to write to
+     */
+    void writeTo(final ByteOutputBuffer out) {
+        out.append(toXML());
+    }
+
+    /**
+     * Get the UTF-8 encoded XML representation of this message, if it is
+     * already held as an array of its own.
+     *
+     * @return encoded XML, which must not be modified, or {@code null} if it
+     *  is not held
+     */
+    byte[] getEncoded() {
+        return null;
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     *
+     * @param str string to encode
+     * @return encoded bytes
+     */
+    static byte[] encode(final String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uex) {
+            throw(new IllegalStateException(uex));
+        }
+    }
+
     /**
      * Returns the qualified name of the root/wrapper element.
      *
@@ -17,19 +17,24 @@
 package com.kenai.jbosh;
 
 import com.kenai.jbosh.ComposableBody.Builder;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
@@ -127,6 +132,13 @@ public final class BOSHClient {
      */
     private static final String NULL_LISTENER = "Listener may not be null";
 
+    /**
+     * Body passed to {@code sendInternal} for empty requests, which are
+     * then created from the session's template.
+     */
+    private static final ComposableBody EMPTY_REQUEST =
+            ComposableBody.builder().build();
+
     /**
      * Default empty request delay.
      */
@@ -178,6 +190,19 @@ public final class BOSHClient {
     private final Set<BOSHClientResponseListener> responseListeners =
             new CopyOnWriteArraySet<BOSHClientResponseListener>();
 
+    /**
+     * Batch response listeners.
+     */
+    private final Set<BOSHClientBatchListener> batchListeners =
+            new CopyOnWriteArraySet<BOSHClientBatchListener>();
+
+    /**
+     * Bodies processed in the current processing pass, awaiting delivery to
+     * the batch listeners.  Only accessed by the processing thread.
+     */
+    private final List<AbstractBody> pendingBatch =
+            new ArrayList<AbstractBody>();
+
     /**
      * Lock instance.
      */
@@ -222,15 +247,55 @@ public final class BOSHClient {
     private final RequestIDSequence requestIDSeq = new RequestIDSequence();
 
     /**
-     * ScheduledExcecutor to use for deferred tasks.
+     * Executor to run deferred tasks on.
+     */
+    private final Executor schedExec;
+
+    /**
+     * Timer pool the client is attached to, or {@code null} if none is used.
+     */
+    private final BOSHTimerPool timerPool;
+
+    /**
+     * Index of the pool's timer loop the client is pinned to.
+     */
+    private final int timerLoop;
+
+    /**
+     * Timer wheel used to schedule deferred tasks.
+     */
+    private final TimerWheel timerWheel;
+
+    /**
+     * Timeout for sending a deferred empty request.
+     */
+    private final TimerWheel.Timeout emptyRequestTimeout;
+
+    /**
+     * Timeout for timing out the connection.
      */
-    private final ScheduledExecutorService schedExec;
+    private final TimerWheel.Timeout ioTimeout;
 
     /**
-     * If true, {@link #schedExec} was created by us, and needs to be shut down
-     * by us.
+     * Timeout for sending the messages held back by the send linger.
      */
-    private final boolean schedExecOwned;
+    private final TimerWheel.Timeout outboundBatchTimeout;
+
+    /**
+     * Asynchronous listener dispatcher, or {@code null} if listeners are
+     * called synchronously.
+     */
+    private final ListenerDispatcher dispatcher;
+
+    /**
+     * Exchange life cycle tracer.
+     */
+    private final BOSHClientTracer tracer;
+
+    /**
+     * If false, no tracer is configured and no timestamps need to be taken.
+     */
+    private final boolean tracing;
 
     /************************************************************
      * The following vars must be accessed via the lock instance.
@@ -250,14 +315,36 @@ public final class BOSHClient {
     private Thread procThreadUnjoined = null;
 
     /**
-     * Future for sending a deferred empty request, if needed.
+     * If true, an empty request has been scheduled and has not yet finished
+     * sending.
+     */
+    private boolean emptyRequestScheduled;
+
+    /**
+     * If true, the scheduled empty request may wake the session from a
+     * pause.
      */
-    private ScheduledFuture emptyRequestFuture;
+    private boolean emptyRequestWakesFromPause;
 
     /**
-     * Future for timing out the connection.
+     * If true, the scheduled empty request only keeps a session whose
+     * polling is throttled by its inbound subscriber from reaching the
+     * inactivity period.
      */
-    private ScheduledFuture timeoutFuture;
+    private boolean emptyRequestKeepsAlive;
+
+    /**
+     * If true, the scheduled empty request fell due while threads woken from
+     * {@link #notFull} had yet to reacquire the lock, and is held back until
+     * they have.
+     */
+    private boolean emptyRequestDeferred;
+
+    /**
+     * Number of threads woken from {@link #notFull} which have not yet
+     * reacquired the lock.
+     */
+    private int notFullWoken;
 
     /**
      * Connection Manager session parameters.  Only available when in a
@@ -283,11 +370,94 @@ public final class BOSHClient {
     private Long responseAck = Long.valueOf(-1L);
 
     /**
-     * List of requests which have been made but not yet acknowledged.
+     * Template for the empty requests of the session, created once the
+     * session ID is known.
+     */
+    private EmptyRequestTemplate emptyRequestTemplate;
+
+    /**
+     * Requests which have been made but not yet acknowledged.
+     */
+    private final ResendBuffer pendingRequestAcks;
+
+    /**
+     * Messages held back by the send linger, in the order they were sent.
      */
-    private List<ComposableBody> pendingRequestAcks =
+    private final List<ComposableBody> outboundBatch =
             new ArrayList<ComposableBody>();
 
+    /**
+     * Messages taken from the outbound batch, merged, which are waiting to
+     * be sent.  Like the outbound batch, they are reported as outstanding
+     * if the session ends before they are sent.
+     */
+    private final List<ComposableBody> outboundBatchSending =
+            new ArrayList<ComposableBody>(1);
+
+    /**
+     * UTF-8 encoded payloads of the messages in the outbound batch, which
+     * are sent as the payload of the merged message.
+     */
+    private final ByteOutputBuffer outboundBatchPayload =
+            new ByteOutputBuffer();
+
+    /**
+     * If true, sending the outbound batch has been scheduled.
+     */
+    private boolean outboundBatchScheduled;
+
+    /**
+     * If true, the linger time of the outbound batch has passed, and it is
+     * sent as soon as a request may be sent.
+     */
+    private boolean outboundBatchDue;
+
+    /**
+     * If true, the session is being handed off by {@link #handOff()}.  No
+     * messages may be sent, and no empty requests are scheduled.
+     */
+    private boolean handingOff;
+
+    /**
+     * Interval an idle polling session has backed off to, in milliseconds,
+     * or 0 while polling at the connection manager's minimum interval.
+     */
+    private long pollingInterval;
+
+    /**
+     * Attributes of the session creation response, kept for session
+     * snapshots.
+     */
+    private Map<BodyQName, String> sessionAttributes;
+
+    /**
+     * Request ID of the session creation request, kept for session
+     * snapshots.
+     */
+    private long sessionCreationRID;
+
+    /**
+     * Number of exchanges completed during this session.
+     */
+    private long completedExchanges;
+
+    /**
+     * Number of times the connection was lost during this session.
+     */
+    private long connectionLosses;
+
+    /**
+     * Number of times sending a message was held back because the resend
+     * buffer was full.
+     */
+    private long resendBufferStalls;
+
+    /**
+     * Subscription receiving the responses, or {@code null}.  Written while
+     * the lock is held, but read by the processing thread without it.
+     */
+    private volatile InboundSubscription inbound;
+
     /**
      * If true, a pause request has been sent.  The session is either flushing
      * requests and awaiting the response to the pause request, or is actively
@@ -320,13 +490,53 @@ public final class BOSHClient {
      */
     private BOSHClient(final BOSHClientConfig sessCfg) {
         cfg = sessCfg;
+        timerPool = sessCfg.getTimerPool();
+        pendingRequestAcks = new ResendBuffer(
+                sessCfg.getResendBufferLimit(),
+                sessCfg.isResendBufferCompressionEnabled());
         ScheduledExecutorService executorService = sessCfg.getExecutorService();
-        if(executorService == null) {
-            schedExec = Executors.newSingleThreadScheduledExecutor();
-            schedExecOwned = true;
+        if(timerPool != null) {
+            timerLoop = timerPool.attach();
+            schedExec = timerPool.getLoop(timerLoop);
+            timerWheel = timerPool.getWheel();
+        } else if(executorService == null) {
+            timerLoop = -1;
+            schedExec = TimerWheel.getSharedExecutor();
+            timerWheel = TimerWheel.getShared();
         } else {
+            timerLoop = -1;
             schedExec = executorService;
-            schedExecOwned = false;
+            timerWheel = TimerWheel.getShared();
+        }
+        if (sessCfg.getListenerExecutor() == null) {
+            dispatcher = null;
+        } else {
+            dispatcher = new ListenerDispatcher(
+                    sessCfg.getListenerExecutor(),
+                    sessCfg.getListenerQueueCapacity(),
+                    sessCfg.getListenerOverflowPolicy());
+        }
+        emptyRequestTimeout = new TimerWheel.Timeout(schedExec) {
+            void expired() {
+                sendEmptyRequests();
+            }
+        };
+        outboundBatchTimeout = new TimerWheel.Timeout(schedExec) {
+            void expired() {
+                sendOutboundBatch();
+            }
+        };
+        ioTimeout = new TimerWheel.Timeout(schedExec) {
+            void expired() {
+                connectionLost(new BOSHException("Connection timed out"));
+            }
+        };
+        if (sessCfg.getTracer() == null) {
+            tracer = BOSHClientTracer.getDefault();
+            tracing = false;
+        } else {
+            tracer = sessCfg.getTracer();
+            tracing = true;
         }
 
         init();
@@ -350,6 +560,38 @@ public final class BOSHClient {
         return new BOSHClient(clientCfg);
     }
 
+    /**
+     * Create a new BOSH client which continues the session captured by a
+     * snapshot, rather than creating a new session.  The client resends
+     * the requests the connection manager had not acknowledged when the
+     * snapshot was taken, and then resumes polling.  The client the
+     * snapshot was taken from must no longer be used, other than to
+     * {@link #close()} it.
+     *
+     * @param clientCfg session configuration, which should name the same
+     *  connection manager as that of the snapshot's session
+     * @param snapshot snapshot of the session to continue
+     * @return BOSH session instance
+     * @throws BOSHException if the snapshot could not be restored
+     */
+    public static BOSHClient create(
+            final BOSHClientConfig clientCfg,
+            final BOSHClientSnapshot snapshot)
+    throws BOSHException {
+        if (snapshot == null) {
+            throw(new IllegalArgumentException(
+                    "Snapshot may not be null"));
+        }
+        BOSHClient client = create(clientCfg);
+        try {
+            client.restore(snapshot);
+        } catch (BOSHException boshx) {
+            client.close();
+            throw(boshx);
+        }
+        return client;
+    }
+
     /**
      * Get the client configuration that was used to create this client
      * instance.
@@ -384,6 +626,9 @@ public final class BOSHClient {
             throw(new IllegalArgumentException(NULL_LISTENER));
         }
         connListeners.remove(listener);
+        if (dispatcher != null) {
+            dispatcher.removeConnListener(listener);
+        }
     }
 
     /**
@@ -411,6 +656,9 @@ public final class BOSHClient {
             throw(new IllegalArgumentException(NULL_LISTENER));
         }
         requestListeners.remove(listener);
+        if (dispatcher != null) {
+            dispatcher.removeRequestListener(listener);
+        }
     }
 
     /**
@@ -438,6 +686,293 @@ public final class BOSHClient {
             throw(new IllegalArgumentException(NULL_LISTENER));
         }
         responseListeners.remove(listener);
+        if (dispatcher != null) {
+            dispatcher.removeResponseListener(listener);
+        }
+    }
+
+    /**
+     * Adds a batch response listener to the session.
+     *
+     * @param listener batch listener to add, if not already added
+     */
+    public void addBOSHClientBatchListener(
+            final BOSHClientBatchListener listener) {
+        if (listener == null) {
+            throw(new IllegalArgumentException(NULL_LISTENER));
+        }
+        batchListeners.add(listener);
+    }
+
+    /**
+     * Removes a batch response listener from the session, if previously
+     * added.
+     *
+     * @param listener instance to remove
+     */
+    public void removeBOSHClientBatchListener(
+            final BOSHClientBatchListener listener) {
+        if (listener == null) {
+            throw(new IllegalArgumentException(NULL_LISTENER));
+        }
+        batchListeners.remove(listener);
+        if (dispatcher != null) {
+            dispatcher.removeBatchListener(listener);
+        }
+    }
+
+    /**
+     * Subscribes to the responses received by the session as a stream
+     * whose demand throttles polling of the connection manager.  See
+     * {@link BOSHClientSubscriber} for details.  A session supports one
+     * subscriber at a time; a second subscriber is immediately terminated
+     * with an {@code IllegalStateException} unless the previous subscription
+     * has ended.  Subscribing to a closed session immediately completes.
+     *
+     * @param subscriber subscriber to deliver responses to
+     */
+    public void subscribe(final BOSHClientSubscriber subscriber) {
+        if (subscriber == null) {
+            throw(new IllegalArgumentException("Subscriber may not be null"));
+        }
+        InboundSubscription sub = new InboundSubscription(this, subscriber);
+        lock.lock();
+        try {
+            if (inbound != null && !inbound.isTerminated()) {
+                sub.complete(new IllegalStateException(
+                        "Session already has a subscriber"));
+            } else if (!isWorking()) {
+                sub.complete(null);
+            } else {
+                inbound = sub;
+            }
+        } finally {
+            lock.unlock();
+        }
+        sub.start();
+    }
+
+    /**
+     * Get the number of listener events waiting to be delivered, over all
+     * listeners, when asynchronous listener dispatch is enabled.
+     *
+     * @return queued event count, or zero if listeners are called
+     *  synchronously
+     */
+    public int getListenerQueueDepth() {
+        return dispatcher == null ? 0 : dispatcher.getDepth();
+    }
+
+    /**
+     * Get the highest number of listener events which have waited to be
+     * delivered at once, when asynchronous listener dispatch is enabled.
+     *
+     * @return peak queued event count, or zero if listeners are called
+     *  synchronously
+     */
+    public int getPeakListenerQueueDepth() {
+        return dispatcher == null ? 0 : dispatcher.getPeakDepth();
+    }
+
+    /**
+     * Get the number of listener events discarded by the configured
+     * {@link ListenerOverflowPolicy}, when asynchronous listener dispatch is
+     * enabled.
+     *
+     * @return dropped event count
+     */
+    public long getDroppedListenerEventCount() {
+        return dispatcher == null ? 0L : dispatcher.getDroppedCount();
+    }
+
+    /**
+     * Get the number of sent requests which have not yet been acknowledged
+     * by the connection manager, and are kept in case they must be resent.
+     *
+     * @return unacknowledged request count
+     */
+    public int getResendBufferCount() {
+        lock.lock();
+        try {
+            return pendingRequestAcks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes used to keep the unacknowledged requests.
+     *
+     * @return byte count
+     */
+    public long getResendBufferBytes() {
+        lock.lock();
+        try {
+            return pendingRequestAcks.getByteCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the highest number of bytes used to keep unacknowledged requests
+     * at once.
+     *
+     * @return peak byte count
+     */
+    public long getPeakResendBufferBytes() {
+        lock.lock();
+        try {
+            return pendingRequestAcks.getPeakByteCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of times sending a message was held back because the
+     * limit set by {@link BOSHClientConfig.Builder#setResendBufferLimit(int)}
+     * had been reached.
+     *
+     * @return stall count
+     */
+    public long getResendBufferStallCount() {
+        lock.lock();
+        try {
+            return resendBufferStalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Capture the state of the established session, so that it can be
+     * continued by another client.  Messages queued by the send linger are
+     * sent first, so that they are part of the snapshot.  Taking a snapshot
+     * does not affect this client; once the snapshot is restored elsewhere,
+     * this client should be closed by using {@link #close()}, which does not
+     * terminate the session.
+     *
+     * @return session snapshot
+     * @throws BOSHException if the session has not been established or has
+     *  ended
+     */
+    public BOSHClientSnapshot snapshot() throws BOSHException {
+        HTTPExchange batchExchange = null;
+        BOSHClientSnapshot result;
+
+        assertUnlocked();
+        lock.lock();
+        try {
+            if (!outboundBatch.isEmpty()) {
+                batchExchange = sendOutboundBatchNow();
+            }
+            if (!isWorking() || cmParams == null) {
+                throw(new BOSHException(
+                        "Cannot snapshot a session which is not established"));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = BOSHClientSnapshot.startWriting(bytes);
+            out.writeLong(sessionCreationRID);
+            out.writeInt(sessionAttributes.size());
+            for (Map.Entry<BodyQName, String> attr
+                    : sessionAttributes.entrySet()) {
+                BodyQName name = attr.getKey();
+                out.writeUTF(name.getNamespaceURI());
+                out.writeUTF(name.getLocalPart());
+                out.writeUTF(name.getPrefix() == null ? "" : name.getPrefix());
+                out.writeUTF(attr.getValue());
+            }
+            out.writeLong(requestIDSeq.peekNextRID());
+            out.writeLong(responseAck.longValue());
+            out.writeInt(pendingResponseAcks.size());
+            for (Long rid : pendingResponseAcks) {
+                out.writeLong(rid.longValue());
+            }
+            pendingRequestAcks.writeTo(out);
+            out.close();
+            result = BOSHClientSnapshot.create(bytes);
+        } catch (IOException iox) {
+            throw(new BOSHException("Could not write session snapshot", iox));
+        } finally {
+            lock.unlock();
+        }
+
+        if (batchExchange != null) {
+            fireRequestSent(batchExchange.getRequest());
+        }
+        return result;
+    }
+
+    /**
+     * Quiesce the session and capture it, so that another client, possibly
+     * in another process, can take it over by using
+     * {@link #create(BOSHClientConfig, BOSHClientSnapshot)}.  Messages
+     * queued by the send linger are sent, and the session is paused so that
+     * the connection manager responds to every held request.  Once those
+     * responses have been received and delivered, or the session's
+     * {@code wait} time has passed, the snapshot is taken and this client
+     * is shut down without terminating the session.  Connection listeners
+     * are told that the connection was closed.
+     * <p/>
+     * If the connection manager does not support pausing, the snapshot is
+     * taken at once.  Requests still in flight are left unanswered, and the
+     * client taking over the session resends them.  While the session is
+     * being handed off, no empty requests are sent, and attempts to send
+     * messages fail.
+     *
+     * @return snapshot of the session
+     * @throws BOSHException if the session has not been established or has
+     *  ended
+     */
+    public BOSHClientSnapshot handOff() throws BOSHException {
+        HTTPExchange batchExchange = null;
+
+        assertUnlocked();
+        lock.lock();
+        try {
+            if (!isWorking() || cmParams == null) {
+                throw(new BOSHException(
+                        "Cannot hand off a session which is not established"));
+            }
+            handingOff = true;
+            clearEmptyRequest();
+            if (!outboundBatch.isEmpty()) {
+                batchExchange = sendOutboundBatchNow();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (batchExchange != null) {
+            fireRequestSent(batchExchange.getRequest());
+        }
+
+        // Pausing makes the connection manager respond to all held requests.
+        // Without it, they would only be answered once the CM has something
+        // to send or its wait time has passed, so don't wait for them.
+        boolean paused = pause();
+
+        lock.lock();
+        try {
+            if (paused && isWorking()) {
+                long remaining = TimeUnit.SECONDS.toNanos(
+                        cmParams.getWait().getValue());
+                while (isWorking() && !exchanges.isEmpty() && remaining > 0) {
+                    try {
+                        remaining = awaitNotFull(remaining);
+                    } catch (InterruptedException intx) {
+                        LOG.log(Level.FINEST, INTERRUPTED, intx);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        BOSHClientSnapshot result = snapshot();
+        dispose(null);
+        return result;
     }
 
     /**
@@ -452,25 +987,109 @@ public final class BOSHClient {
      * to be transmitted.  In certain scenarios - such as when the maximum
      * number of outbound connections has been reached - calls to this method
      * will block for short periods of time.
+     * <p/>
+     * If a send linger has been configured, messages carrying only payload
+     * are queued and this method returns immediately.  Queued messages are
+     * merged into a single request once the linger time has passed, once
+     * they reach the configured maximum batch size, or before the next
+     * message which cannot be merged is sent.
+     * If the session ends before they are sent, they are included in the
+     * outstanding requests of the {@link BOSHClientConnEvent}.
      *
      * @param body message data to send to remote server
      * @throws BOSHException on message transmission failure
      */
     public void send(final ComposableBody body) throws BOSHException {
+        HTTPExchange batchExchange = null;
         HTTPExchange sentExchange;
 
         assertUnlocked();
         lock.lock();
 
         try {
-            sentExchange = sendInternal(body, false);
+            assertNotHandingOff();
+            if (isBatchable(body)) {
+                if (addToOutboundBatch(body)) {
+                    return;
+                }
+                // The batch is full.  Send it from this thread, blocking
+                // the caller until it can be sent.
+                sentExchange = sendOutboundBatchNow();
+            } else {
+                if (!outboundBatch.isEmpty()) {
+                    // Send the queued messages first, to keep them in order
+                    batchExchange = sendOutboundBatchNow();
+                }
+                sentExchange = sendInternal(body, false);
+            }
         } finally {
             lock.unlock();
         }
 
+        if (batchExchange != null) {
+            fireRequestSent(batchExchange.getRequest());
+        }
         fireRequestSent(sentExchange.getRequest());
     }
 
+    /**
+     * Send several messages to the remote connection manager at once.
+     * Consecutive messages which {@link #send(ComposableBody)} would hold
+     * back for the send linger are merged into as few requests as the
+     * configured maximum batch size allows, and sent without waiting for the
+     * linger time.  Other messages, and all messages when no send linger is
+     * configured, are sent in requests of their own, in order.
+     * Like {@link #send(ComposableBody)}, this method blocks until the
+     * session state allows every request to be transmitted.
+     *
+     * @param bodies messages to send, in order
+     * @throws BOSHException on message transmission failure
+     */
+    public void sendAll(final Collection<ComposableBody> bodies)
+    throws BOSHException {
+        if (bodies == null) {
+            throw(new IllegalArgumentException(
+                    "Message bodies may not be null"));
+        }
+        for (ComposableBody body : bodies) {
+            if (body == null) {
+                throw(new IllegalArgumentException(
+                        "Message body may not be null"));
+            }
+        }
+
+        List<HTTPExchange> sentExchanges = new ArrayList<HTTPExchange>();
+        assertUnlocked();
+        lock.lock();
+
+        try {
+            assertNotHandingOff();
+            // Messages queued by the send linger are merged in front
+            for (ComposableBody body : bodies) {
+                if (isBatchable(body)) {
+                    if (queueOutboundMessage(body)) {
+                        sentExchanges.add(
+                                sendOutboundBatchNow());
+                    }
+                } else {
+                    if (!outboundBatch.isEmpty()) {
+                        sentExchanges.add(
+                                sendOutboundBatchNow());
+                    }
+                    sentExchanges.add(sendInternal(body, false));
+                }
+            }
+            if (!outboundBatch.isEmpty()) {
+                sentExchanges.add(sendOutboundBatchNow());
+            }
+        } finally {
+            lock.unlock();
+            for (HTTPExchange exch : sentExchanges) {
+                fireRequestSent(exch.getRequest());
+            }
+        }
+    }
+
     /*
      * If emptyRequest is false, send body normally, blocking if necessary until
      * the request can be sent.
@@ -518,6 +1137,12 @@ public final class BOSHClient {
                 int exchangesNeeded = wantedExchanges - exchanges.size();
                 if (exchangesNeeded <= 0)
                     return null;
+
+                // Send any messages held back by the send linger in place
+                // of the empty request.
+                if (!outboundBatch.isEmpty()
+                        && !isResendBufferFull(outboundBatch.get(0)))
+                    return sendOutboundBatchNow();
             }
             else {
                 blockUntilSendable(body);
@@ -528,7 +1153,15 @@ public final class BOSHClient {
                         "Cannot send message when session is closed"));
             }
 
+            final boolean wasPaused = sessionPaused;
             sessionPaused = isPause(body);
+            if (tracing && wasPaused != sessionPaused) {
+                if (sessionPaused) {
+                    tracer.sessionPaused(System.nanoTime());
+                } else {
+                    tracer.sessionResumed(System.nanoTime());
+                }
+            }
             if (sessionPaused) {            
                 // If this is a pause request, clear any empty packet timer that's already
                 // been sent, and schedule an empty request based on the duration of the
@@ -547,11 +1180,16 @@ public final class BOSHClient {
             if (params == null && exchanges.isEmpty()) {
                 // This is the first message being sent
                 request = applySessionCreationRequest(rid, body);
+            } else if (body == EMPTY_REQUEST && params != null) {
+                request = getEmptyRequestTemplate().create(
+                        rid, getResponseAck(rid));
             } else {
                 request = applySessionData(rid, body);
             }
+            // Serialize the request once, into the resend buffer, and send
+            // it from the same bytes.
+            request.shareEncoded(pendingRequestAcks.add(request));
             exch = createExchangeAndSend(request);
-            pendingRequestAcks.add(request);
         } finally {
         }
         return exch;
@@ -566,13 +1204,16 @@ public final class BOSHClient {
     private HTTPExchange createExchangeAndSend(AbstractBody request) {
         assertLocked();
 
+        if (tracing) {
+            tracer.exchangeQueued(getRID(request), System.nanoTime());
+        }
         HTTPResponse response = httpSender.send(cmParams, request);
         HTTPExchange exch = new HTTPExchange(request, response);
         exchanges.add(exch);
         notEmpty.signalAll();
 
         // If no timeout is scheduled, begin one.
-        if(timeoutFuture == null)
+        if(!ioTimeout.isActive())
             resetTimeout();
 
         return exch;
@@ -697,7 +1338,7 @@ public final class BOSHClient {
             LOG.finest("Waiting while draining...");
             while (isWorking() && !exchanges.isEmpty()) {
                 try {
-                    notFull.await();
+                    awaitNotFull(0L);
                 } catch (InterruptedException intx) {
                     LOG.log(Level.FINEST, INTERRUPTED, intx);
                 }
@@ -711,6 +1352,70 @@ public final class BOSHClient {
     ///////////////////////////////////////////////////////////////////////////
     // Private methods:
 
+    /**
+     * Continue the session captured by a snapshot.  This resends the
+     * requests which were not acknowledged and resumes polling.
+     *
+     * @param snapshot snapshot to restore
+     * @throws BOSHException if the snapshot could not be read
+     */
+    private void restore(final BOSHClientSnapshot snapshot)
+    throws BOSHException {
+        assertUnlocked();
+
+        List<ComposableBody> requestsToResend;
+        lock.lock();
+        try {
+            DataInputStream in = snapshot.openStream();
+            long creationRID = in.readLong();
+            Builder scr = ComposableBody.builder();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                BodyQName name = BodyQName.createWithPrefix(
+                        in.readUTF(), in.readUTF(), in.readUTF());
+                scr.setAttribute(name, in.readUTF());
+            }
+            ComposableBody creation = ComposableBody.builder()
+                    .setAttribute(Attributes.RID, Long.toString(creationRID))
+                    .build();
+            ComposableBody response = scr.build();
+            cmParams = CMSessionParams.fromSessionInit(creation, response);
+            sessionAttributes = response.getAttributes();
+            sessionCreationRID = creationRID;
+
+            requestIDSeq.setNextRID(in.readLong());
+            responseAck = Long.valueOf(in.readLong());
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                pendingResponseAcks.add(Long.valueOf(in.readLong()));
+            }
+            pendingRequestAcks.readFrom(in);
+
+            // The responses to these requests may have been lost along with
+            // the client the snapshot was taken from.
+            requestsToResend = pendingRequestAcks.getAll();
+            for (ComposableBody req : requestsToResend) {
+                if (tracing) {
+                    tracer.requestResent(getRID(req), System.nanoTime());
+                }
+                createExchangeAndSend(req);
+            }
+
+            long delay = getDefaultEmptyRequestDelay();
+            if (delay != -1) {
+                scheduleEmptyRequests(delay);
+            }
+        } catch (IOException iox) {
+            throw(new BOSHException("Could not read session snapshot", iox));
+        } finally {
+            lock.unlock();
+        }
+
+        for (ComposableBody req : requestsToResend) {
+            fireRequestSent(req);
+        }
+    }
+
     /**
      * Initialize the session.  This initializes the underlying HTTP
      * transport implementation and starts the receive thread.
@@ -773,12 +1478,6 @@ public final class BOSHClient {
             // If that request fails, we'll reenter connectionRecoverablyLost.
             connectionRecoverablyLost = false;
 
-            // In order for us to have been disconnected, we must have attempted to send at
-            // least one packet, and failed to receive a response.  This means that we're
-            // guaranteed to have at least one request in pendingResponseAcks.
-            if(pendingRequestAcks.isEmpty())
-                throw new IllegalStateException("No request acks pending while disconnected");
-
             if(ASSERTIONS) {
                 // We should never be able to have more requests pending than we can send
                 // at once.  This invariant guarantees that the request batch we send below
@@ -804,10 +1503,12 @@ public final class BOSHClient {
             // Resend all requests that we havn't seen a response for.  If the server
             // doesn't support request acks, this is all requests that we havn't received
             // a response to.
-            requestsToResend = new ArrayList<ComposableBody>(pendingRequestAcks.size());
-            requestsToResend.addAll(pendingRequestAcks);
+            requestsToResend = pendingRequestAcks.getAll();
 
             for(ComposableBody req: requestsToResend) {
+                if (tracing) {
+                    tracer.requestResent(getRID(req), System.nanoTime());
+                }
                 createExchangeAndSend(req);
             }
 
@@ -854,7 +1555,7 @@ public final class BOSHClient {
             exch.getHTTPResponse().abort();
 
         exchanges.clear();
-        notFull.signalAll();
+        signalNotFull();
     }
 
     private void connectionLost(final Throwable cause) {
@@ -871,6 +1572,10 @@ public final class BOSHClient {
             if(connectionRecoverablyLost)
                 return;
             connectionRecoverablyLost = true;
+            connectionLosses++;
+            if (tracing) {
+                tracer.connectionLost(cause, System.nanoTime());
+            }
 
             // All exchanges in the air have failed.
             closeAllExchanges();
@@ -937,18 +1642,33 @@ public final class BOSHClient {
         } else {
             fireConnectionClosedOnError(cause);
         }
+        InboundSubscription sub = inbound;
+        if (sub != null) {
+            sub.complete(cause);
+        }
 
         lock.lock();
         try {
             clearEmptyRequest();
             clearTimeout();
+            timerWheel.cancel(outboundBatchTimeout);
+            outboundBatch.clear();
+            outboundBatchSending.clear();
+            outboundBatchPayload.reset(0);
+            outboundBatchScheduled = false;
+            outboundBatchDue = false;
+            if (cmParams != null && cfg.isSessionTuningEnabled()) {
+                SessionProfileCache.getShared().recordSession(
+                        cfg.getURI(), completedExchanges, connectionLosses);
+            }
             exchanges = null;
             cmParams = null;
+            emptyRequestTemplate = null;
             connectionRecoverablyLost = false;
             pendingResponseAcks = null;
-            pendingRequestAcks = null;
+            pendingRequestAcks.clear();
             notEmpty.signalAll();
-            notFull.signalAll();
+            signalNotFull();
         } finally {
             lock.unlock();
         }
@@ -959,9 +1679,9 @@ public final class BOSHClient {
         if(thread != null) {
             Helpers.joinThreadUninterruptible(thread);
         }
-        
-        if(schedExecOwned)
-            schedExec.shutdownNow();
+
+        if(timerPool != null)
+            timerPool.detach(timerLoop);
     }
 
     /**
@@ -976,6 +1696,16 @@ public final class BOSHClient {
         return msg.getAttribute(Attributes.PAUSE) != null;
     }
     
+    /**
+     * Get the request ID of the message body specified.
+     *
+     * @param msg message to evaluate
+     * @return request ID of the message, or -1 if none is set
+     */
+    private static long getRID(final AbstractBody msg) {
+        return msg.getRequestID();
+    }
+    
     /**
      * Determines if the message body specified indicates a termination of
      * the session.
@@ -1049,6 +1779,38 @@ public final class BOSHClient {
         return false;
     }
 
+    /**
+     * Determines if the message specified must wait for unacknowledged
+     * requests to be acknowledged before being sent.
+     *
+     * @param msg message to evaluate
+     * @return {@code true} if the resend buffer is full and the message is
+     *  neither a pause nor a termination request
+     */
+    private boolean isResendBufferFull(final AbstractBody msg) {
+        assertLocked();
+
+        return cmParams != null
+                && pendingRequestAcks.isFull()
+                && !isTermination(msg)
+                && !isPause(msg);
+    }
+
+    /**
+     * Ensure that the session is not being handed off, since no messages
+     * may be sent while it is.
+     *
+     * @throws BOSHException if the session is being handed off
+     */
+    private void assertNotHandingOff() throws BOSHException {
+        assertLocked();
+
+        if (handingOff) {
+            throw(new BOSHException(
+                    "Cannot send message while the session is being handed off"));
+        }
+    }
+
     /**
      * Determines whether or not the session is still active.
      *
@@ -1069,9 +1831,15 @@ public final class BOSHClient {
     private void blockUntilSendable(final AbstractBody msg) {
         assertLocked();
 
-        while (isWorking() && !isImmediatelySendable(msg)) {
+        boolean stalled = false;
+        while (isWorking() && !(isImmediatelySendable(msg)
+                && !isResendBufferFull(msg))) {
+            if (!stalled && isResendBufferFull(msg)) {
+                stalled = true;
+                resendBufferStalls++;
+            }
             try {
-                notFull.await();
+                awaitNotFull(0L);
             } catch (InterruptedException intx) {
                 LOG.log(Level.FINEST, INTERRUPTED, intx);
             }
@@ -1095,8 +1863,18 @@ public final class BOSHClient {
         builder.setAttribute(Attributes.XML_LANG, cfg.getLang());
         builder.setAttribute(Attributes.VER,
                 AttrVersion.getSupportedVersion().toString());
-        builder.setAttribute(Attributes.WAIT, Integer.toString(cfg.getWaitTime()));
-        builder.setAttribute(Attributes.HOLD, "3");
+        int wait = cfg.getWaitTime();
+        int hold = 3;
+        if (cfg.isSessionTuningEnabled()) {
+            SessionProfileCache.Profile profile =
+                    SessionProfileCache.getShared().get(cfg.getURI());
+            if (profile != null) {
+                wait = profile.getWait(wait);
+                hold = profile.getHold();
+            }
+        }
+        builder.setAttribute(Attributes.WAIT, Integer.toString(wait));
+        builder.setAttribute(Attributes.HOLD, Integer.toString(hold));
         builder.setAttribute(Attributes.RID, Long.toString(rid));
         applyRoute(builder);
         applyFrom(builder);
@@ -1176,18 +1954,50 @@ public final class BOSHClient {
             final long rid) {
         assertLocked();
 
-        if (responseAck.equals(Long.valueOf(-1L))) {
-            // We have not received any responses yet
-            return;
+        long ack = getResponseAck(rid);
+        if (ack != -1L) {
+            builder.setAttribute(Attributes.ACK, Long.toString(ack));
         }
+    }
+
+    /**
+     * Determine the value of the 'ack' attribute of a request, as described
+     * by {@link #applyResponseAcknowledgement(Builder, long)}.
+     *
+     * @param rid current request RID
+     * @return value of the attribute, or {@code -1} if it should be omitted
+     */
+    private long getResponseAck(final long rid) {
+        assertLocked();
 
-        Long prevRID = Long.valueOf(rid - 1L);
-        if (responseAck.equals(prevRID)) {
+        long ack = responseAck.longValue();
+        if (ack == -1L) {
+            // We have not received any responses yet
+            return -1L;
+        }
+        if (ack == rid - 1L) {
             // Implicit ack
-            return;
+            return -1L;
         }
-        
-        builder.setAttribute(Attributes.ACK, responseAck.toString());
+        return ack;
+    }
+
+    /**
+     * Get the template for the empty requests of the current session,
+     * creating it if needed.
+     *
+     * This method assumes the lock is currently held.
+     *
+     * @return empty request template
+     */
+    private EmptyRequestTemplate getEmptyRequestTemplate() {
+        assertLocked();
+
+        if (emptyRequestTemplate == null) {
+            emptyRequestTemplate = new EmptyRequestTemplate(
+                    cmParams.getSessionID().toString());
+        }
+        return emptyRequestTemplate;
     }
 
     /**
@@ -1206,11 +2016,39 @@ public final class BOSHClient {
                 }
 
                 processExchange(exch);
+                if (!pendingBatch.isEmpty() && !isNextResponseReady()) {
+                    fireResponsesReceived();
+                }
             } while (true);
         } finally {
-            LOG.log(Level.FINEST, "Processing thread exiting");
+            if (!pendingBatch.isEmpty()) {
+                fireResponsesReceived();
+            }
+            LOG.log(Level.FINEST, "Processing thread exiting");
+        }
+
+    }
+
+    /**
+     * Determine whether the response to the next exchange has started to
+     * arrive, so that the current processing pass can continue with it.
+     *
+     * @return {@code true} if the next response is available
+     */
+    private boolean isNextResponseReady() {
+        assertUnlocked();
+
+        HTTPExchange next;
+        lock.lock();
+        try {
+            if (exchanges == null) {
+                return false;
+            }
+            next = exchanges.peek();
+        } finally {
+            lock.unlock();
         }
-
+        return next != null && next.getHTTPResponse().isReady();
     }
 
     /**
@@ -1263,7 +2101,20 @@ public final class BOSHClient {
             respCode = resp.getHTTPStatus();
         } catch (BOSHException boshx) {
             LOG.log(Level.FINEST, "Could not obtain response", boshx);
-            connectionLost(boshx);
+            // If the exchange was already aborted by closeAllExchanges, the
+            // loss has been handled, and the session may since have been
+            // reconnected.  Reporting it again would abort the new exchanges.
+            // If the session was disposed of, there is nothing to report.
+            boolean aborted;
+            lock.lock();
+            try {
+                aborted = exchanges == null || !exchanges.contains(exch);
+            } finally {
+                lock.unlock();
+            }
+            if (!aborted) {
+                connectionLost(boshx);
+            }
             return;
         } catch (InterruptedException intx) {
             LOG.log(Level.FINEST, INTERRUPTED, intx);
@@ -1271,9 +2122,19 @@ public final class BOSHClient {
             return;
         }
         fireResponseReceived(body);
+        InboundSubscription sub = inbound;
+        if (sub != null) {
+            sub.offer(body);
+        }
+        if (!batchListeners.isEmpty()) {
+            pendingBatch.add(body);
+        }
 
         // Process the message with the current session state
         AbstractBody req = exch.getRequest();
+        if (tracing) {
+            tracer.responseDelivered(getRID(req), System.nanoTime());
+        }
         List<AbstractBody> toResend = null;
         lock.lock();
         try {
@@ -1285,6 +2146,14 @@ public final class BOSHClient {
             // Check for session creation response info, if needed
             if (cmParams == null) {
                 cmParams = CMSessionParams.fromSessionInit(req, body);
+                sessionAttributes = body.getAttributes();
+                sessionCreationRID = getRID(req);
+                long rtt = exch.getHTTPResponse().getRoundTripNanos();
+                if (cfg.isSessionTuningEnabled() && rtt >= 0) {
+                    SessionProfileCache.getShared().recordRoundTripTime(
+                            cfg.getURI(),
+                            TimeUnit.NANOSECONDS.toMillis(rtt));
+                }
 
                 // The following call handles the lock. It's not an escape.
                 fireConnectionEstablished();
@@ -1309,7 +2178,9 @@ public final class BOSHClient {
                 toResend = resendOutstandingRequests();
             } else {
                 // Process message as normal
-                processRequestAcknowledgements(req, body);
+                completedExchanges++;
+                updatePollingInterval(req, body);
+                processRequestAcknowledgements(exch, body);
                 processResponseAcknowledgementData(req);
                 toResend = processResponseAcknowledgementReport(body);
             }
@@ -1318,6 +2189,10 @@ public final class BOSHClient {
             // add the resends to exchanges.
             if (toResend != null) {
                 for (AbstractBody resendReq: toResend) {
+                    if (tracing) {
+                        tracer.requestResent(
+                                getRID(resendReq), System.nanoTime());
+                    }
                     createExchangeAndSend(resendReq);
                 }
             }
@@ -1330,11 +2205,16 @@ public final class BOSHClient {
             if (lock.isHeldByCurrentThread()) {
                 try {
                     exchanges.remove(exch);
-                    notFull.signalAll();
+                    signalNotFull();
 
                     // After clearing the received packet, reset the timeout.
                     resetTimeout();
 
+                    // If the outbound batch is waiting for a free request
+                    // slot, send it now.
+                    if (outboundBatchDue)
+                        scheduleOutboundBatch(0);
+
                     if(!sessionPaused) {
                         // If this is the response to a pause request, clear any empty packet timer
                         // that's already been sent, so we reschedule based on the duration of the
@@ -1363,9 +2243,58 @@ public final class BOSHClient {
     private void clearEmptyRequest() {
         assertLocked();
 
-        if (emptyRequestFuture != null) {
-            emptyRequestFuture.cancel(false);
-            emptyRequestFuture = null;
+        if (emptyRequestScheduled) {
+            timerWheel.cancel(emptyRequestTimeout);
+            emptyRequestScheduled = false;
+            emptyRequestDeferred = false;
+        }
+    }
+
+    /**
+     * Wake all threads waiting on {@link #notFull}, counting them so that
+     * an empty request falling due before they have reacquired the lock
+     * does not take a request slot ahead of them.
+     */
+    private void signalNotFull() {
+        assertLocked();
+
+        notFullWoken += lock.getWaitQueueLength(notFull);
+        notFull.signalAll();
+    }
+
+    /**
+     * Wait on {@link #notFull}.  Once the last woken thread has reacquired
+     * the lock, an empty request held back for it is rescheduled.  Since
+     * the empty request needs the lock to be sent, it is sent only after
+     * the caller has used the request slot it was woken for, or gone back
+     * to waiting.
+     *
+     * @param nanos maximum time to wait, or {@code 0} to wait until
+     *  signalled
+     * @return remaining time, as for {@link Condition#awaitNanos(long)}, or
+     *  {@code 0} if {@code nanos} was {@code 0}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private long awaitNotFull(final long nanos) throws InterruptedException {
+        assertLocked();
+
+        try {
+            if (nanos == 0L) {
+                notFull.await();
+                return 0L;
+            }
+            return notFull.awaitNanos(nanos);
+        } finally {
+            if (notFullWoken > 0 && --notFullWoken == 0
+                    && emptyRequestDeferred) {
+                emptyRequestDeferred = false;
+                try {
+                    timerWheel.schedule(emptyRequestTimeout, 0);
+                } catch (RejectedExecutionException rex) {
+                    LOG.log(Level.FINEST,
+                            "Could not schedule empty request", rex);
+                }
+            }
         }
     }
 
@@ -1389,19 +2318,82 @@ public final class BOSHClient {
 
         // When not polling, we're under section XEP-0124 sec11, not sec12.  Empty requests
         // will never result in reaching the 'requests' value.  Send the next empty request
-        // immediately.
+        // immediately, or once the linger time has passed.  A message sent while the
+        // empty request lingers fills its slot, and the empty request is skipped.
         if(cmParams.getHold().getValue() > 0)
-            return 0;
+            return cfg.getEmptyRequestLinger();
 
         // Figure out how long we should wait before sending an empty request
+        long delay = Math.max(getMinPollingInterval(), pollingInterval);
+        return delay + cfg.getEmptyRequestLinger();
+    }
+
+    /**
+     * Calculates how long a session with no requests in flight may wait
+     * before it must send an empty request to keep the CM from ending the
+     * session at its inactivity period.
+     *
+     * @return delay in milliseconds, or -1 if the CM did not report an
+     *  inactivity period
+     */
+    private long getKeepAliveDelay() {
+        assertLocked();
+
+        AttrInactivity inactivity = cmParams.getInactivityPeriod();
+        if (inactivity == null || inactivity.intValue() <= 0)
+            return -1;
+        return Math.max(0L, inactivity.intValue() * 1000L - PAUSE_MARGIN);
+    }
+
+    /**
+     * Get the shortest interval allowed between the empty requests of a
+     * polling session.
+     *
+     * @return interval in milliseconds
+     */
+    private long getMinPollingInterval() {
+        assertLocked();
+
         AttrPolling polling = cmParams.getPollingInterval();
-        long delay;
         if (polling == null) {
-            delay = EMPTY_REQUEST_DELAY;
+            return EMPTY_REQUEST_DELAY;
         } else {
-            delay = polling.getInMilliseconds();
+            return polling.getInMilliseconds();
+        }
+    }
+
+    /**
+     * Adapt the polling interval of a polling session to its traffic.  While
+     * neither requests nor responses carry payload, the interval doubles
+     * with every exchange, up to the configured maximum and to half of the
+     * inactivity period.  Any payload returns it to the minimum interval.
+     *
+     * @param req request
+     * @param resp response
+     */
+    private void updatePollingInterval(
+            final AbstractBody req, final AbstractBody resp) {
+        assertLocked();
+
+        long max = cfg.getMaxPollingInterval();
+        if (max <= 0 || cmParams.getHold().getValue() > 0) {
+            return;
+        }
+        if (req.hasPayload() || resp.hasPayload()) {
+            if (pollingInterval > 0) {
+                // Replace the backed off empty request, if one is scheduled
+                pollingInterval = 0;
+                clearEmptyRequest();
+            }
+            return;
+        }
+        AttrInactivity inactivity = cmParams.getInactivityPeriod();
+        if (inactivity != null && inactivity.intValue() > 0) {
+            max = Math.min(max, inactivity.intValue() * 1000L / 2);
         }
-        return delay;
+        long min = getMinPollingInterval();
+        pollingInterval = Math.max(
+                min, Math.min(max, Math.max(min, pollingInterval) * 2));
     }
 
     /**
@@ -1416,14 +2408,27 @@ public final class BOSHClient {
                     "Empty request delay must be >= 0 (was: " + delay + ")"));
         }
 
-        if (!isWorking()) {
+        if (!isWorking() || handingOff) {
             return;
         }
         
         // If we're already scheduled, do nothing.
-        if (emptyRequestFuture != null)
+        if (emptyRequestScheduled)
             return;
 
+        // If the subscriber's demand will be met by the responses already on
+        // their way, don't poll for more.  With nothing on its way, the CM
+        // would end the session at its inactivity period, so keep a single
+        // empty request going just before then.
+        boolean keepAlive = false;
+        if (isInboundThrottled()) {
+            long keepAliveDelay = getKeepAliveDelay();
+            if (!exchanges.isEmpty() || keepAliveDelay == -1)
+                return;
+            delay = Math.max(delay, keepAliveDelay);
+            keepAlive = true;
+        }
+
         // Schedule the transmission
         if (LOG.isLoggable(Level.FINER)) {
             LOG.finer("Scheduling empty request in " + delay + "ms");
@@ -1433,13 +2438,10 @@ public final class BOSHClient {
             // we're scheduling the request that will wake us up from pause.  If not,
             // then sendEmptyRequests should do nothing if it's run when the session
             // is paused.
-            final boolean wasPaused = sessionPaused;
-            Runnable emptyRequestRunnable = new Runnable() {
-                public void run() { sendEmptyRequests(wasPaused); }
-            };
-
-            emptyRequestFuture = schedExec.schedule(emptyRequestRunnable,
-                    delay, TimeUnit.MILLISECONDS);
+            emptyRequestWakesFromPause = sessionPaused;
+            emptyRequestKeepsAlive = keepAlive;
+            emptyRequestScheduled = true;
+            timerWheel.schedule(emptyRequestTimeout, delay);
         } catch (RejectedExecutionException rex) {
             LOG.log(Level.FINEST, "Could not schedule empty request", rex);
         }
@@ -1450,18 +2452,30 @@ public final class BOSHClient {
      * is sent within a reasonable time window, the empty request transmission
      * will be cancelled.
      * <p>
-     * If wakeFromPause is true, we're allowed to wake the session from a pause.
-     * If false and sessionPaused is true, do nothing.
+     * If the empty request was scheduled while the session was paused, we're
+     * allowed to wake the session from a pause.  If not and sessionPaused is
+     * true, do nothing.
      */
-    private void sendEmptyRequests(boolean wakeFromPause) {
+    private void sendEmptyRequests() {
         assertUnlocked();
 
+        boolean wakeFromPause;
+        boolean keepAlive;
+        lock.lock();
+        try {
+            wakeFromPause = emptyRequestWakesFromPause;
+            keepAlive = emptyRequestKeepsAlive;
+        } finally {
+            lock.unlock();
+        }
+
         while(true) {
             HTTPExchange sentExchange;
+            boolean polled;
             lock.lock();
 
             try {
-                if(!isWorking())
+                if(!isWorking() || handingOff)
                     return;
 
                 // If we're told we can wake from pause, but we're no longer paused,
@@ -1472,8 +2486,29 @@ public final class BOSHClient {
                 if(!sessionPaused)
                     wakeFromPause = false;
 
+                // A thread woken by a free request slot gets to use it
+                // before the empty request does.  The empty request is
+                // rescheduled once that thread has reacquired the lock.
+                if(notFullWoken > 0) {
+                    emptyRequestDeferred = true;
+                    break;
+                }
+
+                // While throttled, only a keep-alive request may be sent,
+                // and only if nothing else is on its way.  Otherwise fall
+                // back to scheduling a keep-alive.
+                boolean keptAlive = false;
+                if(isInboundThrottled()) {
+                    if(!keepAlive || !exchanges.isEmpty()) {
+                        emptyRequestScheduled = false;
+                        scheduleEmptyRequests(0);
+                        break;
+                    }
+                    keptAlive = true;
+                }
+
                 try {
-                    sentExchange = sendInternal(ComposableBody.builder().build(), !wakeFromPause);
+                    sentExchange = sendInternal(EMPTY_REQUEST, !wakeFromPause);
                 } catch (BOSHException boshx) {
                     lock.unlock();
                     connectionLost(boshx);
@@ -1483,14 +2518,250 @@ public final class BOSHClient {
 
                 if(sentExchange == null) {
                     // Once we're done, allow a new empty request task to be scheduled.
-                    emptyRequestFuture = null;
+                    emptyRequestScheduled = false;
                     break;
                 }
+
+                // A polling session sends a single empty request per interval.  If its
+                // response arrives before this loop comes around again, the loop would
+                // poll again immediately instead of waiting for the interval.  Let the
+                // response schedule the next empty request instead.  The same goes for
+                // a keep-alive request.
+                polled = cmParams.getHold().getValue() == 0 || keptAlive;
+                if(polled)
+                    emptyRequestScheduled = false;
             } finally {
                 lock.unlock();
             }
 
             fireRequestSent(sentExchange.getRequest());
+            if(polled)
+                break;
+        }
+    }
+
+    /**
+     * Determine whether a message should be held back by the send linger,
+     * to be merged with other messages.
+     *
+     * @param msg message to evaluate
+     * @return {@code true} if the message carries only payload and a send
+     *  linger has been configured
+     */
+    private boolean isBatchable(final ComposableBody msg) {
+        assertLocked();
+
+        return msg != null
+                && cfg.getSendLinger() > 0
+                && cmParams != null
+                && msg.getAttributes().isEmpty();
+    }
+
+    /**
+     * Add a message to the outbound batch, scheduling the batch to be sent
+     * once the linger time has passed.
+     *
+     * @param msg message to add
+     * @return {@code true} if the message was queued, {@code false} if the
+     *  batch has reached its maximum size and must be sent now
+     */
+    private boolean addToOutboundBatch(final ComposableBody msg) {
+        assertLocked();
+
+        if (queueOutboundMessage(msg)) {
+            return false;
+        }
+        scheduleOutboundBatch(cfg.getSendLinger());
+        return true;
+    }
+
+    /**
+     * Add a message to the outbound batch, encoding its payload into the
+     * merged payload.
+     *
+     * @param msg message to add
+     * @return {@code true} if the batch has reached its maximum size
+     */
+    private boolean queueOutboundMessage(final ComposableBody msg) {
+        assertLocked();
+
+        outboundBatch.add(msg);
+        msg.writePayloadTo(outboundBatchPayload);
+        return outboundBatchPayload.size() >= cfg.getMaxBatchSize();
+    }
+
+    /**
+     * Remove all messages from the outbound batch, merging them into a
+     * single message.
+     *
+     * @return merged message
+     */
+    private ComposableBody takeOutboundBatch() {
+        assertLocked();
+
+        if (outboundBatchScheduled) {
+            timerWheel.cancel(outboundBatchTimeout);
+            outboundBatchScheduled = false;
+        }
+        outboundBatchDue = false;
+
+        ComposableBody result;
+        if (outboundBatch.size() == 1) {
+            result = outboundBatch.get(0);
+        } else {
+            // Keep the XML of the merged message only if every message
+            // would have kept its own.
+            boolean cacheXML = true;
+            for (ComposableBody msg : outboundBatch) {
+                cacheXML &= msg.isXMLCacheEnabled();
+            }
+            result = ComposableBody.builder()
+                    .setPayloadBytes(outboundBatchPayload)
+                    .setXMLCacheEnabled(cacheXML)
+                    .build();
+        }
+        outboundBatch.clear();
+        outboundBatchPayload.reset(cfg.getMaxBatchSize());
+        return result;
+    }
+
+    /**
+     * Send the messages held back by the send linger as a single request,
+     * blocking until it can be sent.  Until then, the merged message is
+     * reported as outstanding if the session ends.  If it cannot be sent,
+     * it is put back at the front of the outbound batch, to be retried once
+     * the linger time has passed again.
+     *
+     * @return exchange of the request sent
+     * @throws BOSHException on message transmission failure
+     */
+    private HTTPExchange sendOutboundBatchNow() throws BOSHException {
+        assertLocked();
+
+        ComposableBody batch = takeOutboundBatch();
+        outboundBatchSending.add(batch);
+        boolean sent = false;
+        try {
+            HTTPExchange result = sendInternal(batch, false);
+            sent = true;
+            return result;
+        } finally {
+            removeIdentical(outboundBatchSending, batch);
+            if (!sent && isWorking()) {
+                byte[] queued = outboundBatchPayload.toByteArray();
+                outboundBatchPayload.reset(cfg.getMaxBatchSize());
+                batch.writePayloadTo(outboundBatchPayload);
+                outboundBatchPayload.write(queued, 0, queued.length);
+                outboundBatch.add(0, batch);
+                scheduleOutboundBatch(cfg.getSendLinger());
+            }
+        }
+    }
+
+    /**
+     * Remove a message from a list by identity.
+     *
+     * @param list list to remove the message from
+     * @param msg message to remove
+     */
+    private static void removeIdentical(
+            final List<ComposableBody> list, final ComposableBody msg) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i) == msg) {
+                list.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Schedule the outbound batch to be sent, unless it already is.
+     *
+     * @param delay delay in milliseconds
+     */
+    private void scheduleOutboundBatch(final long delay) {
+        assertLocked();
+
+        if (outboundBatchScheduled)
+            return;
+        try {
+            outboundBatchScheduled = true;
+            timerWheel.schedule(outboundBatchTimeout, delay);
+        } catch (RejectedExecutionException rex) {
+            LOG.log(Level.FINEST, "Could not schedule outbound batch", rex);
+        }
+    }
+
+    /**
+     * Sends the messages held back by the send linger.  If no request may be
+     * sent right now, the batch is sent once a request slot is freed.
+     */
+    private void sendOutboundBatch() {
+        assertUnlocked();
+
+        HTTPExchange sentExchange;
+        lock.lock();
+        try {
+            outboundBatchScheduled = false;
+            if (outboundBatch.isEmpty() || !isWorking())
+                return;
+
+            AbstractBody first = outboundBatch.get(0);
+            if (!isImmediatelySendable(first) || isResendBufferFull(first)) {
+                outboundBatchDue = true;
+                return;
+            }
+            sentExchange = sendOutboundBatchNow();
+        } catch (BOSHException boshx) {
+            // The messages were accepted by send(), so end the session
+            // rather than dropping them.  They are reported as outstanding.
+            LOG.log(Level.FINEST, "Could not send outbound batch", boshx);
+            lock.unlock();
+            dispose(boshx);
+            return;
+        } finally {
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
+        }
+
+        fireRequestSent(sentExchange.getRequest());
+    }
+
+    /**
+     * Determine whether polling is throttled by the demand of the inbound
+     * subscriber.
+     *
+     * @return {@code true} if no empty requests should be sent
+     */
+    private boolean isInboundThrottled() {
+        assertLocked();
+
+        InboundSubscription sub = inbound;
+        return sub != null && sub.isThrottled(exchanges.size());
+    }
+
+    /**
+     * Called by the inbound subscription when demand was added or the
+     * subscription ended, to resume polling if it was throttled.
+     *
+     * @param sub subscription whose demand changed
+     */
+    void inboundDemandChanged(final InboundSubscription sub) {
+        assertUnlocked();
+
+        lock.lock();
+        try {
+            if (sub != inbound || !isWorking() || sessionPaused)
+                return;
+            // A pending keep-alive may be far off; poll normally instead.
+            if (emptyRequestKeepsAlive)
+                clearEmptyRequest();
+            long delay = getDefaultEmptyRequestDelay();
+            if (delay != -1)
+                scheduleEmptyRequests(delay);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -1500,10 +2771,7 @@ public final class BOSHClient {
     private void clearTimeout() {
         assertLocked();
 
-        if(timeoutFuture != null) {
-            timeoutFuture.cancel(false);
-            timeoutFuture = null;
-        }
+        timerWheel.cancel(ioTimeout);
     }
     
     /**
@@ -1537,13 +2805,9 @@ public final class BOSHClient {
             timeout = 60*1000;
 
         try {
-            Runnable runnable = new Runnable() {
-                public void run() { connectionLost(new BOSHException("Connection timed out")); }
-            };
-            
-            timeoutFuture = schedExec.schedule(runnable, timeout, TimeUnit.MILLISECONDS);
+            timerWheel.schedule(ioTimeout, timeout);
         } catch (RejectedExecutionException rex) {
-            LOG.log(Level.FINEST, "Could not schedule empty request", rex);
+            LOG.log(Level.FINEST, "Could not schedule connection timeout", rex);
         }
     }
 
@@ -1642,13 +2906,16 @@ public final class BOSHClient {
      * Check the response for request acknowledgements and take appropriate
      * action.
      *
+     * Acknowledged requests which are still waiting for their own response
+     * are kept, so that they can be resent if that response is lost.
+     *
      * This method assumes the lock is currently held.
      *
-     * @param req request
+     * @param exch exchange the response belongs to
      * @param resp response
      */
     private void processRequestAcknowledgements(
-            final AbstractBody req, final AbstractBody resp) {
+            final HTTPExchange exch, final AbstractBody resp) {
         assertLocked();
         
         // Don't remove packets from the buffer if the CM is reporting a lost response.
@@ -1658,10 +2925,10 @@ public final class BOSHClient {
 
         // Figure out what the highest acked RID is
         String acked = resp.getAttribute(Attributes.ACK);
-        Long ackUpTo;
+        long ackUpTo;
         if (acked == null) {
             // Implicit ack of all prior requests up until RID
-            ackUpTo = Long.parseLong(req.getAttribute(Attributes.RID));
+            ackUpTo = getRID(exch.getRequest());
         } else {
             ackUpTo = Long.parseLong(acked);
         }
@@ -1670,15 +2937,40 @@ public final class BOSHClient {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Removing pending acks up to: " + ackUpTo);
         }
-        Iterator<ComposableBody> iter = pendingRequestAcks.iterator();
-        while (iter.hasNext()) {
-            AbstractBody pending = iter.next();
-            Long pendingRID = Long.parseLong(
-                    pending.getAttribute(Attributes.RID));
-            if (pendingRID.compareTo(ackUpTo) <= 0) {
-                iter.remove();
+        int index = 0;
+        long pendingRID;
+        while ((pendingRID = pendingRequestAcks.getRequestID(index)) != -1L
+                && pendingRID <= ackUpTo) {
+            if (isAwaitingResponse(pendingRID, exch)) {
+                index++;
+                continue;
+            }
+            pendingRequestAcks.remove(index);
+            if (tracing) {
+                tracer.requestAcknowledged(pendingRID, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Determine whether a request is still waiting for its response.
+     *
+     * This method assumes the lock is currently held.
+     *
+     * @param rid request ID of the request
+     * @param current exchange being processed, whose response has arrived
+     * @return {@code true} if another exchange for the request is in flight
+     */
+    private boolean isAwaitingResponse(
+            final long rid, final HTTPExchange current) {
+        assertLocked();
+
+        for (HTTPExchange exch : exchanges) {
+            if (exch != current && getRID(exch.getRequest()) == rid) {
+                return true;
             }
         }
+        return false;
     }
 
     /**
@@ -1693,7 +2985,7 @@ public final class BOSHClient {
             final AbstractBody req) {
         assertLocked();
         
-        Long rid = Long.parseLong(req.getAttribute(Attributes.RID));
+        Long rid = Long.valueOf(getRID(req));
         if (responseAck.equals(Long.valueOf(-1L))) {
             // This is the first request
             responseAck = rid;
@@ -1740,16 +3032,7 @@ public final class BOSHClient {
         }
 
         // Find the missing request
-        Iterator<ComposableBody> iter = pendingRequestAcks.iterator();
-        AbstractBody req = null;
-        while (iter.hasNext() && req == null) {
-            AbstractBody pending = iter.next();
-            Long pendingRID = Long.parseLong(
-                    pending.getAttribute(Attributes.RID));
-            if (report.equals(pendingRID)) {
-                req = pending;
-            }
-        }
+        AbstractBody req = pendingRequestAcks.get(report.longValue());
 
         if (req == null) {
             throw(new BOSHException("Report of missing message with RID '"
@@ -1780,7 +3063,7 @@ public final class BOSHClient {
 
         // Clear the exchanges that we're resending.
         exchanges.clear();
-        notFull.signalAll();
+        signalNotFull();
 
         return toResend;
     }
@@ -1799,6 +3082,10 @@ public final class BOSHClient {
             if (event == null) {
                 event = BOSHMessageEvent.createRequestSentEvent(this, request);
             }
+            if (dispatcher != null) {
+                dispatcher.requestSent(listener, event);
+                continue;
+            }
             try {
                 listener.requestSent(event);
             } catch (Exception ex) {
@@ -1822,6 +3109,10 @@ public final class BOSHClient {
                 event = BOSHMessageEvent.createResponseReceivedEvent(
                         this, response);
             }
+            if (dispatcher != null) {
+                dispatcher.responseReceived(listener, event);
+                continue;
+            }
             try {
                 listener.responseReceived(event);
             } catch (Exception ex) {
@@ -1830,6 +3121,32 @@ public final class BOSHClient {
         }
     }
 
+    /**
+     * Notifies all batch listeners of the responses processed in the current
+     * processing pass, and begins a new pass.
+     */
+    private void fireResponsesReceived() {
+        assertUnlocked();
+
+        BOSHMessageBatchEvent event = null;
+        for (BOSHClientBatchListener listener : batchListeners) {
+            if (event == null) {
+                event = BOSHMessageBatchEvent.createResponsesReceivedEvent(
+                        this, pendingBatch);
+            }
+            if (dispatcher != null) {
+                dispatcher.responsesReceived(listener, event);
+                continue;
+            }
+            try {
+                listener.responsesReceived(event);
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, UNHANDLED, ex);
+            }
+        }
+        pendingBatch.clear();
+    }
+
     /**
      * Notifies all connection listeners that the session has been successfully
      * established.
@@ -1846,6 +3163,10 @@ public final class BOSHClient {
                     event = BOSHClientConnEvent
                             .createConnectionEstablishedEvent(this);
                 }
+                if (dispatcher != null) {
+                    dispatcher.connectionEvent(listener, event);
+                    continue;
+                }
                 try {
                     listener.connectionEvent(event);
                 } catch (Exception ex) {
@@ -1871,6 +3192,10 @@ public final class BOSHClient {
             if (event == null) {
                 event = BOSHClientConnEvent.createConnectionClosedEvent(this);
             }
+            if (dispatcher != null) {
+                dispatcher.connectionEvent(listener, event);
+                continue;
+            }
             try {
                 listener.connectionEvent(event);
             } catch (Exception ex) {
@@ -1879,6 +3204,32 @@ public final class BOSHClient {
         }
     }
 
+    /**
+     * Rebuild the requests which have not been acknowledged, for reporting
+     * to connection listeners.  They are followed by the messages held back
+     * by the send linger, which were never sent.
+     *
+     * @return unacknowledged requests and unsent messages, or an empty list
+     *  if the requests could not be rebuilt
+     */
+    private List<ComposableBody> getOutstandingRequests() {
+        assertUnlocked();
+
+        lock.lock();
+        try {
+            List<ComposableBody> result = pendingRequestAcks.getAll();
+            result.addAll(outboundBatchSending);
+            result.addAll(outboundBatch);
+            return result;
+        } catch (BOSHException boshx) {
+            LOG.log(Level.WARNING,
+                    "Could not rebuild outstanding requests", boshx);
+            return Collections.<ComposableBody>emptyList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Notifies all connection listeners that the session has been
      * terminated due to the exceptional condition provided.
@@ -1894,7 +3245,11 @@ public final class BOSHClient {
             if (event == null) {
                 event = BOSHClientConnEvent
                         .createConnectionClosedOnErrorEvent(
-                        this, pendingRequestAcks, cause);
+                        this, getOutstandingRequests(), cause);
+            }
+            if (dispatcher != null) {
+                dispatcher.connectionEvent(listener, event);
+                continue;
             }
             try {
                 listener.connectionEvent(event);
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+/**
+ * Interface used by parties which process inbound responses in groups.
+ * Where a {@link BOSHClientResponseListener} is notified once per response,
+ * a batch listener is notified once per processing pass with every response
+ * body completed in that pass.  A pass ends when the next response has not
+ * yet arrived.  When the connection manager answers several held requests
+ * at once, the bodies therefore arrive in a single call, in the order they
+ * were processed.
+ * <p/>
+ * Batch listeners are notified after the response listeners for the same
+ * bodies.  They are executed by the message processing thread, unless a
+ * listener executor has been configured, and should not block for any
+ * significant amount of time.
+ */
+public interface BOSHClientBatchListener {
+
+    /**
+     * Called with the responses completed in one processing pass.
+     *
+     * @param event event instance containing the bodies received
+     */
+    void responsesReceived(BOSHMessageBatchEvent event);
+
+}
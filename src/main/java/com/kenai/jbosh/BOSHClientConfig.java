@@ -17,6 +17,7 @@
 package com.kenai.jbosh;
 
 import java.net.URI;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -102,6 +103,86 @@ public final class BOSHClientConfig {
      * Supplied ScheduledExecutorService to use to schedule tasks.
      */
     private ScheduledExecutorService executorService;
+
+    /**
+     * Exchange life cycle tracer.
+     */
+    private BOSHClientTracer tracer;
+
+    /**
+     * Capture of the request and response bodies exchanged.
+     */
+    private WireCapture wireCapture;
+
+    /**
+     * Pool providing shared timer threads.
+     */
+    private BOSHTimerPool timerPool;
+
+    /**
+     * Executor to deliver listener events on, or {@code null} to deliver
+     * them synchronously.
+     */
+    private Executor listenerExecutor;
+
+    /**
+     * Capacity of each listener's event queue.
+     */
+    private int listenerQueueCapacity = 1024;
+
+    /**
+     * Flag indicating that responses should be split into their payload
+     * elements before being delivered.
+     */
+    private boolean payloadSplittingEnabled;
+
+    /**
+     * Number of bytes of unacknowledged requests at which sending further
+     * requests is held back.
+     */
+    private int resendBufferLimit = Integer.MAX_VALUE;
+
+    /**
+     * Flag indicating that large unacknowledged requests should be kept
+     * compressed.
+     */
+    private boolean resendBufferCompressionEnabled;
+
+    /**
+     * Number of milliseconds an empty request is held back, so that
+     * messages sent meanwhile can take its place.
+     */
+    private int emptyRequestLinger;
+
+    /**
+     * Number of milliseconds messages are held back so that they can be
+     * merged into a single request.
+     */
+    private int sendLinger;
+
+    /**
+     * Payload size, in UTF-8 encoded bytes, at which held back messages are
+     * sent without waiting for the linger time to pass.
+     */
+    private int maxBatchSize = 65536;
+
+    /**
+     * Longest interval, in milliseconds, an idle polling session backs off
+     * to, or 0 to poll at a fixed interval.
+     */
+    private int maxPollingInterval;
+
+    /**
+     * Flag indicating that session creation parameters should be chosen
+     * from what was learned about the connection manager.
+     */
+    private boolean sessionTuningEnabled;
+
+    /**
+     * What to do with listener events when a listener's queue is full.
+     */
+    private ListenerOverflowPolicy listenerOverflowPolicy =
+            ListenerOverflowPolicy.BLOCK;
     
     ///////////////////////////////////////////////////////////////////////////
     // Classes:
@@ -361,6 +442,275 @@ public final class BOSHClientConfig {
             config.executorService = executorService;
             return this;
         }
+
+        /**
+         * Set the {@link BOSHClientTracer} to notify of exchange life cycle
+         * events.  By default, no tracing is performed.
+         *
+         * @param exchangeTracer tracer to use
+         * @return builder instance
+         */
+        public Builder setTracer(final BOSHClientTracer exchangeTracer) {
+            if (exchangeTracer == null) {
+                throw(new IllegalArgumentException(
+                        "Tracer cannot be null"));
+            }
+            config.tracer = exchangeTracer;
+            return this;
+        }
+
+        /**
+         * Set the {@link WireCapture} to record request and response bodies
+         * into.  By default, nothing is captured.
+         *
+         * @param capture capture to record into
+         * @return builder instance
+         */
+        public Builder setWireCapture(final WireCapture capture) {
+            if (capture == null) {
+                throw(new IllegalArgumentException(
+                        "Wire capture cannot be null"));
+            }
+            config.wireCapture = capture;
+            return this;
+        }
+
+        /**
+         * Set the {@link BOSHTimerPool} whose timer loops run the client's
+         * timer tasks.  When a pool is set, any executor provided by
+         * {@link #setExecutorService(ScheduledExecutorService)} is ignored.
+         * By default, timer tasks run on threads shared by all clients,
+         * which are created on demand and exit once idle.
+         * <p/>
+         * Listeners notified of events caused by timer tasks, such as
+         * requests sent automatically and connections closed after a
+         * timeout, are called on the shared loop.  Unless a listener
+         * executor is also set with {@link #setListenerExecutor(Executor)},
+         * they must not block, and so must not send messages, or every
+         * session pinned to the loop is stalled.
+         *
+         * @param pool timer pool to use
+         * @return builder instance
+         */
+        public Builder setTimerPool(final BOSHTimerPool pool) {
+            if (pool == null) {
+                throw(new IllegalArgumentException(
+                        "Timer pool cannot be null"));
+            }
+            config.timerPool = pool;
+            return this;
+        }
+
+        /**
+         * Deliver listener events asynchronously on the executor provided.
+         * Each listener gets its own bounded queue, drained in order, so
+         * that a slow listener delays neither the session's protocol
+         * processing nor the other listeners.  Events for any single
+         * listener are never delivered concurrently.  By default, listeners
+         * are called synchronously by the thread generating the event.
+         *
+         * @param executor executor to deliver events on
+         * @return builder instance
+         */
+        public Builder setListenerExecutor(final Executor executor) {
+            if (executor == null) {
+                throw(new IllegalArgumentException(
+                        "Listener executor cannot be null"));
+            }
+            config.listenerExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Set the number of events which may be queued for each listener
+         * when asynchronous listener dispatch is enabled.  Defaults to 1024.
+         *
+         * @param capacity queue capacity
+         * @return builder instance
+         */
+        public Builder setListenerQueueCapacity(final int capacity) {
+            if (capacity <= 0) {
+                throw(new IllegalArgumentException(
+                        "Listener queue capacity must be > 0"));
+            }
+            config.listenerQueueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Set what happens to an event when asynchronous listener dispatch is
+         * enabled and the listener's queue is full.  Defaults to
+         * {@link ListenerOverflowPolicy#BLOCK}.
+         *
+         * @param policy overflow policy
+         * @return builder instance
+         */
+        public Builder setListenerOverflowPolicy(
+                final ListenerOverflowPolicy policy) {
+            if (policy == null) {
+                throw(new IllegalArgumentException(
+                        "Listener overflow policy cannot be null"));
+            }
+            config.listenerOverflowPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Set whether responses should be split into their payload elements
+         * as they are received, before being delivered to listeners.  The
+         * elements are then available from
+         * {@link AbstractBody#getPayloadElements()} without further parsing.
+         * By default, responses are only split when their payload elements
+         * are first requested.
+         *
+         * @param enabled {@code true} to split every response as it is
+         *  received
+         * @return builder instance
+         */
+        public Builder setPayloadSplittingEnabled(final boolean enabled) {
+            config.payloadSplittingEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Set the number of bytes of sent but unacknowledged requests the
+         * client may keep for resending.  Once this many bytes are held,
+         * sending further requests blocks until the connection manager
+         * acknowledges some of them.  Empty requests, pause requests and
+         * termination requests are never held back.  The limit is soft: the
+         * request which crosses it is still sent.  By default there is no
+         * limit.
+         *
+         * @param bytes number of bytes
+         * @return builder instance
+         */
+        public Builder setResendBufferLimit(final int bytes) {
+            if (bytes <= 0) {
+                throw(new IllegalArgumentException(
+                        "Resend buffer limit must be > 0"));
+            }
+            config.resendBufferLimit = bytes;
+            return this;
+        }
+
+        /**
+         * Set whether large unacknowledged requests should be kept
+         * compressed while they wait to be acknowledged.  This reduces the
+         * memory used by sessions with many or large outstanding requests,
+         * at the cost of compressing every large request once and
+         * decompressing it again should it need to be resent.  Disabled by
+         * default.
+         *
+         * @param enabled {@code true} to compress large requests
+         * @return builder instance
+         */
+        public Builder setResendBufferCompressionEnabled(
+                final boolean enabled) {
+            config.resendBufferCompressionEnabled = enabled;
+            return this;
+        }
+
+        /**
+         * Set the number of milliseconds an empty request is held back
+         * before being sent.  A message sent during this time takes the
+         * place of the empty request, rather than following it in a request
+         * of its own and costing an extra round trip.  Empty requests which
+         * wake the session from a pause are not held back.  Defaults to 0,
+         * sending empty requests as soon as they are due.
+         *
+         * @param millis linger time in milliseconds
+         * @return builder instance
+         */
+        public Builder setEmptyRequestLinger(final int millis) {
+            if (millis < 0) {
+                throw(new IllegalArgumentException(
+                        "Empty request linger must be >= 0"));
+            }
+            config.emptyRequestLinger = millis;
+            return this;
+        }
+
+        /**
+         * Set the number of milliseconds messages are held back before being
+         * sent, so that messages sent in quick succession are merged into a
+         * single request.  When this is enabled,
+         * {@link BOSHClient#send(ComposableBody)} returns as soon as a
+         * message carrying only payload has been queued.  Messages with
+         * attributes of their own, such as pause or termination requests,
+         * are never merged, and first cause the queued messages to be sent.
+         * Defaults to 0, sending every message in a request of its own.
+         *
+         * @param millis linger time in milliseconds
+         * @return builder instance
+         */
+        public Builder setSendLinger(final int millis) {
+            if (millis < 0) {
+                throw(new IllegalArgumentException(
+                        "Send linger must be >= 0"));
+            }
+            config.sendLinger = millis;
+            return this;
+        }
+
+        /**
+         * Set the payload size, in UTF-8 encoded bytes, at which messages
+         * held back by {@link #setSendLinger(int)} are sent without waiting
+         * for the linger time to pass.  Defaults to 65536.
+         *
+         * @param size payload size in bytes
+         * @return builder instance
+         */
+        public Builder setMaxBatchSize(final int size) {
+            if (size <= 0) {
+                throw(new IllegalArgumentException(
+                        "Maximum batch size must be > 0"));
+            }
+            config.maxBatchSize = size;
+            return this;
+        }
+
+        /**
+         * Set the longest interval, in milliseconds, between the empty
+         * requests of an idle polling session.  This only applies when the
+         * connection manager negotiates {@code hold='0'}.  While neither
+         * requests nor responses carry payload, the interval doubles after
+         * every empty response, up to this value and to half the
+         * connection manager's {@code inactivity} period.  As soon as
+         * payload is sent or received, the interval returns to the
+         * connection manager's {@code polling} value.  Defaults to 0, which
+         * polls at a fixed interval.
+         *
+         * @param millis longest polling interval in milliseconds
+         * @return builder instance
+         */
+        public Builder setMaxPollingInterval(final int millis) {
+            if (millis < 0) {
+                throw(new IllegalArgumentException(
+                        "Maximum polling interval must be >= 0"));
+            }
+            config.maxPollingInterval = millis;
+            return this;
+        }
+
+        /**
+         * Set whether the {@code hold} and {@code wait} values of the
+         * session creation request should be chosen from what earlier
+         * sessions learned about the connection manager.  When enabled, the
+         * client measures the round trip time of session creation and
+         * counts connection losses, and remembers both for the last few
+         * connection manager URIs used in this JVM.  Low latency links then
+         * hold a single request, high latency links hold more, and lossy
+         * links hold one request and wait at most 30 seconds.  The first
+         * session to a connection manager uses the defaults.  Disabled by
+         * default.
+         *
+         * @param enabled {@code true} to tune session creation requests
+         * @return builder instance
+         */
+        public Builder setSessionTuningEnabled(final boolean enabled) {
+            config.sessionTuningEnabled = enabled;
+            return this;
+        }
         
         
         /**
@@ -397,6 +747,20 @@ public final class BOSHClientConfig {
         sslConnector = copy.sslConnector;
         compressionEnabled = copy.compressionEnabled;
         executorService = copy.executorService;
+        tracer = copy.tracer;
+        wireCapture = copy.wireCapture;
+        timerPool = copy.timerPool;
+        listenerExecutor = copy.listenerExecutor;
+        listenerQueueCapacity = copy.listenerQueueCapacity;
+        listenerOverflowPolicy = copy.listenerOverflowPolicy;
+        payloadSplittingEnabled = copy.payloadSplittingEnabled;
+        resendBufferLimit = copy.resendBufferLimit;
+        resendBufferCompressionEnabled = copy.resendBufferCompressionEnabled;
+        emptyRequestLinger = copy.emptyRequestLinger;
+        sendLinger = copy.sendLinger;
+        maxBatchSize = copy.maxBatchSize;
+        maxPollingInterval = copy.maxPollingInterval;
+        sessionTuningEnabled = copy.sessionTuningEnabled;
     }
 
     /**
@@ -529,4 +893,142 @@ public final class BOSHClientConfig {
     public ScheduledExecutorService getExecutorService() {
         return executorService;
     }
+
+    /**
+     * Get the {@link BOSHClientTracer} to notify of exchange life cycle
+     * events.
+     *
+     * @return tracer to use, or {@code null} if none was provided
+     */
+    public BOSHClientTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Get the {@link WireCapture} to record request and response bodies
+     * into.
+     *
+     * @return capture to use, or {@code null} if none was provided
+     */
+    public WireCapture getWireCapture() {
+        return wireCapture;
+    }
+
+    /**
+     * Get the {@link BOSHTimerPool} running the client's timer tasks.
+     *
+     * @return timer pool to use, or {@code null} if none was provided
+     */
+    public BOSHTimerPool getTimerPool() {
+        return timerPool;
+    }
+
+    /**
+     * Get the executor listener events are delivered on.
+     *
+     * @return listener executor, or {@code null} if listeners are called
+     *  synchronously
+     */
+    public Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
+    /**
+     * Get the number of events which may be queued for each listener when
+     * asynchronous listener dispatch is enabled.
+     *
+     * @return queue capacity
+     */
+    public int getListenerQueueCapacity() {
+        return listenerQueueCapacity;
+    }
+
+    /**
+     * Get what happens to an event when a listener's queue is full.
+     *
+     * @return overflow policy
+     */
+    public ListenerOverflowPolicy getListenerOverflowPolicy() {
+        return listenerOverflowPolicy;
+    }
+
+    /**
+     * Determines whether responses are split into their payload elements as
+     * they are received.
+     *
+     * @return {@code true} if responses are split as they are received
+     */
+    public boolean isPayloadSplittingEnabled() {
+        return payloadSplittingEnabled;
+    }
+
+    /**
+     * Get the number of bytes of unacknowledged requests at which sending
+     * further requests is held back.
+     *
+     * @return number of bytes, or {@code Integer.MAX_VALUE} if unlimited
+     */
+    public int getResendBufferLimit() {
+        return resendBufferLimit;
+    }
+
+    /**
+     * Determines whether large unacknowledged requests are kept compressed.
+     *
+     * @return {@code true} if large requests are compressed
+     */
+    public boolean isResendBufferCompressionEnabled() {
+        return resendBufferCompressionEnabled;
+    }
+
+    /**
+     * Get the number of milliseconds an empty request is held back before
+     * being sent.
+     *
+     * @return linger time in milliseconds
+     */
+    public int getEmptyRequestLinger() {
+        return emptyRequestLinger;
+    }
+
+    /**
+     * Get the number of milliseconds messages are held back so that they
+     * can be merged into a single request.
+     *
+     * @return linger time in milliseconds
+     */
+    public int getSendLinger() {
+        return sendLinger;
+    }
+
+    /**
+     * Get the payload size, in UTF-8 encoded bytes, at which held back
+     * messages are sent without waiting for the linger time to pass.
+     *
+     * @return payload size in bytes
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Get the longest interval between the empty requests of an idle
+     * polling session.
+     *
+     * @return longest polling interval in milliseconds, or 0 if polling
+     *  happens at a fixed interval
+     */
+    public int getMaxPollingInterval() {
+        return maxPollingInterval;
+    }
+
+    /**
+     * Determines whether session creation parameters are chosen from what
+     * was learned about the connection manager.
+     *
+     * @return {@code true} if session creation requests are tuned
+     */
+    public boolean isSessionTuningEnabled() {
+        return sessionTuningEnabled;
+    }
 }
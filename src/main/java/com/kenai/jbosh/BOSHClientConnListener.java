@@ -19,6 +19,13 @@ package com.kenai.jbosh;
 /**
  * Interface used by parties interested in monitoring the connection state
  * of a client session.
+ * <p/>
+ * Listeners are executed by the thread which caused the change of state.
+ * When a connection times out, this is a timer thread, which is shared
+ * with other clients if a {@link BOSHTimerPool} is used.  Listeners called
+ * there must not block, and so must not send messages or attempt to
+ * reconnect, unless a listener executor has been configured with
+ * {@link BOSHClientConfig.Builder#setListenerExecutor(java.util.concurrent.Executor)}.
  */
 public interface BOSHClientConnListener {
 
@@ -30,7 +30,12 @@ package com.kenai.jbosh;
  * <p/>
  * Listeners are executed by the sending thread immediately prior to
  * message transmission and should not block for any significant amount
- * of time.
+ * of time.  Empty requests and messages held back by the send linger are
+ * sent by a timer thread, which is shared with other clients if a
+ * {@link BOSHTimerPool} is used.  Listeners called there must not block, and
+ * so must not send messages.  If a listener executor has been configured with
+ * {@link BOSHClientConfig.Builder#setListenerExecutor(java.util.concurrent.Executor)},
+ * listeners are instead notified asynchronously, after transmission.
  */
 public interface BOSHClientRequestListener {
 
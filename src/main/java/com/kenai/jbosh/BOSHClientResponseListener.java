@@ -22,7 +22,10 @@ package com.kenai.jbosh;
  * to manipulate the response.
  * <p/>
  * Listeners are executed by the message processing thread and should not
- * block for any significant amount of time.
+ * block for any significant amount of time.  If a listener executor has been
+ * configured with
+ * {@link BOSHClientConfig.Builder#setListenerExecutor(java.util.concurrent.Executor)},
+ * listeners are instead notified asynchronously on that executor.
  */
 public interface BOSHClientResponseListener {
 
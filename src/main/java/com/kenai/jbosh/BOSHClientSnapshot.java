@@ -0,0 +1,204 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serialized state of an established BOSH session, from which a new
+ * {@code BOSHClient} can continue the session without creating a new one.
+ * Snapshots are taken by using {@link BOSHClient#snapshot()} and restored
+ * by using {@link BOSHClient#create(BOSHClientConfig, BOSHClientSnapshot)}.
+ * <p/>
+ * A snapshot holds the session parameters negotiated with the connection
+ * manager, the next request ID, the response acknowledgement state and the
+ * requests which the connection manager has not yet acknowledged.  It does
+ * not hold the client configuration, which must be supplied again when the
+ * snapshot is restored.  The byte form may be kept in memory or persisted,
+ * and is only meaningful to the same version of this library.
+ * <p/>
+ * Instances of this class are immutable and thread-safe.
+ */
+public final class BOSHClientSnapshot {
+
+    /**
+     * Value identifying the byte form of a snapshot.
+     */
+    private static final int MAGIC = 0x424F5348;
+
+    /**
+     * Version of the byte form.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Serialized snapshot, including the header.
+     */
+    private final byte[] data;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Prevent direct construction.
+     *
+     * @param bytes serialized snapshot, which is not copied
+     */
+    private BOSHClientSnapshot(final byte[] bytes) {
+        data = bytes;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public methods:
+
+    /**
+     * Recreate a snapshot from the byte form obtained from
+     * {@link #toByteArray()}.
+     *
+     * @param bytes byte form of the snapshot
+     * @return snapshot instance
+     * @throws BOSHException if the bytes are not a snapshot of a supported
+     *  version
+     */
+    public static BOSHClientSnapshot fromByteArray(final byte[] bytes)
+    throws BOSHException {
+        if (bytes == null) {
+            throw(new IllegalArgumentException(
+                    "Snapshot data may not be null"));
+        }
+        BOSHClientSnapshot result = new BOSHClientSnapshot(bytes.clone());
+        try {
+            result.openStream().close();
+        } catch (IOException iox) {
+            throw(new BOSHException("Invalid session snapshot", iox));
+        }
+        return result;
+    }
+
+    /**
+     * Get the byte form of this snapshot, suitable for persisting.
+     *
+     * @return copy of the serialized snapshot
+     */
+    public byte[] toByteArray() {
+        return data.clone();
+    }
+
+    /**
+     * Read a snapshot written by {@link #writeTo(OutputStream)}, such as
+     * from a channel to the process taking over the session.  Exactly the
+     * bytes of one snapshot are consumed, and the stream is not closed.
+     *
+     * @param in stream to read from
+     * @return snapshot instance
+     * @throws IOException on read failure
+     * @throws BOSHException if the bytes read are not a snapshot of a
+     *  supported version
+     */
+    public static BOSHClientSnapshot readFrom(final InputStream in)
+    throws IOException, BOSHException {
+        if (in == null) {
+            throw(new IllegalArgumentException(
+                    "Input stream may not be null"));
+        }
+        DataInputStream dataIn = new DataInputStream(in);
+        int length = dataIn.readInt();
+        if (length < 0) {
+            throw(new BOSHException("Invalid session snapshot length"));
+        }
+        byte[] bytes = new byte[length];
+        dataIn.readFully(bytes);
+        return fromByteArray(bytes);
+    }
+
+    /**
+     * Write this snapshot to a stream, preceded by its length, so that it
+     * can be read by {@link #readFrom(InputStream)}.  The stream is flushed
+     * but not closed.
+     *
+     * @param out stream to write to
+     * @throws IOException on write failure
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        if (out == null) {
+            throw(new IllegalArgumentException(
+                    "Output stream may not be null"));
+        }
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(data.length);
+        dataOut.write(data);
+        dataOut.flush();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Start writing a snapshot.  The header has already been written to the
+     * returned stream when this method returns.
+     *
+     * @param bytes buffer to write the snapshot to
+     * @return stream writing to the buffer
+     * @throws IOException on write failure
+     */
+    static DataOutputStream startWriting(final ByteArrayOutputStream bytes)
+    throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        return out;
+    }
+
+    /**
+     * Create a snapshot from a buffer written to by a stream obtained from
+     * {@link #startWriting(ByteArrayOutputStream)}.
+     *
+     * @param bytes buffer the snapshot was written to
+     * @return snapshot instance
+     */
+    static BOSHClientSnapshot create(final ByteArrayOutputStream bytes) {
+        return new BOSHClientSnapshot(bytes.toByteArray());
+    }
+
+    /**
+     * Open a stream reading the snapshot, positioned after the header.
+     *
+     * @return stream reading the snapshot
+     * @throws IOException if the header is invalid
+     */
+    DataInputStream openStream() throws IOException {
+        DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw(new IOException("Not a session snapshot"));
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw(new IOException(
+                    "Unsupported session snapshot version: " + version));
+        }
+        return in;
+    }
+
+}
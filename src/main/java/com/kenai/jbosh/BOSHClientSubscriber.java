@@ -0,0 +1,74 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+/**
+ * Receives the responses of a {@code BOSHClient} as a demand-driven stream,
+ * following the contract of a reactive streams subscriber.  Unlike a
+ * {@link BOSHClientResponseListener}, a subscriber controls how many
+ * responses it is given: the client only delivers as many bodies as have
+ * been requested through the {@link BOSHClientSubscription}, and stops
+ * sending empty requests to poll the connection manager for more once the
+ * requested number of responses is already on its way.  A consumer which
+ * falls behind therefore throttles the connection manager rather than
+ * accumulating responses in memory.
+ * <p/>
+ * Every response body received is delivered, including empty responses.
+ * Requests sent explicitly by the caller are not throttled, and their
+ * responses are buffered until demand allows them to be delivered.  If
+ * demand remains exhausted for longer than the session's inactivity period
+ * while no requests are sent, the connection manager may terminate the
+ * session.
+ * <p/>
+ * Signals are delivered serially, by the message processing thread or by
+ * the thread calling {@link BOSHClientSubscription#request(long)}, and should
+ * not block for any significant amount of time.
+ */
+public interface BOSHClientSubscriber {
+
+    /**
+     * Called once, before any other method, when the subscriber has been
+     * subscribed to a client.
+     *
+     * @param subscription subscription used to request responses
+     */
+    void onSubscribe(BOSHClientSubscription subscription);
+
+    /**
+     * Called with the next response body, in the order the responses were
+     * processed.
+     *
+     * @param body response body
+     */
+    void onNext(AbstractBody body);
+
+    /**
+     * Called once when the session was terminated with an error, after all
+     * responses received before the error have been delivered.
+     *
+     * @param cause the reason the session was terminated
+     */
+    void onError(Throwable cause);
+
+    /**
+     * Called once when the session was closed normally, after all responses
+     * have been delivered.
+     */
+    void onComplete();
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+/**
+ * Link between a {@code BOSHClient} and a {@link BOSHClientSubscriber},
+ * used by the subscriber to signal demand.
+ */
+public interface BOSHClientSubscription {
+
+    /**
+     * Request up to {@code count} more response bodies.  Demand is
+     * cumulative.  Requesting {@link Long#MAX_VALUE} bodies removes all
+     * throttling.  A non-positive count terminates the subscription with an
+     * {@code IllegalArgumentException}.
+     *
+     * @param count number of additional bodies to deliver
+     */
+    void request(long count);
+
+    /**
+     * Stop delivering bodies and release any buffered ones.  Polling returns
+     * to normal.  Cancelling more than once has no effect.
+     */
+    void cancel();
+
+}
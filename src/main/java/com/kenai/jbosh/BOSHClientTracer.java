@@ -0,0 +1,232 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kenai.jbosh;
+
+/**
+ * Receives fine-grained notifications about the life cycle of each HTTP
+ * exchange made by a {@code BOSHClient}, and of the connections and session
+ * state changes underlying them.  Unlike the request and response
+ * listeners, no event objects are created: exchange callbacks receive the
+ * request ID ({@code rid}) of the exchange, and every callback receives a
+ * {@link System#nanoTime()} timestamp taken when the event occurred.
+ * <p/>
+ * All methods of this class do nothing.  Subclasses override the callbacks
+ * they are interested in.  A tracer is installed by using
+ * {@link BOSHClientConfig.Builder#setTracer(BOSHClientTracer)}; when none is
+ * installed, no timestamps are taken and no callbacks are made.
+ * <p/>
+ * Callbacks are made from the client's internal threads, sometimes while
+ * internal locks are held.  Implementations must be thread-safe, must not
+ * block and must not call back into the {@code BOSHClient}.
+ */
+public abstract class BOSHClientTracer {
+
+    /**
+     * Tracer which ignores all events.
+     */
+    private static final BOSHClientTracer NONE = new BOSHClientTracer() {
+        // Empty
+    };
+
+    /**
+     * A TCP connection to the connection manager has been established.
+     *
+     * @param host host name connected to
+     * @param port port number connected to
+     * @param startNanos timestamp taken when the connection attempt began
+     * @param nanos event timestamp
+     */
+    public void connectionOpened(
+            final String host,
+            final int port,
+            final long startNanos,
+            final long nanos) {
+        // Empty
+    }
+
+    /**
+     * A TLS handshake with the connection manager has completed.
+     *
+     * @param host host name connected to
+     * @param port port number connected to
+     * @param startNanos timestamp taken when the handshake began
+     * @param nanos event timestamp
+     */
+    public void handshakeCompleted(
+            final String host,
+            final int port,
+            final long startNanos,
+            final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The request has been built and handed to the HTTP transport.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void exchangeQueued(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The request has been assigned to an HTTP connection, either an
+     * existing keep-alive connection or a newly opened one.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void exchangeAssigned(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The request has been written to the socket.
+     *
+     * @param rid request ID
+     * @param bytes number of bytes written, including the HTTP header
+     * @param nanos event timestamp
+     */
+    public void requestWritten(
+            final long rid, final int bytes, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The first byte of the HTTP response has been read.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void responseStarted(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The complete HTTP response has been read and decoded, but not yet
+     * parsed.
+     *
+     * @param rid request ID
+     * @param status HTTP status code
+     * @param wireBytes size of the response body as received, which is
+     *  the compressed size if a content encoding was applied
+     * @param bodyBytes size of the decoded response body
+     * @param nanos event timestamp
+     */
+    public void responseReceived(
+            final long rid,
+            final int status,
+            final int wireBytes,
+            final int bodyBytes,
+            final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The response body has been received, decoded and parsed.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void responseParsed(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The response has been delivered to all response listeners.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void responseDelivered(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The request has been acknowledged by the connection manager and
+     * removed from the resend buffer.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void requestAcknowledged(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The request is being sent again, either because the connection manager
+     * reported it missing, a recoverable binding condition was received or
+     * the connection is being reestablished.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void requestResent(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The exchange was aborted before its response was received.
+     *
+     * @param rid request ID
+     * @param nanos event timestamp
+     */
+    public void exchangeAborted(final long rid, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * A pause request has been sent, and the session is pausing.
+     *
+     * @param nanos event timestamp
+     */
+    public void sessionPaused(final long nanos) {
+        // Empty
+    }
+
+    /**
+     * A request has been sent after a pause request, resuming the session.
+     *
+     * @param nanos event timestamp
+     */
+    public void sessionResumed(final long nanos) {
+        // Empty
+    }
+
+    /**
+     * The connection to the connection manager has been lost.  The session
+     * may still be recovered by {@link BOSHClient#attemptReconnection()}.
+     *
+     * @param cause the reason the connection was lost
+     * @param nanos event timestamp
+     */
+    public void connectionLost(final Throwable cause, final long nanos) {
+        // Empty
+    }
+
+    /**
+     * Return the tracer which ignores all events.  This is used when no
+     * tracer has been configured.
+     *
+     * @return no-op tracer instance
+     */
+    static BOSHClientTracer getDefault() {
+        return NONE;
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.List;
+
+/**
+ * Event representing a group of messages received from a BOSH connection
+ * manager in one processing pass.
+ * <p/>
+ * This class is immutable and thread-safe.
+ */
+public final class BOSHMessageBatchEvent extends EventObject {
+
+    /**
+     * Serialized version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Messages received, in order.
+     */
+    private final List<AbstractBody> bodies;
+
+    /**
+     * Creates a new batch event instance.
+     *
+     * @param source event source
+     * @param cBodies message bodies, which are copied
+     */
+    private BOSHMessageBatchEvent(
+            final Object source,
+            final List<AbstractBody> cBodies) {
+        super(source);
+        if (cBodies == null || cBodies.isEmpty()) {
+            throw(new IllegalArgumentException(
+                    "message bodies may not be empty"));
+        }
+        bodies = Collections.unmodifiableList(
+                new ArrayList<AbstractBody>(cBodies));
+    }
+
+    /**
+     * Creates a new batch event for clients receiving messages from the
+     * connection manager.
+     *
+     * @param source receiver of the messages
+     * @param bodies message bodies, in the order received
+     * @return event instance
+     */
+    static BOSHMessageBatchEvent createResponsesReceivedEvent(
+            final BOSHClient source,
+            final List<AbstractBody> bodies) {
+        return new BOSHMessageBatchEvent(source, bodies);
+    }
+
+    /**
+     * Gets the message bodies received, in the order they were processed.
+     *
+     * @return unmodifiable list of message bodies
+     */
+    public List<AbstractBody> getBodies() {
+        return bodies;
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer threads shared by many {@code BOSHClient} instances.  A pool owns a
+ * timer wheel and a fixed number of loop threads.  Each client using the pool is pinned to
+ * one loop for its lifetime, and its timer tasks (empty requests, messages
+ * held back by the send linger and connection timeouts) run on that loop,
+ * so that the timer work of one session is never reordered or run
+ * concurrently.  Clients are assigned to the loop serving the fewest
+ * sessions.  Shutting the pool down stops its wheel and its loops.
+ * <p/>
+ * Clients without a pool share a wheel and an executor whose threads are
+ * created on demand, and exit once idle.  A pool replaces only the timer thread of each client.  It does not bound
+ * the number of threads used by its clients: each client still has its own
+ * receive thread, which processes responses and calls listeners, and one
+ * thread per HTTP connection.
+ * <p/>
+ * A pool is attached to clients by using
+ * {@link BOSHClientConfig.Builder#setTimerPool(BOSHTimerPool)}.  Tasks run on
+ * the loops must not block.  This includes listeners called for events
+ * caused by timer tasks, unless the client delivers listener events on an
+ * executor configured by using
+ * {@link BOSHClientConfig.Builder#setListenerExecutor(java.util.concurrent.Executor)}.
+ * Instances of this class are thread-safe.
+ */
+public final class BOSHTimerPool {
+
+    /**
+     * Sequence used to name pool threads.
+     */
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /**
+     * Timer wheel scheduling the timer tasks of all attached clients.
+     */
+    private final TimerWheel wheel = new TimerWheel();
+
+    /**
+     * Timer loops.
+     */
+    private final ScheduledThreadPoolExecutor[] loops;
+
+    /**
+     * Number of sessions pinned to each loop.  Guarded by this instance.
+     */
+    private final int[] sessions;
+
+    /**
+     * Set once the pool has been shut down.  Guarded by this instance.
+     */
+    private boolean shutdown;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors:
+
+    /**
+     * Prevent direct construction.
+     *
+     * @param loopCount number of timer loops
+     */
+    private BOSHTimerPool(final int loopCount) {
+        String name = BOSHTimerPool.class.getSimpleName()
+                + "[" + SEQUENCE.incrementAndGet() + "]";
+        sessions = new int[loopCount];
+        loops = new ScheduledThreadPoolExecutor[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            final String loopName = name + ": Timer loop " + i;
+            loops[i] = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, loopName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public methods:
+
+    /**
+     * Create a new timer pool.
+     *
+     * @param loopCount number of timer loop threads
+     * @return pool instance
+     */
+    public static BOSHTimerPool create(final int loopCount) {
+        if (loopCount <= 0) {
+            throw(new IllegalArgumentException(
+                    "Loop count must be > 0 (was: " + loopCount + ")"));
+        }
+        return new BOSHTimerPool(loopCount);
+    }
+    /**
+     * Get the number of timer loops.
+     *
+     * @return loop count
+     */
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    /**
+     * Get the number of sessions currently attached to the pool.
+     *
+     * @return session count
+     */
+    public synchronized int getSessionCount() {
+        int result = 0;
+        for (int count : sessions) {
+            result += count;
+        }
+        return result;
+    }
+
+    /**
+     * Shut down the timer wheel and loops.  Clients still attached to the pool can
+     * no longer run timer tasks, and should be closed first.  New clients
+     * can no longer attach.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+        }
+        wheel.stop();
+        for (ScheduledThreadPoolExecutor loop : loops) {
+            loop.shutdownNow();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Pin a new session to the loop with the fewest sessions.
+     *
+     * @return index of the loop assigned
+     * @throws IllegalStateException if the pool has been shut down
+     */
+    synchronized int attach() {
+        if (shutdown) {
+            throw(new IllegalStateException("Timer pool has been shut down"));
+        }
+        int best = 0;
+        for (int i = 1; i < sessions.length; i++) {
+            if (sessions[i] < sessions[best]) {
+                best = i;
+            }
+        }
+        sessions[best]++;
+        return best;
+    }
+
+    /**
+     * Release a session previously pinned by {@link #attach()}.
+     *
+     * @param index index of the loop the session was pinned to
+     */
+    synchronized void detach(final int index) {
+        sessions[index]--;
+    }
+
+    /**
+     * Get the executor of a timer loop.
+     *
+     * @param index loop index
+     * @return loop executor
+     */
+    ScheduledExecutorService getLoop(final int index) {
+        return loops[index];
+    }
+
+    /**
+     * Get the timer wheel of the pool.
+     *
+     * @return timer wheel
+     */
+    TimerWheel getWheel() {
+        return wheel;
+    }
+
+}
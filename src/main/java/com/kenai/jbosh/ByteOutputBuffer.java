@@ -0,0 +1,254 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.OutputStream;
+
+/**
+ * Growable byte buffer which messages are serialized into before being
+ * sent.  Characters appended to the buffer are encoded as UTF-8 directly
+ * into its backing array, so that no intermediate {@code String} or
+ * {@code byte[]} representation of a message needs to be created.  Buffers
+ * are intended to be reset and reused for each message.
+ * <p/>
+ * Instances of this class are <b>not</b> thread-safe.
+ */
+final class ByteOutputBuffer extends OutputStream implements Appendable {
+
+    /**
+     * Initial capacity of the buffer.
+     */
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * Backing array.
+     */
+    private byte[] buf;
+
+    /**
+     * Number of bytes written.
+     */
+    private int count;
+
+    /**
+     * High surrogate appended without its low surrogate yet, or zero.
+     */
+    private char highSurrogate;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Create an empty buffer.
+     */
+    ByteOutputBuffer() {
+        buf = new byte[INITIAL_CAPACITY];
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // OutputStream methods:
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] data, final int off, final int len) {
+        ensureCapacity(len);
+        System.arraycopy(data, off, buf, count, len);
+        count += len;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Appendable methods:
+
+    /**
+     * Append the UTF-8 encoding of a character sequence.
+     *
+     * @param csq characters to append
+     * @return this buffer
+     */
+    public ByteOutputBuffer append(final CharSequence csq) {
+        return append(csq, 0, csq.length());
+    }
+
+    /**
+     * Append the UTF-8 encoding of part of a character sequence.
+     *
+     * @param csq characters to append
+     * @param start index of the first character to append
+     * @param end index just past the last character to append
+     * @return this buffer
+     */
+    public ByteOutputBuffer append(
+            final CharSequence csq, final int start, final int end) {
+        // Reserve one byte per remaining character so that ASCII, the common
+        // case, can be copied without further checks.
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            char ch = csq.charAt(i);
+            if (ch < 0x80 && highSurrogate == 0) {
+                buf[count++] = (byte) ch;
+            } else {
+                append(ch);
+                ensureCapacity(end - i - 1);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append the UTF-8 encoding of a character.  A surrogate pair is encoded
+     * once its low surrogate has been appended.
+     *
+     * @param ch character to append
+     * @return this buffer
+     */
+    public ByteOutputBuffer append(final char ch) {
+        ensureCapacity(4);
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(ch)) {
+                int cp = Character.toCodePoint(high, ch);
+                buf[count++] = (byte) (0xF0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (cp & 0x3F));
+                return this;
+            }
+            buf[count++] = (byte) '?';
+            ensureCapacity(3);
+        }
+        if (ch < 0x80) {
+            buf[count++] = (byte) ch;
+        } else if (ch < 0x800) {
+            buf[count++] = (byte) (0xC0 | (ch >> 6));
+            buf[count++] = (byte) (0x80 | (ch & 0x3F));
+        } else if (Character.isHighSurrogate(ch)) {
+            highSurrogate = ch;
+        } else if (Character.isLowSurrogate(ch)) {
+            // Unpaired, as String.getBytes("UTF-8") would encode it
+            buf[count++] = (byte) '?';
+        } else {
+            buf[count++] = (byte) (0xE0 | (ch >> 12));
+            buf[count++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+            buf[count++] = (byte) (0x80 | (ch & 0x3F));
+        }
+        return this;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Append the decimal digits of a non-negative number.
+     *
+     * @param value number to append
+     */
+    void appendDecimal(final long value) {
+        if (value < 0) {
+            throw(new IllegalArgumentException(
+                    "Value must be non-negative (was: " + value + ")"));
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        long rest = value;
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + (int) (rest % 10));
+            rest /= 10;
+        }
+        count += digits;
+    }
+
+    /**
+     * Get the number of bytes written.
+     *
+     * @return number of bytes
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Discard the contents of the buffer so that it can be reused.  If the
+     * buffer has grown beyond the specified capacity, the backing array is
+     * released so that a single large message does not stay pinned in
+     * memory.
+     *
+     * @param maxRetained largest capacity to keep
+     */
+    void reset(final int maxRetained) {
+        count = 0;
+        highSurrogate = 0;
+        if (buf.length > maxRetained) {
+            buf = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Get a copy of the contents of the buffer.
+     *
+     * @return copy of the bytes written
+     */
+    byte[] toByteArray() {
+        flushSurrogate();
+        byte[] result = new byte[count];
+        System.arraycopy(buf, 0, result, 0, count);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Encode a high surrogate which was never followed by its low surrogate.
+     */
+    private void flushSurrogate() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            write('?');
+        }
+    }
+
+    /**
+     * Grow the backing array, if needed, to hold more bytes.
+     *
+     * @param extra number of bytes about to be written
+     */
+    private void ensureCapacity(final int extra) {
+        int needed = count + extra;
+        if (needed > buf.length) {
+            byte[] grown = new byte[Math.max(needed, buf.length * 2)];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+    }
+
+}
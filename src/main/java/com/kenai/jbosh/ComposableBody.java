@@ -16,6 +16,9 @@
 
 package com.kenai.jbosh;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -44,6 +47,9 @@ import javax.xml.XMLConstants;
  *     .setPayloadXML("<foo:data>More data to send</foo:data>")
  *     .build();
  * </pre>
+ * Payloads which are already encoded as UTF-8 can be provided as bytes by
+ * using {@link Builder#setPayloadBytes(byte[])}.  These are sent as they
+ * are, and are only decoded if the XML of the message is requested.
  * This class does only minimal syntactic and semantic checking with respect
  * to what the generated XML will look like.  It is up to the developer to
  * protect against the definition of malformed XML messages when building
@@ -62,21 +68,61 @@ public final class ComposableBody extends AbstractBody {
             + "body" + "(?:[\t\n\r ][^>]*?)?" + "(/>|>)");
 
     /**
-     * Map of all attributes to their values.
+     * End tag of the wrapper element.
      */
-    private final Map<BodyQName, String> attrs;
+    private static final String END_TAG = "</body>";
 
     /**
-     * Payload XML.
+     * Unmodifiable map of all attributes to their values.  For messages
+     * created from an empty request template, this is built on first use.
+     */
+    private volatile Map<BodyQName, String> attrs;
+
+    /**
+     * Template this message was created from, or {@code null}.
+     */
+    private final EmptyRequestTemplate template;
+
+    /**
+     * Request ID of a message created from a template.
+     */
+    private final long templateRID;
+
+    /**
+     * Acknowledged request ID of a message created from a template, or
+     * {@code -1} if it has none.
+     */
+    private final long templateAck;
+
+    /**
+     * Payload XML, or {@code null} if the payload was provided as bytes.
      */
     private final String payload;
 
+    /**
+     * UTF-8 encoded payload XML, or {@code null} if the payload was
+     * provided as a String.
+     */
+    private final byte[] payloadBytes;
+
+    /**
+     * Flag indicating that the computed raw XML should be retained.
+     */
+    private final boolean cacheXML;
+
     /**
      * Computed raw XML.
      */
     private final AtomicReference<String> computed =
             new AtomicReference<String>();
 
+    /**
+     * UTF-8 encoded XML of the message, shared with the resend buffer, or
+     * {@code null} if it has not been shared.  Once set, it replaces the
+     * computed raw XML.
+     */
+    private volatile byte[] encoded;
+
     /**
      * Class instance builder, after the builder pattern.  This allows each
      * message instance to be immutable while providing flexibility when
@@ -88,6 +134,8 @@ public final class ComposableBody extends AbstractBody {
         private Map<BodyQName, String> map;
         private boolean doMapCopy;
         private String payloadXML;
+        private byte[] payloadData;
+        private boolean cacheXML = true;
 
         /**
          * Prevent direct construction.
@@ -110,6 +158,8 @@ public final class ComposableBody extends AbstractBody {
             result.map = source.getAttributes();
             result.doMapCopy = true;
             result.payloadXML = source.payload;
+            result.payloadData = source.payloadBytes;
+            result.cacheXML = source.cacheXML;
             return result;
         }
 
@@ -126,6 +176,80 @@ public final class ComposableBody extends AbstractBody {
                         "payload XML argument cannot be null"));
             }
             payloadXML = xml;
+            payloadData = null;
+            return this;
+        }
+
+        /**
+         * Set the body message's wrapped payload content from XML which has
+         * already been encoded as UTF-8.  The bytes are copied, and will be
+         * sent without being decoded.  Any previous content will be
+         * replaced.
+         *
+         * @param utf8 UTF-8 encoded payload XML content
+         * @return builder instance
+         */
+        public Builder setPayloadBytes(final byte[] utf8) {
+            if (utf8 == null) {
+                throw(new IllegalArgumentException(
+                        "payload bytes argument cannot be null"));
+            }
+            byte[] copy = new byte[utf8.length];
+            System.arraycopy(utf8, 0, copy, 0, utf8.length);
+            payloadData = copy;
+            payloadXML = null;
+            return this;
+        }
+
+        /**
+         * Set the body message's wrapped payload content from the remaining
+         * bytes of a buffer holding UTF-8 encoded XML.  The bytes are copied,
+         * and will be sent without being decoded.  The position of the
+         * buffer is not changed.  Any previous content will be replaced.
+         *
+         * @param utf8 buffer holding UTF-8 encoded payload XML content
+         * @return builder instance
+         */
+        public Builder setPayloadBytes(final ByteBuffer utf8) {
+            if (utf8 == null) {
+                throw(new IllegalArgumentException(
+                        "payload bytes argument cannot be null"));
+            }
+            byte[] copy = new byte[utf8.remaining()];
+            utf8.duplicate().get(copy);
+            payloadData = copy;
+            payloadXML = null;
+            return this;
+        }
+
+        /**
+         * Set the body message's wrapped payload content from the bytes
+         * written to a buffer, which must be UTF-8 encoded XML.  The bytes
+         * are copied once, and will be sent without being decoded.  Any
+         * previous content will be replaced.
+         *
+         * @param utf8 buffer holding UTF-8 encoded payload XML content
+         * @return builder instance
+         */
+        Builder setPayloadBytes(final ByteOutputBuffer utf8) {
+            payloadData = utf8.toByteArray();
+            payloadXML = null;
+            return this;
+        }
+
+        /**
+         * Set whether the message's XML should be retained once computed by
+         * {@link ComposableBody#toXML()}.  Messages are sent without
+         * computing their XML, so disabling this avoids holding a second
+         * copy of the message in memory for as long as it is awaiting
+         * acknowledgement, at the cost of recomputing the XML each time
+         * {@code toXML()} is called.  By default, the XML is retained.
+         *
+         * @param enabled {@code true} to retain the computed XML
+         * @return builder instance
+         */
+        public Builder setXMLCacheEnabled(final boolean enabled) {
+            cacheXML = enabled;
             return this;
         }
 
@@ -178,10 +302,13 @@ public final class ComposableBody extends AbstractBody {
             if (map == null) {
                 map = new HashMap<BodyQName, String>();
             }
+            if (payloadData != null) {
+                return new ComposableBody(map, null, payloadData, cacheXML);
+            }
             if (payloadXML == null) {
                 payloadXML = "";
             }
-            return new ComposableBody(map, payloadXML);
+            return new ComposableBody(map, payloadXML, null, cacheXML);
         }
     }
 
@@ -194,10 +321,49 @@ public final class ComposableBody extends AbstractBody {
      */
     private ComposableBody(
             final Map<BodyQName, String> attrMap,
-            final String payloadXML) {
+            final String payloadXML,
+            final byte[] payloadData,
+            final boolean retainXML) {
         super();
-        attrs = attrMap;
+        attrs = Collections.unmodifiableMap(attrMap);
         payload = payloadXML;
+        payloadBytes = payloadData;
+        cacheXML = retainXML;
+        template = null;
+        templateRID = -1L;
+        templateAck = -1L;
+    }
+
+    /**
+     * Prevent direct construction.  This constructor is for empty requests
+     * created from a template.
+     */
+    private ComposableBody(
+            final EmptyRequestTemplate source,
+            final long rid,
+            final long ack) {
+        super();
+        payload = "";
+        payloadBytes = null;
+        cacheXML = true;
+        template = source;
+        templateRID = rid;
+        templateAck = ack;
+    }
+
+    /**
+     * Create an empty request from a template.
+     *
+     * @param source template
+     * @param rid request ID
+     * @param ack acknowledged request ID, or {@code -1} for none
+     * @return message instance
+     */
+    static ComposableBody fromTemplate(
+            final EmptyRequestTemplate source,
+            final long rid,
+            final long ack) {
+        return new ComposableBody(source, rid, ack);
     }
 
     /**
@@ -235,7 +401,7 @@ public final class ComposableBody extends AbstractBody {
             payload = "";
         }
 
-        return new ComposableBody(body.getAttributes(), payload);
+        return new ComposableBody(body.getAttributes(), payload, null, true);
     }
 
     /**
@@ -269,7 +435,13 @@ public final class ComposableBody extends AbstractBody {
      * {@inheritDoc}
      */
     public Map<BodyQName, String> getAttributes() {
-        return Collections.unmodifiableMap(attrs);
+        Map<BodyQName, String> result = attrs;
+        if (result == null) {
+            result = Collections.unmodifiableMap(
+                    template.getAttributes(templateRID, templateAck));
+            attrs = result;
+        }
+        return result;
     }
 
     /**
@@ -278,24 +450,159 @@ public final class ComposableBody extends AbstractBody {
     public String toXML() {
         String comp = computed.get();
         if (comp == null) {
+            byte[] enc = encoded;
+            if (enc != null) {
+                return decode(enc);
+            }
             comp = computeXML();
-            computed.set(comp);
+            if (cacheXML && encoded == null) {
+                computed.set(comp);
+            }
         }
         return comp;
     }
 
     /**
-     * Get the paylaod XML in String form.
+     * Get the paylaod XML in String form.  If the payload was provided as
+     * bytes, they are decoded on each call.
      *
      * @return payload XML
      */
     public String getPayloadXML() {
-        return payload;
+        if (payload != null) {
+            return payload;
+        }
+        return decode(payloadBytes);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation does not parse the payload.
+     */
+    @Override
+    boolean hasPayload() {
+        if (payload != null) {
+            return payload.length() > 0;
+        }
+        return payloadBytes.length > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation does not build the attributes of messages created
+     * from a template.
+     */
+    @Override
+    long getRequestID() {
+        if (template != null) {
+            return templateRID;
+        }
+        return super.getRequestID();
+    }
+
+    /**
+     * Determine whether the message's XML is retained once computed.
+     *
+     * @return {@code true} if the computed XML is retained
+     */
+    boolean isXMLCacheEnabled() {
+        return cacheXML;
+    }
+
+    /**
+     * Encode the payload of the message into a buffer.  A payload provided
+     * as bytes is copied without being decoded.
+     *
+     * @param out buffer to write to
+     */
+    void writePayloadTo(final ByteOutputBuffer out) {
+        if (payloadBytes != null) {
+            out.write(payloadBytes, 0, payloadBytes.length);
+        } else {
+            out.append(payload);
+        }
+    }
+
+    /**
+     * Share the UTF-8 encoded XML of the message, as written by
+     * {@link #writeTo(ByteOutputBuffer)}, with the resend buffer holding
+     * the message until it is acknowledged.  Any computed XML is released.
+     * From then on the message is written from these bytes, and its XML is
+     * decoded from them on each call to {@link #toXML()} rather than being
+     * retained.  The array must not be modified afterwards.
+     *
+     * @param utf8 encoded XML of the message
+     */
+    void shareEncoded(final byte[] utf8) {
+        encoded = utf8;
+        computed.set(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation returns the encoded XML once it has been shared.
+     */
+    @Override
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation encodes the wrapper element and payload directly
+     * into the buffer, without computing the XML of the message.  A payload
+     * provided as bytes is copied without being decoded, and so is the
+     * encoded XML once it has been shared.
+     */
+    @Override
+    void writeTo(final ByteOutputBuffer out) {
+        byte[] enc = encoded;
+        if (enc != null) {
+            out.write(enc, 0, enc.length);
+            return;
+        }
+        String comp = computed.get();
+        if (comp != null) {
+            out.append(comp);
+            return;
+        }
+        if (template != null) {
+            template.writeTo(out, templateRID, templateAck);
+            return;
+        }
+        try {
+            appendStartTag(out);
+        } catch (IOException iox) {
+            throw(new IllegalStateException(iox));
+        }
+        writePayloadTo(out);
+        out.append(END_TAG);
     }
 
     ///////////////////////////////////////////////////////////////////////////
     // Private methods:
 
+    /**
+     * Decode UTF-8 encoded XML.
+     *
+     * @param utf8 encoded XML
+     * @return decoded XML
+     */
+    private static String decode(final byte[] utf8) {
+        try {
+            return new String(utf8, "UTF-8");
+        } catch (UnsupportedEncodingException uex) {
+            throw(new IllegalStateException(uex));
+        }
+    }
+
     /**
      * Escape the value of an attribute to ensure we maintain valid
      * XML syntax.
@@ -313,11 +620,32 @@ public final class ComposableBody extends AbstractBody {
      * @return XML string representation of the body
      */
     private String computeXML() {
-        BodyQName bodyName = getBodyQName();
         StringBuilder builder = new StringBuilder();
+        try {
+            appendStartTag(builder);
+        } catch (IOException iox) {
+            throw(new IllegalStateException(iox));
+        }
+        builder.append(getPayloadXML());
+        builder.append(END_TAG);
+        return builder.toString();
+    }
+
+    /**
+     * Append the start tag of the wrapper element.
+     *
+     * @param builder destination to append to, which is either a
+     *  {@code StringBuilder} or a {@code ByteOutputBuffer}, neither of which
+     *  throws
+     * @throws IOException never
+     */
+    private void appendStartTag(final Appendable builder)
+    throws IOException {
+        BodyQName bodyName = getBodyQName();
         builder.append("<");
         builder.append(bodyName.getLocalPart());
-        for (Map.Entry<BodyQName, String> entry : attrs.entrySet()) {
+        for (Map.Entry<BodyQName, String> entry
+                : getAttributes().entrySet()) {
             builder.append(" ");
             BodyQName name = entry.getKey();
             String prefix = name.getPrefix();
@@ -335,11 +663,6 @@ public final class ComposableBody extends AbstractBody {
         builder.append("='");
         builder.append(bodyName.getNamespaceURI());
         builder.append("'>");
-        if (payload != null) {
-            builder.append(payload);
-        }
-        builder.append("</body>");
-        return builder.toString();
     }
 
 }
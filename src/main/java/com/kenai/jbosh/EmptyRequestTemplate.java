@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.XMLConstants;
+
+/**
+ * Pre-encoded form of the empty requests sent to poll the connection
+ * manager within one session.  Empty requests differ only in their
+ * {@code rid} and {@code ack} attributes, so everything else is encoded
+ * once, when the template is created, and the two values are written into
+ * fixed slots when a request is serialized.  Requests created from the
+ * template carry only these two numbers until their attributes are asked
+ * for.
+ * <p/>
+ * Instances of this class are immutable and thread-safe.
+ */
+final class EmptyRequestTemplate {
+
+    /**
+     * Encoded text between the {@code rid} and {@code ack} values.
+     */
+    private static final byte[] ACK_SLOT = AbstractBody.encode("' ack='");
+
+    /**
+     * Encoded text following the last value.
+     */
+    private static final byte[] END = AbstractBody.encode("'></body>");
+
+    /**
+     * Attributes common to all requests.
+     */
+    private final Map<BodyQName, String> common;
+
+    /**
+     * Encoded start of the request, up to the {@code rid} value.
+     */
+    private final byte[] start;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Create a template for the empty requests of a session.
+     *
+     * @param sessionID ID of the session
+     */
+    EmptyRequestTemplate(final String sessionID) {
+        common = new HashMap<BodyQName, String>();
+        common.put(Attributes.SID, sessionID);
+        BodyQName bodyName = AbstractBody.getBodyQName();
+        start = AbstractBody.encode("<" + bodyName.getLocalPart()
+                + " " + XMLConstants.XMLNS_ATTRIBUTE + "='"
+                + bodyName.getNamespaceURI() + "'"
+                + " " + Attributes.SID.getLocalPart() + "='"
+                + sessionID.replace("'", "&apos;") + "'"
+                + " " + Attributes.RID.getLocalPart() + "='");
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Create an empty request.
+     *
+     * @param rid request ID
+     * @param ack value of the {@code ack} attribute, or {@code -1} to omit
+     *  it
+     * @return request
+     */
+    ComposableBody create(final long rid, final long ack) {
+        return ComposableBody.fromTemplate(this, rid, ack);
+    }
+
+    /**
+     * Write the encoded XML of an empty request.
+     *
+     * @param out buffer to write to
+     * @param rid request ID
+     * @param ack value of the {@code ack} attribute, or {@code -1} to omit
+     *  it
+     */
+    void writeTo(final ByteOutputBuffer out, final long rid, final long ack) {
+        out.write(start, 0, start.length);
+        out.appendDecimal(rid);
+        if (ack >= 0) {
+            out.write(ACK_SLOT, 0, ACK_SLOT.length);
+            out.appendDecimal(ack);
+        }
+        out.write(END, 0, END.length);
+    }
+
+    /**
+     * Build the attributes of an empty request.
+     *
+     * @param rid request ID
+     * @param ack value of the {@code ack} attribute, or {@code -1} to omit
+     *  it
+     * @return new attribute map
+     */
+    Map<BodyQName, String> getAttributes(final long rid, final long ack) {
+        Map<BodyQName, String> result = new HashMap<BodyQName, String>(common);
+        result.put(Attributes.RID, Long.toString(rid));
+        if (ack >= 0) {
+            result.put(Attributes.ACK, Long.toString(ack));
+        }
+        return result;
+    }
+
+}
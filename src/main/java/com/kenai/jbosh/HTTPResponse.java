@@ -50,5 +50,25 @@ interface HTTPResponse {
      * @throws InterruptedException if interrupted while awaiting response
      */
     AbstractBody getBody() throws InterruptedException, BOSHException;
+
+    /**
+     * Determine whether the response has arrived, or has at least started
+     * arriving, so that {@link #getBody()} is not expected to wait for the
+     * remote server.  This must only be called by the thread which obtains
+     * the response.
+     *
+     * @return {@code true} if the response is available or has failed
+     */
+    boolean isReady();
+
+    /**
+     * Get the time from when the request was fully written until the
+     * response started to arrive.  Unlike the time since the request was
+     * sent, this excludes connecting and any TLS handshake.
+     *
+     * @return round trip time in nanoseconds, or {@code -1} if the response
+     *  has not started to arrive
+     */
+    long getRoundTripNanos();
     
 }
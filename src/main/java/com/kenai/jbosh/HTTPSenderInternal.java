@@ -17,12 +17,10 @@
 package com.kenai.jbosh;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.Map.Entry;
 import java.util.Vector;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLContext;
@@ -39,9 +37,39 @@ final class HTTPSenderInternal implements HTTPSender {
     private final String ACCEPT_ENCODING_VAL =
             ZLIBCodec.getID() + ", " + GZIPCodec.getID();
 
+    /** Encoded name of the Content-Length header. */
+    private static final byte[] CONTENT_LENGTH = AbstractBody.encode("Content-Length: ");
+
+    /** Encoded end of the request header. */
+    private static final byte[] HEADER_END = AbstractBody.encode("\r\n\r\n");
+
+    /** Largest body buffer to keep between requests. */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
     /** Session configuration. */
     private BOSHClientConfig cfg;
 
+    /** Exchange life cycle tracer. */
+    private BOSHClientTracer tracer = BOSHClientTracer.getDefault();
+
+    /** If false, no tracer is configured and no timestamps need to be taken. */
+    private boolean tracing = false;
+
+    /** Capture to record bodies into, or null if none is configured. */
+    private WireCapture capture;
+
+    /** Encoded start of every request header, up to the per-request headers. */
+    private byte[] headerStart;
+
+    /** Buffer which request headers are assembled in.  Guarded by this object. */
+    private final ByteOutputBuffer headerBuffer = new ByteOutputBuffer();
+
+    /** Buffer which request bodies are serialized into.  Guarded by this object. */
+    private final ByteOutputBuffer bodyBuffer = new ByteOutputBuffer();
+
+    /** If true, responses are split into their payload elements as they are parsed. */
+    private boolean splitPayload = false;
+
     Vector<InternalHTTPConnection<InternalHTTPResponse>> connections = new Vector<InternalHTTPConnection<InternalHTTPResponse>>();
 
     /** If true, the server supports keep-alive connections; if false, it responded with
@@ -51,6 +79,32 @@ final class HTTPSenderInternal implements HTTPSender {
     public void init(final BOSHClientConfig session) {
         synchronized(this) {
             cfg = session;
+            if (session.getTracer() != null) {
+                tracer = session.getTracer();
+                tracing = true;
+            }
+            capture = session.getWireCapture();
+            splitPayload = session.isPayloadSplittingEnabled();
+
+            // Set the HTTP headers which are the same for every request.  We
+            // don't send User-Agent; BOSH itself has no analogue to it, so it's
+            // not actually losing data, and it increases the size of every
+            // request.  Likewise, we don't send Content-Type to reduce request
+            // size; servers ignore it anyway.
+            URI uri = session.getURI();
+            String host = uri.getHost();
+            int defaultPort = 80;
+            if(uri.getScheme().equalsIgnoreCase("https"))
+                defaultPort = 443;
+            if(uri.getPort() != defaultPort)
+                host += ":" + uri.getPort();
+            StringBuilder sb = new StringBuilder();
+            sb.append("POST "); sb.append(uri.getPath()); sb.append(" HTTP/1.1\r\n");
+            sb.append("Host: "); sb.append(host); sb.append("\r\n");
+            if (session.isCompressionEnabled()) {
+                sb.append("Accept-Encoding: "); sb.append(ACCEPT_ENCODING_VAL); sb.append("\r\n");
+            }
+            headerStart = AbstractBody.encode(sb.toString());
         }
     }
 
@@ -76,11 +130,6 @@ final class HTTPSenderInternal implements HTTPSender {
     public synchronized HTTPResponse send(
             final CMSessionParams params,
             final AbstractBody body) {
-        byte[] data;
-        try {
-            data = body.toXML().getBytes("UTF-8");
-        } catch(UnsupportedEncodingException e) { throw new RuntimeException(e); }
-
         // If cfg is null, destroy() has already been called.  Return an HTTPResponse
         // that always fails.
         if (cfg == null) {
@@ -94,9 +143,29 @@ final class HTTPSenderInternal implements HTTPSender {
                 public AbstractBody getBody() throws BOSHException {
                     throw new BOSHException("Connection was destroyed");
                 }
+
+                public boolean isReady() {
+                    return true;
+                }
+
+                public long getRoundTripNanos() {
+                    return -1;
+                }
             };
         }
 
+        // Requests held for resending already carry their encoded XML,
+        // which is sent as it is.  Other bodies are serialized into the
+        // reusable buffer and copied out, since the connection's thread
+        // writes the request later.
+        byte[] uncompressed = body.getEncoded();
+        if (uncompressed == null) {
+            bodyBuffer.reset(MAX_RETAINED_BUFFER);
+            body.writeTo(bodyBuffer);
+            uncompressed = bodyBuffer.toByteArray();
+        }
+
+        byte[] data = uncompressed;
         String encoding = null;
         if (cfg.isCompressionEnabled() && params != null) {
             AttrAccept accept = params.getAccept();
@@ -104,60 +173,39 @@ final class HTTPSenderInternal implements HTTPSender {
                 if (accept.isAccepted(ZLIBCodec.getID())) {
                     encoding = ZLIBCodec.getID();
                     try {
-                        data = ZLIBCodec.encode(data);
+                        data = ZLIBCodec.encode(uncompressed);
                     } catch (IOException e) { throw new RuntimeException(e); }
                 } else if (accept.isAccepted(GZIPCodec.getID())) {
                     encoding = GZIPCodec.getID();
                     try {
-                        data = GZIPCodec.encode(data);
+                        data = GZIPCodec.encode(uncompressed);
                     } catch (IOException e) { throw new RuntimeException(e); }
                 }
             }
         }
 
-        // Set HTTP headers for this request.  We don't send User-Agent; BOSH itself has no
-        // analogue to it, so it's not actually losing data, and it increases the size of every
-        // request.  Likewise, we don't send Content-Type to reduce request size; servers
-        // ignore it anyway.
-        HashMap<String, String> headers = new HashMap<String, String>();
-        headers.put("Host", cfg.getURI().getHost());
-        if (encoding != null)
-            headers.put("Content-Encoding", encoding);
-        if (cfg.isCompressionEnabled())
-            headers.put("Accept-Encoding", ACCEPT_ENCODING_VAL);
-        headers.put("Content-Length", String.valueOf(data.length));
-
-        URI uri = cfg.getURI();
-        String host = uri.getHost();
-        int defaultPort = 80;
-        if(uri.getScheme().equalsIgnoreCase("https"))
-            defaultPort = 443;
-        if(uri.getPort() != defaultPort)
-            host += ":" + uri.getPort();
-        headers.put("Host", host);
-
-        // Construct the HTTP request header.
-        StringBuilder sb = new StringBuilder();
-        sb.append("POST "); sb.append(cfg.getURI().getPath()); sb.append(" HTTP/1.1\r\n");
-        for(Entry<String, String> e: headers.entrySet()) {
-            sb.append(e.getKey()); sb.append(": "); sb.append(e.getValue()); sb.append("\r\n");
-        }
-        sb.append("\r\n");
-
-        String requestHeader = sb.toString();
-        byte[] requestHeaderData;
-        try {
-            requestHeaderData = requestHeader.getBytes("UTF-8");
-        } catch(UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+        // Complete the HTTP request header.  The part which is the same for
+        // every request was encoded by init().  The header and body are
+        // written to the connection separately, so the body is not copied
+        // again.
+        headerBuffer.reset(MAX_RETAINED_BUFFER);
+        headerBuffer.write(headerStart, 0, headerStart.length);
+        if (encoding != null) {
+            headerBuffer.append("Content-Encoding: ");
+            headerBuffer.append(encoding);
+            headerBuffer.append("\r\n");
         }
-
-        // Combine the header and payload to make the final request.
-        byte[] requestData = new byte[requestHeaderData.length + data.length];
-        System.arraycopy(requestHeaderData, 0, requestData, 0, requestHeaderData.length);
-        System.arraycopy(data, 0, requestData, requestHeaderData.length, data.length);
-
-        return new InternalHTTPResponse(requestData);
+        headerBuffer.write(CONTENT_LENGTH, 0, CONTENT_LENGTH.length);
+        headerBuffer.appendDecimal(data.length);
+        headerBuffer.write(HEADER_END, 0, HEADER_END.length);
+        byte[] header = headerBuffer.toByteArray();
+
+        long rid = -1;
+        if (tracing || capture != null)
+            rid = body.getRequestID();
+        if (capture != null)
+            capture.request(rid, uncompressed, data.length);
+        return new InternalHTTPResponse(header, data, rid);
     }
 
     /** A request has completed, and the given connection is being returned. */
@@ -196,8 +244,9 @@ final class HTTPSenderInternal implements HTTPSender {
     }
 
     final class InternalHTTPResponse implements HTTPResponse, InternalHTTPRequestBase {
-        /** The request to be sent. */
-        byte[] requestData;
+        /** The RID of the request, used for tracing and capture.  -1 if
+         * neither is enabled. */
+        private final long rid;
 
         /* The connection this response was sent over, or null if this request has
          * been aborted. */
@@ -214,29 +263,43 @@ final class HTTPSenderInternal implements HTTPSender {
         /** The HTTP response status code. */
         private int statusCode;
 
+        /** Time the request was written, as returned by
+         * {@link System#nanoTime()}, if {@code written} is set. */
+        private volatile long writtenNanos;
+
+        /** Whether the request has been written. */
+        private volatile boolean written;
+
+        /** Time from the request being written until the response started
+         * to arrive, in nanoseconds, or -1 if not yet known. */
+        private volatile long roundTripNanos = -1;
+
         /**
          * Create and send a new request to the upstream connection manager,
          * providing deferred access to the results to be returned.
          *
          * This is called with HTTPSenderInternal locked.
          *
-         * @param client client instance to use when sending the request
-         * @param params connection manager parameters from the session creation
-         *  response, or {@code null} if the session has not yet been established
-         * @param request body of the client request
+         * @param header HTTP request header to send
+         * @param data HTTP request body to send
+         * @param rid RID of the request, for tracing
          */
-        InternalHTTPResponse(byte[] requestData)
+        InternalHTTPResponse(byte[] header, byte[] data, long rid)
         {
             super();
-            this.requestData = requestData;
+            this.rid = rid;
 
-            sendRequest();
+            sendRequest(header, data);
         }
 
         /**
          * Send the request over an existing connection or create a new connection.
+         * The request data is not retained once the connection has written it.
+         *
+         * @param header HTTP request header to send
+         * @param data HTTP request body to send
          */
-        void sendRequest() {
+        void sendRequest(byte[] header, byte[] data) {
             synchronized(HTTPSenderInternal.this) {
                 if(connection != null)
                     throw new IllegalStateException("Request already sent");
@@ -251,7 +314,9 @@ final class HTTPSenderInternal implements HTTPSender {
                     connection = getFirstConnection();
                     if(connection != null) {
                         // LOG.log(Level.WARNING, "Sending packet over keepalive");
-                        connection.sendRequest(requestData, this);
+                        if(tracing)
+                            tracer.exchangeAssigned(rid, System.nanoTime());
+                        connection.sendRequest(header, data, this);
                         return;
                     }
                     // LOG.log(Level.WARNING, "No connection took our packet");
@@ -274,11 +339,14 @@ final class HTTPSenderInternal implements HTTPSender {
                 // Creating the InternalHTTPConnection will never block, so this is safe to call
                 // while synchronized.
                 connection = new InternalHTTPConnection<InternalHTTPResponse>(cfg.getURI(),
-                        cfg.getSocketFactory(), cfg.getSocketConnectorFactory(), sslConnector);
+                        cfg.getSocketFactory(), cfg.getSocketConnectorFactory(), sslConnector,
+                        tracing? tracer:null);
                 connections.add(connection);
 
                 // Send the request over the connection we just created.
-                connection.sendRequest(requestData, this);
+                if(tracing)
+                    tracer.exchangeAssigned(rid, System.nanoTime());
+                connection.sendRequest(header, data, this);
 
                 // Notify any blocking awaitResponse call that the connection is available.
                 HTTPSenderInternal.this.notifyAll();
@@ -302,6 +370,9 @@ final class HTTPSenderInternal implements HTTPSender {
                 connection = null;
             }
 
+            if(tracing)
+                tracer.exchangeAborted(rid, System.nanoTime());
+
             // Shut down the connection.  This will send requestAborted to any
             // other pipelined requests on this connection.  XXX: test
             if(connectionToCancel != null)
@@ -326,6 +397,38 @@ final class HTTPSenderInternal implements HTTPSender {
             abortWithError(new BOSHException("HTTP request aborted"));
         }
 
+        /**
+         * Called by the connection once the request has been written.
+         */
+        public void requestWritten(int length) {
+            long now = System.nanoTime();
+            writtenNanos = now;
+            written = true;
+            if(tracing)
+                tracer.requestWritten(rid, length, now);
+        }
+
+        /**
+         * Called by the connection when the response begins to arrive.
+         */
+        public void responseStarted() {
+            long now = System.nanoTime();
+            if(written)
+                roundTripNanos = now - writtenNanos;
+            if(tracing)
+                tracer.responseStarted(rid, now);
+        }
+
+        /**
+         * Get the time from when the request was written until the response
+         * started to arrive.
+         *
+         * @return round trip time in nanoseconds, or -1 if not yet known
+         */
+        public long getRoundTripNanos() {
+            return roundTripNanos;
+        }
+
         /**
          * Wait for and then return the response body.
          *
@@ -354,6 +457,21 @@ final class HTTPSenderInternal implements HTTPSender {
             return statusCode;
         }
 
+        /**
+         * Determine whether the response has started to arrive.
+         *
+         * @return true if getBody() is not expected to wait for the server
+         */
+        public boolean isReady() {
+            InternalHTTPConnection<InternalHTTPResponse> connection;
+            synchronized(HTTPSenderInternal.this) {
+                if(toThrow != null || body != null)
+                    return true;
+                connection = this.connection;
+            }
+            return connection == null || connection.isResponseAvailable();
+        }
+
         ///////////////////////////////////////////////////////////////////////////
         // Package-private methods:
 
@@ -395,11 +513,28 @@ final class HTTPSenderInternal implements HTTPSender {
                     data = ZLIBCodec.decode(data);
                 else if (GZIPCodec.getID().equalsIgnoreCase(encoding))
                     data = GZIPCodec.decode(data);
+                if(tracing)
+                    tracer.responseReceived(rid, response.statusCode,
+                            response.data.length, data.length, System.nanoTime());
+                if(capture != null)
+                    capture.response(rid, response.statusCode, data,
+                            response.data.length);
 
                 String bodyData = new String(data, "UTF-8");
 
                 body = StaticBody.fromString(bodyData);
+                if(splitPayload) {
+                    // A payload which can't be split is still delivered; the
+                    // error is reported again to whoever asks for its elements.
+                    try {
+                        body.getPayloadElements();
+                    } catch (BOSHException e) {
+                        LOG.log(Level.FINE, "Could not split response payload", e);
+                    }
+                }
                 statusCode = response.statusCode;
+                if(tracing)
+                    tracer.responseParsed(rid, System.nanoTime());
             } catch (IOException e) {
                 throw abortWithError(new BOSHException("Could not obtain response", e));
             }
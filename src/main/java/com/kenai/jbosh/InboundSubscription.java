@@ -0,0 +1,279 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Subscription delivering the responses of a {@code BOSHClient} to a
+ * {@link BOSHClientSubscriber}, buffering responses which arrive without
+ * demand.  Signals are delivered serially by whichever thread finds work
+ * to do, and never while the client lock is held.
+ */
+final class InboundSubscription implements BOSHClientSubscription {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG =
+            Logger.getLogger(InboundSubscription.class.getName());
+
+    /**
+     * Message used for unhandled subscriber exceptions.
+     */
+    private static final String UNHANDLED =
+            "Unhandled Exception in subscriber";
+
+    /**
+     * Client the subscription belongs to.
+     */
+    private final BOSHClient client;
+
+    /**
+     * Subscriber to deliver to.
+     */
+    private final BOSHClientSubscriber subscriber;
+
+    /************************************************************
+     * The following vars must be accessed while synchronized on this
+     * instance.
+     */
+
+    /**
+     * Responses received but not yet delivered.
+     */
+    private final Queue<AbstractBody> buffered = new LinkedList<AbstractBody>();
+
+    /**
+     * Number of bodies requested but not yet delivered.  Saturates at
+     * {@code Long.MAX_VALUE}.
+     */
+    private long demand;
+
+    /**
+     * Set while a thread is delivering signals.
+     */
+    private boolean emitting;
+
+    /**
+     * Set once the stream has ended, after which the terminal signal is
+     * delivered as soon as the buffer is empty.
+     */
+    private boolean done;
+
+    /**
+     * Cause of an erroneous end of the stream, or {@code null}.
+     */
+    private Throwable error;
+
+    /**
+     * Set once a terminal signal has been delivered or the subscription
+     * was cancelled.
+     */
+    private boolean terminated;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors:
+
+    /**
+     * Create a new subscription.
+     *
+     * @param owner client the subscription belongs to
+     * @param target subscriber to deliver to
+     */
+    InboundSubscription(
+            final BOSHClient owner,
+            final BOSHClientSubscriber target) {
+        client = owner;
+        subscriber = target;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // BOSHClientSubscription interface methods:
+
+    /**
+     * {@inheritDoc}
+     */
+    public void request(final long count) {
+        boolean resumed;
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            if (count <= 0L) {
+                buffered.clear();
+                done = true;
+                error = new IllegalArgumentException(
+                        "Requested count must be > 0 (was: " + count + ")");
+                resumed = true;
+            } else {
+                resumed = demand == 0L;
+                demand += count;
+                if (demand < 0L) {
+                    demand = Long.MAX_VALUE;
+                }
+            }
+        }
+        drain();
+        if (resumed) {
+            client.inboundDemandChanged(this);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            terminated = true;
+            buffered.clear();
+        }
+        client.inboundDemandChanged(this);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Deliver the {@code onSubscribe} signal.
+     */
+    void start() {
+        synchronized (this) {
+            emitting = true;
+        }
+        try {
+            subscriber.onSubscribe(this);
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, UNHANDLED, ex);
+        } finally {
+            synchronized (this) {
+                emitting = false;
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Queue a response for delivery.
+     *
+     * @param body response body
+     */
+    void offer(final AbstractBody body) {
+        synchronized (this) {
+            if (terminated || done) {
+                return;
+            }
+            buffered.add(body);
+        }
+        drain();
+    }
+
+    /**
+     * End the stream once all buffered responses have been delivered.
+     *
+     * @param cause reason for the end of the stream, or {@code null} if the
+     *  session was closed normally
+     */
+    void complete(final Throwable cause) {
+        synchronized (this) {
+            if (terminated || done) {
+                return;
+            }
+            done = true;
+            error = cause;
+        }
+        drain();
+    }
+
+    /**
+     * Determine whether polling for more responses should stop, because
+     * the exchanges already in progress will satisfy the current demand.
+     *
+     * @param inFlight number of exchanges awaiting their responses
+     * @return {@code true} if no further empty requests should be sent
+     */
+    synchronized boolean isThrottled(final int inFlight) {
+        if (terminated || done) {
+            return false;
+        }
+        return demand - buffered.size() <= inFlight;
+    }
+
+    /**
+     * Determine whether the subscription has ended.
+     *
+     * @return {@code true} if cancelled or terminated
+     */
+    synchronized boolean isTerminated() {
+        return terminated;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Deliver buffered responses while there is demand, followed by the
+     * terminal signal once the stream has ended.  Only one thread delivers
+     * at a time; others leave their work to it.
+     */
+    private void drain() {
+        while (true) {
+            AbstractBody next = null;
+            Throwable cause = null;
+            synchronized (this) {
+                if (emitting || terminated) {
+                    return;
+                }
+                if (demand > 0L && !buffered.isEmpty()) {
+                    next = buffered.poll();
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                } else if (done && buffered.isEmpty()) {
+                    terminated = true;
+                    cause = error;
+                } else {
+                    return;
+                }
+                emitting = true;
+            }
+            try {
+                if (next != null) {
+                    subscriber.onNext(next);
+                } else if (cause == null) {
+                    subscriber.onComplete();
+                } else {
+                    subscriber.onError(cause);
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, UNHANDLED, ex);
+            } finally {
+                synchronized (this) {
+                    emitting = false;
+                }
+            }
+        }
+    }
+
+}
@@ -1,9 +1,11 @@
 package com.kenai.jbosh;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.URI;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedByInterruptException;
@@ -71,22 +73,33 @@ class InternalHTTPConnection<T extends InternalHTTPRequestBase> {
     InternalHTTPConnection(URI uri, SocketFactory factory,
             BOSHClientSocketConnectorFactory socketConnectorFactory,
             SSLConnector sslConnector) {
+        this(uri, factory, socketConnectorFactory, sslConnector, null);
+    }
+
+    /** Prepare to connect to the scheme, host and port specified in uri.  If
+     * tracer is not null, it is notified when the connection and any TLS
+     * handshake complete. */
+    InternalHTTPConnection(URI uri, SocketFactory factory,
+            BOSHClientSocketConnectorFactory socketConnectorFactory,
+            SSLConnector sslConnector, BOSHClientTracer tracer) {
         if(factory == null)
             factory = SocketFactory.getDefault();
         if(sslConnector == null)
             sslConnector = SSLConnector.getDefault();
         if(socketConnectorFactory == null)
             socketConnectorFactory = BOSHClientSocketConnectorFactory.getDefault();
-        socket = new NonBlockingSocket(uri, factory, socketConnectorFactory, sslConnector);
+        socket = new NonBlockingSocket(uri, factory, socketConnectorFactory, sslConnector, tracer);
     }
 
     Thread thread = null;
     LinkedBlockingQueue<byte[]> queuedPackets = new LinkedBlockingQueue<byte[]>();
 
-    /** Send request data over the connection.  This call will never block for I/O.  If an
-     * error occurs, an exception will be thrown on the next call to waitForNextResponse(). */
-    public void sendRequest(byte[] data, T response) {
-        socket.write(data);
+    /** Send request data over the connection.  The header and body are written one after
+     * the other, so they don't need to be combined into one array first.  This call will
+     * never block for I/O.  If an error occurs, an exception will be thrown on the next
+     * call to waitForNextResponse(). */
+    public void sendRequest(byte[] header, byte[] body, T response) {
+        socket.write(header, body, response);
         synchronized(this) {
             outstandingRequests.add(response);
         }
@@ -96,6 +109,15 @@ class InternalHTTPConnection<T extends InternalHTTPRequestBase> {
      * not yet been received by a call to waitForNextResponse. */
     public int getRequestsOutstanding() { return outstandingRequests.size(); }
 
+    /** Return true if data for the next response has already been buffered or can be
+     * read without blocking.  Only call this from the thread which calls
+     * waitForNextResponse(). */
+    public boolean isResponseAvailable() {
+        if(inputBufferAvail > inputBufferPosition)
+            return true;
+        return socket.available() > 0;
+    }
+
     /** Return true if abort() has been called, or the connection failed with an error. */
     public boolean isAborted() { return aborted; }
     
@@ -145,7 +167,7 @@ class InternalHTTPConnection<T extends InternalHTTPRequestBase> {
             }
         }
 
-        ResponseData response = readRequest();
+        ResponseData response = readRequest(request);
         response.request = request;
         return response;
     }
@@ -174,10 +196,18 @@ class InternalHTTPConnection<T extends InternalHTTPRequestBase> {
         return true;
     }
     
-    private ResponseData readRequest() throws IOException {
+    private ResponseData readRequest(T request) throws IOException {
         int lastSearchPos = inputBufferPosition;
         String headers = null;
+        boolean started = false;
         while(true) {
+            // Data for this response may already be buffered if responses were
+            // pipelined; otherwise it begins with the first read that returns data.
+            if(!started && inputBufferAvail > inputBufferPosition) {
+                started = true;
+                request.responseStarted();
+            }
+
             boolean found = false;
             // We have a whole response header if the inputBuffer contains two consecutive
             // CRLFs.  For compatibility and ease of testing, also accept LFLF.
@@ -290,6 +320,11 @@ class InternalHTTPConnection<T extends InternalHTTPRequestBase> {
                     throw new IOException("Couldn't find chunk header");
             }
             
+            // Each chunk's data is followed by a CRLF, which shows up here as an empty
+            // line before the next chunk header.  Skip it.
+            if(chunkHeader.length() == 0)
+                continue;
+
             // If there's a chunk-extension, ignore it.
             int spacePos = chunkHeader.indexOf(" ");
             if(spacePos != -1)
@@ -496,23 +531,42 @@ class NonBlockingSocket {
     private static final Logger LOG =
         Logger.getLogger(NonBlockingSocket.class.getName());
 
+    /** Size of the buffer requests are written through. */
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
     private URI uri;
     private Thread thread;
     private IOException error;
     private Socket socket;
     private SocketConnector socketConnector;
     private SSLConnector sslConnector;
+    private BOSHClientTracer tracer;
     private InputStream inputStream;
-    private LinkedBlockingQueue<byte[]> queuedPackets = new LinkedBlockingQueue<byte[]>();
+    private LinkedBlockingQueue<QueuedWrite> queuedPackets = new LinkedBlockingQueue<QueuedWrite>();
     boolean closed = false;
+
+    /** Request data waiting to be written, and the request to notify once it is. */
+    private static final class QueuedWrite {
+        final byte[] header;
+        final byte[] body;
+        final InternalHTTPRequestBase request;
+
+        QueuedWrite(byte[] header, byte[] body, InternalHTTPRequestBase request) {
+            this.header = header;
+            this.body = body;
+            this.request = request;
+        }
+    }
     
     /** Open a socket using the given factory to the specified URI.  Returns
      * immediately.  If a connection error occurs, it will be reported on the first
-     * call to read(). */
+     * call to read().  tracer may be null. */
     public NonBlockingSocket(URI uri, SocketFactory factory,
-            BOSHClientSocketConnectorFactory socketConnectorFactory, SSLConnector sslConnector) {
+            BOSHClientSocketConnectorFactory socketConnectorFactory, SSLConnector sslConnector,
+            BOSHClientTracer tracer) {
         this.uri = uri;
         this.sslConnector = sslConnector;
+        this.tracer = tracer;
 
         try {
             socket = factory.createSocket();
@@ -536,11 +590,12 @@ class NonBlockingSocket {
         thread.start();
     }
 
-    /** Write the given data to the socket.  Returns immediately.  If an error occurs,
-     * it will be reported on the next call to read(). */ 
-    public void write(byte[] data) {
+    /** Write the given header and body to the socket.  Returns immediately.  If an error
+     * occurs, it will be reported on the next call to read().  request.requestWritten is
+     * called from the socket thread once the data has been written. */ 
+    public void write(byte[] header, byte[] body, InternalHTTPRequestBase request) {
         try {
-            queuedPackets.put(data);
+            queuedPackets.put(new QueuedWrite(header, body, request));
         } catch (InterruptedException e) {
             // Our queue isn't bounded, so put() can never block to be interrupted.
             throw new RuntimeException("Unexpected interrupt", e);
@@ -579,6 +634,24 @@ class NonBlockingSocket {
         return inputStream.read(inputBuffer, inputBufferAvail, bytesToRead);
     }
 
+    /** Return the number of bytes which can be read without blocking.  Returns 1 if
+     * the connection has failed or closed, since read() will not block. */
+    public int available() {
+        InputStream stream;
+        synchronized(this) {
+            if(closed || error != null)
+                return 1;
+            stream = inputStream;
+        }
+        if(stream == null)
+            return 0;
+        try {
+            return stream.available();
+        } catch(IOException e) {
+            return 1;
+        }
+    }
+
     /* If the connection was closed due to an error, return the IOException that
      * caused it.  If the connection was closed explicitly by close(), returns null. */
     public IOException getError() {
@@ -649,18 +722,34 @@ class NonBlockingSocket {
         
         try {
             // Connect the socket.  This is blocking, and can be cancelled by calling socketConnector.cancel().
+            long start = tracer != null? System.nanoTime():0;
             socketConnector.connectSocket(uri.getHost(), uri.getPort());
+            if(tracer != null)
+                tracer.connectionOpened(uri.getHost(), uri.getPort(), start, System.nanoTime());
 
             // If this is an HTTPS connection, attach TLS.
             if(uri.getScheme().equalsIgnoreCase("https")) {
+                start = tracer != null? System.nanoTime():0;
                 SSLSocket sslSocket = sslConnector.attachSSLConnection(socket, uri.getHost(), uri.getPort());
                 socket = sslSocket;
 
                 sslSocket.startHandshake();
+                if(tracer != null)
+                    tracer.handshakeCompleted(uri.getHost(), uri.getPort(), start, System.nanoTime());
             }
 
+            // Requests are written as a header followed by a body.  Buffer them so
+            // that small requests, and requests queued together, go out in one
+            // segment; larger bodies are written straight through.  Disable Nagle's
+            // algorithm, so the end of a request isn't held back waiting for the
+            // server to acknowledge its start.
+            try {
+                socket.setTcpNoDelay(true);
+            } catch(SocketException e) {
+                // Not every socket supports it; requests are still sent.
+            }
             newInputStream = socket.getInputStream();
-            outputStream = socket.getOutputStream();
+            outputStream = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
         } catch(IOException e) {
             // LOG.log(Level.WARNING, "exception creating socket");
             if(newInputStream != null) {
@@ -685,11 +774,14 @@ class NonBlockingSocket {
         
         try {
             while(true) {
-                outputStream.write(queuedPackets.take());
+                QueuedWrite queued = queuedPackets.take();
+                outputStream.write(queued.header);
+                outputStream.write(queued.body);
 
                 // Flush the stream if no more data is immediately available.
                 if(queuedPackets.peek() == null)
                     outputStream.flush();
+                queued.request.requestWritten(queued.header.length + queued.body.length);
             }
         } catch(AsynchronousCloseException e) {
             // The thread is being closed.
@@ -22,4 +22,17 @@ interface InternalHTTPRequestBase {
      * requests.
      */
     void requestAborted();
+
+    /**
+     * Called from the connection's writer thread once the request data has
+     * been written to the socket.
+     *
+     * @param length number of bytes written
+     */
+    void requestWritten(int length);
+
+    /**
+     * Called when the first byte of the response to this request is read.
+     */
+    void responseStarted();
 };
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous listener dispatch for a {@code BOSHClient}.  Each listener
+ * has its own bounded queue of events, drained in order on the configured
+ * executor, so that a slow listener delays neither the client's protocol
+ * processing nor the other listeners.
+ * <p/>
+ * Connection events are never dropped and never block: they are queued
+ * even when the queue is full.  Under the {@code BLOCK} policy, a thread
+ * which is itself delivering listener events never waits for a full queue
+ * either, since the executor may need that very thread to drain it.  The
+ * event is queued beyond the capacity instead.
+ */
+final class ListenerDispatcher {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG =
+            Logger.getLogger(ListenerDispatcher.class.getName());
+
+    /**
+     * Message used for unhandled listener exceptions.
+     */
+    private static final String UNHANDLED = "Unhandled Exception";
+
+    /**
+     * Maximum number of events delivered by one executor task before it
+     * yields to other tasks.
+     */
+    private static final int BATCH = 64;
+
+    /**
+     * Listener kind: request listener.
+     */
+    private static final int REQUEST = 0;
+
+    /**
+     * Listener kind: response listener.
+     */
+    private static final int RESPONSE = 1;
+
+    /**
+     * Listener kind: connection listener.
+     */
+    private static final int CONNECTION = 2;
+
+    /**
+     * Listener kind: batch response listener.
+     */
+    private static final int BATCH_RESPONSE = 3;
+
+    /**
+     * Set on threads while they deliver listener events.
+     */
+    private static final ThreadLocal<Boolean> DELIVERING =
+            new ThreadLocal<Boolean>();
+
+    /**
+     * Executor draining the queues.
+     */
+    private final Executor executor;
+
+    /**
+     * Capacity of each listener's queue.
+     */
+    private final int capacity;
+
+    /**
+     * What to do when a queue is full.
+     */
+    private final ListenerOverflowPolicy policy;
+
+    /**
+     * Queues of the request listeners.
+     */
+    private final ConcurrentMap<Object, ListenerQueue> requestQueues =
+            new ConcurrentHashMap<Object, ListenerQueue>();
+
+    /**
+     * Queues of the response listeners.
+     */
+    private final ConcurrentMap<Object, ListenerQueue> responseQueues =
+            new ConcurrentHashMap<Object, ListenerQueue>();
+
+    /**
+     * Queues of the connection listeners.
+     */
+    private final ConcurrentMap<Object, ListenerQueue> connQueues =
+            new ConcurrentHashMap<Object, ListenerQueue>();
+
+    /**
+     * Queues of the batch response listeners.
+     */
+    private final ConcurrentMap<Object, ListenerQueue> batchQueues =
+            new ConcurrentHashMap<Object, ListenerQueue>();
+
+    /**
+     * Number of events currently queued, over all listeners.
+     */
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /**
+     * Highest number of events which have been queued at once.
+     */
+    private final AtomicInteger peakDepth = new AtomicInteger();
+
+    /**
+     * Number of events discarded because a queue was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Bounded queue of the events of one listener.  The queue is scheduled on
+     * the executor whenever it becomes non-empty, and stays scheduled until
+     * it has been drained.  A listener has at most one queue at a time, so
+     * that it is never called concurrently: the queue of a removed listener
+     * stays in place until it has been drained, and is reused if the
+     * listener is added again in the meantime.
+     */
+    private final class ListenerQueue implements Runnable {
+
+        /**
+         * Queues of the listener's kind, which this queue belongs to.
+         */
+        private final ConcurrentMap<Object, ListenerQueue> queues;
+
+        /**
+         * Kind of listener.
+         */
+        private final int kind;
+
+        /**
+         * Listener to deliver to.
+         */
+        private final Object listener;
+
+        /**
+         * Queued events.  Guarded by this instance.
+         */
+        private final LinkedList<Object> events = new LinkedList<Object>();
+
+        /**
+         * Set while a drain task is scheduled or running.  Guarded by this
+         * instance.
+         */
+        private boolean scheduled;
+
+        /**
+         * Set when the listener has been removed, so that the queue is
+         * forgotten once it has been drained.  Guarded by this instance.
+         */
+        private boolean detached;
+
+        /**
+         * Set once the queue has been forgotten.  Events must then be added
+         * to a new queue.  Guarded by this instance.
+         */
+        private boolean retired;
+
+        /**
+         * Create a new queue.
+         *
+         * @param owner queues of the listener's kind
+         * @param listenerKind kind of listener
+         * @param target listener to deliver to
+         */
+        ListenerQueue(
+                final ConcurrentMap<Object, ListenerQueue> owner,
+                final int listenerKind,
+                final Object target) {
+            queues = owner;
+            kind = listenerKind;
+            listener = target;
+        }
+
+        /**
+         * Queue an event, applying the overflow policy if the queue is full
+         * and the event is not a connection event.  An event for a detached
+         * queue means the listener has been added again, so the queue is
+         * kept.
+         *
+         * @param event event to queue
+         * @return {@code false} if the queue has been retired and the event
+         *  must be added to a new queue, {@code true} otherwise
+         */
+        boolean add(final Object event) {
+            boolean submit = false;
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                detached = false;
+                while (kind != CONNECTION && events.size() >= capacity) {
+                    if (policy == ListenerOverflowPolicy.DROP_NEWEST) {
+                        dropped.incrementAndGet();
+                        return true;
+                    } else if (policy == ListenerOverflowPolicy.DROP_OLDEST) {
+                        events.removeFirst();
+                        depth.decrementAndGet();
+                        dropped.incrementAndGet();
+                    } else if (DELIVERING.get() != null) {
+                        break;
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException intx) {
+                            Thread.currentThread().interrupt();
+                            dropped.incrementAndGet();
+                            return true;
+                        }
+                    }
+                }
+                events.add(event);
+                int current = depth.incrementAndGet();
+                int peak;
+                while (current > (peak = peakDepth.get())) {
+                    if (peakDepth.compareAndSet(peak, current)) {
+                        break;
+                    }
+                }
+                if (!scheduled) {
+                    scheduled = true;
+                    submit = true;
+                }
+            }
+            if (submit) {
+                submit();
+            }
+            return true;
+        }
+
+        /**
+         * Detach the queue of a listener which has been removed, forgetting
+         * it at once if it is idle.
+         */
+        synchronized void detach() {
+            detached = true;
+            if (!scheduled) {
+                retire();
+            }
+        }
+
+        /**
+         * Deliver up to one batch of events.
+         */
+        public void run() {
+            Boolean outer = DELIVERING.get();
+            DELIVERING.set(Boolean.TRUE);
+            try {
+                for (int i = 0; i < BATCH; i++) {
+                    Object event;
+                    synchronized (this) {
+                        event = events.poll();
+                        if (event == null) {
+                            scheduled = false;
+                            if (detached) {
+                                retire();
+                            }
+                            return;
+                        }
+                        depth.decrementAndGet();
+                        notifyAll();
+                    }
+                    deliver(event);
+                }
+            } finally {
+                if (outer == null) {
+                    DELIVERING.remove();
+                }
+            }
+            submit();
+        }
+
+        /**
+         * Schedule a drain task.  If the executor refuses it, the queued
+         * events can never be delivered and are discarded.
+         */
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException rex) {
+                LOG.log(Level.FINEST, "Could not dispatch listener events",
+                        rex);
+                synchronized (this) {
+                    int count = events.size();
+                    events.clear();
+                    depth.addAndGet(-count);
+                    dropped.addAndGet(count);
+                    scheduled = false;
+                    if (detached) {
+                        retire();
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Forget the queue.  Must be called while synchronized on this
+         * instance.
+         */
+        private void retire() {
+            retired = true;
+            queues.remove(listener, this);
+        }
+
+        /**
+         * Deliver one event to the listener.
+         *
+         * @param event event to deliver
+         */
+        private void deliver(final Object event) {
+            try {
+                switch (kind) {
+                case REQUEST:
+                    ((BOSHClientRequestListener) listener).requestSent(
+                            (BOSHMessageEvent) event);
+                    break;
+                case RESPONSE:
+                    ((BOSHClientResponseListener) listener).responseReceived(
+                            (BOSHMessageEvent) event);
+                    break;
+                case BATCH_RESPONSE:
+                    ((BOSHClientBatchListener) listener).responsesReceived(
+                            (BOSHMessageBatchEvent) event);
+                    break;
+                default:
+                    ((BOSHClientConnListener) listener).connectionEvent(
+                            (BOSHClientConnEvent) event);
+                    break;
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, UNHANDLED, ex);
+            }
+        }
+
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors:
+
+    /**
+     * Create a new dispatcher.
+     *
+     * @param exec executor to deliver events on
+     * @param queueCapacity capacity of each listener's queue
+     * @param overflowPolicy what to do when a queue is full
+     */
+    ListenerDispatcher(
+            final Executor exec,
+            final int queueCapacity,
+            final ListenerOverflowPolicy overflowPolicy) {
+        executor = exec;
+        capacity = queueCapacity;
+        policy = overflowPolicy;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Queue a request sent event.
+     *
+     * @param listener listener to notify
+     * @param event event to deliver
+     */
+    void requestSent(
+            final BOSHClientRequestListener listener,
+            final BOSHMessageEvent event) {
+        dispatch(requestQueues, REQUEST, listener, event);
+    }
+
+    /**
+     * Queue a response received event.
+     *
+     * @param listener listener to notify
+     * @param event event to deliver
+     */
+    void responseReceived(
+            final BOSHClientResponseListener listener,
+            final BOSHMessageEvent event) {
+        dispatch(responseQueues, RESPONSE, listener, event);
+    }
+
+    /**
+     * Queue a connection event.
+     *
+     * @param listener listener to notify
+     * @param event event to deliver
+     */
+    void connectionEvent(
+            final BOSHClientConnListener listener,
+            final BOSHClientConnEvent event) {
+        dispatch(connQueues, CONNECTION, listener, event);
+    }
+
+    /**
+     * Queue a batch of response received events.
+     *
+     * @param listener listener to notify
+     * @param event event to deliver
+     */
+    void responsesReceived(
+            final BOSHClientBatchListener listener,
+            final BOSHMessageBatchEvent event) {
+        dispatch(batchQueues, BATCH_RESPONSE, listener, event);
+    }
+
+    /**
+     * Forget the queue of a request listener which has been removed.
+     * Events already queued are still delivered first.
+     *
+     * @param listener listener removed
+     */
+    void removeRequestListener(final BOSHClientRequestListener listener) {
+        detach(requestQueues, listener);
+    }
+
+    /**
+     * Forget the queue of a response listener which has been removed.
+     * Events already queued are still delivered first.
+     *
+     * @param listener listener removed
+     */
+    void removeResponseListener(final BOSHClientResponseListener listener) {
+        detach(responseQueues, listener);
+    }
+
+    /**
+     * Forget the queue of a connection listener which has been removed.
+     * Events already queued are still delivered first.
+     *
+     * @param listener listener removed
+     */
+    void removeConnListener(final BOSHClientConnListener listener) {
+        detach(connQueues, listener);
+    }
+
+    /**
+     * Forget the queue of a batch listener which has been removed.  Events
+     * already queued are still delivered first.
+     *
+     * @param listener listener removed
+     */
+    void removeBatchListener(final BOSHClientBatchListener listener) {
+        detach(batchQueues, listener);
+    }
+
+    /**
+     * Get the number of events currently queued, over all listeners.
+     *
+     * @return queue depth
+     */
+    int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Get the highest number of events which have been queued at once.
+     *
+     * @return peak queue depth
+     */
+    int getPeakDepth() {
+        return peakDepth.get();
+    }
+
+    /**
+     * Get the number of events discarded because a queue was full or the
+     * executor refused to run.
+     *
+     * @return dropped event count
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Queue an event on the queue of a listener, creating the queue if
+     * necessary.
+     *
+     * @param queues queues of the listener's kind
+     * @param kind kind of listener
+     * @param listener listener
+     * @param event event to queue
+     */
+    private void dispatch(
+            final ConcurrentMap<Object, ListenerQueue> queues,
+            final int kind,
+            final Object listener,
+            final Object event) {
+        while (true) {
+            ListenerQueue queue = queues.get(listener);
+            if (queue == null) {
+                queue = new ListenerQueue(queues, kind, listener);
+                ListenerQueue existing = queues.putIfAbsent(listener, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            if (queue.add(event)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Detach the queue of a removed listener.  The queue is forgotten once
+     * its remaining events have been delivered.
+     *
+     * @param queues queues of the listener's kind
+     * @param listener listener removed
+     */
+    private void detach(
+            final ConcurrentMap<Object, ListenerQueue> queues,
+            final Object listener) {
+        ListenerQueue queue = queues.get(listener);
+        if (queue != null) {
+            queue.detach();
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+/**
+ * What a {@code BOSHClient} does with a request or response listener event
+ * when asynchronous listener dispatch is enabled and the listener's queue
+ * is full.  Connection events are always queued.  See
+ * {@link BOSHClientConfig.Builder#setListenerExecutor(java.util.concurrent.Executor)}.
+ */
+public enum ListenerOverflowPolicy {
+
+    /**
+     * Block the client thread delivering the event until the listener has
+     * caught up.  No events are lost, but a listener which falls behind by
+     * more than the queue capacity stalls the session.  A listener which
+     * sends messages from its callback is never blocked, since it may be
+     * running on the thread needed to drain the queue; its events are
+     * queued beyond the capacity instead.
+     */
+    BLOCK,
+
+    /**
+     * Discard the new event.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest event waiting in the queue to make room for the new
+     * one.
+     */
+    DROP_OLDEST
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+/**
+ * A single top-level child element of a BOSH message's {@code body}
+ * wrapper element, such as an XMPP stanza.  Payload elements are obtained
+ * from {@link AbstractBody#getPayloadElements()} and refer to the range of
+ * the message XML they were found in, so no copy of their content is made
+ * until one is requested.
+ * <p/>
+ * Namespaces declared on the wrapper element remain in scope in the payload
+ * elements.  {@link #toXML()} therefore adds those declarations which the
+ * element does not itself redeclare, so that the resulting XML can be
+ * parsed on its own.  {@link #getRawXML()} returns the element exactly as
+ * it appeared in the message.
+ * <p/>
+ * Instances of this class are immutable and thread-safe.
+ */
+public final class PayloadElement {
+
+    /**
+     * Message XML the element was found in.
+     */
+    private final String source;
+
+    /**
+     * Offset of the element's start tag within the message XML.
+     */
+    private final int start;
+
+    /**
+     * Offset just past the element's end tag within the message XML.
+     */
+    private final int end;
+
+    /**
+     * Offset just past the element's name in its start tag.
+     */
+    private final int nameEnd;
+
+    /**
+     * Namespace URI of the element.
+     */
+    private final String namespaceURI;
+
+    /**
+     * Local name of the element.
+     */
+    private final String localName;
+
+    /**
+     * Namespace declarations inherited from the wrapper element, each
+     * preceded by a space, or {@code null} if there are none.
+     */
+    private final String inherited;
+
+    /**
+     * Standalone XML of the element, computed on first use.
+     */
+    private volatile String xml;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Prevent construction apart from by the splitter.
+     *
+     * @param sourceXML message XML the element was found in
+     * @param startOffset offset of the element's start tag
+     * @param endOffset offset just past the element's end tag
+     * @param nameEndOffset offset just past the element's name
+     * @param uri namespace URI of the element
+     * @param name local name of the element
+     * @param inheritedDecls namespace declarations to add to the start tag
+     *  of the standalone XML, or {@code null}
+     */
+    PayloadElement(
+            final String sourceXML,
+            final int startOffset,
+            final int endOffset,
+            final int nameEndOffset,
+            final String uri,
+            final String name,
+            final String inheritedDecls) {
+        source = sourceXML;
+        start = startOffset;
+        end = endOffset;
+        nameEnd = nameEndOffset;
+        namespaceURI = uri;
+        localName = name;
+        inherited = inheritedDecls;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public methods:
+
+    /**
+     * Get the namespace URI of the element.
+     *
+     * @return namespace URI, or the empty string if the element is in no
+     *  namespace
+     */
+    public String getNamespaceURI() {
+        return namespaceURI;
+    }
+
+    /**
+     * Get the local name of the element.
+     *
+     * @return local name
+     */
+    public String getLocalName() {
+        return localName;
+    }
+
+    /**
+     * Get the offset of the element's start tag within the XML of the
+     * message it was found in, as returned by {@link AbstractBody#toXML()}.
+     *
+     * @return offset of the first character of the element
+     */
+    public int getStartOffset() {
+        return start;
+    }
+
+    /**
+     * Get the offset just past the element's end tag within the XML of the
+     * message it was found in.
+     *
+     * @return offset of the character following the element
+     */
+    public int getEndOffset() {
+        return end;
+    }
+
+    /**
+     * Get the element exactly as it appeared in the message, without the
+     * namespace declarations it inherits from the wrapper element.
+     *
+     * @return raw element XML
+     */
+    public String getRawXML() {
+        return source.substring(start, end);
+    }
+
+    /**
+     * Get the element as standalone XML, including the namespace
+     * declarations it inherits from the wrapper element.
+     *
+     * @return element XML
+     */
+    public String toXML() {
+        String result = xml;
+        if (result == null) {
+            if (inherited == null) {
+                result = getRawXML();
+            } else {
+                StringBuilder builder = new StringBuilder(
+                        end - start + inherited.length());
+                builder.append(source, start, nameEnd);
+                builder.append(inherited);
+                builder.append(source, nameEnd, end);
+                result = builder.toString();
+            }
+            xml = result;
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return toXML();
+    }
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.XMLConstants;
+
+/**
+ * Splits the XML of a BOSH message into its top-level payload elements in a
+ * single pass, without building a document or reporting the content of the
+ * elements.  Only as much of the markup is examined as is needed to find
+ * element boundaries and the namespace declarations in scope: comments,
+ * CDATA sections and processing instructions are skipped, and quoted
+ * attribute values are honored when looking for the end of a tag.
+ * <p/>
+ * The message is assumed to have already passed the body parser, so only
+ * errors which prevent splitting are reported.
+ */
+final class PayloadSplitter {
+
+    /**
+     * Prefix of namespace declaration attributes.
+     */
+    private static final String XMLNS = XMLConstants.XMLNS_ATTRIBUTE;
+
+    /**
+     * Message XML being split.
+     */
+    private final String xml;
+
+    /**
+     * Current scanning position.
+     */
+    private int pos;
+
+    /**
+     * The parts of a start tag needed to split the message.
+     */
+    private static final class Tag {
+
+        /**
+         * Offset of the tag's opening angle bracket.
+         */
+        private int start;
+
+        /**
+         * Namespace prefix of the element name, or the empty string if it
+         * has none.
+         */
+        private String prefix;
+
+        /**
+         * Local part of the element name.
+         */
+        private String localName;
+
+        /**
+         * Offset just past the element name.
+         */
+        private int nameEnd;
+
+        /**
+         * Whether the tag is an empty-element tag.
+         */
+        private boolean empty;
+
+        /**
+         * Namespace declarations of the tag, mapping prefixes to the
+         * declaration as it appeared in the tag.
+         */
+        private Map<String, String> decls;
+
+        /**
+         * Namespace URIs declared by the tag, by prefix.
+         */
+        private Map<String, String> uris;
+
+        /**
+         * Record a namespace declaration.
+         *
+         * @param declPrefix declared prefix, or the empty string for the
+         *  default namespace
+         * @param raw declaration as it appeared in the tag
+         * @param uri declared namespace URI
+         */
+        void declare(
+                final String declPrefix,
+                final String raw,
+                final String uri) {
+            if (decls == null) {
+                decls = new LinkedHashMap<String, String>();
+                uris = new LinkedHashMap<String, String>();
+            }
+            decls.put(declPrefix, raw);
+            uris.put(declPrefix, uri);
+        }
+
+        /**
+         * Get the namespace URI this tag declares for a prefix.
+         *
+         * @param uriPrefix prefix to look up
+         * @return declared URI, or {@code null} if not declared by this tag
+         */
+        String getURI(final String uriPrefix) {
+            return uris == null ? null : uris.get(uriPrefix);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Prevent construction apart from by {@link #split(String)}.
+     *
+     * @param message message XML to split
+     */
+    private PayloadSplitter(final String message) {
+        xml = message;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private static methods:
+
+    /**
+     * Split a BOSH message into its top-level payload elements.
+     *
+     * @param message message XML
+     * @return unmodifiable list of payload elements, in document order
+     * @throws BOSHException if the message could not be split
+     */
+    static List<PayloadElement> split(final String message)
+    throws BOSHException {
+        return new PayloadSplitter(message).splitBody();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Split the message.
+     *
+     * @return unmodifiable list of payload elements
+     * @throws BOSHException if the message could not be split
+     */
+    private List<PayloadElement> splitBody() throws BOSHException {
+        Tag root = nextStartTag();
+        if (root == null) {
+            throw(fail("No wrapper element"));
+        }
+        BodyQName bodyName = AbstractBody.getBodyQName();
+        if (!bodyName.getLocalPart().equals(root.localName)
+                || !bodyName.getNamespaceURI().equals(resolve(root, null))) {
+            throw(fail("Wrapper element was not '"
+                    + bodyName.getLocalPart() + "' in the '"
+                    + bodyName.getNamespaceURI() + "' namespace"));
+        }
+        if (root.empty) {
+            return Collections.emptyList();
+        }
+
+        List<PayloadElement> result = new ArrayList<PayloadElement>();
+        while (true) {
+            Tag tag = nextStartTag();
+            if (tag == null) {
+                break;
+            }
+            if (!tag.empty) {
+                skipContent();
+            }
+            result.add(new PayloadElement(xml, tag.start, pos, tag.nameEnd,
+                    resolve(tag, root), tag.localName, inherit(tag, root)));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Advance to and read the next start tag at the current depth, skipping
+     * any text, comments, CDATA sections and processing instructions before
+     * it.
+     *
+     * @return start tag read, or {@code null} if an end tag was reached
+     *  first, in which case the end tag is consumed
+     * @throws BOSHException if the message ends first
+     */
+    private Tag nextStartTag() throws BOSHException {
+        while (true) {
+            pos = indexOf("<", pos);
+            if (skipSpecial()) {
+                continue;
+            }
+            if (xml.startsWith("</", pos)) {
+                pos = indexOf(">", pos) + 1;
+                return null;
+            }
+            return readStartTag();
+        }
+    }
+
+    /**
+     * Skip the content and end tag of the element whose start tag was just
+     * read.
+     *
+     * @throws BOSHException if the message ends first
+     */
+    private void skipContent() throws BOSHException {
+        int depth = 1;
+        while (depth > 0) {
+            pos = indexOf("<", pos);
+            if (skipSpecial()) {
+                continue;
+            }
+            if (xml.startsWith("</", pos)) {
+                pos = indexOf(">", pos) + 1;
+                depth--;
+            } else if (!skipTag()) {
+                depth++;
+            }
+        }
+    }
+
+    /**
+     * Skip a comment, CDATA section, processing instruction or document type
+     * declaration at the current position.
+     *
+     * @return {@code true} if one was skipped, {@code false} if the current
+     *  position is not at one
+     * @throws BOSHException if the message ends first
+     */
+    private boolean skipSpecial() throws BOSHException {
+        if (xml.startsWith("<!--", pos)) {
+            pos = indexOf("-->", pos + 4) + 3;
+        } else if (xml.startsWith("<![CDATA[", pos)) {
+            pos = indexOf("]]>", pos + 9) + 3;
+        } else if (xml.startsWith("<?", pos)) {
+            pos = indexOf("?>", pos + 2) + 2;
+        } else if (xml.startsWith("<!", pos)) {
+            pos = indexOf(">", pos + 2) + 1;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Skip the start tag at the current position.
+     *
+     * @return {@code true} if the tag was an empty element tag
+     * @throws BOSHException if the message ends first
+     */
+    private boolean skipTag() throws BOSHException {
+        int idx = pos + 1;
+        int len = xml.length();
+        while (idx < len) {
+            char ch = xml.charAt(idx);
+            if (ch == '\'' || ch == '"') {
+                idx = indexOf(String.valueOf(ch), idx + 1);
+            } else if (ch == '>') {
+                pos = idx + 1;
+                return xml.charAt(idx - 1) == '/';
+            }
+            idx++;
+        }
+        throw(fail("Unterminated tag"));
+    }
+
+    /**
+     * Read the start tag at the current position, recording its name and
+     * namespace declarations.
+     *
+     * @return start tag
+     * @throws BOSHException if the tag is malformed
+     */
+    private Tag readStartTag() throws BOSHException {
+        Tag tag = new Tag();
+        tag.start = pos;
+        int nameStart = pos + 1;
+        pos = skipName(nameStart);
+        tag.nameEnd = pos;
+        // Only search the name itself, not the rest of the message
+        int colon = nameStart;
+        while (colon < pos && xml.charAt(colon) != ':') {
+            colon++;
+        }
+        if (colon < pos) {
+            tag.prefix = xml.substring(nameStart, colon);
+            tag.localName = xml.substring(colon + 1, pos);
+        } else {
+            tag.prefix = XMLConstants.DEFAULT_NS_PREFIX;
+            tag.localName = xml.substring(nameStart, pos);
+        }
+        if (tag.localName.length() == 0) {
+            throw(fail("Missing element name"));
+        }
+
+        while (true) {
+            skipWhitespace();
+            if (xml.startsWith(">", pos)) {
+                pos++;
+                return tag;
+            }
+            if (xml.startsWith("/>", pos)) {
+                pos += 2;
+                tag.empty = true;
+                return tag;
+            }
+            int attrStart = pos;
+            int attrEnd = skipName(attrStart);
+            if (attrEnd == attrStart) {
+                throw(fail("Missing attribute name"));
+            }
+            pos = attrEnd;
+            skipWhitespace();
+            if (!xml.startsWith("=", pos)) {
+                throw(fail("Missing attribute value"));
+            }
+            pos++;
+            skipWhitespace();
+            char quote = pos < xml.length() ? xml.charAt(pos) : 0;
+            if (quote != '\'' && quote != '"') {
+                throw(fail("Unquoted attribute value"));
+            }
+            int valueEnd = indexOf(String.valueOf(quote), pos + 1);
+            if (xml.startsWith(XMLNS, attrStart)) {
+                String declPrefix;
+                if (attrEnd == attrStart + XMLNS.length()) {
+                    declPrefix = XMLConstants.DEFAULT_NS_PREFIX;
+                } else if (xml.charAt(attrStart + XMLNS.length()) == ':') {
+                    declPrefix = xml.substring(
+                            attrStart + XMLNS.length() + 1, attrEnd);
+                } else {
+                    declPrefix = null;
+                }
+                if (declPrefix != null) {
+                    tag.declare(declPrefix,
+                            xml.substring(attrStart, valueEnd + 1),
+                            unescape(xml.substring(pos + 1, valueEnd)));
+                }
+            }
+            pos = valueEnd + 1;
+        }
+    }
+
+    /**
+     * Find the end of the name starting at the specified offset.
+     *
+     * @param from offset of the first character of the name
+     * @return offset just past the name
+     */
+    private int skipName(final int from) {
+        int idx = from;
+        int len = xml.length();
+        while (idx < len) {
+            char ch = xml.charAt(idx);
+            if (Character.isWhitespace(ch)
+                    || ch == '=' || ch == '>' || ch == '/') {
+                break;
+            }
+            idx++;
+        }
+        return idx;
+    }
+
+    /**
+     * Advance past any whitespace at the current position.
+     */
+    private void skipWhitespace() {
+        int len = xml.length();
+        while (pos < len && Character.isWhitespace(xml.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * Find the next occurrence of a string.
+     *
+     * @param str string to find
+     * @param from offset to start searching at
+     * @return offset of the string
+     * @throws BOSHException if the string does not occur
+     */
+    private int indexOf(final String str, final int from)
+    throws BOSHException {
+        int idx = xml.indexOf(str, from);
+        if (idx < 0) {
+            throw(fail("Unexpected end of message"));
+        }
+        return idx;
+    }
+
+    /**
+     * Resolve the namespace URI of an element.
+     *
+     * @param tag start tag of the element
+     * @param root start tag of the wrapper element, or {@code null} if the
+     *  element is the wrapper element
+     * @return namespace URI
+     * @throws BOSHException if the element's prefix is not bound
+     */
+    private String resolve(final Tag tag, final Tag root)
+    throws BOSHException {
+        String uri = tag.getURI(tag.prefix);
+        if (uri == null && root != null) {
+            uri = root.getURI(tag.prefix);
+        }
+        if (uri == null) {
+            if (tag.prefix.length() == 0) {
+                uri = XMLConstants.NULL_NS_URI;
+            } else if (XMLConstants.XML_NS_PREFIX.equals(tag.prefix)) {
+                uri = XMLConstants.XML_NS_URI;
+            } else {
+                throw(fail("Unbound prefix: " + tag.prefix));
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Build the namespace declarations of the wrapper element which a
+     * payload element does not itself redeclare.
+     *
+     * @param tag start tag of the payload element
+     * @param root start tag of the wrapper element
+     * @return declarations, each preceded by a space, or {@code null} if
+     *  there are none
+     */
+    private static String inherit(final Tag tag, final Tag root) {
+        if (root.decls == null) {
+            return null;
+        }
+        StringBuilder builder = null;
+        for (Map.Entry<String, String> entry : root.decls.entrySet()) {
+            if (tag.decls != null && tag.decls.containsKey(entry.getKey())) {
+                continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder();
+            }
+            builder.append(' ').append(entry.getValue());
+        }
+        return builder == null ? null : builder.toString();
+    }
+
+    /**
+     * Replace the predefined entity references and the character references
+     * in an attribute value.  Unrecognized references are left as they are.
+     *
+     * @param value attribute value as it appeared in the message
+     * @return attribute value
+     */
+    private static String unescape(final String value) {
+        int amp = value.indexOf('&');
+        if (amp < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        int from = 0;
+        while (amp >= 0) {
+            int semi = value.indexOf(';', amp);
+            if (semi < 0) {
+                break;
+            }
+            String replacement = resolveReference(
+                    value.substring(amp + 1, semi));
+            if (replacement == null) {
+                amp = value.indexOf('&', amp + 1);
+            } else {
+                result.append(value, from, amp).append(replacement);
+                from = semi + 1;
+                amp = value.indexOf('&', from);
+            }
+        }
+        result.append(value, from, value.length());
+        return result.toString();
+    }
+
+    /**
+     * Resolve a predefined entity reference or a decimal or hexadecimal
+     * character reference.
+     *
+     * @param ref reference without its leading ampersand and trailing
+     *  semicolon
+     * @return replacement text, or {@code null} if the reference is not
+     *  recognized
+     */
+    private static String resolveReference(final String ref) {
+        if (ref.startsWith("#")) {
+            int codePoint;
+            try {
+                if (ref.startsWith("#x")) {
+                    codePoint = Integer.parseInt(ref.substring(2), 16);
+                } else {
+                    codePoint = Integer.parseInt(ref.substring(1));
+                }
+            } catch (NumberFormatException nfx) {
+                return null;
+            }
+            if (!Character.isValidCodePoint(codePoint)) {
+                return null;
+            }
+            return new String(Character.toChars(codePoint));
+        } else if ("lt".equals(ref)) {
+            return "<";
+        } else if ("gt".equals(ref)) {
+            return ">";
+        } else if ("quot".equals(ref)) {
+            return "\"";
+        } else if ("apos".equals(ref)) {
+            return "'";
+        } else if ("amp".equals(ref)) {
+            return "&";
+        }
+        return null;
+    }
+
+    /**
+     * Create the exception describing a message which could not be split.
+     *
+     * @param msg description of the problem
+     * @return exception instance
+     */
+    private BOSHException fail(final String msg) {
+        return new BOSHException(
+                "Could not split payload at offset " + pos + ": " + msg);
+    }
+
+}
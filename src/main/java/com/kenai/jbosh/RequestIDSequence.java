@@ -94,6 +94,29 @@ final class RequestIDSequence {
         return nextRequestID.getAndIncrement();
     }
 
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Get the request ID which the next call to {@link #getNextRID()} will
+     * return, without using it.
+     *
+     * @return next request ID value
+     */
+    long peekNextRID() {
+        return nextRequestID.get();
+    }
+
+    /**
+     * Continue the sequence of another session.
+     *
+     * @param rid request ID for the next call to {@link #getNextRID()} to
+     *  return
+     */
+    void setNextRID(final long rid) {
+        nextRequestID.set(rid);
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     // Private methods:
 
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Requests which have been sent but not yet acknowledged by the connection
+ * manager, kept so that they can be sent again.  Each request is stored
+ * only in its serialized form, optionally compressed, and is rebuilt into a
+ * {@code ComposableBody} when it needs to be resent or reported.  This
+ * avoids keeping the attribute map, payload and computed XML of every
+ * request alive for as long as it is awaiting acknowledgement.  While the
+ * request is in flight, its uncompressed serialized form is shared with
+ * the request body, which the sender writes it from.
+ * <p/>
+ * The buffer has a soft limit on the number of bytes it holds.  It never
+ * refuses a request, but reports itself full once the limit is reached so
+ * that the client can hold back further requests.
+ * <p/>
+ * Instances of this class are <b>not</b> thread-safe.  They are accessed
+ * while holding the lock of the {@code BOSHClient} owning them.
+ */
+final class ResendBuffer {
+
+    /**
+     * Requests smaller than this number of bytes are not compressed, since
+     * the overhead of the compressed format outweighs any savings.
+     */
+    private static final int COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * A stored request.
+     */
+    private static final class Entry {
+
+        /**
+         * Request ID of the request.
+         */
+        private final long rid;
+
+        /**
+         * UTF-8 encoded XML of the request, compressed if
+         * {@code compressed} is set.
+         */
+        private final byte[] data;
+
+        /**
+         * Flag indicating that {@code data} is ZLIB compressed.
+         */
+        private final boolean compressed;
+
+        /**
+         * Create a new entry.
+         *
+         * @param requestID request ID of the request
+         * @param bytes stored form of the request
+         * @param zip {@code true} if the stored form is compressed
+         */
+        Entry(final long requestID, final byte[] bytes, final boolean zip) {
+            rid = requestID;
+            data = bytes;
+            compressed = zip;
+        }
+    }
+
+    /**
+     * Stored requests, in the order they were sent.
+     */
+    private final List<Entry> entries = new LinkedList<Entry>();
+
+    /**
+     * Buffer requests are serialized into before being copied.
+     */
+    private final ByteOutputBuffer scratch = new ByteOutputBuffer();
+
+    /**
+     * Number of bytes at which the buffer is considered full.
+     */
+    private final int limit;
+
+    /**
+     * Flag indicating that large requests should be compressed.
+     */
+    private final boolean compress;
+
+    /**
+     * Number of bytes currently stored.
+     */
+    private long bytes;
+
+    /**
+     * Largest number of bytes stored at once.
+     */
+    private long peakBytes;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Create an empty buffer.
+     *
+     * @param byteLimit number of bytes at which the buffer is full
+     * @param compressionEnabled {@code true} to compress large requests
+     */
+    ResendBuffer(final int byteLimit, final boolean compressionEnabled) {
+        limit = byteLimit;
+        compress = compressionEnabled;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Store a request.
+     *
+     * @param request request to store
+     * @return UTF-8 encoded XML of the request.  Unless the request was
+     *  compressed, this is the array stored, which must not be modified.
+     */
+    byte[] add(final AbstractBody request) {
+        scratch.reset(Integer.MAX_VALUE);
+        request.writeTo(scratch);
+        byte[] encoded = scratch.toByteArray();
+        byte[] data = encoded;
+        boolean compressed = false;
+        if (compress && data.length >= COMPRESSION_THRESHOLD) {
+            try {
+                byte[] zipped = ZLIBCodec.encode(data);
+                if (zipped.length < data.length) {
+                    data = zipped;
+                    compressed = true;
+                }
+            } catch (IOException iox) {
+                // Store it uncompressed
+            }
+        }
+        scratch.reset(COMPRESSION_THRESHOLD * 8);
+        entries.add(new Entry(request.getRequestID(), data, compressed));
+        bytes += data.length;
+        if (bytes > peakBytes) {
+            peakBytes = bytes;
+        }
+        return encoded;
+    }
+
+    /**
+     * Get the request ID of a stored request.  Requests are stored in the
+     * order they were added.
+     *
+     * @param index position of the request, counting from the oldest
+     * @return request ID of the request, or {@code -1} if fewer requests are
+     *  stored
+     */
+    long getRequestID(final int index) {
+        if (index >= entries.size()) {
+            return -1L;
+        }
+        return entries.get(index).rid;
+    }
+
+    /**
+     * Remove a stored request.
+     *
+     * @param index position of the request, counting from the oldest
+     */
+    void remove(final int index) {
+        Entry entry = entries.remove(index);
+        bytes -= entry.data.length;
+    }
+
+    /**
+     * Rebuild a stored request.
+     *
+     * @param rid request ID of the request
+     * @return rebuilt request, or {@code null} if it is not stored
+     * @throws BOSHException if the request could not be rebuilt
+     */
+    ComposableBody get(final long rid) throws BOSHException {
+        for (Entry entry : entries) {
+            if (entry.rid == rid) {
+                return rebuild(entry);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild all stored requests.
+     *
+     * @return rebuilt requests, in the order they were sent
+     * @throws BOSHException if a request could not be rebuilt
+     */
+    List<ComposableBody> getAll() throws BOSHException {
+        List<ComposableBody> result =
+                new ArrayList<ComposableBody>(entries.size());
+        for (Entry entry : entries) {
+            result.add(rebuild(entry));
+        }
+        return result;
+    }
+
+    /**
+     * Remove all stored requests.
+     */
+    void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Get the number of stored requests.
+     *
+     * @return number of requests
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Determine whether no requests are stored.
+     *
+     * @return {@code true} if the buffer is empty
+     */
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Determine whether the buffer has reached its limit.
+     *
+     * @return {@code true} if no further requests should be sent until
+     *  some are acknowledged
+     */
+    boolean isFull() {
+        return bytes >= limit;
+    }
+
+    /**
+     * Get the number of bytes stored.
+     *
+     * @return number of bytes
+     */
+    long getByteCount() {
+        return bytes;
+    }
+
+    /**
+     * Get the largest number of bytes stored at once.
+     *
+     * @return number of bytes
+     */
+    long getPeakByteCount() {
+        return peakBytes;
+    }
+
+    /**
+     * Write the stored requests, in their stored form, for a session
+     * snapshot.
+     *
+     * @param out output to write to
+     * @throws IOException on write failure
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeLong(entry.rid);
+            out.writeBoolean(entry.compressed);
+            out.writeInt(entry.data.length);
+            out.write(entry.data);
+        }
+    }
+
+    /**
+     * Replace the stored requests with those written by
+     * {@link #writeTo(DataOutput)}.
+     *
+     * @param in input to read from
+     * @throws IOException on read failure
+     */
+    void readFrom(final DataInput in) throws IOException {
+        clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long rid = in.readLong();
+            boolean compressed = in.readBoolean();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            entries.add(new Entry(rid, data, compressed));
+            bytes += data.length;
+        }
+        if (bytes > peakBytes) {
+            peakBytes = bytes;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Rebuild the request stored by an entry.
+     *
+     * @param entry entry to rebuild
+     * @return request
+     * @throws BOSHException if the request could not be rebuilt
+     */
+    private static ComposableBody rebuild(final Entry entry)
+    throws BOSHException {
+        byte[] data = entry.data;
+        try {
+            if (entry.compressed) {
+                data = ZLIBCodec.decode(data);
+            }
+            return ComposableBody.fromStaticBody(
+                    StaticBody.fromString(new String(data, "UTF-8")));
+        } catch (IOException iox) {
+            throw(new BOSHException(
+                    "Could not rebuild request " + entry.rid, iox));
+        }
+    }
+
+}
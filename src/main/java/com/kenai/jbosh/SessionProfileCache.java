@@ -0,0 +1,272 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small cache of what has been learned about the links to connection
+ * managers, shared by all {@code BOSHClient} instances.  For each connection
+ * manager URI it keeps the smoothed round trip time of session creation
+ * and the connection losses seen per exchange, from which the {@code hold}
+ * and {@code wait} values of later session creation requests are chosen.
+ * <p/>
+ * Only the most recently used endpoints are kept.  This class is
+ * thread-safe.
+ */
+final class SessionProfileCache {
+
+    /**
+     * Maximum number of endpoints kept.
+     */
+    private static final int MAX_ENTRIES = 64;
+
+    /**
+     * Lazily created cache shared by all clients.
+     */
+    private static SessionProfileCache shared;
+
+    /**
+     * Profiles by connection manager URI, in access order.
+     */
+    private final Map<String, Profile> profiles =
+            new LinkedHashMap<String, Profile>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, Profile> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * What is known about the link to one connection manager.  Instances
+     * are immutable.
+     */
+    static final class Profile {
+
+        /**
+         * Round trip time at or below which the link is treated as a local
+         * network, in milliseconds.
+         */
+        private static final long LOW_RTT = 50;
+
+        /**
+         * Round trip time above which the link is treated as high latency,
+         * in milliseconds.
+         */
+        private static final long HIGH_RTT = 250;
+
+        /**
+         * Longest wait requested on lossy links, in seconds.  Shorter
+         * requests detect dead connections sooner and are less likely to be
+         * dropped by intermediaries.
+         */
+        private static final int LOSSY_WAIT = 30;
+
+        /**
+         * Number of exchanges after which the counts are halved, so that
+         * recent sessions weigh more.
+         */
+        private static final long MAX_EXCHANGES = 1000;
+
+        /**
+         * Round trip time of session creation in milliseconds, averaged
+         * over recent sessions.
+         */
+        private final long rtt;
+
+        /**
+         * Number of exchanges completed, halved along with {@code losses}
+         * once it exceeds {@code MAX_EXCHANGES}.
+         */
+        private final long exchanges;
+
+        /**
+         * Number of connection losses during those exchanges.
+         */
+        private final long losses;
+
+        /**
+         * Create a profile.
+         *
+         * @param rttMillis smoothed round trip time in milliseconds
+         * @param exchangeCount number of exchanges observed
+         * @param lossCount number of connection losses observed
+         */
+        Profile(
+                final long rttMillis,
+                final long exchangeCount,
+                final long lossCount) {
+            rtt = rttMillis;
+            exchanges = exchangeCount;
+            losses = lossCount;
+        }
+
+        /**
+         * Get the smoothed round trip time of session creation.
+         *
+         * @return round trip time in milliseconds
+         */
+        long getRoundTripTime() {
+            return rtt;
+        }
+
+        /**
+         * Determine whether connections to the endpoint are lost often,
+         * once in twenty exchanges or more.
+         *
+         * @return {@code true} if the link is lossy
+         */
+        boolean isLossy() {
+            return losses > 0 && losses * 20 >= exchanges;
+        }
+
+        /**
+         * Choose the {@code hold} value to request.  Lossy and low latency
+         * links hold a single request, since more held requests are lost
+         * together or gain little.  Higher latency links hold more, so that
+         * the connection manager can deliver several responses before the
+         * client's next requests arrive.
+         *
+         * @return hold value
+         */
+        int getHold() {
+            if (isLossy() || rtt <= LOW_RTT) {
+                return 1;
+            } else if (rtt <= HIGH_RTT) {
+                return 2;
+            } else {
+                return 3;
+            }
+        }
+
+        /**
+         * Choose the {@code wait} value to request.
+         *
+         * @param configured configured wait time in seconds
+         * @return wait time in seconds
+         */
+        int getWait(final int configured) {
+            if (isLossy()) {
+                return Math.min(configured, LOSSY_WAIT);
+            }
+            return configured;
+        }
+
+        /**
+         * Create a profile including a new round trip time sample.
+         *
+         * @param rttMillis round trip time in milliseconds
+         * @return new profile
+         */
+        Profile withRoundTripTime(final long rttMillis) {
+            return new Profile((rtt * 3 + rttMillis) / 4, exchanges, losses);
+        }
+
+        /**
+         * Create a profile including the exchanges of a session.
+         *
+         * @param exchangeCount number of exchanges of the session
+         * @param lossCount number of connection losses of the session
+         * @return new profile
+         */
+        Profile withSession(final long exchangeCount, final long lossCount) {
+            long newExchanges = exchanges + exchangeCount;
+            long newLosses = losses + lossCount;
+            while (newExchanges > MAX_EXCHANGES) {
+                newExchanges /= 2;
+                newLosses /= 2;
+            }
+            return new Profile(rtt, newExchanges, newLosses);
+        }
+
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Get the cache shared by all clients, creating it if necessary.
+     *
+     * @return shared cache
+     */
+    static synchronized SessionProfileCache getShared() {
+        if (shared == null) {
+            shared = new SessionProfileCache();
+        }
+        return shared;
+    }
+
+    /**
+     * Get the profile of a connection manager.
+     *
+     * @param uri connection manager URI
+     * @return profile, or {@code null} if nothing is known about it
+     */
+    synchronized Profile get(final URI uri) {
+        return profiles.get(uri.toString());
+    }
+
+    /**
+     * Record the round trip time of a session creation request, from when
+     * the request was written until its response started to arrive.
+     *
+     * @param uri connection manager URI
+     * @param rttMillis round trip time in milliseconds
+     */
+    synchronized void recordRoundTripTime(
+            final URI uri, final long rttMillis) {
+        String key = uri.toString();
+        Profile profile = profiles.get(key);
+        if (profile == null) {
+            profile = new Profile(rttMillis, 0, 0);
+        } else {
+            profile = profile.withRoundTripTime(rttMillis);
+        }
+        profiles.put(key, profile);
+    }
+
+    /**
+     * Record the exchanges and connection losses of a session which has
+     * ended.
+     *
+     * @param uri connection manager URI
+     * @param exchanges number of completed exchanges
+     * @param losses number of connection losses
+     */
+    synchronized void recordSession(
+            final URI uri, final long exchanges, final long losses) {
+        String key = uri.toString();
+        Profile profile = profiles.get(key);
+        if (profile != null) {
+            profiles.put(key, profile.withSession(exchanges, losses));
+        }
+    }
+
+    /**
+     * Forget everything learned.
+     */
+    synchronized void clear() {
+        profiles.clear();
+    }
+
+}
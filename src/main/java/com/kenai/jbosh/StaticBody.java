@@ -130,4 +130,56 @@ final class StaticBody extends AbstractBody {
         return raw;
     }
 
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation does not split the payload.  It only checks
+     * whether an element follows the wrapper element's start tag.
+     */
+    @Override
+    boolean hasPayload() {
+        int pos = raw.indexOf('<');
+        // Skip the XML declaration, comments and processing instructions
+        while (pos >= 0 && pos + 1 < raw.length()
+                && (raw.charAt(pos + 1) == '?' || raw.charAt(pos + 1) == '!')) {
+            int end;
+            if (raw.startsWith("<!--", pos)) {
+                end = raw.indexOf("-->", pos);
+            } else {
+                end = raw.indexOf('>', pos);
+            }
+            if (end < 0) {
+                return true;
+            }
+            pos = raw.indexOf('<', end);
+        }
+        if (pos < 0) {
+            return true;
+        }
+        char quote = 0;
+        for (pos++; pos < raw.length(); pos++) {
+            char ch = raw.charAt(pos);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == '>') {
+                break;
+            }
+        }
+        if (pos >= raw.length()) {
+            return true;
+        }
+        if (raw.charAt(pos - 1) == '/') {
+            return false;
+        }
+        int child = raw.indexOf('<', pos);
+        return child < 0 || !raw.startsWith("</", child);
+    }
+
 }
@@ -0,0 +1,714 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical timing wheel used by {@code BOSHClient} instances for their
+ * session timeouts and empty request scheduling.  Clients using a
+ * {@link BOSHTimerPool} share the pool's wheel, and all other clients share
+ * one wheel created on demand.  Timers are
+ * represented by long-lived {@link Timeout} instances which are rescheduled
+ * and cancelled in constant time without creating any objects, avoiding the
+ * task and queue churn of a {@code ScheduledExecutorService} when many
+ * sessions reset their timers on every response.
+ * <p/>
+ * With {@code n} buckets per level, the fine level holds the timeouts due
+ * in the current run of {@code n} ticks, one bucket per tick.  The coarse
+ * level holds those due later in the current run of {@code n * n} ticks,
+ * one bucket per {@code n} ticks, and an overflow list holds the rest.
+ * When the wheel enters a new coarse bucket's span, that bucket's timeouts
+ * are moved down to the fine level; the overflow list is redistributed
+ * once every {@code n * n} ticks.  Every timeout in a fine bucket is
+ * therefore due when its bucket is reached, and timeouts far in the future
+ * are only touched when they move down a level.
+ * <p/>
+ * A single daemon thread advances the wheel.  Rather than waking on every
+ * tick, it sleeps until the earliest occupied fine bucket, or until the
+ * start of the next occupied coarse bucket, so an idle session's long I/O
+ * timeout costs few wake-ups before it expires.  Finding that tick only
+ * inspects bucket heads, so its cost does not depend on how many timeouts
+ * are scheduled.  Expired timeouts are never run on that thread; they are
+ * handed to the executor the timeout was created with.  A timeout never
+ * expires before its delay has elapsed, but may expire up to one tick (plus
+ * scheduling latency) late.  When no timeouts have been scheduled for a
+ * while the thread exits, and it is started again by the next timeout
+ * scheduled.
+ */
+final class TimerWheel {
+
+    /**
+     * Logger.
+     */
+    private static final Logger LOG =
+            Logger.getLogger(TimerWheel.class.getName());
+
+    /**
+     * Default tick duration, in milliseconds.
+     */
+    private static final int DEFAULT_TICK_MILLIS = 1;
+
+    /**
+     * Default number of buckets per level.  Must be a power of two.
+     */
+    private static final int DEFAULT_BUCKETS = 1024;
+
+    /**
+     * Default time, in milliseconds, after which the thread of a wheel
+     * without any scheduled timeouts exits.
+     */
+    private static final long DEFAULT_IDLE_MILLIS = 10000L;
+
+    /**
+     * Time, in seconds, after which an idle thread of the shared executor
+     * exits.
+     */
+    private static final long EXECUTOR_KEEP_ALIVE = 60L;
+
+    /**
+     * Timeout state: not scheduled.
+     */
+    private static final int IDLE = 0;
+
+    /**
+     * Timeout state: waiting in a bucket for its deadline.
+     */
+    private static final int SCHEDULED = 1;
+
+    /**
+     * Timeout state: expired and handed to the executor, but not yet run.
+     */
+    private static final int EXPIRED = 2;
+
+    /**
+     * Lazily created wheel shared by all clients without a timer pool.
+     */
+    private static TimerWheel shared;
+
+    /**
+     * Lazily created executor shared by all clients with neither a timer
+     * pool nor an executor of their own.
+     */
+    private static Executor sharedExecutor;
+
+    /**
+     * Duration of one tick, in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * Number of bits of a tick number selecting a fine bucket.
+     */
+    private final int shift;
+
+    /**
+     * Bucket index mask within a level.
+     */
+    private final int mask;
+
+    /**
+     * Head of each bucket's doubly-linked list of timeouts.  The fine level
+     * comes first, then the coarse level, then the overflow list.
+     */
+    private final Timeout[] buckets;
+
+    /**
+     * Index of the overflow list in {@link #buckets}.
+     */
+    private final int overflow;
+
+    /**
+     * Time, in milliseconds, after which the thread exits if no timeouts are
+     * scheduled.
+     */
+    private final long idleMillis;
+
+    /**
+     * Time the wheel was created, which is the origin of tick numbering.
+     */
+    private final long startNanos;
+
+    /************************************************************
+     * The following vars must be accessed while synchronized on this
+     * instance.
+     */
+
+    /**
+     * Thread advancing the wheel, or {@code null} if it is not running.
+     */
+    private Thread thread;
+
+    /**
+     * Last tick which has been processed.
+     */
+    private long tick;
+
+    /**
+     * Number of timeouts currently scheduled.
+     */
+    private int count;
+
+    /**
+     * Number of scheduled timeouts in the fine level.
+     */
+    private int fineCount;
+
+    /**
+     * Tick the wheel thread is sleeping until, or {@code Long.MAX_VALUE}
+     * if it is waiting for a timeout to be scheduled.
+     */
+    private long wakeTick = Long.MAX_VALUE;
+
+    /**
+     * Set when the wheel is stopped.
+     */
+    private boolean stopped;
+
+    /**
+     * A timer scheduled on a {@code TimerWheel}.  Instances are reusable:
+     * scheduling a timeout which is already scheduled or has expired but
+     * not yet run moves it to the new deadline, so that it runs only once.
+     */
+    abstract static class Timeout implements Runnable {
+
+        /**
+         * Executor to run the expired timeout on.
+         */
+        private final Executor executor;
+
+        /**
+         * Current state.  Guarded by the wheel.
+         */
+        private int state = IDLE;
+
+        /**
+         * First tick at or after the deadline, which is when it expires.
+         */
+        private long targetTick;
+
+        /**
+         * Bucket the timeout is linked into.
+         */
+        private int bucket;
+
+        /**
+         * Previous timeout in the bucket.
+         */
+        private Timeout prev;
+
+        /**
+         * Next timeout in the bucket.
+         */
+        private Timeout next;
+
+        /**
+         * Next timeout in the chain of expired timeouts being dispatched.
+         * Only used by the wheel thread.
+         */
+        private Timeout nextExpired;
+
+        /**
+         * Wheel the timeout was last scheduled on.  Volatile since it is
+         * read without holding the wheel's lock to find the lock to take.
+         */
+        private volatile TimerWheel wheel;
+
+        /**
+         * Create a new timeout.
+         *
+         * @param exec executor to run the timeout on when it expires
+         */
+        Timeout(final Executor exec) {
+            if (exec == null) {
+                throw(new IllegalArgumentException(
+                        "Executor may not be null"));
+            }
+            executor = exec;
+        }
+
+        /**
+         * Called from the executor once the timeout has expired, unless it
+         * has been cancelled or rescheduled in the meantime.
+         */
+        abstract void expired();
+
+        /**
+         * Determine whether the timeout is scheduled or has expired but not
+         * yet been run.
+         *
+         * @return {@code true} if the timeout is pending
+         */
+        final boolean isActive() {
+            TimerWheel w = wheel;
+            if (w == null) {
+                return false;
+            }
+            synchronized (w) {
+                return state != IDLE;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public final void run() {
+            TimerWheel w = wheel;
+            if (w != null && w.claim(this)) {
+                expired();
+            }
+        }
+
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors:
+
+    /**
+     * Create a new wheel with the default tick duration and bucket count.
+     */
+    TimerWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_BUCKETS, DEFAULT_IDLE_MILLIS);
+    }
+
+    /**
+     * Create a new wheel.  Its thread is started when the first timeout is
+     * scheduled.
+     *
+     * @param tickMillis tick duration in milliseconds
+     * @param bucketCount number of buckets per level, which must be a
+     *  power of two
+     * @param idleTimeMillis time in milliseconds after which the thread
+     *  exits if no timeouts are scheduled
+     */
+    TimerWheel(
+            final int tickMillis,
+            final int bucketCount,
+            final long idleTimeMillis) {
+        if (tickMillis <= 0) {
+            throw(new IllegalArgumentException(
+                    "Tick duration must be > 0 (was: " + tickMillis + ")"));
+        }
+        if (bucketCount <= 0 || (bucketCount & (bucketCount - 1)) != 0) {
+            throw(new IllegalArgumentException(
+                    "Bucket count must be a power of two (was: "
+                    + bucketCount + ")"));
+        }
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        idleMillis = idleTimeMillis;
+        shift = Integer.numberOfTrailingZeros(bucketCount);
+        mask = bucketCount - 1;
+        overflow = 2 * bucketCount;
+        buckets = new Timeout[overflow + 1];
+        startNanos = System.nanoTime();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Get the wheel shared by all clients without a timer pool, creating it
+     * if necessary.
+     *
+     * @return shared wheel
+     */
+    static synchronized TimerWheel getShared() {
+        if (shared == null) {
+            shared = new TimerWheel();
+        }
+        return shared;
+    }
+
+    /**
+     * Get the executor running the expired timeouts of clients with neither
+     * a timer pool nor an executor of their own, creating it if necessary.
+     * Its threads are created on demand, so a timeout which blocks delays
+     * no other client, and exit once idle.
+     *
+     * @return shared executor
+     */
+    static synchronized Executor getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = new ThreadPoolExecutor(
+                    0, Integer.MAX_VALUE,
+                    EXECUTOR_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable runnable) {
+                            Thread result = new Thread(runnable,
+                                    TimerWheel.class.getSimpleName()
+                                    + ": Timeout thread");
+                            result.setDaemon(true);
+                            return result;
+                        }
+                    });
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Schedule the timeout to expire after the given delay, replacing any
+     * previous schedule.  A delay of zero hands the timeout to its executor
+     * immediately.
+     *
+     * @param timeout timeout to schedule
+     * @param delayMillis delay in milliseconds
+     */
+    void schedule(final Timeout timeout, final long delayMillis) {
+        if (delayMillis < 0L) {
+            throw(new IllegalArgumentException(
+                    "Delay must be >= 0 (was: " + delayMillis + ")"));
+        }
+        boolean dispatch = false;
+        synchronized (this) {
+            if (stopped) {
+                throw(new RejectedExecutionException("Timer wheel stopped"));
+            }
+            if (timeout.wheel != null && timeout.wheel != this) {
+                throw(new IllegalStateException(
+                        "Timeout belongs to another wheel"));
+            }
+            timeout.wheel = this;
+            unlink(timeout);
+            if (delayMillis == 0L) {
+                timeout.state = EXPIRED;
+                dispatch = true;
+            } else {
+                long now = System.nanoTime();
+                if (count == 0) {
+                    // Nothing is scheduled, so the ticks which passed since
+                    // the wheel last advanced need not be processed
+                    tick = Math.max(tick, (now - startNanos) / tickNanos);
+                }
+                long deadline = now
+                        + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+                long target = (deadline - startNanos + tickNanos - 1)
+                        / tickNanos;
+                if (target <= tick) {
+                    target = tick + 1;
+                }
+                timeout.targetTick = target;
+                place(timeout);
+                count++;
+                if (thread == null) {
+                    start();
+                }
+                if (target < wakeTick) {
+                    notifyAll();
+                }
+            }
+        }
+        if (dispatch) {
+            dispatch(timeout);
+        }
+    }
+
+    /**
+     * Determine whether the wheel's thread is running.
+     *
+     * @return {@code true} if the thread is running
+     */
+    synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Cancel the timeout.  If it has expired but not yet been run, it will
+     * not be run.  Cancelling a timeout which is not active does nothing.
+     *
+     * @param timeout timeout to cancel
+     */
+    synchronized void cancel(final Timeout timeout) {
+        if (timeout.wheel != this) {
+            return;
+        }
+        unlink(timeout);
+        timeout.state = IDLE;
+    }
+
+    /**
+     * Stop the wheel's thread.  Scheduled timeouts never expire, and no
+     * more timeouts can be scheduled.  Used when a timer pool is shut down;
+     * the shared wheel is never stopped.
+     */
+    void stop() {
+        Thread running;
+        synchronized (this) {
+            stopped = true;
+            running = thread;
+            notifyAll();
+        }
+        if (running != null) {
+            Helpers.joinThreadUninterruptible(running);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Start the wheel's thread.  Must be called while synchronized.
+     */
+    private void start() {
+        thread = new Thread(new Runnable() {
+            public void run() {
+                advance();
+            }
+        }, TimerWheel.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Transition an expired timeout to idle just before it is run.
+     *
+     * @param timeout expired timeout
+     * @return {@code true} if the timeout should run, {@code false} if it
+     *  was cancelled or rescheduled after it expired
+     */
+    private synchronized boolean claim(final Timeout timeout) {
+        if (timeout.state != EXPIRED) {
+            return false;
+        }
+        timeout.state = IDLE;
+        return true;
+    }
+
+    /**
+     * Link the timeout into the bucket matching its target tick.  The
+     * target tick must not be earlier than the current tick.
+     *
+     * @param timeout timeout to link
+     */
+    private void place(final Timeout timeout) {
+        long target = timeout.targetTick;
+        if ((target >> shift) == (tick >> shift)) {
+            link(timeout, (int) (target & mask));
+        } else if ((target >> (2 * shift)) == (tick >> (2 * shift))) {
+            link(timeout, mask + 1 + (int) ((target >> shift) & mask));
+        } else {
+            link(timeout, overflow);
+        }
+    }
+
+    /**
+     * Move every timeout in a coarse bucket or the overflow list to the
+     * bucket matching its target tick.
+     *
+     * @param index bucket index
+     */
+    private void cascade(final int index) {
+        Timeout timeout = buckets[index];
+        buckets[index] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Link the timeout into the head of a bucket.
+     *
+     * @param timeout timeout to link
+     * @param index bucket index
+     */
+    private void link(final Timeout timeout, final int index) {
+        Timeout head = buckets[index];
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[index] = timeout;
+        timeout.state = SCHEDULED;
+        if (index <= mask) {
+            fineCount++;
+        }
+    }
+
+    /**
+     * Unlink the timeout from its bucket if it is scheduled.
+     *
+     * @param timeout timeout to unlink
+     */
+    private void unlink(final Timeout timeout) {
+        if (timeout.state != SCHEDULED) {
+            return;
+        }
+        if (timeout.prev == null) {
+            buckets[timeout.bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.state = IDLE;
+        count--;
+        if (timeout.bucket <= mask) {
+            fineCount--;
+        }
+    }
+
+    /**
+     * Hand an expired timeout to its executor.
+     *
+     * @param timeout expired timeout
+     */
+    private void dispatch(final Timeout timeout) {
+        try {
+            timeout.executor.execute(timeout);
+        } catch (RejectedExecutionException rex) {
+            LOG.log(Level.FINEST, "Could not run expired timeout", rex);
+            claim(timeout);
+        }
+    }
+
+    /**
+     * Wheel thread main loop.
+     */
+    private void advance() {
+        while (true) {
+            Timeout expired = null;
+            synchronized (this) {
+                try {
+                    if (!stopped && count == 0) {
+                        wakeTick = Long.MAX_VALUE;
+                        wait(idleMillis);
+                        if (!stopped && count == 0) {
+                            thread = null;
+                            return;
+                        }
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    long nowTick = (now - startNanos) / tickNanos;
+                    wakeTick = nextTargetTick();
+                    if (wakeTick > nowTick) {
+                        long sleep = startNanos + wakeTick * tickNanos - now;
+                        TimeUnit.NANOSECONDS.timedWait(this, sleep);
+                        continue;
+                    }
+                    expired = advanceTo(nowTick);
+                } catch (InterruptedException intx) {
+                    // Ignore
+                }
+            }
+            while (expired != null) {
+                Timeout timeout = expired;
+                expired = timeout.nextExpired;
+                timeout.nextExpired = null;
+                dispatch(timeout);
+            }
+        }
+    }
+
+    /**
+     * Process every tick up to the one given, moving timeouts down a level
+     * as their spans are entered, and collect the timeouts which are due.
+     *
+     * @param nowTick current tick
+     * @return chain of expired timeouts
+     */
+    private Timeout advanceTo(final long nowTick) {
+        Timeout result = null;
+        while (tick < nowTick) {
+            long last = Math.min(nowTick, (((tick >> shift) + 1) << shift) - 1);
+            if (fineCount == 0) {
+                tick = last;
+            }
+            while (tick < last) {
+                tick++;
+                result = expire((int) (tick & mask), result);
+            }
+            if (tick < nowTick) {
+                tick++;
+                if (((tick >> shift) & mask) == 0) {
+                    cascade(overflow);
+                }
+                cascade(mask + 1 + (int) ((tick >> shift) & mask));
+                result = expire((int) (tick & mask), result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the earliest tick at which the wheel must wake: the first
+     * occupied fine bucket, or else the start of the span of the first
+     * occupied coarse bucket, or else the point at which the overflow list
+     * is redistributed.  Must be called while synchronized with at least
+     * one timeout scheduled.
+     *
+     * @return tick to wake at
+     */
+    private long nextTargetTick() {
+        long epoch = tick >> shift;
+        if (fineCount > 0) {
+            long end = (epoch + 1) << shift;
+            for (long candidate = tick + 1; candidate < end; candidate++) {
+                if (buckets[(int) (candidate & mask)] != null) {
+                    return candidate;
+                }
+            }
+        }
+        long end = ((epoch >> shift) + 1) << shift;
+        for (long candidate = epoch + 1; candidate < end; candidate++) {
+            if (buckets[mask + 1 + (int) (candidate & mask)] != null) {
+                return candidate << shift;
+            }
+        }
+        return end << shift;
+    }
+
+    /**
+     * Remove every timeout in a fine bucket, all of which are due,
+     * prepending them to the chain of expired timeouts.
+     *
+     * @param index bucket index
+     * @param chain expired timeouts collected so far
+     * @return new head of the expired chain
+     */
+    private Timeout expire(final int index, final Timeout chain) {
+        Timeout result = chain;
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            unlink(timeout);
+            timeout.state = EXPIRED;
+            timeout.nextExpired = result;
+            result = timeout;
+            timeout = next;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact binary ring log of the request and response bodies exchanged
+ * with a connection manager.  Captures are used to replay traffic recorded
+ * in production against a local connection manager, as a benchmark for
+ * transport and parser changes.
+ * <p/>
+ * A capture is installed by using
+ * {@link BOSHClientConfig.Builder#setWireCapture(WireCapture)}.  Each
+ * record holds the uncompressed body, its size on the wire, the request ID
+ * of the exchange, the HTTP status of responses and a {@link
+ * System#nanoTime()} based timestamp relative to the start of the capture.
+ * When the ring is full, the oldest records are overwritten.
+ * <p/>
+ * The ring is kept either on the heap or in a memory-mapped file.  A
+ * file-backed capture can be read back with {@link #load(File)}, even if
+ * the process writing it did not exit cleanly.
+ * <p/>
+ * Instances of this class are thread-safe.  A capture may be shared by
+ * several clients; their records are then interleaved.
+ */
+public final class WireCapture {
+
+    /**
+     * Value identifying a capture file.
+     */
+    private static final int MAGIC = 0x4a425743;
+
+    /**
+     * Version of the capture format.
+     */
+    private static final int VERSION = 1;
+
+    // Header field offsets.
+    private static final int HDR_MAGIC = 0;
+    private static final int HDR_VERSION = 4;
+    private static final int HDR_CAPACITY = 8;
+    private static final int HDR_HEAD = 12;
+    private static final int HDR_TAIL = 16;
+    private static final int HDR_WRAP_END = 20;
+    private static final int HDR_COUNT = 24;
+    private static final int HDR_WRAPPED = 28;
+    private static final int HDR_START_MILLIS = 32;
+
+    /**
+     * Size of the capture header.
+     */
+    private static final int HEADER_SIZE = 40;
+
+    /**
+     * Size of a record header: length, type, timestamp, RID, status and
+     * wire length.
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 8 + 4 + 4;
+
+    private static final byte TYPE_REQUEST = 1;
+    private static final byte TYPE_RESPONSE = 2;
+
+    /**
+     * Buffer holding the header and the ring.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * File backing the buffer, or {@code null} for an in-memory capture.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Size of the ring, excluding the header.
+     */
+    private final int capacity;
+
+    /**
+     * Timestamp all record timestamps are relative to.
+     */
+    private final long originNanos;
+
+    // Ring state, mirrored into the header after every write.
+
+    /**
+     * Offset in the ring at which the next record is written.
+     */
+    private int head;
+
+    /**
+     * Offset in the ring of the oldest record.
+     */
+    private int tail;
+
+    /**
+     * End of the records written before the ring wrapped.  While wrapped,
+     * the oldest records lie in {@code [tail, wrapEnd)} and the newest in
+     * {@code [0, head)}.
+     */
+    private int wrapEnd;
+
+    /**
+     * Number of records in the ring.
+     */
+    private int count;
+
+    /**
+     * Whether writing has wrapped around to the start of the ring, behind
+     * the oldest record.
+     */
+    private boolean wrapped;
+
+    /**
+     * Number of records too large for the ring, which were not stored.
+     */
+    private long dropped;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Classes:
+
+    /**
+     * A single captured request or response.
+     */
+    public static final class Record {
+
+        /**
+         * {@code true} for a request, {@code false} for a response.
+         */
+        private final boolean request;
+
+        /**
+         * Time the record was captured, relative to the start of the
+         * capture, in nanoseconds.
+         */
+        private final long nanos;
+
+        /**
+         * Request ID of the exchange.
+         */
+        private final long rid;
+
+        /**
+         * HTTP status of a response, or 0 for a request.
+         */
+        private final int status;
+
+        /**
+         * Size of the body on the wire, after any content encoding.
+         */
+        private final int wireLength;
+
+        /**
+         * Uncompressed body, encoded as UTF-8.
+         */
+        private final byte[] data;
+
+        private Record(
+                final boolean isRequest,
+                final long timestamp,
+                final long requestID,
+                final int httpStatus,
+                final int wireBytes,
+                final byte[] body) {
+            request = isRequest;
+            nanos = timestamp;
+            rid = requestID;
+            status = httpStatus;
+            wireLength = wireBytes;
+            data = body;
+        }
+
+        /**
+         * Determine whether this is a request or a response record.
+         *
+         * @return {@code true} for a request, {@code false} for a response
+         */
+        public boolean isRequest() {
+            return request;
+        }
+
+        /**
+         * Get the time the record was captured, relative to the start of the
+         * capture.
+         *
+         * @return timestamp in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Get the request ID of the exchange.
+         *
+         * @return request ID
+         */
+        public long getRID() {
+            return rid;
+        }
+
+        /**
+         * Get the HTTP status of a response.
+         *
+         * @return HTTP status, or 0 for a request
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the size of the body on the wire, which is the compressed size
+         * if a content encoding was applied.
+         *
+         * @return wire size in bytes
+         */
+        public int getWireLength() {
+            return wireLength;
+        }
+
+        /**
+         * Get the uncompressed body, encoded as UTF-8.
+         *
+         * @return body bytes
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructors:
+
+    /**
+     * Prevent direct construction.
+     */
+    private WireCapture(
+            final ByteBuffer buf,
+            final RandomAccessFile backingFile,
+            final int size) {
+        buffer = buf;
+        file = backingFile;
+        capacity = size;
+        originNanos = System.nanoTime();
+        buffer.putInt(HDR_MAGIC, MAGIC);
+        buffer.putInt(HDR_VERSION, VERSION);
+        buffer.putInt(HDR_CAPACITY, capacity);
+        buffer.putLong(HDR_START_MILLIS, System.currentTimeMillis());
+        writeState();
+    }
+
+    /**
+     * Create a capture kept on the heap.
+     *
+     * @param capacity size of the ring in bytes
+     * @return capture instance
+     */
+    public static WireCapture inMemory(final int capacity) {
+        checkCapacity(capacity);
+        return new WireCapture(
+                ByteBuffer.allocate(HEADER_SIZE + capacity), null, capacity);
+    }
+
+    /**
+     * Create a capture kept in a memory-mapped file.  An existing file is
+     * overwritten.
+     *
+     * @param path file to write
+     * @param capacity size of the ring in bytes
+     * @return capture instance
+     * @throws IOException if the file could not be created or mapped
+     */
+    public static WireCapture toFile(final File path, final int capacity)
+    throws IOException {
+        checkCapacity(capacity);
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + capacity);
+            MappedByteBuffer mapped = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            return new WireCapture(mapped, raf, capacity);
+        } catch (IOException iox) {
+            raf.close();
+            throw(iox);
+        }
+    }
+
+    /**
+     * Read the records of a capture file, oldest first.
+     *
+     * @param path capture file
+     * @return records
+     * @throws IOException if the file could not be read or is not a valid
+     *  capture
+     */
+    public static List<Record> load(final File path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                // Keep reading
+            }
+            if (buf.capacity() < HEADER_SIZE
+                    || buf.getInt(HDR_MAGIC) != MAGIC) {
+                throw(new IOException("Not a capture file: " + path));
+            }
+            if (buf.getInt(HDR_VERSION) != VERSION) {
+                throw(new IOException("Unsupported capture version "
+                        + buf.getInt(HDR_VERSION) + ": " + path));
+            }
+            return readRecords(buf);
+        } finally {
+            in.close();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public methods:
+
+    /**
+     * Get the records currently held, oldest first.
+     *
+     * @return records
+     */
+    public synchronized List<Record> getRecords() {
+        return readRecords(buffer);
+    }
+
+    /**
+     * Get the number of records which were not captured because they were
+     * larger than the ring.
+     *
+     * @return dropped record count
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Write any changes to a file-backed capture to disk and close the
+     * file.  Records written afterwards are discarded.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    public synchronized void close() throws IOException {
+        if (file != null) {
+            ((MappedByteBuffer) buffer).force();
+            file.close();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Package-private methods:
+
+    /**
+     * Capture a request body.
+     *
+     * @param rid request ID
+     * @param body uncompressed body
+     * @param wireLength size of the body on the wire
+     */
+    void request(final long rid, final byte[] body, final int wireLength) {
+        write(TYPE_REQUEST, rid, 0, body, wireLength);
+    }
+
+    /**
+     * Capture a response body.
+     *
+     * @param rid request ID of the exchange
+     * @param status HTTP status
+     * @param body uncompressed body
+     * @param wireLength size of the body on the wire
+     */
+    void response(
+            final long rid,
+            final int status,
+            final byte[] body,
+            final int wireLength) {
+        write(TYPE_RESPONSE, rid, status, body, wireLength);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Check that a ring size is usable.
+     *
+     * @param capacity ring size
+     */
+    private static void checkCapacity(final int capacity) {
+        if (capacity < RECORD_HEADER_SIZE) {
+            throw(new IllegalArgumentException(
+                    "Capacity too small: " + capacity));
+        }
+    }
+
+    /**
+     * Append a record, evicting the oldest records to make room.
+     */
+    private synchronized void write(
+            final byte type,
+            final long rid,
+            final int status,
+            final byte[] body,
+            final int wireLength) {
+        long nanos = System.nanoTime() - originNanos;
+        int length = RECORD_HEADER_SIZE + body.length;
+        if (length > capacity) {
+            dropped++;
+            return;
+        }
+        while (true) {
+            if (!wrapped) {
+                // Free space is [head, capacity)
+                if (head + length <= capacity) {
+                    break;
+                }
+                if (count == 0) {
+                    head = 0;
+                    tail = 0;
+                    continue;
+                }
+                wrapped = true;
+                wrapEnd = head;
+                head = 0;
+            } else {
+                // Free space is [head, tail)
+                if (tail - head >= length) {
+                    break;
+                }
+                tail += buffer.getInt(HEADER_SIZE + tail);
+                count--;
+                if (tail >= wrapEnd) {
+                    tail = 0;
+                    wrapped = false;
+                }
+            }
+        }
+        int pos = HEADER_SIZE + head;
+        buffer.putInt(pos, length);
+        buffer.put(pos + 4, type);
+        buffer.putLong(pos + 5, nanos);
+        buffer.putLong(pos + 13, rid);
+        buffer.putInt(pos + 21, status);
+        buffer.putInt(pos + 25, wireLength);
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos + RECORD_HEADER_SIZE);
+        dup.put(body);
+        head += length;
+        count++;
+        writeState();
+    }
+
+    /**
+     * Store the ring state in the header.
+     */
+    private void writeState() {
+        buffer.putInt(HDR_HEAD, head);
+        buffer.putInt(HDR_TAIL, tail);
+        buffer.putInt(HDR_WRAP_END, wrapEnd);
+        buffer.putInt(HDR_COUNT, count);
+        buffer.putInt(HDR_WRAPPED, wrapped ? 1 : 0);
+    }
+
+    /**
+     * Read the records held in a capture buffer, oldest first.
+     *
+     * @param buf buffer holding the header and the ring
+     * @return records
+     */
+    private static List<Record> readRecords(final ByteBuffer buf) {
+        int recHead = buf.getInt(HDR_HEAD);
+        int recTail = buf.getInt(HDR_TAIL);
+        int recWrapEnd = buf.getInt(HDR_WRAP_END);
+        int recCount = buf.getInt(HDR_COUNT);
+        boolean recWrapped = buf.getInt(HDR_WRAPPED) != 0;
+        List<Record> result = new ArrayList<Record>(recCount);
+        int pos = recTail;
+        int end = recWrapped ? recWrapEnd : recHead;
+        while (result.size() < recCount) {
+            if (pos >= end) {
+                if (!recWrapped) {
+                    break;
+                }
+                recWrapped = false;
+                pos = 0;
+                end = recHead;
+                continue;
+            }
+            int at = HEADER_SIZE + pos;
+            int length = buf.getInt(at);
+            byte[] data = new byte[length - RECORD_HEADER_SIZE];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(at + RECORD_HEADER_SIZE);
+            dup.get(data);
+            result.add(new Record(
+                    buf.get(at + 4) == TYPE_REQUEST,
+                    buf.getLong(at + 5),
+                    buf.getLong(at + 13),
+                    buf.getInt(at + 21),
+                    buf.getInt(at + 25),
+                    data));
+            pos += length;
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+}
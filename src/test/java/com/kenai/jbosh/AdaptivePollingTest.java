@@ -0,0 +1,75 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests backing off the polling interval of idle polling sessions.
+ */
+public class AdaptivePollingTest extends AbstractBOSHTest {
+
+    private static final int MAX_INTERVAL = 800;
+
+    /*
+     * Empty exchanges double the polling interval up to the maximum, and
+     * payload returns it to the minimum.
+     */
+    @Test(timeout=10000)
+    public void backsOffWhileIdle() throws Exception {
+        logTestStart();
+        BOSHClientConfig cfg = BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setMaxPollingInterval(MAX_INTERVAL)
+                .build();
+        session = createSession(cfg);
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        conn.sendResponse(getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.HOLD, "0")
+                .setAttribute(Attributes.REQUESTS, "2")
+                .setAttribute(Attributes.DISABLE_EMPTY_MESSAGES, null)
+                .build());
+
+        long last = System.currentTimeMillis();
+        long gap = 0;
+        for (int i = 0; i < 4; i++) {
+            conn = cm.awaitConnection();
+            long now = System.currentTimeMillis();
+            assertTrue("gap " + (now - last) + " after " + gap,
+                    now - last + 50 >= gap);
+            gap = now - last;
+            last = now;
+            if (i < 3) {
+                conn.sendResponse(ComposableBody.builder().build());
+            }
+        }
+        assertTrue("gap " + gap, gap >= MAX_INTERVAL * 3 / 4);
+
+        conn.sendResponse(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client'/>")
+                .build());
+        cm.awaitConnection();
+        gap = System.currentTimeMillis() - last;
+        assertTrue("gap " + gap, gap < MAX_INTERVAL / 2);
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the number of bytes allocated per message on the hot paths against
+ * recorded budgets, so that allocation regressions in body building,
+ * parsing and the HTTP transport are caught early.  Allocation is measured
+ * with {@code com.sun.management.ThreadMXBean}; the tests are skipped on VMs
+ * which do not support it.
+ * <p/>
+ * The budgets are roughly twice the allocation measured when they were
+ * recorded, leaving room for differences between VMs.  When an
+ * optimization lowers the allocation substantially, lower the budget to
+ * match.
+ */
+public class AllocationBudgetTest {
+
+    private static final Logger LOG =
+            Logger.getLogger(AllocationBudgetTest.class.getName());
+
+    /**
+     * Iterations run before measuring, to reach a steady state.
+     */
+    private static final int WARMUP = 2000;
+
+    /**
+     * Iterations measured.
+     */
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Budget for building and serializing a message body, in bytes.
+     */
+    private static final long BUILD_BUDGET = 3000;
+
+    /**
+     * Budget for building a message body and serializing it into a reused
+     * transport buffer, in bytes.
+     */
+    private static final long SERIALIZE_BUDGET = 1000;
+
+    /**
+     * Budget for creating an empty request from the session's template and
+     * serializing it into a reused transport buffer, in bytes.
+     */
+    private static final long EMPTY_REQUEST_BUDGET = 150;
+
+    /**
+     * Budget for parsing a message body, in bytes.
+     */
+    private static final long PARSE_BUDGET = 1200;
+
+    /**
+     * Budget for a complete send and receive round trip through
+     * {@code BOSHClient}, summed over all client threads, in bytes.
+     */
+    private static final long ROUND_TRIP_BUDGET = 24000;
+
+    private static final String PAYLOAD =
+            "<message xmlns='jabber:client' to='juliet@example.com/balcony'"
+            + " type='chat'><body>Wherefore art thou, Romeo?</body>"
+            + "<active xmlns='http://jabber.org/protocol/chatstates'/>"
+            + "</message>";
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean =
+                ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Snapshot of the bytes allocated by every live thread, excluding the
+     * stub connection manager.
+     */
+    private Map<Long, Long> snapshot() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2 + 16];
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        int count = root.enumerate(threads, true);
+        Map<Long, Long> result = new HashMap<Long, Long>();
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().startsWith("NIOStubCM")) {
+                continue;
+            }
+            long id = threads[i].getId();
+            long bytes = threadBean.getThreadAllocatedBytes(id);
+            if (bytes >= 0) {
+                result.put(Long.valueOf(id), Long.valueOf(bytes));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bytes allocated between two snapshots.  Threads which exited in
+     * between are not counted.
+     */
+    private static long allocated(
+            final Map<Long, Long> before, final Map<Long, Long> after) {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            Long start = before.get(entry.getKey());
+            total += entry.getValue().longValue()
+                    - (start == null ? 0L : start.longValue());
+        }
+        return total;
+    }
+
+    private void checkBudget(
+            final String name, final long perMessage, final long budget) {
+        LOG.info(name + ": " + perMessage + " bytes per message, budget "
+                + budget);
+        assertTrue(name + " allocated " + perMessage
+                + " bytes per message, exceeding its budget of " + budget,
+                perMessage <= budget);
+    }
+
+    /*
+     * Building and serializing a message body.
+     */
+    @Test
+    public void build() throws Exception {
+        long id = Thread.currentThread().getId();
+        int sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += buildBody(i).length();
+        }
+        long start = threadBean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += buildBody(i).length();
+        }
+        long end = threadBean.getThreadAllocatedBytes(id);
+        assertTrue(sink > 0);
+        checkBudget("build", (end - start) / ITERATIONS, BUILD_BUDGET);
+    }
+
+    private static String buildBody(final int rid) {
+        return ComposableBody.builder()
+                .setAttribute(Attributes.SID, "4d3a9b2c")
+                .setAttribute(Attributes.RID, Integer.toString(rid))
+                .setPayloadXML(PAYLOAD)
+                .build()
+                .toXML();
+    }
+
+    /*
+     * Building a message body and serializing it for transmission.
+     */
+    @Test
+    public void serialize() throws Exception {
+        long id = Thread.currentThread().getId();
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        int sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += serializeBody(i, out);
+        }
+        long start = threadBean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += serializeBody(i, out);
+        }
+        long end = threadBean.getThreadAllocatedBytes(id);
+        assertTrue(sink > 0);
+        checkBudget("serialize", (end - start) / ITERATIONS,
+                SERIALIZE_BUDGET);
+    }
+
+    private static int serializeBody(
+            final int rid, final ByteOutputBuffer out) {
+        out.reset(Integer.MAX_VALUE);
+        ComposableBody.builder()
+                .setAttribute(Attributes.SID, "4d3a9b2c")
+                .setAttribute(Attributes.RID, Integer.toString(rid))
+                .setPayloadXML(PAYLOAD)
+                .build()
+                .writeTo(out);
+        return out.size();
+    }
+
+    /*
+     * Creating and serializing an empty request.
+     */
+    @Test
+    public void emptyRequest() throws Exception {
+        long id = Thread.currentThread().getId();
+        EmptyRequestTemplate template = new EmptyRequestTemplate("4d3a9b2c");
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += serializeEmptyRequest(template, i, out);
+        }
+        long start = threadBean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += serializeEmptyRequest(template, i, out);
+        }
+        long end = threadBean.getThreadAllocatedBytes(id);
+        assertTrue(sink > 0);
+        checkBudget("empty request", (end - start) / ITERATIONS,
+                EMPTY_REQUEST_BUDGET);
+    }
+
+    private static long serializeEmptyRequest(
+            final EmptyRequestTemplate template,
+            final long rid,
+            final ByteOutputBuffer out) {
+        out.reset(Integer.MAX_VALUE);
+        ComposableBody body = template.create(rid, rid - 2);
+        body.writeTo(out);
+        return out.size() + body.getRequestID();
+    }
+
+    /*
+     * Parsing a message body.
+     */
+    @Test
+    public void parse() throws Exception {
+        String xml = buildBody(1);
+        long id = Thread.currentThread().getId();
+        int sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += StaticBody.fromString(xml).getAttributes().size();
+        }
+        long start = threadBean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += StaticBody.fromString(xml).getAttributes().size();
+        }
+        long end = threadBean.getThreadAllocatedBytes(id);
+        assertTrue(sink > 0);
+        checkBudget("parse", (end - start) / ITERATIONS, PARSE_BUDGET);
+    }
+
+    /*
+     * A steady-state echo round trip through BOSHClient and
+     * HTTPSenderInternal against a local connection manager.
+     */
+    @Test(timeout=120000)
+    public void roundTrip() throws Exception {
+        NIOStubCM cm = new NIOStubCM();
+        BOSHClient client = BOSHClient.create(BOSHClientConfig.Builder
+                .create(cm.getURI(), "localhost")
+                .build());
+        try {
+            final Semaphore echoes = new Semaphore(0);
+            client.addBOSHClientResponseListener(
+                    new BOSHClientResponseListener() {
+                public void responseReceived(final BOSHMessageEvent event) {
+                    if (event.getBody().toXML().contains("<message")) {
+                        echoes.release();
+                    }
+                }
+            });
+            client.send(ComposableBody.builder().build());
+            ComposableBody message = ComposableBody.builder()
+                    .setPayloadXML(PAYLOAD)
+                    .build();
+            for (int i = 0; i < WARMUP; i++) {
+                client.send(message);
+                assertTrue(echoes.tryAcquire(10, TimeUnit.SECONDS));
+            }
+            Map<Long, Long> before = snapshot();
+            for (int i = 0; i < ITERATIONS; i++) {
+                client.send(message);
+                assertTrue(echoes.tryAcquire(10, TimeUnit.SECONDS));
+            }
+            Map<Long, Long> after = snapshot();
+            checkBudget("round trip", allocated(before, after) / ITERATIONS,
+                    ROUND_TRIP_BUDGET);
+        } finally {
+            client.close();
+            cm.dispose();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the delivery of responses to {@code BOSHClientBatchListener}s.
+ */
+public class BOSHClientBatchListenerTest extends AbstractBOSHTest {
+
+    /**
+     * Batch listener which records the batches it receives.
+     */
+    private static final class BatchRecorder
+            implements BOSHClientBatchListener {
+        private final List<List<AbstractBody>> batches =
+                new ArrayList<List<AbstractBody>>();
+        private int bodies;
+
+        public synchronized void responsesReceived(
+                final BOSHMessageBatchEvent event) {
+            batches.add(event.getBodies());
+            bodies += event.getBodies().size();
+            notifyAll();
+        }
+
+        synchronized List<List<AbstractBody>> await(final int count)
+        throws InterruptedException {
+            while (bodies < count) {
+                wait();
+            }
+            return new ArrayList<List<AbstractBody>>(batches);
+        }
+    }
+
+    /*
+     * Responses which arrive while an earlier response is being processed
+     * are delivered together, in order, after the last of them.
+     */
+    @Test(timeout=5000)
+    public void responsesDeliveredTogether() throws Exception {
+        logTestStart();
+        BatchRecorder recorder = new BatchRecorder();
+        session.addBOSHClientBatchListener(recorder);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<AbstractBody> received = new ArrayList<AbstractBody>();
+        session.addBOSHClientResponseListener(
+                new BOSHClientResponseListener() {
+            public void responseReceived(final BOSHMessageEvent event) {
+                synchronized (received) {
+                    received.add(event.getBody());
+                }
+                if (event.getBody().getAttribute(Attributes.SID) == null) {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException intx) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "3")
+                .setAttribute(Attributes.HOLD, "2")
+                .build();
+        conn.sendResponse(scr);
+        session.drain();
+        List<List<AbstractBody>> batches = recorder.await(1);
+        assertEquals(1, batches.size());
+        assertEquals(scr.getAttribute(Attributes.SID),
+                batches.get(0).get(0).getAttribute(Attributes.SID));
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn1 = cm.awaitConnection();
+        session.send(ComposableBody.builder().build());
+        StubConnection conn2 = cm.awaitConnection();
+        conn1.sendResponse(ComposableBody.builder()
+                .setPayloadXML("<first/>")
+                .build());
+        conn2.sendResponse(ComposableBody.builder()
+                .setPayloadXML("<second/>")
+                .build());
+        // Give the second response time to arrive
+        Thread.sleep(200);
+        gate.countDown();
+
+        batches = recorder.await(3);
+        assertEquals(batches.toString(), 2, batches.size());
+        List<AbstractBody> batch = batches.get(1);
+        assertEquals(2, batch.size());
+        synchronized (received) {
+            assertEquals(received.subList(1, 3), batch);
+        }
+        assertTrue(batch.get(0).toXML().contains("<first"));
+        assertTrue(batch.get(1).toXML().contains("<second"));
+    }
+
+    /*
+     * The bodies of a batch may not be modified.
+     */
+    @Test(expected=UnsupportedOperationException.class)
+    public void bodiesUnmodifiable() {
+        List<AbstractBody> bodies = new ArrayList<AbstractBody>();
+        bodies.add(ComposableBody.builder().build());
+        BOSHMessageBatchEvent event =
+                BOSHMessageBatchEvent.createResponsesReceivedEvent(
+                    session, bodies);
+        bodies.clear();
+        assertEquals(1, event.getBodies().size());
+        event.getBodies().clear();
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests demand-driven delivery of responses to a
+ * {@code BOSHClientSubscriber}.
+ */
+public class BOSHClientSubscriberTest {
+
+    private NIOStubCM cm;
+    private BOSHClient client;
+
+    /**
+     * Subscriber recording every signal received.
+     */
+    private static final class Recorder implements BOSHClientSubscriber {
+        private final BlockingQueue<Object> signals =
+                new LinkedBlockingQueue<Object>();
+        private volatile BOSHClientSubscription subscription;
+
+        public void onSubscribe(final BOSHClientSubscription sub) {
+            subscription = sub;
+        }
+
+        public void onNext(final AbstractBody body) {
+            signals.add(body);
+        }
+
+        public void onError(final Throwable cause) {
+            signals.add(cause);
+        }
+
+        public void onComplete() {
+            signals.add("complete");
+        }
+
+        Object next() throws InterruptedException {
+            Object signal = signals.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for a signal", signal);
+            return signal;
+        }
+
+        AbstractBody nextBody() throws InterruptedException {
+            Object signal = next();
+            assertTrue(signal.toString(), signal instanceof AbstractBody);
+            return (AbstractBody) signal;
+        }
+
+        void assertIdle(final long millis) throws InterruptedException {
+            assertNull(signals.poll(millis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new NIOStubCM();
+        cm.setHold(1);
+        cm.setRequests(2);
+        cm.setInactivity(10);
+        client = BOSHClient.create(BOSHClientConfig.Builder
+                .create(cm.getURI(), "localhost")
+                .build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        cm.dispose();
+    }
+
+    private static ComposableBody message(final String text) {
+        return ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client'><body>"
+                    + text + "</body></message>")
+                .build();
+    }
+
+    /*
+     * Polling stops while the responses already on their way cover the
+     * demand, and resumes when more is requested or the subscription is
+     * cancelled.
+     */
+    @Test(timeout=20000)
+    public void demandThrottlesPolling() throws Exception {
+        Recorder recorder = new Recorder();
+        client.subscribe(recorder);
+        recorder.subscription.request(1);
+        client.send(ComposableBody.builder().build());
+        String sid = recorder.nextBody().getAttribute(Attributes.SID);
+        assertNotNull(sid);
+
+        // Without demand, no empty requests are sent.
+        recorder.assertIdle(300);
+        assertEquals(1, cm.getRequestCount());
+
+        // Demand for two bodies allows a long poll to be replaced once.
+        recorder.subscription.request(2);
+        awaitRequestCount(2);
+        cm.deliver(sid, "<message xmlns='jabber:client'><body>a</body></message>");
+        assertTrue(recorder.nextBody().toXML().contains("a</body>"));
+        awaitRequestCount(3);
+        cm.deliver(sid, "<message xmlns='jabber:client'><body>b</body></message>");
+        assertTrue(recorder.nextBody().toXML().contains("b</body>"));
+        recorder.assertIdle(300);
+        assertEquals(3, cm.getRequestCount());
+
+        // Cancelling restores normal polling.
+        recorder.subscription.cancel();
+        awaitRequestCount(4);
+        recorder.assertIdle(100);
+    }
+
+    /*
+     * A subscriber which stalls for longer than the inactivity period does
+     * not let the CM end the session.  A single empty request is kept
+     * going, and the session delivers again once demand returns.
+     */
+    @Test(timeout=20000)
+    public void stalledSubscriberKeepsSessionAlive() throws Exception {
+        cm.setInactivity(1);
+        Recorder recorder = new Recorder();
+        client.subscribe(recorder);
+        recorder.subscription.request(1);
+        client.send(ComposableBody.builder().build());
+        String sid = recorder.nextBody().getAttribute(Attributes.SID);
+
+        Thread.sleep(3000);
+        assertEquals(1, cm.getSessionCount());
+        assertEquals(2, cm.getRequestCount());
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        cm.deliver(sid, "<message xmlns='jabber:client'><body>late</body></message>");
+        while (!recorder.nextBody().toXML().contains("late</body>")) {
+            // Skip responses buffered while stalled
+        }
+        assertEquals(1, cm.getSessionCount());
+    }
+
+    private void awaitRequestCount(final long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cm.getRequestCount() < count) {
+            assertTrue("Requests: " + cm.getRequestCount(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /*
+     * Responses to explicitly sent requests are buffered until requested,
+     * and the session closing completes the stream after them.
+     */
+    @Test(timeout=20000)
+    public void bufferedUntilRequested() throws Exception {
+        Recorder recorder = new Recorder();
+        client.subscribe(recorder);
+        recorder.subscription.request(1);
+        client.send(ComposableBody.builder().build());
+        recorder.nextBody();
+
+        client.send(message("one"));
+        client.send(message("two"));
+        recorder.assertIdle(300);
+
+        recorder.subscription.request(1);
+        AbstractBody first = recorder.nextBody();
+        recorder.assertIdle(100);
+        recorder.subscription.request(Long.MAX_VALUE);
+        AbstractBody second = recorder.nextBody();
+        String both = first.toXML() + second.toXML();
+        assertTrue(both, both.indexOf("one") < both.indexOf("two"));
+
+        client.disconnect();
+        Object signal;
+        do {
+            signal = recorder.next();
+        } while (signal instanceof AbstractBody);
+        assertEquals("complete", signal);
+    }
+
+    /*
+     * Only one subscription may be active, and invalid demand terminates
+     * the subscription with an error.
+     */
+    @Test(timeout=5000)
+    public void subscriptionRules() throws Exception {
+        Recorder first = new Recorder();
+        client.subscribe(first);
+        Recorder second = new Recorder();
+        client.subscribe(second);
+        assertNotNull(second.subscription);
+        assertTrue(second.next() instanceof IllegalStateException);
+
+        first.subscription.request(0);
+        assertTrue(first.next() instanceof IllegalArgumentException);
+
+        Recorder third = new Recorder();
+        client.subscribe(third);
+        third.assertIdle(100);
+        client.close();
+        assertTrue(third.next() instanceof BOSHException);
+
+        Recorder fourth = new Recorder();
+        client.subscribe(fourth);
+        assertEquals("complete", fourth.next());
+    }
+
+}
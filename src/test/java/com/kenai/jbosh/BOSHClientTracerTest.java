@@ -0,0 +1,257 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kenai.jbosh;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the exchange life cycle callbacks of {@code BOSHClientTracer}.
+ */
+public class BOSHClientTracerTest extends AbstractBOSHTest {
+
+    /**
+     * Tracer which records every event it receives.
+     */
+    private static final class RecordingTracer extends BOSHClientTracer {
+        private final List<String> events = new ArrayList<String>();
+        private final List<Long> times = new ArrayList<Long>();
+        private final List<String> sessionEvents = new ArrayList<String>();
+
+        private synchronized void record(
+                final String event, final long rid, final long nanos) {
+            events.add(event + ":" + rid);
+            times.add(Long.valueOf(nanos));
+            notifyAll();
+        }
+
+        private synchronized void recordSessionEvent(final String event) {
+            sessionEvents.add(event);
+            notifyAll();
+        }
+
+        synchronized List<String> getSessionEvents() {
+            return new ArrayList<String>(sessionEvents);
+        }
+
+        synchronized void awaitSessionEvent(final String event)
+        throws InterruptedException {
+            while (!sessionEvents.contains(event)) {
+                wait();
+            }
+        }
+
+        synchronized List<String> getEvents() {
+            return new ArrayList<String>(events);
+        }
+
+        synchronized List<Long> getTimes() {
+            return new ArrayList<Long>(times);
+        }
+
+        synchronized void awaitEvent(final String event)
+        throws InterruptedException {
+            while (!events.contains(event)) {
+                wait();
+            }
+        }
+
+        public void exchangeQueued(final long rid, final long nanos) {
+            record("queued", rid, nanos);
+        }
+
+        public void exchangeAssigned(final long rid, final long nanos) {
+            record("assigned", rid, nanos);
+        }
+
+        public void requestWritten(
+                final long rid, final int bytes, final long nanos) {
+            assertTrue(bytes > 0);
+            record("written", rid, nanos);
+        }
+
+        public void responseStarted(final long rid, final long nanos) {
+            record("started", rid, nanos);
+        }
+
+        public void responseParsed(final long rid, final long nanos) {
+            record("parsed", rid, nanos);
+        }
+
+        public void responseDelivered(final long rid, final long nanos) {
+            record("delivered", rid, nanos);
+        }
+
+        public void requestAcknowledged(final long rid, final long nanos) {
+            record("acked", rid, nanos);
+        }
+
+        public void requestResent(final long rid, final long nanos) {
+            record("resent", rid, nanos);
+        }
+
+        public void exchangeAborted(final long rid, final long nanos) {
+            record("aborted", rid, nanos);
+        }
+
+        public void connectionOpened(
+                final String host,
+                final int port,
+                final long startNanos,
+                final long nanos) {
+            assertTrue(startNanos <= nanos);
+            recordSessionEvent("opened:" + host + ":" + port);
+        }
+
+        public void responseReceived(
+                final long rid,
+                final int status,
+                final int wireBytes,
+                final int bodyBytes,
+                final long nanos) {
+            assertTrue(bodyBytes > 0);
+            recordSessionEvent(
+                    "received:" + rid + ":" + status + ":" + wireBytes
+                    + ":" + bodyBytes);
+        }
+
+        public void sessionPaused(final long nanos) {
+            recordSessionEvent("paused");
+        }
+
+        public void sessionResumed(final long nanos) {
+            recordSessionEvent("resumed");
+        }
+
+        public void connectionLost(final Throwable cause, final long nanos) {
+            recordSessionEvent("lost");
+        }
+    }
+
+    private RecordingTracer createTracedSession() {
+        RecordingTracer tracer = new RecordingTracer();
+        BOSHClientConfig cfg = BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setTracer(tracer)
+                .build();
+        session = createSession(cfg);
+        return tracer;
+    }
+
+    /*
+     * A complete exchange reports every stage, in order, with
+     * non-decreasing timestamps.
+     */
+    @Test(timeout=5000)
+    public void completeExchange() throws Exception {
+        logTestStart();
+        RecordingTracer tracer = createTracedSession();
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody req = conn.getRequest().getBody();
+        String rid = req.getAttribute(Attributes.RID);
+        conn.sendResponse(getSessionCreationResponse(req).build());
+        session.drain();
+
+        List<String> events = tracer.getEvents();
+        String[] expected = new String[] {
+            "queued", "assigned", "written", "started", "parsed",
+            "delivered", "acked"
+        };
+        assertEquals(events.toString(), expected.length, events.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i] + ":" + rid, events.get(i));
+        }
+
+        List<Long> times = tracer.getTimes();
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue(events.toString(),
+                    times.get(i - 1).longValue() <= times.get(i).longValue());
+        }
+    }
+
+    /*
+     * Connections, responses and pausing and resuming the session are
+     * reported.
+     */
+    @Test(timeout=5000)
+    public void connectionAndSessionEvents() throws Exception {
+        logTestStart();
+        RecordingTracer tracer = createTracedSession();
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody req = conn.getRequest().getBody();
+        String rid = req.getAttribute(Attributes.RID);
+        AbstractBody scr = getSessionCreationResponse(req)
+                .setAttribute(Attributes.MAXPAUSE, "2")
+                .build();
+        conn.sendResponse(scr);
+        session.drain();
+
+        URI uri = session.getBOSHClientConfig().getURI();
+        int size = scr.toXML().getBytes("UTF-8").length;
+        List<String> events = tracer.getSessionEvents();
+        assertTrue(events.toString(), events.contains(
+                "opened:" + uri.getHost() + ":" + uri.getPort()));
+        assertTrue(events.toString(), events.contains(
+                "received:" + rid + ":200:" + size + ":" + size));
+
+        assertTrue(session.pause());
+        tracer.awaitSessionEvent("paused");
+        cm.awaitConnection().sendResponse(ComposableBody.builder().build());
+        session.drain();
+        assertFalse(tracer.getSessionEvents().contains("resumed"));
+
+        session.send(ComposableBody.builder().build());
+        tracer.awaitSessionEvent("resumed");
+        events = tracer.getSessionEvents();
+        assertTrue(events.toString(),
+                events.indexOf("paused") < events.indexOf("resumed"));
+
+        cm.awaitConnection().closeConnection();
+        tracer.awaitSessionEvent("lost");
+    }
+
+    /*
+     * A lost connection aborts the exchange, and reconnecting resends it.
+     */
+    @Test(timeout=5000)
+    public void abortedExchange() throws Exception {
+        logTestStart();
+        RecordingTracer tracer = createTracedSession();
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        String rid = conn.getRequest().getBody().getAttribute(Attributes.RID);
+        conn.closeConnection();
+        tracer.awaitEvent("aborted:" + rid);
+        assertFalse(tracer.getEvents().contains("parsed:" + rid));
+
+        while (!session.isRecoverableConnectionLoss()) {
+            Thread.sleep(10);
+        }
+        session.attemptReconnection();
+        assertTrue(tracer.getEvents().contains("resent:" + rid));
+        cm.awaitConnection();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests sharing a {@code BOSHTimerPool} between clients.
+ */
+public class BOSHTimerPoolTest {
+
+    private NIOStubCM cm;
+    private BOSHTimerPool pool;
+    private final List<BOSHClient> clients = new ArrayList<BOSHClient>();
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new NIOStubCM();
+        cm.setHold(1);
+        cm.setInactivity(5);
+        pool = BOSHTimerPool.create(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (BOSHClient client : clients) {
+            client.close();
+        }
+        pool.shutdown();
+        cm.dispose();
+    }
+
+    private BOSHClient createClient() {
+        BOSHClientConfig cfg = BOSHClientConfig.Builder
+                .create(cm.getURI(), "localhost")
+                .setTimerPool(pool)
+                .build();
+        BOSHClient client = BOSHClient.create(cfg);
+        clients.add(client);
+        return client;
+    }
+
+    /*
+     * Sessions are spread over the timer loops, their deferred empty
+     * requests are sent from the loops, and closing a session releases it.
+     */
+    @Test(timeout=10000)
+    public void sessionsShareLoops() throws Exception {
+        final int count = 6;
+        final Map<String, Boolean> senders =
+                new ConcurrentHashMap<String, Boolean>();
+        final CountDownLatch emptySent = new CountDownLatch(count);
+        final CountDownLatch connected = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            BOSHClient client = createClient();
+            client.addBOSHClientConnListener(new BOSHClientConnListener() {
+                public void connectionEvent(final BOSHClientConnEvent event) {
+                    if (event.isConnected()) {
+                        connected.countDown();
+                    }
+                }
+            });
+            client.addBOSHClientRequestListener(
+                    new BOSHClientRequestListener() {
+                private boolean counted;
+
+                public void requestSent(final BOSHMessageEvent event) {
+                    String name = Thread.currentThread().getName();
+                    if (name.startsWith("BOSHTimerPool")) {
+                        senders.put(name, Boolean.TRUE);
+                        if (!counted) {
+                            counted = true;
+                            emptySent.countDown();
+                        }
+                    }
+                }
+            });
+            client.send(ComposableBody.builder().build());
+        }
+        assertEquals(count, pool.getSessionCount());
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        assertTrue(emptySent.await(5, TimeUnit.SECONDS));
+        assertEquals(senders.keySet().toString(), pool.getLoopCount(),
+                senders.size());
+
+        for (BOSHClient client : clients) {
+            client.close();
+        }
+        clients.clear();
+        assertEquals(0, pool.getSessionCount());
+    }
+
+    /*
+     * Clients can not be created once the pool has been shut down.
+     */
+    @Test(timeout=5000, expected=IllegalStateException.class)
+    public void shutdownRejectsClients() throws Exception {
+        pool.shutdown();
+        createClient();
+    }
+
+}
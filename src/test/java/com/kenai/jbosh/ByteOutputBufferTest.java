@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the buffer which messages are serialized into.
+ */
+public class ByteOutputBufferTest {
+
+    private static byte[] utf8(final String str) throws Exception {
+        return str.getBytes("UTF-8");
+    }
+
+    /*
+     * Appended characters are encoded exactly as String.getBytes would.
+     */
+    @Test
+    public void encodesUTF8() throws Exception {
+        String[] samples = new String[] {
+            "",
+            "plain ascii <body/>",
+            "caf\u00e9 \u00fcber",
+            "\u2603 snowman \uffff",
+            "\ud83d\ude00 emoji \ud834\udd1e",
+            "unpaired \ud83d and \ude00 surrogates \ud83d",
+        };
+        for (String sample : samples) {
+            ByteOutputBuffer out = new ByteOutputBuffer();
+            out.append(sample);
+            assertTrue(sample, Arrays.equals(utf8(sample), out.toByteArray()));
+        }
+
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            builder.append((char) random.nextInt(0x10000));
+        }
+        String str = builder.toString();
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        out.append(str, 0, 5000);
+        for (int i = 5000; i < str.length(); i++) {
+            out.append(str.charAt(i));
+        }
+        assertTrue(Arrays.equals(utf8(str), out.toByteArray()));
+    }
+
+    /*
+     * Bytes and characters can be mixed, and the buffer grows as needed.
+     */
+    @Test
+    public void mixedWrites() throws Exception {
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        byte[] big = new byte[10000];
+        Arrays.fill(big, (byte) 'x');
+        out.append("<a>");
+        out.write(big, 0, big.length);
+        out.write('!');
+        out.append("</a>");
+        assertEquals(3 + big.length + 1 + 4, out.size());
+
+        byte[] dest = out.toByteArray();
+        assertEquals('<', dest[0]);
+        assertEquals('!', dest[dest.length - 5]);
+        assertEquals('>', dest[dest.length - 1]);
+    }
+
+    /*
+     * Resetting empties the buffer.
+     */
+    @Test
+    public void reset() throws Exception {
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        out.append("first");
+        out.reset(1024);
+        out.append("second");
+        assertEquals("second", new String(out.toByteArray(), "UTF-8"));
+        out.write(new byte[4096], 0, 4096);
+        out.reset(1024);
+        assertEquals(0, out.size());
+        out.append("third");
+        assertEquals("third", new String(out.toByteArray(), "UTF-8"));
+    }
+
+}
@@ -16,6 +16,8 @@
 
 package com.kenai.jbosh;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.logging.Logger;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -81,6 +83,107 @@ public class DynamicBodyTest extends BodyTest {
                 + "content</body>", body.toXML());
     }
 
+    private static byte[] toBytes(final AbstractBody body) {
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testPayloadBytes() throws Exception {
+        String payload = "<message to='\u00e9l\u00e8ve'>\u2603</message>";
+        byte[] utf8 = payload.getBytes("UTF-8");
+        ComposableBody expected = ComposableBody.builder()
+                .setPayloadXML(payload)
+                .setAttribute(Attributes.RID, "1")
+                .build();
+        ComposableBody body = ComposableBody.builder()
+                .setPayloadBytes(utf8)
+                .setAttribute(Attributes.RID, "1")
+                .build();
+        utf8[0] = 'x';
+        assertTrue(Arrays.equals(
+                expected.toXML().getBytes("UTF-8"), toBytes(body)));
+        assertEquals(expected.toXML(), body.toXML());
+        assertEquals(payload, body.getPayloadXML());
+
+        // Rebuilding keeps the bytes unless the payload is replaced
+        ComposableBody rebuilt = body.rebuild()
+                .setAttribute(Attributes.RID, "2")
+                .build();
+        assertEquals(payload, rebuilt.getPayloadXML());
+        rebuilt = body.rebuild().setPayloadXML("content").build();
+        assertEquals("content", rebuilt.getPayloadXML());
+    }
+
+    @Test
+    public void testPayloadByteBuffer() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("xx<a/>yy".getBytes("UTF-8"));
+        buffer.position(2);
+        buffer.limit(6);
+        ComposableBody body = ComposableBody.builder()
+                .setPayloadBytes(buffer)
+                .build();
+        assertEquals(2, buffer.position());
+        assertEquals("<a/>", body.getPayloadXML());
+        assertEquals("<body xmlns='http://jabber.org/protocol/httpbind'>"
+                + "<a/></body>", new String(toBytes(body), "UTF-8"));
+    }
+
+    @Test
+    public void testWriteTo() throws Exception {
+        ComposableBody body = ComposableBody.builder()
+                .setPayloadXML("<a>\u00e9</a>")
+                .setAttribute(Attributes.RID, "1")
+                .build();
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        body.writeTo(out);
+        assertTrue(Arrays.equals(
+                body.toXML().getBytes("UTF-8"), out.toByteArray()));
+        // Once computed, the XML is written instead, with the same result
+        assertTrue(Arrays.equals(out.toByteArray(), toBytes(body)));
+    }
+
+    @Test
+    public void testXMLCache() throws Exception {
+        ComposableBody cached = ComposableBody.builder()
+                .setPayloadXML("content")
+                .build();
+        assertSame(cached.toXML(), cached.toXML());
+
+        ComposableBody uncached = cached.rebuild()
+                .setXMLCacheEnabled(false)
+                .build();
+        String xml = uncached.toXML();
+        assertEquals(cached.toXML(), xml);
+        assertNotSame(xml, uncached.toXML());
+        // The setting is kept when rebuilding
+        uncached = uncached.rebuild().build();
+        assertNotSame(uncached.toXML(), uncached.toXML());
+    }
+
+    @Test
+    public void testEmptyRequestTemplate() throws Exception {
+        EmptyRequestTemplate template = new EmptyRequestTemplate("a'b");
+        for (long ack : new long[] {-1L, 41L}) {
+            ComposableBody body = template.create(42L, ack);
+            assertEquals(42L, body.getRequestID());
+
+            ByteOutputBuffer out = new ByteOutputBuffer();
+            body.writeTo(out);
+            StaticBody sent = StaticBody.fromString(
+                    new String(out.toByteArray(), "UTF-8"));
+            assertEquals(body.getAttributes(), sent.getAttributes());
+            assertEquals("a'b", sent.getAttribute(Attributes.SID));
+            assertEquals("42", sent.getAttribute(Attributes.RID));
+            assertEquals(ack < 0 ? null : "41",
+                    sent.getAttribute(Attributes.ACK));
+            assertEquals(body.getAttributes(),
+                    StaticBody.fromString(body.toXML()).getAttributes());
+            assertEquals("", body.getPayloadXML());
+        }
+    }
+
     @Test
     public void testFromStatic() {
         final String uri = "http://jabber.org/protocol/httpbind";
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests holding back empty requests so that messages can take their place.
+ */
+public class EmptyRequestLingerTest extends AbstractBOSHTest {
+
+    private static final int LINGER = 300;
+
+    private void createLingeringSession() throws Exception {
+        BOSHClientConfig cfg = BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setEmptyRequestLinger(LINGER)
+                .build();
+        session = createSession(cfg);
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "2")
+                .setAttribute(Attributes.DISABLE_EMPTY_MESSAGES, null)
+                .build();
+        conn.sendResponse(scr);
+        session.drain();
+    }
+
+    /*
+     * A message sent while the empty request lingers is sent in its place.
+     */
+    @Test(timeout=5000)
+    public void messageTakesEmptyRequestSlot() throws Exception {
+        logTestStart();
+        createLingeringSession();
+        assertEquals(0, cm.pendingConnectionCount());
+
+        session.send(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client'/>")
+                .build());
+        StubConnection conn = cm.awaitConnection();
+        assertTrue(conn.getRequest().getBody().toXML().contains("<message"));
+
+        // No empty request follows it
+        Thread.sleep(LINGER * 2);
+        assertEquals(0, cm.pendingConnectionCount());
+    }
+
+    /*
+     * Without messages to send, the empty request goes out once the linger
+     * time has passed.
+     */
+    @Test(timeout=5000)
+    public void emptyRequestSentAfterLinger() throws Exception {
+        logTestStart();
+        long start = System.currentTimeMillis();
+        createLingeringSession();
+
+        StubConnection conn = cm.awaitConnection();
+        assertTrue(System.currentTimeMillis() - start >= LINGER);
+        assertTrue(conn.getRequest().getBody()
+                .getPayloadElements().isEmpty());
+    }
+
+    /*
+     * A sender waiting for a free request slot gets the slot freed by a
+     * response before the empty request which falls due at the same time.
+     */
+    @Test(timeout=5000)
+    public void wokenSenderGoesBeforeEmptyRequest() throws Exception {
+        logTestStart();
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "1")
+                .setAttribute(Attributes.DISABLE_EMPTY_MESSAGES, null)
+                .build();
+        conn.sendResponse(scr);
+
+        for (int i = 0; i < 20; i++) {
+            // The empty request keeping the session alive fills the only slot
+            conn = cm.awaitConnection();
+            assertTrue(conn.getRequest().getBody()
+                    .getPayloadElements().isEmpty());
+
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        session.send(ComposableBody.builder()
+                                .setPayloadXML("<message xmlns='jabber:client'/>")
+                                .build());
+                    } catch (BOSHException boshx) {
+                        throw(new IllegalStateException(boshx));
+                    }
+                }
+            });
+            sender.start();
+            while (sender.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            conn.sendResponse(ComposableBody.builder()
+                    .setAttribute(Attributes.SID, "123XYZ")
+                    .build());
+
+            conn = cm.awaitConnection();
+            assertTrue(conn.getRequest().getBody().toXML().contains("<message"));
+            sender.join();
+            conn.sendResponse(ComposableBody.builder()
+                    .setAttribute(Attributes.SID, "123XYZ")
+                    .build());
+        }
+    }
+
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TCP proxy which sits between a client and a connection manager and
+ * injects network faults: latency, bandwidth limits, connection resets,
+ * stalls, half-open connections and truncated responses.  It is used to
+ * measure and test how clients recover from connection loss.
+ * <p/>
+ * Each proxied connection uses two threads, one per direction.  Latency and
+ * bandwidth limits are applied to each block of data as it is forwarded,
+ * which is accurate enough for loopback testing but does not model a real
+ * link precisely.
+ * <p/>
+ * Instances of this class are thread-safe.
+ */
+public final class FaultProxy {
+
+    private static final Logger LOG =
+            Logger.getLogger(FaultProxy.class.getName());
+
+    /**
+     * Size of the forwarding buffers.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ServerSocket server;
+    private final InetSocketAddress target;
+    private final String path;
+    private final Thread acceptor;
+    private final List<Link> links = new CopyOnWriteArrayList<Link>();
+    private final AtomicInteger linkCount = new AtomicInteger();
+    private final Object stallLock = new Object();
+
+    private volatile boolean running = true;
+    private volatile int latency;
+    private volatile int bandwidth;
+    private volatile boolean stalled;
+    private volatile int truncateAfter = -1;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Classes:
+
+    /**
+     * A proxied connection.
+     */
+    private final class Link {
+        private final Socket client;
+        private final Socket server;
+        private volatile boolean blackholed;
+        private volatile boolean closed;
+
+        Link(final Socket clientSock, final Socket serverSock) {
+            client = clientSock;
+            server = serverSock;
+        }
+
+        /**
+         * Start forwarding in both directions.
+         */
+        void start() throws IOException {
+            final int id = linkCount.incrementAndGet();
+            startPump(client.getInputStream(), server.getOutputStream(),
+                    false, "FaultProxy upstream " + id);
+            startPump(server.getInputStream(), client.getOutputStream(),
+                    true, "FaultProxy downstream " + id);
+        }
+
+        private void startPump(
+                final InputStream in,
+                final OutputStream out,
+                final boolean downstream,
+                final String name) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    pump(in, out, downstream);
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Forward data until either side closes the connection.
+         */
+        private void pump(
+                final InputStream in,
+                final OutputStream out,
+                final boolean downstream) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                while (!closed) {
+                    int count = in.read(buffer);
+                    if (count < 0) {
+                        break;
+                    }
+                    awaitUnstalled();
+                    if (blackholed) {
+                        continue;
+                    }
+                    delay(count);
+                    if (downstream) {
+                        int limit = truncateAfter;
+                        if (limit >= 0) {
+                            truncateAfter = -1;
+                            out.write(buffer, 0, Math.min(limit, count));
+                            out.flush();
+                            reset();
+                            return;
+                        }
+                    }
+                    out.write(buffer, 0, count);
+                    out.flush();
+                }
+            } catch (IOException iox) {
+                LOG.log(Level.FINEST, "Proxied connection failed", iox);
+            } catch (InterruptedException intx) {
+                Thread.currentThread().interrupt();
+            }
+            if (!blackholed) {
+                close(false);
+            }
+        }
+
+        /**
+         * Close both sides of the connection.
+         *
+         * @param abortive {@code true} to reset the connections rather than
+         *  closing them gracefully
+         */
+        void close(final boolean abortive) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            links.remove(this);
+            closeSocket(client, abortive);
+            closeSocket(server, abortive);
+        }
+
+        /**
+         * Reset both sides of the connection.
+         */
+        void reset() {
+            close(true);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Create a proxy forwarding to the host and port of a connection
+     * manager URI, listening on an ephemeral port of the loopback
+     * interface.
+     *
+     * @param cmURI connection manager URI
+     * @throws IOException if the server socket could not be opened
+     */
+    public FaultProxy(final URI cmURI) throws IOException {
+        target = new InetSocketAddress(cmURI.getHost(), cmURI.getPort());
+        path = cmURI.getRawPath();
+        server = new ServerSocket(0, 256, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "FaultProxy acceptor " + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public methods:
+
+    /**
+     * Get the URI clients should connect to in place of the connection
+     * manager's.
+     *
+     * @return proxy URI
+     */
+    public URI getURI() {
+        return URI.create("http://127.0.0.1:" + server.getLocalPort()
+                + (path == null ? "/" : path));
+    }
+
+    /**
+     * Delay each block of data forwarded, in either direction.
+     *
+     * @param millis delay in milliseconds, or 0 for none
+     */
+    public void setLatency(final int millis) {
+        latency = millis;
+    }
+
+    /**
+     * Limit the rate at which each connection forwards data in each
+     * direction.
+     *
+     * @param bytesPerSecond rate limit, or 0 for none
+     */
+    public void setBandwidth(final int bytesPerSecond) {
+        bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Stop or resume forwarding data on all connections.  Connections stay
+     * open while stalled, and data is forwarded once resumed.
+     *
+     * @param stall {@code true} to stall, {@code false} to resume
+     */
+    public void setStalled(final boolean stall) {
+        synchronized (stallLock) {
+            stalled = stall;
+            stallLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reset all current connections.  Both the client and the connection
+     * manager see the connection reset.
+     */
+    public void resetConnections() {
+        for (Link link : links) {
+            link.reset();
+        }
+    }
+
+    /**
+     * Make all current connections half-open: they stay open, but all data
+     * sent in either direction is silently discarded.  New connections are
+     * not affected.
+     */
+    public void halfOpenConnections() {
+        for (Link link : links) {
+            link.blackholed = true;
+            links.remove(link);
+        }
+    }
+
+    /**
+     * Truncate the next block of data sent to a client after the given
+     * number of bytes and reset its connection, cutting a response short.
+     *
+     * @param bytes number of bytes to forward before the reset
+     */
+    public void truncateNextResponse(final int bytes) {
+        truncateAfter = bytes;
+    }
+
+    /**
+     * Get the number of connections accepted.
+     *
+     * @return connection count
+     */
+    public int getConnectionCount() {
+        return linkCount.get();
+    }
+
+    /**
+     * Stop accepting connections and close all current connections.
+     */
+    public void dispose() {
+        running = false;
+        closeSocket(server);
+        for (Link link : links) {
+            link.close(false);
+        }
+        setStalled(false);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Private methods:
+
+    /**
+     * Accept connections until disposed.
+     */
+    private void acceptLoop() {
+        while (running) {
+            Socket client = null;
+            try {
+                client = server.accept();
+                client.setTcpNoDelay(true);
+                Socket upstream = new Socket();
+                upstream.setTcpNoDelay(true);
+                upstream.connect(target);
+                Link link = new Link(client, upstream);
+                links.add(link);
+                link.start();
+            } catch (IOException iox) {
+                if (running) {
+                    LOG.log(Level.WARNING, "Could not proxy connection", iox);
+                }
+                if (client != null) {
+                    closeSocket(client);
+                }
+            }
+        }
+    }
+
+    /**
+     * Block while forwarding is stalled.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitUnstalled() throws InterruptedException {
+        synchronized (stallLock) {
+            while (stalled && running) {
+                stallLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Sleep for the configured latency and the time needed to send a block
+     * of data at the configured bandwidth.
+     *
+     * @param bytes size of the block
+     * @throws InterruptedException if interrupted while sleeping
+     */
+    private void delay(final int bytes) throws InterruptedException {
+        long millis = latency;
+        int rate = bandwidth;
+        if (rate > 0) {
+            millis += bytes * 1000L / rate;
+        }
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * Close a socket, ignoring errors.
+     *
+     * @param sock socket to close
+     */
+    private static void closeSocket(final Socket sock) {
+        closeSocket(sock, false);
+    }
+
+    /**
+     * Close a socket, ignoring errors.
+     *
+     * @param sock socket to close
+     * @param abortive {@code true} to reset the connection
+     */
+    private static void closeSocket(final Socket sock, final boolean abortive) {
+        try {
+            if (abortive) {
+                sock.setSoLinger(true, 0);
+            }
+            sock.close();
+        } catch (IOException iox) {
+            LOG.log(Level.FINEST, "Could not close socket", iox);
+        }
+    }
+
+    /**
+     * Close a server socket, ignoring errors.
+     *
+     * @param sock socket to close
+     */
+    private static void closeSocket(final ServerSocket sock) {
+        try {
+            sock.close();
+        } catch (IOException iox) {
+            LOG.log(Level.FINEST, "Could not close socket", iox);
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that sessions recover from the faults injected by
+ * {@code FaultProxy}.
+ */
+public class FaultProxyTest {
+
+    private NIOStubCM cm;
+    private FaultProxy proxy;
+    private BOSHClient client;
+    private final BlockingQueue<String> received =
+            new LinkedBlockingQueue<String>();
+    private final Semaphore lost = new Semaphore(0);
+    private final Semaphore connected = new Semaphore(0);
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new NIOStubCM();
+        proxy = new FaultProxy(cm.getURI());
+        client = BOSHClient.create(BOSHClientConfig.Builder
+                .create(proxy.getURI(), "localhost")
+                .setWaitTime(1)
+                .build());
+        client.addBOSHClientResponseListener(new BOSHClientResponseListener() {
+            public void responseReceived(final BOSHMessageEvent event) {
+                received.add(event.getBody().toXML());
+            }
+        });
+        client.addBOSHClientConnListener(new BOSHClientConnListener() {
+            public void connectionEvent(final BOSHClientConnEvent event) {
+                if (event.isConnected()) {
+                    connected.release();
+                } else {
+                    lost.release();
+                }
+            }
+        });
+        client.send(ComposableBody.builder().build());
+        assertTrue(connected.tryAcquire(10, TimeUnit.SECONDS));
+        received.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        proxy.dispose();
+        cm.dispose();
+    }
+
+    private void awaitText(final String text) throws InterruptedException {
+        while (true) {
+            String xml = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for " + text, xml);
+            if (xml.contains(text)) {
+                return;
+            }
+        }
+    }
+
+    private void sendText(final String text) throws BOSHException {
+        client.send(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client'><body>"
+                    + text + "</body></message>")
+                .build());
+    }
+
+    private void reconnectAndAwait(final String text) throws Exception {
+        assertTrue(lost.tryAcquire(10, TimeUnit.SECONDS));
+        assertTrue(client.isRecoverableConnectionLoss());
+        client.attemptReconnection();
+        awaitText(text);
+    }
+
+    /*
+     * A reset connection is recovered by reconnecting.
+     */
+    @Test(timeout=20000)
+    public void reset() throws Exception {
+        proxy.setStalled(true);
+        sendText("reset");
+        proxy.resetConnections();
+        proxy.setStalled(false);
+        reconnectAndAwait("reset");
+    }
+
+    /*
+     * A truncated response is recovered by reconnecting.
+     */
+    @Test(timeout=20000)
+    public void truncatedResponse() throws Exception {
+        proxy.truncateNextResponse(20);
+        sendText("truncated");
+        reconnectAndAwait("truncated");
+        assertTrue(proxy.getConnectionCount() >= 2);
+    }
+
+    /*
+     * A half-open connection is detected by the response timeout.
+     */
+    @Test(timeout=20000)
+    public void halfOpen() throws Exception {
+        proxy.halfOpenConnections();
+        sendText("half-open");
+        reconnectAndAwait("half-open");
+    }
+
+    /*
+     * A stalled connection delivers its responses once resumed.
+     */
+    @Test(timeout=20000)
+    public void stall() throws Exception {
+        proxy.setStalled(true);
+        sendText("stalled");
+        Thread.sleep(200);
+        assertTrue(received.isEmpty());
+        proxy.setStalled(false);
+        awaitText("stalled");
+    }
+
+}
@@ -44,8 +44,14 @@ public class InternalHTTPConnectionTest {
     static class Request implements InternalHTTPRequestBase {
         public void requestAborted() {
         }
+        public void requestWritten(int length) {
+        }
+        public void responseStarted() {
+        }
     };
 
+    /** Empty request body, for requests given entirely as the header. */
+    static final byte[] NO_BODY = new byte[0];
     
     ServerSocket serverSocket;
     InputStream serverInput;
@@ -95,9 +101,10 @@ public class InternalHTTPConnectionTest {
         // Creating InternalHTTPConnection will connect asynchronously.
         acceptConnection();
         
-        // Send a request.  Request data is given to InternalHTTPConnection literally.
-        byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        // Send a request.  Request data is given to InternalHTTPConnection literally,
+        // the header followed by the body.
+        conn.sendRequest("request ".getBytes("UTF-8"), "data".getBytes("UTF-8"),
+                new Request());
 
         // Read and verify the request we just sent.
         String receivedData = readRequestFromClient();
@@ -132,7 +139,7 @@ public class InternalHTTPConnectionTest {
 
         // Send a request.  The request should have failed, so this is a no-op.
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
 
         // Wait for the response.  The connection failed, so ConnectException will be
         // thrown here.
@@ -148,7 +155,7 @@ public class InternalHTTPConnectionTest {
 
         // Send a request.
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
 
         // Abort the connection.
         conn.abort();
@@ -163,16 +170,29 @@ public class InternalHTTPConnectionTest {
      */
     @Test(timeout=5000)
     public void testThreadShutdown() throws IOException {
-        int threadsBefore = Thread.activeCount();
+        int threadsBefore = countSocketThreads();
         for(int i = 0; i < 50; ++i) {
             InternalHTTPConnection<Request> conn = new InternalHTTPConnection<Request>(serverURI, null, null, null);
             conn.abort();
         }
-        int threadsAfter = Thread.activeCount();
+        int threadsAfter = countSocketThreads();
 
         assertEquals(threadsBefore, threadsAfter);
     }
 
+    /**
+     * Count the live connection threads.  Other threads, such as idle timer
+     * threads left by earlier tests, may exit at any time.
+     */
+    private static int countSocketThreads() {
+        int count = 0;
+        for(Thread thread: Thread.getAllStackTraces().keySet()) {
+            if(thread.isAlive() && thread.getName().startsWith("NonBlockingSocket thread"))
+                ++count;
+        }
+        return count;
+    }
+
     
     /**
      * Test header parsing, including headers spanning multiple lines and repeated
@@ -187,7 +207,7 @@ public class InternalHTTPConnectionTest {
         
         // Send a request.  Request data is given to InternalHTTPConnection literally.
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
 
         // Read the request.
         readRequestFromClient();
@@ -223,7 +243,7 @@ public class InternalHTTPConnectionTest {
         
         // Send a request.  Request data is given to InternalHTTPConnection literally.
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
 
         // Read the request.
         readRequestFromClient();
@@ -258,7 +278,7 @@ public class InternalHTTPConnectionTest {
         
         // Send a request.  Request data is given to InternalHTTPConnection literally.
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
 
         // Read the request.
         readRequestFromClient();
@@ -303,7 +323,7 @@ public class InternalHTTPConnectionTest {
     public void testSocketCreationErrorHandling() throws IOException {
         InternalHTTPConnection<Request> conn = new InternalHTTPConnection<Request>(serverURI, errorFactory, null, null);
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
 
         // waitForNextResponse throws the TestIOException that was thrown by errorFactory.
         conn.waitForNextResponse();
@@ -321,7 +341,7 @@ public class InternalHTTPConnectionTest {
         
         // Send a request.  Request data is given to InternalHTTPConnection literally.
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
 
         // Read the request.
         readRequestFromClient();
@@ -347,6 +367,34 @@ public class InternalHTTPConnectionTest {
         assertEquals(responseDataString, "response data");
     }
 
+    /**
+     * Test reading a response split into several chunks, each followed by
+     * a CRLF.
+     */
+    @Test(timeout=5000)
+    public void testMultipleChunks() throws IOException {
+        InternalHTTPConnection<Request> conn = new InternalHTTPConnection<Request>(serverURI, null, null, null);
+        acceptConnection();
+        conn.sendRequest("request data".getBytes("UTF-8"), NO_BODY, new Request());
+        readRequestFromClient();
+
+        String response =
+            "HTTP/1.1 200 OK\r\n" +
+            "Transfer-Encoding: chunked\r\n" +
+            "\r\n" +
+            "9\r\n" +
+            "response \r\n" +
+            "4\r\n" +
+            "data\r\n" +
+            "0\r\n" +
+            "\r\n";
+        serverOutput.write(response.getBytes("UTF-8"));
+        serverOutput.flush();
+
+        InternalHTTPConnection<Request>.ResponseData responseData = conn.waitForNextResponse();
+        assertEquals("response data", new String(responseData.data, "UTF-8"));
+    }
+
     /**
      * Verify receiving multiple responses at once.
      */
@@ -359,9 +407,9 @@ public class InternalHTTPConnectionTest {
 
         // Send and receive two pipelined requests.
         byte[] data = "request data".getBytes("UTF-8");
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
         readRequestFromClient();
-        conn.sendRequest(data, new Request());
+        conn.sendRequest(data, NO_BODY, new Request());
         readRequestFromClient();
         
         // Send both responses together.
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests asynchronous listener dispatch.
+ */
+public class ListenerDispatcherTest {
+
+    private ExecutorService exec;
+    private BOSHClient source;
+
+    /**
+     * Response listener recording the events it receives, optionally
+     * blocking until released.
+     */
+    private static final class Recorder implements BOSHClientResponseListener {
+        private final List<String> received = new ArrayList<String>();
+        private int messages;
+        private int active;
+        private int peakActive;
+        private final CountDownLatch release;
+
+        Recorder(final CountDownLatch gate) {
+            release = gate;
+        }
+
+        public void responseReceived(final BOSHMessageEvent event) {
+            synchronized (this) {
+                peakActive = Math.max(peakActive, ++active);
+            }
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException intx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                active--;
+                received.add(event.getBody().getAttribute(Attributes.RID));
+                String xml = event.getBody().toXML();
+                for (int i = xml.indexOf("<message"); i >= 0;
+                        i = xml.indexOf("<message", i + 1)) {
+                    messages++;
+                }
+                notifyAll();
+            }
+        }
+
+        synchronized List<String> await(final int count)
+        throws InterruptedException {
+            while (received.size() < count) {
+                wait();
+            }
+            return new ArrayList<String>(received);
+        }
+
+        synchronized int getPeakActive() {
+            return peakActive;
+        }
+
+        synchronized void awaitMessages(final int count)
+        throws InterruptedException {
+            while (messages < count) {
+                wait();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        exec = Executors.newFixedThreadPool(4);
+        source = BOSHClient.create(BOSHClientConfig.Builder
+                .create(URI.create("http://localhost/"), "localhost")
+                .build());
+    }
+
+    @After
+    public void tearDown() {
+        source.close();
+        exec.shutdownNow();
+    }
+
+    private BOSHMessageEvent event(final int index) {
+        return BOSHMessageEvent.createResponseReceivedEvent(source,
+                ComposableBody.builder()
+                    .setAttribute(Attributes.RID, Integer.toString(index))
+                    .build());
+    }
+
+    private static List<String> sequence(final int count) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            result.add(Integer.toString(i));
+        }
+        return result;
+    }
+
+    /*
+     * A blocked listener delays neither the caller nor other listeners, and
+     * every listener sees its events in order.
+     */
+    @Test(timeout=5000)
+    public void slowListenerIsolated() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(
+                exec, 1000, ListenerOverflowPolicy.BLOCK);
+        CountDownLatch gate = new CountDownLatch(1);
+        Recorder slow = new Recorder(gate);
+        Recorder fast = new Recorder(null);
+        for (int i = 0; i < 500; i++) {
+            dispatcher.responseReceived(slow, event(i));
+            dispatcher.responseReceived(fast, event(i));
+        }
+        assertEquals(sequence(500), fast.await(500));
+        assertTrue(dispatcher.getDepth() >= 499);
+        gate.countDown();
+        assertEquals(sequence(500), slow.await(500));
+        assertEquals(0, dispatcher.getDepth());
+        assertTrue(dispatcher.getPeakDepth() >= 500);
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    /*
+     * Full queues drop the newest or the oldest events, as configured.
+     */
+    @Test(timeout=5000)
+    public void dropPolicies() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        ListenerDispatcher newest = new ListenerDispatcher(
+                exec, 4, ListenerOverflowPolicy.DROP_NEWEST);
+        ListenerDispatcher oldest = new ListenerDispatcher(
+                exec, 4, ListenerOverflowPolicy.DROP_OLDEST);
+        Recorder dropsNewest = new Recorder(gate);
+        Recorder dropsOldest = new Recorder(gate);
+
+        // The first event is taken from the queue before the listener blocks.
+        newest.responseReceived(dropsNewest, event(0));
+        oldest.responseReceived(dropsOldest, event(0));
+        Thread.sleep(100);
+        for (int i = 1; i <= 10; i++) {
+            newest.responseReceived(dropsNewest, event(i));
+            oldest.responseReceived(dropsOldest, event(i));
+        }
+        assertEquals(6, newest.getDroppedCount());
+        assertEquals(6, oldest.getDroppedCount());
+        gate.countDown();
+
+        List<String> expected = sequence(5);
+        assertEquals(expected, dropsNewest.await(5));
+        expected = new ArrayList<String>();
+        expected.add("0");
+        for (int i = 7; i <= 10; i++) {
+            expected.add(Integer.toString(i));
+        }
+        assertEquals(expected, dropsOldest.await(5));
+    }
+
+    /*
+     * A listener removed and added again while its events are still queued
+     * keeps a single queue, so it is never called concurrently and sees all
+     * of its events in order.
+     */
+    @Test(timeout=5000)
+    public void readdedListenerKeepsQueue() throws Exception {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(
+                exec, 100, ListenerOverflowPolicy.BLOCK);
+        CountDownLatch gate = new CountDownLatch(1);
+        Recorder recorder = new Recorder(gate);
+        for (int i = 0; i < 10; i++) {
+            dispatcher.responseReceived(recorder, event(i));
+        }
+        dispatcher.removeResponseListener(recorder);
+        for (int i = 10; i < 20; i++) {
+            dispatcher.responseReceived(recorder, event(i));
+        }
+        Thread.sleep(100);
+        gate.countDown();
+        assertEquals(sequence(20), recorder.await(20));
+        assertEquals(1, recorder.getPeakActive());
+
+        // Once drained, the queue of a removed listener is retired, and a
+        // new one is created when the listener is added again.
+        dispatcher.removeResponseListener(recorder);
+        Thread.sleep(100);
+        dispatcher.responseReceived(recorder, event(20));
+        assertEquals(sequence(21), recorder.await(21));
+    }
+
+    /*
+     * With the blocking policy, the caller waits for room in the queue.
+     */
+    @Test(timeout=5000)
+    public void blockPolicy() throws Exception {
+        final ListenerDispatcher dispatcher = new ListenerDispatcher(
+                exec, 2, ListenerOverflowPolicy.BLOCK);
+        CountDownLatch gate = new CountDownLatch(1);
+        final Recorder recorder = new Recorder(gate);
+        final CountDownLatch queued = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < 10; i++) {
+                    dispatcher.responseReceived(recorder, event(i));
+                }
+                queued.countDown();
+            }
+        };
+        producer.start();
+        assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(dispatcher.getDepth() <= 2);
+        gate.countDown();
+        assertTrue(queued.await(2, TimeUnit.SECONDS));
+        assertEquals(sequence(10), recorder.await(10));
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    /*
+     * Connection events are queued even when the listener's queue is full,
+     * whatever the policy.
+     */
+    @Test(timeout=5000)
+    public void connectionEventsNeverDropped() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<List<Boolean>> received = new ArrayList<List<Boolean>>();
+        for (ListenerOverflowPolicy policy
+                : ListenerOverflowPolicy.values()) {
+            // Dispatchers deliver concurrently, so each records separately
+            final List<Boolean> events = new ArrayList<Boolean>();
+            received.add(events);
+            BOSHClientConnListener listener = new BOSHClientConnListener() {
+                public void connectionEvent(final BOSHClientConnEvent event) {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException intx) {
+                        Thread.currentThread().interrupt();
+                    }
+                    synchronized (received) {
+                        events.add(Boolean.valueOf(event.isConnected()));
+                        received.notifyAll();
+                    }
+                }
+            };
+            ListenerDispatcher dispatcher =
+                    new ListenerDispatcher(exec, 1, policy);
+            dispatcher.connectionEvent(listener, BOSHClientConnEvent
+                    .createConnectionEstablishedEvent(source));
+            dispatcher.connectionEvent(listener, BOSHClientConnEvent
+                    .createConnectionEstablishedEvent(source));
+            dispatcher.connectionEvent(listener, BOSHClientConnEvent
+                    .createConnectionClosedEvent(source));
+            assertEquals(0, dispatcher.getDroppedCount());
+        }
+        gate.countDown();
+        synchronized (received) {
+            for (List<Boolean> events : received) {
+                while (events.size() < 3) {
+                    received.wait();
+                }
+                assertEquals(Arrays.asList(Boolean.TRUE, Boolean.TRUE,
+                        Boolean.FALSE), events);
+            }
+        }
+    }
+
+    /*
+     * With the blocking policy, a listener queueing events for a full queue
+     * is not blocked, since the queue may need its thread to drain.
+     */
+    @Test(timeout=5000)
+    public void blockPolicyFromDeliveringThread() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            final ListenerDispatcher dispatcher = new ListenerDispatcher(
+                    single, 1, ListenerOverflowPolicy.BLOCK);
+            final Recorder recorder = new Recorder(null);
+            BOSHClientResponseListener sender =
+                    new BOSHClientResponseListener() {
+                public void responseReceived(final BOSHMessageEvent event) {
+                    for (int i = 0; i < 5; i++) {
+                        dispatcher.responseReceived(recorder, event(i));
+                    }
+                }
+            };
+            dispatcher.responseReceived(sender, event(0));
+            assertEquals(sequence(5), recorder.await(5));
+            assertEquals(0, dispatcher.getDroppedCount());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    /*
+     * A client with a blocked response listener keeps exchanging messages.
+     */
+    @Test(timeout=10000)
+    public void clientKeepsRunning() throws Exception {
+        NIOStubCM cm = new NIOStubCM();
+        CountDownLatch gate = new CountDownLatch(1);
+        BOSHClient client = BOSHClient.create(BOSHClientConfig.Builder
+                .create(cm.getURI(), "localhost")
+                .setListenerExecutor(exec)
+                .build());
+        try {
+            Recorder slow = new Recorder(gate);
+            Recorder fast = new Recorder(null);
+            client.addBOSHClientResponseListener(slow);
+            client.addBOSHClientResponseListener(fast);
+            client.send(ComposableBody.builder().build());
+            for (int i = 0; i < 5; i++) {
+                client.send(ComposableBody.builder()
+                        .setPayloadXML("<message xmlns='jabber:client'/>")
+                        .build());
+            }
+            fast.awaitMessages(5);
+            assertTrue(client.getListenerQueueDepth() > 0);
+            gate.countDown();
+            slow.awaitMessages(5);
+            assertEquals(0, client.getListenerQueueDepth());
+        } finally {
+            client.close();
+            cm.dispose();
+        }
+    }
+
+}
@@ -0,0 +1,1142 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Scalable in-process connection manager for load, soak and benchmark
+ * runs.  Unlike {@link StubCM}, which hands every request to the test to
+ * answer, this class implements the connection manager side of the
+ * protocol itself: session creation, hold and wait, pipelined requests,
+ * request acknowledgements, reports of missing requests, pause, inactivity
+ * and termination.  Payloads received are echoed back to the sending
+ * session, and {@link #deliver(String, String)} pushes payloads to a
+ * session as if they came from an XMPP server.
+ * <p/>
+ * All connections, sessions and timers are handled by a single NIO
+ * selector thread, so the number of threads used does not grow with the
+ * number of sessions.  A latency profile ({@link #setLatency(int, int)})
+ * delays every response, and a {@link FaultScript} can close connections
+ * or report requests as missing to exercise client recovery.
+ * <p/>
+ * Responses on a connection are written in the order their requests
+ * arrived, so a held request would block the responses to requests
+ * pipelined after it.  Held requests are therefore answered early when a
+ * later response on the same connection is ready.
+ * <p/>
+ * Configuration changes apply to sessions created and requests received
+ * after the change.  Instances of this class are thread-safe.
+ */
+public final class NIOStubCM {
+
+    /**
+     * Fault to inject while processing a request.
+     */
+    public enum Fault {
+        /**
+         * Process the request normally.
+         */
+        NONE,
+
+        /**
+         * Close the connection the request arrived on without responding.
+         * All requests pending on the connection are lost.
+         */
+        CLOSE_CONNECTION,
+
+        /**
+         * Discard the request and report it as missing, causing the client
+         * to resend it.
+         */
+        REPORT_MISSING
+    }
+
+    /**
+     * Decides which fault, if any, to inject for each new request.
+     * Scripts are called from the selector thread and must not block.
+     */
+    public interface FaultScript {
+        /**
+         * Choose the fault to inject for a request.  Resent requests are not
+         * passed to the script.
+         *
+         * @param sid session ID
+         * @param rid request ID
+         * @return fault to inject
+         */
+        Fault onRequest(String sid, long rid);
+    }
+
+    private static final Logger LOG =
+            Logger.getLogger(NIOStubCM.class.getName());
+
+    /**
+     * Interval between checks for inactive sessions.
+     */
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Initial size of a connection's read buffer.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    private volatile int hold = 1;
+    private volatile int requests = 2;
+    private volatile int inactivity = 30;
+    private volatile int maxPause = 120;
+    private volatile boolean compression;
+    private volatile boolean echo = true;
+    private volatile int minLatency;
+    private volatile int maxLatency;
+    private volatile FaultScript faultScript;
+
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong responseCount = new AtomicLong();
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    // The following are only accessed by the selector thread.
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final Random random = new Random();
+    private long timerSequence;
+    private long nextSID;
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Classes:
+
+    /**
+     * Task run by the selector thread at a given time.
+     */
+    private static final class Timer implements Comparable<Timer> {
+        private final long deadline;
+        private final long sequence;
+        private final Runnable task;
+        private boolean cancelled;
+
+        Timer(final long when, final long seq, final Runnable toRun) {
+            deadline = when;
+            sequence = seq;
+            task = toRun;
+        }
+
+        public int compareTo(final Timer other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1
+                    : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A client connection.  Responses are written in the order their
+     * requests arrived.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final LinkedList<Slot> slots = new LinkedList<Slot>();
+        private byte[] in = new byte[BUFFER_SIZE];
+        private int inLength;
+        private ByteBuffer out;
+        private boolean closed;
+
+        Connection(final SocketChannel sock, final SelectionKey selKey) {
+            channel = sock;
+            key = selKey;
+        }
+    }
+
+    /**
+     * A request received on a connection, and its response once known.
+     */
+    private static final class Slot {
+        private final Connection conn;
+        private final boolean gzip;
+        private long rid;
+        private Session heldIn;
+        private Timer waitTimer;
+        private byte[] response;
+
+        Slot(final Connection connection, final boolean gzipResponse) {
+            conn = connection;
+            gzip = gzipResponse;
+        }
+    }
+
+    /**
+     * A request which arrived before one with a lower RID.
+     */
+    private static final class Early {
+        private final Slot slot;
+        private final StaticBody body;
+
+        Early(final Slot early, final StaticBody request) {
+            slot = early;
+            body = request;
+        }
+    }
+
+    /**
+     * State of a single session.
+     */
+    private static final class Session {
+        private final String sid;
+        private final int wait;
+        private final int hold;
+        private final int inactivity;
+        private final boolean acking;
+        private final LinkedList<Slot> held = new LinkedList<Slot>();
+        private final StringBuilder outbound = new StringBuilder();
+        private final TreeMap<Long, Early> early = new TreeMap<Long, Early>();
+        private final Map<Long, String> sent;
+        private long lastRID;
+        private long idleSince;
+        private int pause;
+
+        Session(
+                final String id,
+                final int waitTime,
+                final int holdValue,
+                final int requestsValue,
+                final int inactivityTime,
+                final boolean ack,
+                final long rid) {
+            sid = id;
+            wait = waitTime;
+            hold = holdValue;
+            inactivity = inactivityTime;
+            acking = ack;
+            lastRID = rid;
+            final int cacheSize = requestsValue + holdValue + 1;
+            sent = new LinkedHashMap<Long, String>() {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<Long, String> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Constructor:
+
+    /**
+     * Create a connection manager listening on an ephemeral port of the
+     * loopback interface, and start its selector thread.
+     *
+     * @throws IOException if the server socket could not be opened
+     */
+    public NIOStubCM() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), 0), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                runLoop();
+            }
+        }, "NIOStubCM " + server.socket().getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Public methods:
+
+    /**
+     * Get the URI clients should connect to.
+     *
+     * @return connection manager URI
+     */
+    public URI getURI() {
+        return URI.create("http://127.0.0.1:"
+                + server.socket().getLocalPort() + "/http-bind/");
+    }
+
+    /**
+     * Set the hold value granted to new sessions.  Defaults to 1.
+     *
+     * @param value hold value
+     */
+    public void setHold(final int value) {
+        hold = value;
+    }
+
+    /**
+     * Set the requests value granted to new sessions.  Defaults to 2.
+     *
+     * @param value requests value
+     */
+    public void setRequests(final int value) {
+        requests = value;
+    }
+
+    /**
+     * Set the inactivity period granted to new sessions.  Defaults to 30
+     * seconds.
+     *
+     * @param seconds inactivity period
+     */
+    public void setInactivity(final int seconds) {
+        inactivity = seconds;
+    }
+
+    /**
+     * Set the maximum pause granted to new sessions, or 0 to not support
+     * pausing.  Defaults to 120 seconds.
+     *
+     * @param seconds maximum pause
+     */
+    public void setMaxPause(final int seconds) {
+        maxPause = seconds;
+    }
+
+    /**
+     * Set whether gzip content coding is offered to new sessions and used
+     * for responses when the client accepts it.  Defaults to {@code false}.
+     *
+     * @param enabled {@code true} to enable compression
+     */
+    public void setCompressionEnabled(final boolean enabled) {
+        compression = enabled;
+    }
+
+    /**
+     * Set whether payloads received are echoed back to the session which
+     * sent them.  Defaults to {@code true}.
+     *
+     * @param enabled {@code true} to echo payloads
+     */
+    public void setEchoEnabled(final boolean enabled) {
+        echo = enabled;
+    }
+
+    /**
+     * Delay every response by a random time between the given bounds.
+     * Responses on the same connection are still written in order.
+     *
+     * @param minMillis minimum delay in milliseconds
+     * @param maxMillis maximum delay in milliseconds
+     */
+    public void setLatency(final int minMillis, final int maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw(new IllegalArgumentException(
+                    "Invalid latency range: " + minMillis + "-" + maxMillis));
+        }
+        minLatency = minMillis;
+        maxLatency = maxMillis;
+    }
+
+    /**
+     * Set the script deciding which faults to inject, or {@code null} to
+     * inject none.
+     *
+     * @param script fault script
+     */
+    public void setFaultScript(final FaultScript script) {
+        faultScript = script;
+    }
+
+    /**
+     * Create a fault script which injects faults at random.
+     *
+     * @param closeRate probability of closing the connection
+     * @param reportRate probability of reporting a request as missing
+     * @param seed random seed, so that runs can be repeated
+     * @return fault script
+     */
+    public static FaultScript randomFaults(
+            final double closeRate,
+            final double reportRate,
+            final long seed) {
+        final Random rand = new Random(seed);
+        return new FaultScript() {
+            public Fault onRequest(final String sid, final long rid) {
+                double value = rand.nextDouble();
+                if (value < closeRate) {
+                    return Fault.CLOSE_CONNECTION;
+                }
+                if (value < closeRate + reportRate) {
+                    return Fault.REPORT_MISSING;
+                }
+                return Fault.NONE;
+            }
+        };
+    }
+
+    /**
+     * Queue a payload for delivery to a session, as if it had been sent by
+     * an XMPP server.  Payloads for unknown sessions are discarded.
+     *
+     * @param sid session ID
+     * @param payloadXML payload to deliver
+     */
+    public void deliver(final String sid, final String payloadXML) {
+        execute(new Runnable() {
+            public void run() {
+                Session session = sessions.get(sid);
+                if (session != null) {
+                    session.outbound.append(payloadXML);
+                    flushSession(session);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the number of active sessions.
+     *
+     * @return session count
+     */
+    public int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * Get the number of HTTP requests received.
+     *
+     * @return request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Get the number of HTTP responses sent or scheduled.
+     *
+     * @return response count
+     */
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    /**
+     * Stop the selector thread and close all connections.
+     *
+     * @throws InterruptedException if interrupted while waiting for the
+     *  thread to exit
+     */
+    public void dispose() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Selector thread:
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task task to run
+     */
+    private void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task on the selector thread after a delay.  Must be called from
+     * the selector thread.
+     *
+     * @param delayNanos delay in nanoseconds
+     * @param task task to run
+     * @return timer, which may be cancelled
+     */
+    private Timer schedule(final long delayNanos, final Runnable task) {
+        Timer timer = new Timer(
+                System.nanoTime() + delayNanos, timerSequence++, task);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Main loop of the selector thread.
+     */
+    private void runLoop() {
+        schedule(SWEEP_NANOS, new Runnable() {
+            public void run() {
+                sweepSessions();
+                schedule(SWEEP_NANOS, this);
+            }
+        });
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long timeout = runTimers();
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                Iterator<SelectionKey> iter =
+                        selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(conn);
+                        }
+                    }
+                }
+            }
+        } catch (IOException iox) {
+            LOG.log(Level.WARNING, "Selector failed", iox);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException iox) {
+                    // Ignore
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException iox) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Run all expired timers.
+     *
+     * @return milliseconds until the next timer expires, or 0 if there are
+     *  no timers
+     */
+    private long runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline <= now) {
+            timers.poll();
+            if (!timer.cancelled) {
+                timer.task.run();
+            }
+            now = System.nanoTime();
+        }
+        if (timer == null) {
+            return 0L;
+        }
+        return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(
+                timer.deadline - now + 999999L));
+    }
+
+    /**
+     * Accept all pending connections.
+     *
+     * @throws IOException on selector failure
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(
+                    selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    /**
+     * Read available data from a connection and process all complete
+     * requests.
+     *
+     * @param conn connection to read from
+     */
+    private void read(final Connection conn) {
+        try {
+            while (true) {
+                if (conn.inLength == conn.in.length) {
+                    byte[] grown = new byte[conn.in.length * 2];
+                    System.arraycopy(conn.in, 0, grown, 0, conn.inLength);
+                    conn.in = grown;
+                }
+                int count = conn.channel.read(ByteBuffer.wrap(conn.in,
+                        conn.inLength, conn.in.length - conn.inLength));
+                if (count < 0) {
+                    closeConnection(conn);
+                    return;
+                }
+                if (count == 0) {
+                    break;
+                }
+                conn.inLength += count;
+            }
+            while (!conn.closed && parseRequest(conn)) {
+                // Keep going
+            }
+        } catch (IOException iox) {
+            closeConnection(conn);
+        }
+    }
+
+    /**
+     * Parse and process one request from a connection's read buffer.
+     *
+     * @param conn connection
+     * @return {@code true} if a request was processed
+     * @throws IOException if the request is malformed
+     */
+    private boolean parseRequest(final Connection conn) throws IOException {
+        byte[] in = conn.in;
+        int headerEnd = -1;
+        for (int i = 0; i + 3 < conn.inLength; i++) {
+            if (in[i] == '\r' && in[i + 1] == '\n'
+                    && in[i + 2] == '\r' && in[i + 3] == '\n') {
+                headerEnd = i;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            return false;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        String[] lines = new String(in, 0, headerEnd, "ISO-8859-1")
+                .split("\r\n");
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+                        lines[i].substring(colon + 1).trim());
+            }
+        }
+        int length;
+        try {
+            String value = headers.get("content-length");
+            length = value == null ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException nfx) {
+            throw(new IOException("Invalid Content-Length"));
+        }
+        int bodyStart = headerEnd + 4;
+        if (conn.inLength < bodyStart + length) {
+            return false;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(in, bodyStart, data, 0, length);
+        int consumed = bodyStart + length;
+        System.arraycopy(in, consumed, in, 0, conn.inLength - consumed);
+        conn.inLength -= consumed;
+
+        if (GZIPCodec.getID().equalsIgnoreCase(
+                headers.get("content-encoding"))) {
+            data = GZIPCodec.decode(data);
+        }
+        String accept = headers.get("accept-encoding");
+        Slot slot = new Slot(conn, compression && accept != null
+                && accept.contains(GZIPCodec.getID()));
+        conn.slots.addLast(slot);
+        requestCount.incrementAndGet();
+        handleRequest(slot, new String(data, "UTF-8"));
+        return true;
+    }
+
+    /**
+     * Handle a request body.
+     *
+     * @param slot request slot
+     * @param xml request body XML
+     */
+    private void handleRequest(final Slot slot, final String xml) {
+        StaticBody body;
+        try {
+            body = StaticBody.fromString(xml);
+        } catch (BOSHException boshx) {
+            respond(slot, terminate("bad-request"));
+            return;
+        }
+        String sid = body.getAttribute(Attributes.SID);
+        long rid;
+        try {
+            rid = Long.parseLong(body.getAttribute(Attributes.RID));
+        } catch (NumberFormatException nfx) {
+            respond(slot, terminate("bad-request"));
+            return;
+        }
+        slot.rid = rid;
+        if (sid == null) {
+            createSession(slot, body);
+            return;
+        }
+        Session session = sessions.get(sid);
+        if (session == null) {
+            respond(slot, terminate("item-not-found"));
+            return;
+        }
+
+        if (rid <= session.lastRID) {
+            // A resent request.  Repeat the response if it was sent,
+            // otherwise hold the request again.
+            String previous = session.sent.get(Long.valueOf(rid));
+            if (previous != null) {
+                respond(slot, previous);
+            } else {
+                holdRequest(session, slot);
+                flushSession(session);
+            }
+            return;
+        }
+
+        FaultScript script = faultScript;
+        Fault fault = script == null ? Fault.NONE : script.onRequest(sid, rid);
+        if (fault == Fault.CLOSE_CONNECTION) {
+            closeConnection(slot.conn);
+            return;
+        }
+        if (fault == Fault.REPORT_MISSING) {
+            // Acknowledge only the requests before this one; without an
+            // ack, the response would implicitly acknowledge it.
+            respond(slot, ComposableBody.builder()
+                    .setAttribute(Attributes.REPORT, Long.toString(rid))
+                    .setAttribute(Attributes.TIME, "0")
+                    .setAttribute(Attributes.ACK,
+                        Long.toString(session.lastRID))
+                    .build().toXML());
+            return;
+        }
+
+        if (rid > session.lastRID + 1) {
+            session.early.put(Long.valueOf(rid), new Early(slot, body));
+            return;
+        }
+        processRequest(session, slot, body);
+        Early next;
+        while (sessions.containsKey(sid) && (next = session.early.remove(
+                Long.valueOf(session.lastRID + 1))) != null) {
+            processRequest(session, next.slot, next.body);
+        }
+    }
+
+    /**
+     * Process the next in-order request of a session.
+     *
+     * @param session session
+     * @param slot request slot
+     * @param body request body
+     */
+    private void processRequest(
+            final Session session,
+            final Slot slot,
+            final StaticBody body) {
+        session.lastRID = slot.rid;
+
+        if ("terminate".equals(body.getAttribute(Attributes.TYPE))) {
+            String terminate = terminate(null);
+            removeSession(session);
+            for (Slot other : session.held) {
+                cancelWait(other);
+                respond(other, terminate);
+            }
+            session.held.clear();
+            respond(slot, terminate);
+            return;
+        }
+
+        if (echo) {
+            try {
+                session.outbound.append(
+                        ComposableBody.fromStaticBody(body).getPayloadXML());
+            } catch (BOSHException boshx) {
+                LOG.log(Level.FINE, "Could not extract payload", boshx);
+            }
+        }
+        holdRequest(session, slot);
+
+        String pause = body.getAttribute(Attributes.PAUSE);
+        session.pause = 0;
+        if (pause != null && maxPause > 0) {
+            try {
+                session.pause = Math.min(Integer.parseInt(pause), maxPause);
+            } catch (NumberFormatException nfx) {
+                // Ignore the pause request
+            }
+            while (!session.held.isEmpty()) {
+                respondHeld(session, session.held.removeFirst());
+            }
+            return;
+        }
+        flushSession(session);
+    }
+
+    /**
+     * Hold a request until a payload is available, it must be answered to
+     * stay within the hold limit, or the wait time expires.
+     *
+     * @param session session
+     * @param slot request slot
+     */
+    private void holdRequest(final Session session, final Slot slot) {
+        if (slot.conn.closed) {
+            // The client will resend it.
+            return;
+        }
+        session.held.addLast(slot);
+        slot.heldIn = session;
+        slot.waitTimer = schedule(TimeUnit.SECONDS.toNanos(session.wait),
+                new Runnable() {
+            public void run() {
+                slot.waitTimer = null;
+                if (session.held.remove(slot)) {
+                    respondHeld(session, slot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Answer held requests which exceed the hold limit, and deliver any
+     * queued payload on the oldest held request.
+     *
+     * @param session session
+     */
+    private void flushSession(final Session session) {
+        while (session.held.size() > session.hold
+                || (session.outbound.length() > 0
+                    && !session.held.isEmpty())) {
+            respondHeld(session, session.held.removeFirst());
+        }
+    }
+
+    /**
+     * Answer a held request with the queued payload.
+     *
+     * @param session session
+     * @param slot held request slot, already removed from the held list
+     */
+    private void respondHeld(final Session session, final Slot slot) {
+        cancelWait(slot);
+        ComposableBody.Builder builder = ComposableBody.builder()
+                .setPayloadXML(session.outbound.toString());
+        session.outbound.setLength(0);
+        if (session.acking && slot.rid != session.lastRID) {
+            builder.setAttribute(Attributes.ACK,
+                    Long.toString(session.lastRID));
+        }
+        String xml = builder.build().toXML();
+        session.sent.put(Long.valueOf(slot.rid), xml);
+        if (session.held.isEmpty()) {
+            session.idleSince = System.nanoTime();
+        }
+        respond(slot, xml);
+    }
+
+    /**
+     * Cancel the wait timer of a held request.
+     *
+     * @param slot request slot
+     */
+    private void cancelWait(final Slot slot) {
+        if (slot.waitTimer != null) {
+            slot.waitTimer.cancelled = true;
+            slot.waitTimer = null;
+        }
+    }
+
+    /**
+     * Create a session and answer its session creation request.
+     *
+     * @param slot request slot
+     * @param body session creation request
+     */
+    private void createSession(final Slot slot, final StaticBody body) {
+        int wait = 60;
+        try {
+            wait = Integer.parseInt(body.getAttribute(Attributes.WAIT));
+        } catch (NumberFormatException nfx) {
+            // Use the default
+        }
+        Session session = new Session("nio" + (++nextSID), wait, hold,
+                requests, inactivity, "1".equals(body.getAttribute(
+                Attributes.ACK)), slot.rid);
+        session.idleSince = System.nanoTime();
+        sessions.put(session.sid, session);
+        sessionCount.incrementAndGet();
+
+        ComposableBody.Builder builder = ComposableBody.builder()
+                .setAttribute(Attributes.SID, session.sid)
+                .setAttribute(Attributes.WAIT, Integer.toString(wait))
+                .setAttribute(Attributes.HOLD, Integer.toString(session.hold))
+                .setAttribute(Attributes.REQUESTS, Integer.toString(requests))
+                .setAttribute(Attributes.INACTIVITY,
+                    Integer.toString(session.inactivity))
+                .setAttribute(Attributes.VER, "1.8");
+        if (maxPause > 0) {
+            builder.setAttribute(Attributes.MAXPAUSE,
+                    Integer.toString(maxPause));
+        }
+        if (compression) {
+            builder.setAttribute(Attributes.ACCEPT, GZIPCodec.getID());
+        }
+        if (session.acking) {
+            builder.setAttribute(Attributes.ACK, Long.toString(slot.rid));
+        }
+        respond(slot, builder.build().toXML());
+    }
+
+    /**
+     * Remove sessions which have had no request held for longer than their
+     * inactivity period or requested pause.
+     */
+    private void sweepSessions() {
+        long now = System.nanoTime();
+        Iterator<Session> iter = sessions.values().iterator();
+        while (iter.hasNext()) {
+            Session session = iter.next();
+            int idle = session.pause > 0 ? session.pause : session.inactivity;
+            if (session.held.isEmpty() && now - session.idleSince
+                    > TimeUnit.SECONDS.toNanos(idle)) {
+                iter.remove();
+                sessionCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove a session.
+     *
+     * @param session session to remove
+     */
+    private void removeSession(final Session session) {
+        if (sessions.remove(session.sid) != null) {
+            sessionCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Build a termination body.
+     *
+     * @param condition terminal binding condition, or {@code null}
+     * @return body XML
+     */
+    private static String terminate(final String condition) {
+        return ComposableBody.builder()
+                .setAttribute(Attributes.TYPE, "terminate")
+                .setAttribute(Attributes.CONDITION, condition)
+                .build().toXML();
+    }
+
+    /**
+     * Complete a request, writing the response once the latency profile
+     * allows and all earlier responses on the connection have been
+     * written.
+     *
+     * @param slot request slot
+     * @param xml response body
+     */
+    private void respond(final Slot slot, final String xml) {
+        slot.heldIn = null;
+        responseCount.incrementAndGet();
+        final byte[] data;
+        try {
+            data = encodeResponse(xml, slot.gzip);
+        } catch (IOException iox) {
+            closeConnection(slot.conn);
+            return;
+        }
+        int min = minLatency;
+        int max = maxLatency;
+        int latency = max > min ? min + random.nextInt(max - min + 1) : min;
+        if (latency == 0) {
+            complete(slot, data);
+        } else {
+            schedule(TimeUnit.MILLISECONDS.toNanos(latency), new Runnable() {
+                public void run() {
+                    complete(slot, data);
+                }
+            });
+        }
+    }
+
+    /**
+     * Store the response to a request, answer any held requests before it
+     * on the same connection, and write what can be written.
+     *
+     * @param slot request slot
+     * @param data encoded response
+     */
+    private void complete(final Slot slot, final byte[] data) {
+        slot.response = data;
+        List<Slot> blocking = null;
+        for (Slot earlier : slot.conn.slots) {
+            if (earlier == slot) {
+                break;
+            }
+            if (earlier.heldIn != null) {
+                if (blocking == null) {
+                    blocking = new ArrayList<Slot>();
+                }
+                blocking.add(earlier);
+            }
+        }
+        if (blocking != null) {
+            for (Slot held : blocking) {
+                if (held.heldIn != null && held.heldIn.held.remove(held)) {
+                    respondHeld(held.heldIn, held);
+                }
+            }
+        }
+        flush(slot.conn);
+    }
+
+    /**
+     * Write as many completed responses as the connection accepts.
+     *
+     * @param conn connection
+     */
+    private void flush(final Connection conn) {
+        if (conn.closed) {
+            return;
+        }
+        try {
+            while (true) {
+                if (conn.out == null) {
+                    if (conn.slots.isEmpty()
+                            || conn.slots.getFirst().response == null) {
+                        break;
+                    }
+                    conn.out = ByteBuffer.wrap(
+                            conn.slots.removeFirst().response);
+                }
+                conn.channel.write(conn.out);
+                if (conn.out.hasRemaining()) {
+                    conn.key.interestOps(
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                conn.out = null;
+            }
+            conn.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException iox) {
+            closeConnection(conn);
+        }
+    }
+
+    /**
+     * Close a connection.  Requests held on it are forgotten; the client
+     * will resend them.
+     *
+     * @param conn connection
+     */
+    private void closeConnection(final Connection conn) {
+        if (conn.closed) {
+            return;
+        }
+        conn.closed = true;
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException iox) {
+            // Ignore
+        }
+        for (Session session : sessions.values()) {
+            Iterator<Slot> iter = session.held.iterator();
+            while (iter.hasNext()) {
+                Slot slot = iter.next();
+                if (slot.conn == conn) {
+                    cancelWait(slot);
+                    iter.remove();
+                }
+            }
+            if (session.held.isEmpty()) {
+                session.idleSince = System.nanoTime();
+            }
+        }
+        conn.slots.clear();
+    }
+
+    /**
+     * Encode an HTTP response.
+     *
+     * @param xml response body
+     * @param gzip {@code true} to compress the body
+     * @return response bytes
+     * @throws IOException on encoding failure
+     */
+    private static byte[] encodeResponse(final String xml, final boolean gzip)
+    throws IOException {
+        byte[] body = xml.getBytes("UTF-8");
+        if (gzip) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOut = new GZIPOutputStream(gzipped);
+            gzipOut.write(body);
+            gzipOut.close();
+            body = gzipped.toByteArray();
+        }
+        byte[] header = ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/xml; charset=utf-8\r\n"
+                + (gzip ? "Content-Encoding: gzip\r\n" : "")
+                + "Content-Length: " + body.length + "\r\n\r\n")
+                .getBytes("US-ASCII");
+        byte[] result = new byte[header.length + body.length];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(body, 0, result, header.length, body.length);
+        return result;
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the protocol handling of {@code NIOStubCM} against real clients.
+ */
+public class NIOStubCMTest {
+
+    private NIOStubCM cm;
+    private final List<BOSHClient> clients = new ArrayList<BOSHClient>();
+
+    /**
+     * Response listener recording every body received.
+     */
+    private static final class Recorder
+            implements BOSHClientResponseListener, BOSHClientConnListener {
+        private final BlockingQueue<AbstractBody> bodies =
+                new LinkedBlockingQueue<AbstractBody>();
+        private final AtomicBoolean lost = new AtomicBoolean();
+        private final AtomicBoolean connected = new AtomicBoolean();
+        private volatile String sid;
+
+        public void responseReceived(final BOSHMessageEvent event) {
+            AbstractBody body = event.getBody();
+            if (sid == null) {
+                sid = body.getAttribute(Attributes.SID);
+            }
+            bodies.add(body);
+        }
+
+        public void connectionEvent(final BOSHClientConnEvent event) {
+            if (event.isConnected()) {
+                synchronized (connected) {
+                    connected.set(true);
+                    connected.notifyAll();
+                }
+            } else {
+                synchronized (lost) {
+                    lost.set(true);
+                    lost.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait for the session to be established.  Response listeners are
+         * notified before the session creation response is processed, so
+         * waiting for the response is not enough.
+         */
+        void awaitConnected() throws InterruptedException {
+            synchronized (connected) {
+                while (!connected.get()) {
+                    connected.wait();
+                }
+            }
+        }
+
+        void awaitLoss() throws InterruptedException {
+            synchronized (lost) {
+                while (!lost.get()) {
+                    lost.wait();
+                }
+            }
+        }
+
+        void awaitText(final String text) throws InterruptedException {
+            while (true) {
+                AbstractBody body = bodies.poll(10, TimeUnit.SECONDS);
+                assertNotNull("Timed out waiting for " + text, body);
+                if (body.toXML().contains(text)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        cm = new NIOStubCM();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (BOSHClient client : clients) {
+            client.close();
+        }
+        cm.dispose();
+    }
+
+    private BOSHClient createClient(
+            final Recorder recorder, final boolean compression) {
+        BOSHClientConfig cfg = BOSHClientConfig.Builder
+                .create(cm.getURI(), "localhost")
+                .setCompressionEnabled(compression)
+                .build();
+        BOSHClient client = BOSHClient.create(cfg);
+        client.addBOSHClientResponseListener(recorder);
+        client.addBOSHClientConnListener(recorder);
+        clients.add(client);
+        return client;
+    }
+
+    private static ComposableBody message(final String text) {
+        return ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client'><body>"
+                    + text + "</body></message>")
+                .build();
+    }
+
+    /*
+     * Payloads are echoed back to the sending session.
+     */
+    @Test(timeout=20000)
+    public void echo() throws Exception {
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, false);
+        client.send(ComposableBody.builder().build());
+        client.send(message("hello"));
+        rec.awaitText("hello");
+        assertEquals(1, cm.getSessionCount());
+        assertTrue(cm.getRequestCount() >= 2);
+    }
+
+    /*
+     * Payloads delivered by the test reach the session.
+     */
+    @Test(timeout=20000)
+    public void deliver() throws Exception {
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, false);
+        client.send(ComposableBody.builder().build());
+        rec.awaitText("sid=");
+        cm.deliver(rec.sid, "<message xmlns='jabber:client'><body>pushed"
+                + "</body></message>");
+        rec.awaitText("pushed");
+    }
+
+    /*
+     * Pausing is granted, and sending afterwards resumes the session.
+     */
+    @Test(timeout=20000)
+    public void pause() throws Exception {
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, false);
+        client.send(ComposableBody.builder().build());
+        rec.awaitConnected();
+        assertTrue(client.pause());
+        client.send(message("resumed"));
+        rec.awaitText("resumed");
+        assertEquals(1, cm.getSessionCount());
+    }
+
+    /*
+     * Terminating the session removes it.
+     */
+    @Test(timeout=20000)
+    public void terminate() throws Exception {
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, false);
+        client.send(ComposableBody.builder().build());
+        rec.awaitConnected();
+        client.disconnect();
+        rec.awaitText("terminate");
+        assertEquals(0, cm.getSessionCount());
+    }
+
+    /*
+     * After a connection is closed, reconnecting resends the lost requests.
+     */
+    @Test(timeout=20000)
+    public void closeConnection() throws Exception {
+        final AtomicBoolean armed = new AtomicBoolean();
+        cm.setFaultScript(new NIOStubCM.FaultScript() {
+            public NIOStubCM.Fault onRequest(final String sid, final long rid) {
+                return armed.getAndSet(false)
+                        ? NIOStubCM.Fault.CLOSE_CONNECTION
+                        : NIOStubCM.Fault.NONE;
+            }
+        });
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, false);
+        client.send(ComposableBody.builder().build());
+        rec.awaitConnected();
+        armed.set(true);
+        client.send(message("again"));
+        rec.awaitLoss();
+        assertTrue(client.isRecoverableConnectionLoss());
+        assertTrue(client.attemptReconnection());
+        rec.awaitText("again");
+    }
+
+    /*
+     * A request reported as missing is resent by the client.
+     */
+    @Test(timeout=20000)
+    public void reportMissing() throws Exception {
+        final AtomicInteger reports = new AtomicInteger();
+        final AtomicBoolean armed = new AtomicBoolean();
+        cm.setFaultScript(new NIOStubCM.FaultScript() {
+            public NIOStubCM.Fault onRequest(final String sid, final long rid) {
+                if (armed.getAndSet(false)) {
+                    reports.incrementAndGet();
+                    return NIOStubCM.Fault.REPORT_MISSING;
+                }
+                return NIOStubCM.Fault.NONE;
+            }
+        });
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, false);
+        client.send(ComposableBody.builder().build());
+        rec.awaitConnected();
+        armed.set(true);
+        client.send(message("reported"));
+        rec.awaitText("reported");
+        assertEquals(1, reports.get());
+    }
+
+    /*
+     * Responses are delayed according to the latency profile.
+     */
+    @Test(timeout=20000)
+    public void latency() throws Exception {
+        cm.setLatency(200, 200);
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, false);
+        long start = System.nanoTime();
+        client.send(ComposableBody.builder().build());
+        rec.awaitText("sid=");
+        assertTrue(System.nanoTime() - start
+                >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    /*
+     * Compressed requests and responses are supported.
+     */
+    @Test(timeout=20000)
+    public void compression() throws Exception {
+        cm.setCompressionEnabled(true);
+        Recorder rec = new Recorder();
+        BOSHClient client = createClient(rec, true);
+        client.send(ComposableBody.builder().build());
+        rec.awaitText("accept=");
+        client.send(message("compressed"));
+        rec.awaitText("compressed");
+    }
+
+    /*
+     * Many sessions are served concurrently.
+     */
+    @Test(timeout=30000)
+    public void manySessions() throws Exception {
+        int count = 50;
+        Recorder[] recs = new Recorder[count];
+        for (int i = 0; i < count; i++) {
+            recs[i] = new Recorder();
+            BOSHClient client = createClient(recs[i], false);
+            client.send(ComposableBody.builder().build());
+            client.send(message("session" + i + "."));
+        }
+        for (int i = 0; i < count; i++) {
+            recs[i].awaitText("session" + i + ".");
+        }
+        assertEquals(count, cm.getSessionCount());
+    }
+
+}
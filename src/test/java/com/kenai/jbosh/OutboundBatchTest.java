@@ -0,0 +1,278 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests merging messages sent in quick succession into a single request.
+ */
+public class OutboundBatchTest extends AbstractBOSHTest {
+
+    private void createBatchingSession(final int linger, final int maxSize)
+    throws Exception {
+        BOSHClientConfig cfg = BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setSendLinger(linger)
+                .setMaxBatchSize(maxSize)
+                .build();
+        session = createSession(cfg);
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        conn.sendResponse(getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "2")
+                .build());
+        session.drain();
+    }
+
+    private static ComposableBody message(final int id) {
+        return ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client' id='"
+                    + id + "'/>")
+                .build();
+    }
+
+    /*
+     * Messages sent within the linger time are sent together, in order.
+     */
+    @Test(timeout=5000)
+    public void messagesMerged() throws Exception {
+        logTestStart();
+        createBatchingSession(200, 65536);
+
+        for (int i = 0; i < 3; i++) {
+            session.send(message(i));
+        }
+        StubConnection conn = cm.awaitConnection();
+        String xml = conn.getRequest().getBody().toXML();
+        int first = xml.indexOf("id='0'");
+        int second = xml.indexOf("id='1'");
+        int third = xml.indexOf("id='2'");
+        assertTrue(xml, first > 0 && first < second && second < third);
+        conn.sendResponse(ComposableBody.builder().build());
+        session.drain();
+        assertEquals(0, cm.pendingConnectionCount());
+    }
+
+    /*
+     * Payloads provided as bytes are merged with payloads provided as
+     * Strings, and the merged payload is sent unchanged.
+     */
+    @Test(timeout=5000)
+    public void bytePayloadsMerged() throws Exception {
+        logTestStart();
+        createBatchingSession(200, 65536);
+
+        session.send(ComposableBody.builder()
+                .setPayloadBytes(
+                    "<message xmlns='jabber:client' id='0'>cafe</message>"
+                    .getBytes("UTF-8"))
+                .setXMLCacheEnabled(false)
+                .build());
+        session.send(message(1));
+        StubConnection conn = cm.awaitConnection();
+        String xml = conn.getRequest().getBody().toXML();
+        int first = xml.indexOf("id='0'>cafe</message>");
+        int second = xml.indexOf("id='1'");
+        assertTrue(xml, first > 0 && first < second);
+        conn.sendResponse(ComposableBody.builder().build());
+        session.drain();
+    }
+
+    /*
+     * A batch reaching the maximum size is sent without waiting for the
+     * linger time to pass.
+     */
+    @Test(timeout=5000)
+    public void fullBatchSentImmediately() throws Exception {
+        logTestStart();
+        createBatchingSession(60000, 60);
+
+        session.send(message(0));
+        session.send(message(1));
+        String xml = cm.awaitConnection().getRequest().getBody().toXML();
+        assertTrue(xml, xml.contains("id='0'") && xml.contains("id='1'"));
+    }
+
+    /*
+     * A message which cannot be merged sends the queued messages first.
+     */
+    @Test(timeout=5000)
+    public void unmergeableMessageKeepsOrder() throws Exception {
+        logTestStart();
+        createBatchingSession(60000, 65536);
+
+        session.send(message(0));
+        session.disconnect();
+        AbstractBody first = cm.awaitConnection().getRequest().getBody();
+        assertTrue(first.toXML().contains("id='0'"));
+        assertNull(first.getAttribute(Attributes.TYPE));
+        AbstractBody second = cm.awaitConnection().getRequest().getBody();
+        assertEquals("terminate", second.getAttribute(Attributes.TYPE));
+    }
+
+    /*
+     * Messages sent together are merged into as few requests as the
+     * maximum batch size allows.
+     */
+    @Test(timeout=5000)
+    public void sendAllMerges() throws Exception {
+        logTestStart();
+        createBatchingSession(60000, 60);
+
+        List<ComposableBody> bodies = new ArrayList<ComposableBody>();
+        for (int i = 0; i < 3; i++) {
+            bodies.add(message(i));
+        }
+        session.sendAll(bodies);
+        String first = cm.awaitConnection().getRequest().getBody().toXML();
+        assertTrue(first, first.contains("id='0'") && first.contains("id='1'"));
+        String second = cm.awaitConnection().getRequest().getBody().toXML();
+        assertTrue(second, second.contains("id='2'"));
+        assertFalse(second, second.contains("id='1'"));
+    }
+
+    /*
+     * A message with attributes of its own is not merged, and keeps its
+     * place between the merged messages.
+     */
+    @Test(timeout=5000)
+    public void sendAllKeepsOrder() throws Exception {
+        logTestStart();
+        createBatchingSession(60000, 65536);
+
+        List<ComposableBody> bodies = new ArrayList<ComposableBody>();
+        bodies.add(message(0));
+        bodies.add(ComposableBody.builder()
+                .setAttribute(Attributes.TYPE, "terminate")
+                .build());
+        session.sendAll(bodies);
+        AbstractBody first = cm.awaitConnection().getRequest().getBody();
+        assertTrue(first.toXML().contains("id='0'"));
+        AbstractBody second = cm.awaitConnection().getRequest().getBody();
+        assertEquals("terminate", second.getAttribute(Attributes.TYPE));
+    }
+
+    /*
+     * Without a send linger, messages are sent in requests of their own.
+     */
+    @Test(timeout=5000)
+    public void sendAllWithoutLinger() throws Exception {
+        logTestStart();
+        createBatchingSession(0, 65536);
+
+        List<ComposableBody> bodies = new ArrayList<ComposableBody>();
+        bodies.add(message(0));
+        bodies.add(message(1));
+        session.sendAll(bodies);
+        String first = cm.awaitConnection().getRequest().getBody().toXML();
+        assertTrue(first, first.contains("id='0'"));
+        assertFalse(first, first.contains("id='1'"));
+        String second = cm.awaitConnection().getRequest().getBody().toXML();
+        assertTrue(second, second.contains("id='1'"));
+    }
+
+    /*
+     * Messages are not merged into the session creation request, nor while
+     * it is outstanding.
+     */
+    @Test(timeout=5000)
+    public void sendAllBeforeSessionCreation() throws Exception {
+        logTestStart();
+        session = createSession(BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setSendLinger(60000)
+                .build());
+
+        final List<ComposableBody> bodies = new ArrayList<ComposableBody>();
+        for (int i = 0; i < 3; i++) {
+            bodies.add(message(i));
+        }
+        final AtomicReference<BOSHException> failure =
+                new AtomicReference<BOSHException>();
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    session.sendAll(bodies);
+                } catch (BOSHException boshx) {
+                    failure.set(boshx);
+                }
+            }
+        };
+        sender.start();
+        StubConnection conn = cm.awaitConnection();
+        String first = conn.getRequest().getBody().toXML();
+        assertTrue(first, first.contains("id='0'"));
+        assertFalse(first, first.contains("id='1'"));
+        conn.sendResponse(getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "2")
+                .build());
+
+        // The second message waited for the session to be created, and was
+        // sent on its own.  The third was the only one left to merge.
+        String second = cm.awaitConnection().getRequest().getBody().toXML();
+        assertTrue(second, second.contains("id='1'"));
+        assertFalse(second, second.contains("id='2'"));
+        String third = cm.awaitConnection().getRequest().getBody().toXML();
+        assertTrue(third, third.contains("id='2'"));
+        sender.join();
+        assertNull(failure.get());
+    }
+
+    /*
+     * Messages still held back when the session ends are reported as
+     * outstanding, so that they can be resent.
+     */
+    @Test(timeout=5000)
+    public void lingeringMessagesReportedOnClose() throws Exception {
+        logTestStart();
+        createBatchingSession(60000, 65536);
+        final AtomicReference<BOSHClientConnEvent> closed =
+                new AtomicReference<BOSHClientConnEvent>();
+        session.addBOSHClientConnListener(new BOSHClientConnListener() {
+            public void connectionEvent(final BOSHClientConnEvent connEvent) {
+                if (!connEvent.isConnected()) {
+                    closed.set(connEvent);
+                }
+            }
+        });
+
+        session.send(message(0));
+        session.send(message(1));
+        session.close();
+
+        BOSHClientConnEvent event = closed.get();
+        assertNotNull(event);
+        StringBuilder outstanding = new StringBuilder();
+        for (ComposableBody body : event.getOutstandingRequests()) {
+            outstanding.append(body.getPayloadXML());
+        }
+        String xml = outstanding.toString();
+        assertTrue(xml, xml.indexOf("id='0'") >= 0
+                && xml.indexOf("id='0'") < xml.indexOf("id='1'"));
+        assertEquals(0, cm.pendingConnectionCount());
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.StringReader;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import static org.junit.Assert.*;
+
+/**
+ * Tests splitting of message payloads into their top-level elements.
+ */
+public class PayloadSplitterTest {
+
+    private static final String BODY_START =
+            "<body xmlns='" + BodyQName.BOSH_NS_URI + "'"
+            + " xmlns:stream=\"http://etherx.jabber.org/streams\""
+            + " rid='1'>";
+
+    private static Element parse(final String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(
+                new InputSource(new StringReader(xml))).getDocumentElement();
+    }
+
+    /*
+     * Each top-level element is found, with its offsets, name and namespace.
+     */
+    @Test
+    public void splitsTopLevelElements() throws Exception {
+        String first = "<message xmlns='jabber:client' to='a@b'>"
+                + "<body>x &lt; y</body><message/></message>";
+        String second = "<presence xmlns='jabber:client'/>";
+        String xml = "<?xml version='1.0'?>" + BODY_START
+                + first + "\n  " + second + "</body>";
+        List<PayloadElement> elements = PayloadSplitter.split(xml);
+        assertEquals(2, elements.size());
+
+        PayloadElement elem = elements.get(0);
+        assertEquals("message", elem.getLocalName());
+        assertEquals("jabber:client", elem.getNamespaceURI());
+        assertEquals(first, elem.getRawXML());
+        assertEquals(xml.indexOf(first), elem.getStartOffset());
+        assertEquals(xml.indexOf(first) + first.length(), elem.getEndOffset());
+
+        elem = elements.get(1);
+        assertEquals("presence", elem.getLocalName());
+        assertEquals(second, elem.getRawXML());
+    }
+
+    /*
+     * Namespaces declared on the wrapper element are added to the
+     * standalone XML of the elements which use them.
+     */
+    @Test
+    public void inheritsNamespaces() throws Exception {
+        String xml = BODY_START
+                + "<stream:features><bind xmlns='urn:bind'/></stream:features>"
+                + "<iq xmlns='jabber:client' xmlns:stream='urn:other'/>"
+                + "</body>";
+        List<PayloadElement> elements = PayloadSplitter.split(xml);
+        assertEquals(2, elements.size());
+
+        PayloadElement features = elements.get(0);
+        assertEquals("features", features.getLocalName());
+        assertEquals("http://etherx.jabber.org/streams",
+                features.getNamespaceURI());
+        Element root = parse(features.toXML());
+        assertEquals("http://etherx.jabber.org/streams",
+                root.getNamespaceURI());
+        assertEquals("urn:bind",
+                ((Element) root.getFirstChild()).getNamespaceURI());
+
+        // Declarations made by the element itself take precedence
+        PayloadElement iq = elements.get(1);
+        assertEquals(iq.getRawXML(), iq.toXML());
+        assertEquals("jabber:client", parse(iq.toXML()).getNamespaceURI());
+    }
+
+    /*
+     * Markup inside comments, CDATA sections, processing instructions and
+     * attribute values does not affect splitting.
+     */
+    @Test
+    public void skipsMarkupInContent() throws Exception {
+        String first = "<a xmlns='urn:a' note='</a> <b/>'>"
+                + "<!-- </a> --><![CDATA[</a><a>]]><?pi </a>?><a>x</a></a>";
+        String xml = BODY_START + "<!-- <c/> -->" + first
+                + "<![CDATA[<c/>]]><b xmlns='urn:b'/></body>";
+        List<PayloadElement> elements = PayloadSplitter.split(xml);
+        assertEquals(2, elements.size());
+        assertEquals(first, elements.get(0).getRawXML());
+        assertEquals("b", elements.get(1).getLocalName());
+    }
+
+    /*
+     * Entity and character references in namespace declarations are
+     * resolved, each only once.
+     */
+    @Test
+    public void resolvesReferencesInNamespaces() throws Exception {
+        String xml = BODY_START
+                + "<a xmlns='urn:&#39;&#x27;&lt;&amp;#39;&#x1F600;'/>"
+                + "<b xmlns=\"urn:&quot;&#bad;\"/></body>";
+        List<PayloadElement> elements = PayloadSplitter.split(xml);
+        assertEquals(2, elements.size());
+        assertEquals("urn:''<&#39;\ud83d\ude00",
+                elements.get(0).getNamespaceURI());
+        assertEquals("urn:\"&#bad;", elements.get(1).getNamespaceURI());
+    }
+
+    /*
+     * Empty messages have no payload elements.
+     */
+    @Test
+    public void emptyBodies() throws Exception {
+        assertTrue(PayloadSplitter.split(
+                "<body xmlns='" + BodyQName.BOSH_NS_URI + "'/>").isEmpty());
+        assertTrue(PayloadSplitter.split(BODY_START + " </body>").isEmpty());
+        assertTrue(ComposableBody.builder().build()
+                .getPayloadElements().isEmpty());
+    }
+
+    /*
+     * Split results are retained by the body.
+     */
+    @Test
+    public void bodyRetainsElements() throws Exception {
+        AbstractBody body = StaticBody.fromString(
+                BODY_START + "<x xmlns='urn:x'/></body>");
+        List<PayloadElement> elements = body.getPayloadElements();
+        assertEquals(1, elements.size());
+        assertSame(elements, body.getPayloadElements());
+        assertEquals("urn:x", elements.get(0).getNamespaceURI());
+    }
+
+    /*
+     * Truncated messages and unbound prefixes cannot be split.
+     */
+    @Test
+    public void malformedMessages() {
+        String[] bad = new String[] {
+            BODY_START + "<a xmlns='urn:a'><b>",
+            BODY_START + "<a xmlns='urn:a' x='1",
+            BODY_START + "<p:a/></body>",
+            "<body xmlns='urn:not-bosh'/>",
+        };
+        for (String xml : bad) {
+            try {
+                PayloadSplitter.split(xml);
+                fail("Split malformed message: " + xml);
+            } catch (BOSHException boshx) {
+                // Good
+            }
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the buffer of requests awaiting acknowledgement.
+ */
+public class ResendBufferTest {
+
+    private static ComposableBody request(final long rid, final String xml) {
+        return ComposableBody.builder()
+                .setAttribute(Attributes.RID, Long.toString(rid))
+                .setAttribute(Attributes.SID, "sid")
+                .setPayloadXML(xml)
+                .build();
+    }
+
+    private static String largePayload() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append("<message xmlns='jabber:client' id='")
+                    .append(i)
+                    .append("'><body>caf\u00e9</body></message>");
+        }
+        return builder.toString();
+    }
+
+    /*
+     * Stored requests are rebuilt with the same attributes and payload.
+     */
+    @Test
+    public void rebuildsRequests() throws Exception {
+        ResendBuffer buffer = new ResendBuffer(Integer.MAX_VALUE, false);
+        ComposableBody first = request(10, "<a xmlns='urn:x'/>");
+        ComposableBody second = request(11, "");
+        buffer.add(first);
+        buffer.add(second);
+        assertEquals(2, buffer.size());
+        assertEquals(first.toXML().getBytes("UTF-8").length
+                + second.toXML().getBytes("UTF-8").length,
+                buffer.getByteCount());
+
+        ComposableBody rebuilt = buffer.get(10);
+        assertEquals(first.getAttributes(), rebuilt.getAttributes());
+        assertEquals(first.getPayloadXML(), rebuilt.getPayloadXML());
+        assertNull(buffer.get(12));
+
+        List<ComposableBody> all = buffer.getAll();
+        assertEquals(2, all.size());
+        assertEquals("10", all.get(0).getAttribute(Attributes.RID));
+        assertEquals("11", all.get(1).getAttribute(Attributes.RID));
+        assertEquals("", all.get(1).getPayloadXML());
+    }
+
+    /*
+     * The serialized form of a stored request is shared with the request,
+     * which is then written from it without retaining its computed XML.
+     */
+    @Test
+    public void sharesEncodedForm() throws Exception {
+        ResendBuffer buffer = new ResendBuffer(Integer.MAX_VALUE, false);
+        ComposableBody req = request(10, "<a xmlns='urn:x'>caf\u00e9</a>");
+        String xml = req.toXML();
+        byte[] encoded = buffer.add(req);
+        assertArrayEquals(xml.getBytes("UTF-8"), encoded);
+        assertEquals(encoded.length, buffer.getByteCount());
+
+        req.shareEncoded(encoded);
+        ByteOutputBuffer out = new ByteOutputBuffer();
+        req.writeTo(out);
+        assertArrayEquals(encoded, out.toByteArray());
+        assertEquals(xml, req.toXML());
+        assertNotSame(req.toXML(), req.toXML());
+    }
+
+    /*
+     * Large requests are kept compressed, and rebuilt unchanged.
+     */
+    @Test
+    public void compressesLargeRequests() throws Exception {
+        ComposableBody req = request(5, largePayload());
+        ResendBuffer plain = new ResendBuffer(Integer.MAX_VALUE, false);
+        ResendBuffer zipped = new ResendBuffer(Integer.MAX_VALUE, true);
+        plain.add(req);
+        zipped.add(req);
+        assertTrue(zipped.getByteCount() < plain.getByteCount() / 4);
+
+        ComposableBody rebuilt = zipped.get(5);
+        assertEquals(req.getPayloadXML(), rebuilt.getPayloadXML());
+        assertEquals(req.getAttributes(), rebuilt.getAttributes());
+
+        ResendBuffer small = new ResendBuffer(Integer.MAX_VALUE, true);
+        small.add(request(6, ""));
+        assertEquals(request(6, "").toXML().length(), small.getByteCount());
+    }
+
+    /*
+     * Requests are kept in order and removing one releases its bytes.  The
+     * buffer reports itself full once its limit is reached.
+     */
+    @Test
+    public void removesRequests() throws Exception {
+        ComposableBody req = request(1, "<a xmlns='urn:x'/>");
+        int size = req.toXML().length();
+        ResendBuffer buffer = new ResendBuffer(size * 2, false);
+        buffer.add(request(1, "<a xmlns='urn:x'/>"));
+        assertFalse(buffer.isFull());
+        buffer.add(request(2, "<a xmlns='urn:x'/>"));
+        assertTrue(buffer.isFull());
+        buffer.add(request(3, "<a xmlns='urn:x'/>"));
+        assertEquals(size * 3, buffer.getPeakByteCount());
+
+        assertEquals(1L, buffer.getRequestID(0));
+        assertEquals(3L, buffer.getRequestID(2));
+        assertEquals(-1L, buffer.getRequestID(3));
+        buffer.remove(1);
+        assertEquals(3L, buffer.getRequestID(1));
+        buffer.remove(0);
+        assertFalse(buffer.isFull());
+        assertEquals(1, buffer.size());
+        assertEquals(size, buffer.getByteCount());
+
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertEquals(0L, buffer.getByteCount());
+        assertEquals(size * 3, buffer.getPeakByteCount());
+    }
+
+}
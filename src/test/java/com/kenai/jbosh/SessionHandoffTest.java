@@ -0,0 +1,158 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests handing a live session over from one client to another.
+ */
+public class SessionHandoffTest extends AbstractBOSHTest {
+
+    /*
+     * The session is paused and drained, passed over a channel, and
+     * continued by the adopting client.
+     */
+    @Test(timeout=5000)
+    public void handOffToSecondClient() throws Exception {
+        logTestStart();
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "2")
+                .setAttribute(Attributes.MAXPAUSE, "60")
+                .build();
+        conn.sendResponse(scr);
+        session.drain();
+
+        session.send(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client' id='1'/>")
+                .build());
+        StubConnection held = cm.awaitConnection();
+
+        final BOSHClient old = session;
+        final PipedInputStream channelIn = new PipedInputStream();
+        final PipedOutputStream channelOut =
+                new PipedOutputStream(channelIn);
+        final AtomicReference<Exception> failure =
+                new AtomicReference<Exception>();
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    old.handOff().writeTo(channelOut);
+                } catch (Exception ex) {
+                    failure.set(ex);
+                }
+            }
+        };
+        sender.start();
+
+        // The pause makes the CM respond to every held request
+        StubConnection pause = cm.awaitConnection();
+        AbstractBody pauseReq = pause.getRequest().getBody();
+        assertEquals("60", pauseReq.getAttribute(Attributes.PAUSE));
+        try {
+            old.send(ComposableBody.builder()
+                    .setPayloadXML("<message xmlns='jabber:client' id='3'/>")
+                    .build());
+            fail("Sent a message while the session was handed off");
+        } catch (BOSHException boshx) {
+            // Expected
+        }
+        held.sendResponse(ComposableBody.builder().build());
+        pause.sendResponse(ComposableBody.builder().build());
+
+        BOSHClientSnapshot snapshot = BOSHClientSnapshot.readFrom(channelIn);
+        sender.join();
+        assertNull(failure.get());
+        session = BOSHClient.create(old.getBOSHClientConfig(), snapshot);
+
+        try {
+            old.send(ComposableBody.builder().build());
+            fail("Handed off client still sends");
+        } catch (BOSHException boshx) {
+            // Expected
+        }
+
+        // Everything was acknowledged, so nothing is resent
+        session.send(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client' id='2'/>")
+                .build());
+        AbstractBody next = cm.awaitConnection().getRequest().getBody();
+        assertTrue(next.toXML().contains("id='2'"));
+        assertEquals(scr.getAttribute(Attributes.SID),
+                next.getAttribute(Attributes.SID));
+        assertEquals(Long.parseLong(pauseReq.getAttribute(Attributes.RID)) + 1,
+                Long.parseLong(next.getAttribute(Attributes.RID)));
+    }
+
+    /*
+     * Without pause support, the snapshot is taken without waiting for the
+     * held request, which the adopting client resends.
+     */
+    @Test(timeout=5000)
+    public void handOffWithoutPause() throws Exception {
+        logTestStart();
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "2")
+                .build();
+        conn.sendResponse(scr);
+        session.drain();
+
+        session.send(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client' id='1'/>")
+                .build());
+        AbstractBody held = cm.awaitConnection().getRequest().getBody();
+
+        BOSHClient old = session;
+        BOSHClientSnapshot snapshot = old.handOff();
+        session = BOSHClient.create(old.getBOSHClientConfig(), snapshot);
+
+        try {
+            old.send(ComposableBody.builder().build());
+            fail("Handed off client still sends");
+        } catch (BOSHException boshx) {
+            // Expected
+        }
+
+        // The held request was never answered, so it is resent unchanged
+        AbstractBody resent = cm.awaitConnection().getRequest().getBody();
+        assertNull(resent.getAttribute(Attributes.PAUSE));
+        assertEquals(held.getAttribute(Attributes.RID),
+                resent.getAttribute(Attributes.RID));
+        assertTrue(resent.toXML().contains("id='1'"));
+    }
+
+    /*
+     * Only established sessions can be handed off.
+     */
+    @Test(expected=BOSHException.class)
+    public void handOffRequiresSession() throws Exception {
+        session.handOff();
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests continuing a session from a snapshot of it.
+ */
+public class SessionSnapshotTest extends AbstractBOSHTest {
+
+    /*
+     * The restored client resends the unacknowledged request and continues
+     * the request ID sequence of the session.
+     */
+    @Test(timeout=5000)
+    public void restoredClientContinuesSession() throws Exception {
+        logTestStart();
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(
+                conn.getRequest().getBody())
+                .setAttribute(Attributes.REQUESTS, "2")
+                .build();
+        conn.sendResponse(scr);
+        session.drain();
+
+        session.send(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client' id='1'/>")
+                .build());
+        AbstractBody unacked = cm.awaitConnection().getRequest().getBody();
+        byte[] bytes = session.snapshot().toByteArray();
+        BOSHClient old = session;
+        session = BOSHClient.create(old.getBOSHClientConfig(),
+                BOSHClientSnapshot.fromByteArray(bytes));
+        old.close();
+
+        AbstractBody resent = cm.awaitConnection().getRequest().getBody();
+        assertEquals(unacked.getAttribute(Attributes.RID),
+                resent.getAttribute(Attributes.RID));
+        assertTrue(resent.toXML().contains("id='1'"));
+
+        session.send(ComposableBody.builder()
+                .setPayloadXML("<message xmlns='jabber:client' id='2'/>")
+                .build());
+        AbstractBody next = cm.awaitConnection().getRequest().getBody();
+        assertEquals(scr.getAttribute(Attributes.SID),
+                next.getAttribute(Attributes.SID));
+        assertEquals(Long.parseLong(unacked.getAttribute(Attributes.RID)) + 1,
+                Long.parseLong(next.getAttribute(Attributes.RID)));
+        assertTrue(next.toXML().contains("id='2'"));
+    }
+
+    /*
+     * Only established sessions can be captured.
+     */
+    @Test(expected=BOSHException.class)
+    public void snapshotRequiresSession() throws Exception {
+        session.snapshot();
+    }
+
+    /*
+     * Bytes which are not a snapshot are rejected.
+     */
+    @Test(expected=BOSHException.class)
+    public void invalidSnapshotRejected() throws Exception {
+        BOSHClientSnapshot.fromByteArray(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests choosing session creation parameters from what was learned about
+ * the connection manager.
+ */
+public class SessionTuningTest extends AbstractBOSHTest {
+
+    /*
+     * Hold follows the round trip time, and lossy links hold one request
+     * and wait less.
+     */
+    @Test
+    public void profileHeuristics() {
+        SessionProfileCache.Profile lan =
+                new SessionProfileCache.Profile(5, 100, 0);
+        assertEquals(1, lan.getHold());
+        assertEquals(60, lan.getWait(60));
+
+        assertEquals(2, new SessionProfileCache.Profile(100, 100, 0)
+                .getHold());
+        assertEquals(3, new SessionProfileCache.Profile(800, 100, 1)
+                .getHold());
+
+        SessionProfileCache.Profile lossy =
+                new SessionProfileCache.Profile(800, 100, 10);
+        assertTrue(lossy.isLossy());
+        assertEquals(1, lossy.getHold());
+        assertEquals(30, lossy.getWait(60));
+        assertEquals(10, lossy.getWait(10));
+
+        SessionProfileCache.Profile aged = lossy.withSession(2000, 0);
+        assertFalse(aged.isLossy());
+        assertEquals(600, lossy.withRoundTripTime(0).getRoundTripTime());
+    }
+
+    /*
+     * Only the most recently used endpoints are kept.
+     */
+    @Test
+    public void cacheEvictsEldest() throws Exception {
+        SessionProfileCache cache = new SessionProfileCache();
+        URI first = new URI("http://cm0/bosh");
+        cache.recordRoundTripTime(first, 10);
+        for (int i = 1; i <= 64; i++) {
+            cache.recordRoundTripTime(new URI("http://cm" + i + "/bosh"), 10);
+        }
+        assertNull(cache.get(first));
+        assertNotNull(cache.get(new URI("http://cm64/bosh")));
+
+        cache.recordSession(first, 10, 10);
+        assertNull(cache.get(first));
+    }
+
+    /*
+     * A later session to the same connection manager requests the hold
+     * learned by the first one.
+     */
+    @Test(timeout=5000)
+    public void laterSessionUsesLearnedHold() throws Exception {
+        logTestStart();
+        SessionProfileCache.getShared().clear();
+        BOSHClientConfig cfg = BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setSessionTuningEnabled(true)
+                .build();
+        session = createSession(cfg);
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody req = conn.getRequest().getBody();
+        assertEquals("3", req.getAttribute(Attributes.HOLD));
+        conn.sendResponse(getSessionCreationResponse(req).build());
+        session.drain();
+        session.close();
+
+        SessionProfileCache.Profile profile =
+                SessionProfileCache.getShared().get(cfg.getURI());
+        assertNotNull(profile);
+        assertEquals(Integer.toString(profile.getHold()),
+                createSessionAndGetHold(cfg));
+    }
+
+    /*
+     * The round trip time is measured from when the session creation
+     * request is written, so time spent connecting is not included.
+     */
+    @Test(timeout=5000)
+    public void roundTripTimeExcludesConnecting() throws Exception {
+        logTestStart();
+        SessionProfileCache.getShared().clear();
+        final BOSHClientSocketConnectorFactory slow =
+                new BOSHClientSocketConnectorFactory() {
+            public SocketConnector createConnector(final Socket socket) {
+                final SocketConnector connector =
+                        BOSHClientSocketConnectorFactory.getDefault()
+                        .createConnector(socket);
+                return new SocketConnector() {
+                    public void connectSocket(
+                            final String host, final int port)
+                    throws IOException {
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException intx) {
+                            throw new IOException("Interrupted");
+                        }
+                        connector.connectSocket(host, port);
+                    }
+
+                    public void cancel() {
+                        connector.cancel();
+                    }
+                };
+            }
+        };
+        BOSHClientConfig cfg = BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setSessionTuningEnabled(true)
+                .setSocketConnectorFactory(slow)
+                .build();
+        session = createSession(cfg);
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        conn.sendResponse(getSessionCreationResponse(
+                conn.getRequest().getBody()).build());
+        session.drain();
+
+        SessionProfileCache.Profile profile =
+                SessionProfileCache.getShared().get(cfg.getURI());
+        assertNotNull(profile);
+        assertTrue(profile.getRoundTripTime() < 500);
+    }
+
+    private String createSessionAndGetHold(final BOSHClientConfig cfg)
+    throws Exception {
+        session = createSession(cfg);
+        session.send(ComposableBody.builder().build());
+        return cm.awaitConnection().getRequest().getBody()
+                .getAttribute(Attributes.HOLD);
+    }
+
+}
@@ -85,6 +85,25 @@ public class StaticBodyTest extends BodyTest {
         assertSame(basicStr, body.toXML());
     }
 
+    @Test
+    public void testHasPayload() throws BOSHException {
+        String ns = " xmlns='http://jabber.org/protocol/httpbind'";
+        assertFalse(StaticBody.fromString(
+                "<body" + ns + " sid='a'/>").hasPayload());
+        assertFalse(StaticBody.fromString(
+                "<body" + ns + " sid='a'>\n  </body>").hasPayload());
+        assertFalse(StaticBody.fromString(
+                "<?xml version='1.0'?><body" + ns + " sid='a/>'></body>")
+                .hasPayload());
+        assertTrue(StaticBody.fromString(
+                "<body" + ns + "><message xmlns='jabber:client'/></body>")
+                .hasPayload());
+        assertTrue(StaticBody.fromString(
+                "<body" + ns + " sid=\"a>b\">\n<iq/></body>")
+                .hasPayload());
+        assertTrue(createBody().hasPayload());
+    }
+
     //@Test
     public void performanceTest() throws BOSHException {
         String basicStr = loadResource("BodyTest.basic");
@@ -18,6 +18,7 @@
 package com.kenai.jbosh;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
@@ -425,7 +426,72 @@ public class TestReconnection extends AbstractBOSHTest {
         BOSHClientConnEvent discEvent = disc.waitForDisconnection();
         assertTrue(session.isRecoverableConnectionLoss());
 
-        // The recoverable disconnection event includes only the third, unacknowleded request.
-        assertEquals(1, discEvent.getOutstandingRequests().size());
+        // The recoverable disconnection event includes the second request, which
+        // was acknowledged but never answered, and the third, unacknowledged one.
+        assertEquals(2, discEvent.getOutstandingRequests().size());
+
+        // Both are resent on reconnection, so the CM can send the lost response.
+        String heldRid = conn2.getRequest().getBody().getAttribute(Attributes.RID);
+        session.attemptReconnection();
+        String rid1 = getRIDAndClose();
+        String rid2 = getRIDAndClose();
+        assertTrue("Expected RID " + heldRid + " to be resent, got " + rid1 + ", " + rid2,
+                heldRid.equals(rid1) || heldRid.equals(rid2));
+    }
+
+    /**
+     * Verify that reconnecting when every request has been answered sends a
+     * request, so that the reconnection can be detected.
+     */
+    @Test(timeout=5000)
+    public void testReconnectionWhileIdle() throws Exception {
+        logTestStart();
+
+        // Open the connection.
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(conn.getRequest().getBody()).build();
+        conn.sendResponse(scr);
+        session.drain();
+
+        // Nothing is pending, so a new request is sent.
+        session.attemptReconnection();
+        assertNotNull(cm.awaitConnection().getRequest().getBody()
+                .getAttribute(Attributes.RID));
+    }
+
+    /**
+     * Verify that reconnecting while the receive thread is waiting on an
+     * exchange doesn't report the aborted exchange as a second connection
+     * loss, which would abort the resent requests.
+     */
+    @Test(timeout=5000)
+    public void testReconnectionAbortsWaitingExchange() throws Exception {
+        logTestStart();
+        session.addBOSHClientConnListener(disc);
+
+        // Open the connection.
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody scr = getSessionCreationResponse(conn.getRequest().getBody()).build();
+        conn.sendResponse(scr);
+        session.drain();
+
+        // Send a request, and leave it unanswered so the receive thread
+        // waits on it.
+        session.send(ComposableBody.builder().build());
+        String rid1 = cm.awaitConnection().getRequest().getBody()
+                .getAttribute(Attributes.RID);
+        Thread.sleep(100);
+
+        // Reconnect while the session is still connected.
+        session.attemptReconnection();
+        StubConnection conn2 = cm.awaitConnection();
+        assertEquals(rid1, conn2.getRequest().getBody().getAttribute(Attributes.RID));
+
+        // The aborted exchange must not be reported as a connection loss.
+        Thread.sleep(250);
+        assertNull(disc.disconnectReceived.get());
+        assertFalse(session.isRecoverableConnectionLoss());
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@code TimerWheel} class.
+ */
+public class TimerWheelTest {
+
+    private TimerWheel wheel;
+
+    private ExecutorService exec;
+
+    /**
+     * Timeout which records when it ran.
+     */
+    private final class RecordingTimeout extends TimerWheel.Timeout {
+        private final AtomicInteger runs = new AtomicInteger();
+        private final Semaphore ran = new Semaphore(0);
+        private volatile long ranAt;
+
+        RecordingTimeout() {
+            super(exec);
+        }
+
+        void expired() {
+            ranAt = System.nanoTime();
+            runs.incrementAndGet();
+            ran.release();
+        }
+
+        boolean await(final long millis) throws InterruptedException {
+            return ran.tryAcquire(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        exec = Executors.newSingleThreadExecutor();
+        wheel = new TimerWheel(1, 64, 100);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+        exec.shutdownNow();
+    }
+
+    /*
+     * Timeouts never expire before their delay, including delays longer than
+     * one turn of the wheel.
+     */
+    @Test(timeout=5000)
+    public void neverExpiresEarly() throws Exception {
+        long[] delays = new long[] { 1, 5, 20, 63, 64, 65, 150 };
+        RecordingTimeout[] timeouts = new RecordingTimeout[delays.length];
+        long[] scheduled = new long[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            timeouts[i] = new RecordingTimeout();
+            scheduled[i] = System.nanoTime();
+            wheel.schedule(timeouts[i], delays[i]);
+        }
+        for (int i = 0; i < delays.length; i++) {
+            assertTrue(timeouts[i].await(2000));
+            long elapsed = timeouts[i].ranAt - scheduled[i];
+            assertTrue("Delay " + delays[i] + " expired after " + elapsed
+                    + "ns", elapsed >= TimeUnit.MILLISECONDS.toNanos(
+                    delays[i]));
+            assertEquals(1, timeouts[i].runs.get());
+            assertFalse(timeouts[i].isActive());
+        }
+    }
+
+    /*
+     * Timeouts beyond the fine level, and beyond the coarse level, are moved
+     * down as the wheel turns and still expire once, never early.
+     */
+    @Test(timeout=5000)
+    public void distantTimeoutsMoveDown() throws Exception {
+        TimerWheel small = new TimerWheel(1, 4, 100);
+        try {
+            long[] delays = new long[] { 3, 5, 15, 17, 40, 70, 130 };
+            RecordingTimeout[] timeouts = new RecordingTimeout[delays.length];
+            long[] scheduled = new long[delays.length];
+            for (int i = 0; i < delays.length; i++) {
+                timeouts[i] = new RecordingTimeout();
+                scheduled[i] = System.nanoTime();
+                small.schedule(timeouts[i], delays[i]);
+            }
+            for (int i = 0; i < delays.length; i++) {
+                assertTrue(timeouts[i].await(2000));
+                assertTrue(timeouts[i].ranAt - scheduled[i]
+                        >= TimeUnit.MILLISECONDS.toNanos(delays[i]));
+            }
+            Thread.sleep(50);
+            for (RecordingTimeout timeout : timeouts) {
+                assertEquals(1, timeout.runs.get());
+            }
+        } finally {
+            small.stop();
+        }
+    }
+
+    /*
+     * The thread exits once no timeouts have been scheduled for a while,
+     * and is started again by the next timeout.
+     */
+    @Test(timeout=5000)
+    public void threadExitsWhenIdle() throws Exception {
+        assertFalse(wheel.isRunning());
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, 5);
+        assertTrue(wheel.isRunning());
+        assertTrue(timeout.await(1000));
+        while (wheel.isRunning()) {
+            Thread.sleep(20);
+        }
+        long start = System.nanoTime();
+        wheel.schedule(timeout, 30);
+        assertTrue(wheel.isRunning());
+        assertTrue(timeout.await(1000));
+        assertTrue(timeout.ranAt - start >= TimeUnit.MILLISECONDS.toNanos(30));
+    }
+
+    /*
+     * A zero delay runs the timeout immediately.
+     */
+    @Test(timeout=5000)
+    public void zeroDelay() throws Exception {
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, 0);
+        assertTrue(timeout.await(1000));
+        assertEquals(1, timeout.runs.get());
+    }
+
+    /*
+     * Cancelled timeouts never run.
+     */
+    @Test(timeout=5000)
+    public void cancel() throws Exception {
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, 20);
+        assertTrue(timeout.isActive());
+        wheel.cancel(timeout);
+        assertFalse(timeout.isActive());
+        assertFalse(timeout.await(100));
+    }
+
+    /*
+     * Rescheduling a timeout replaces its previous deadline, so it runs once,
+     * at the later deadline.
+     */
+    @Test(timeout=5000)
+    public void reschedule() throws Exception {
+        RecordingTimeout timeout = new RecordingTimeout();
+        wheel.schedule(timeout, 10);
+        long start = System.nanoTime();
+        wheel.schedule(timeout, 80);
+        assertTrue(timeout.await(2000));
+        assertTrue(timeout.ranAt - start >= TimeUnit.MILLISECONDS.toNanos(80));
+        assertFalse(timeout.await(100));
+        assertEquals(1, timeout.runs.get());
+    }
+
+    /*
+     * While the wheel sleeps until a distant timeout, scheduling an earlier
+     * one wakes it, and the distant one still expires on time.
+     */
+    @Test(timeout=5000)
+    public void earlierTimeoutWakesSleepingWheel() throws Exception {
+        RecordingTimeout distant = new RecordingTimeout();
+        long start = System.nanoTime();
+        wheel.schedule(distant, 300);
+        Thread.sleep(50);
+        RecordingTimeout near = new RecordingTimeout();
+        long nearStart = System.nanoTime();
+        wheel.schedule(near, 20);
+        assertTrue(near.await(200));
+        assertTrue(near.ranAt - nearStart
+                >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertFalse(distant.await(0));
+        assertTrue(distant.await(2000));
+        assertTrue(distant.ranAt - start
+                >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    /*
+     * A timeout which has expired but has not yet run on its executor does
+     * not run if it is cancelled or rescheduled in the meantime.
+     */
+    @Test(timeout=5000)
+    public void cancelAfterExpiry() throws Exception {
+        final Semaphore blocked = new Semaphore(0);
+        final Semaphore release = new Semaphore(0);
+        exec.execute(new Runnable() {
+            public void run() {
+                blocked.release();
+                release.acquireUninterruptibly();
+            }
+        });
+        blocked.acquire();
+
+        RecordingTimeout cancelled = new RecordingTimeout();
+        RecordingTimeout rescheduled = new RecordingTimeout();
+        wheel.schedule(cancelled, 1);
+        wheel.schedule(rescheduled, 1);
+        Thread.sleep(50);
+        assertTrue(cancelled.isActive());
+        wheel.cancel(cancelled);
+        wheel.schedule(rescheduled, 200);
+        release.release();
+
+        assertTrue(rescheduled.await(2000));
+        assertFalse(cancelled.await(50));
+        assertEquals(1, rescheduled.runs.get());
+    }
+
+    /*
+     * Many timeouts sharing buckets all expire exactly once.
+     */
+    @Test(timeout=10000)
+    public void manyTimeouts() throws Exception {
+        RecordingTimeout[] timeouts = new RecordingTimeout[2000];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = new RecordingTimeout();
+            wheel.schedule(timeouts[i], 100 + (i % 300));
+        }
+        for (int i = 0; i < timeouts.length; i += 2) {
+            wheel.cancel(timeouts[i]);
+        }
+        for (int i = 1; i < timeouts.length; i += 2) {
+            assertTrue(timeouts[i].await(5000));
+        }
+        Thread.sleep(50);
+        for (int i = 0; i < timeouts.length; i++) {
+            assertEquals(i % 2, timeouts[i].runs.get());
+        }
+    }
+
+}
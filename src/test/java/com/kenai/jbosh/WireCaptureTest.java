@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009 Mike Cumings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.kenai.jbosh;
+
+import java.io.File;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@code WireCapture} ring log and its use by the client.
+ */
+public class WireCaptureTest extends AbstractBOSHTest {
+
+    private static byte[] bytes(final int size, final int value) {
+        byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) value;
+        }
+        return result;
+    }
+
+    /*
+     * When the ring is full, the oldest records are overwritten and the
+     * newest are kept in order.
+     */
+    @Test
+    public void ringKeepsNewestRecords() throws Exception {
+        WireCapture capture = WireCapture.inMemory(500);
+        for (int i = 0; i < 50; i++) {
+            capture.request(i, bytes(i % 7 * 10, i), i);
+        }
+        List<WireCapture.Record> records = capture.getRecords();
+        assertFalse(records.isEmpty());
+        assertTrue(records.size() < 50);
+        long rid = 50 - records.size();
+        long nanos = 0;
+        for (WireCapture.Record record : records) {
+            assertEquals(rid, record.getRID());
+            assertEquals(rid % 7 * 10, record.getData().length);
+            assertEquals(rid, record.getWireLength());
+            assertTrue(record.isRequest());
+            assertTrue(record.getNanos() >= nanos);
+            nanos = record.getNanos();
+            rid++;
+        }
+    }
+
+    /*
+     * Records larger than the ring are dropped and counted.
+     */
+    @Test
+    public void oversizedRecordDropped() throws Exception {
+        WireCapture capture = WireCapture.inMemory(100);
+        capture.response(1, 200, bytes(200, 1), 200);
+        capture.response(2, 200, bytes(10, 2), 10);
+        assertEquals(1, capture.getDroppedCount());
+        assertEquals(1, capture.getRecords().size());
+        assertEquals(2, capture.getRecords().get(0).getRID());
+    }
+
+    /*
+     * A file-backed capture can be loaded back.
+     */
+    @Test
+    public void fileRoundTrip() throws Exception {
+        File file = File.createTempFile("jbosh", ".capture");
+        try {
+            WireCapture capture = WireCapture.toFile(file, 300);
+            for (int i = 0; i < 20; i++) {
+                capture.response(i, 200 + i, bytes(20, i), 5);
+            }
+            List<WireCapture.Record> expected = capture.getRecords();
+            capture.close();
+            List<WireCapture.Record> loaded = WireCapture.load(file);
+            assertEquals(expected.size(), loaded.size());
+            for (int i = 0; i < loaded.size(); i++) {
+                WireCapture.Record record = loaded.get(i);
+                assertEquals(expected.get(i).getRID(), record.getRID());
+                assertEquals(200 + record.getRID(), record.getStatus());
+                assertFalse(record.isRequest());
+                assertArrayEquals(
+                        expected.get(i).getData(), record.getData());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * The client captures each request and response with its RID.
+     */
+    @Test(timeout=5000)
+    public void clientCapture() throws Exception {
+        logTestStart();
+        WireCapture capture = WireCapture.inMemory(65536);
+        session = createSession(BOSHClientConfig.Builder.create(
+                session.getBOSHClientConfig())
+                .setWireCapture(capture)
+                .build());
+
+        session.send(ComposableBody.builder().build());
+        StubConnection conn = cm.awaitConnection();
+        AbstractBody req = conn.getRequest().getBody();
+        AbstractBody resp = getSessionCreationResponse(req).build();
+        conn.sendResponse(resp);
+        session.drain();
+
+        List<WireCapture.Record> records = capture.getRecords();
+        assertEquals(2, records.size());
+        long rid = Long.parseLong(req.getAttribute(Attributes.RID));
+        WireCapture.Record sent = records.get(0);
+        assertTrue(sent.isRequest());
+        assertEquals(rid, sent.getRID());
+        assertEquals(req.toXML(), new String(sent.getData(), "UTF-8"));
+        WireCapture.Record received = records.get(1);
+        assertFalse(received.isRequest());
+        assertEquals(rid, received.getRID());
+        assertEquals(200, received.getStatus());
+        assertEquals(resp.toXML(), new String(received.getData(), "UTF-8"));
+    }
+
+}